@@ -8,9 +8,13 @@ import java.security.Security;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mozilla.jss.asn1.ANY;
 import org.mozilla.jss.asn1.ASN1Util;
@@ -153,8 +157,8 @@ public final class CryptoManager implements TokenSupplier
      * @return The internal cryptographic services token.
      */
     @Override
-    public synchronized CryptoToken getInternalCryptoToken() {
-        return internalCryptoToken;
+    public CryptoToken getInternalCryptoToken() {
+        return tokenRegistry.internalCryptoToken;
     }
 
     /**
@@ -166,8 +170,8 @@ public final class CryptoManager implements TokenSupplier
      *
      * @return The internal key storage token.
      */
-    public synchronized CryptoToken getInternalKeyStorageToken() {
-        return internalKeyStorageToken;
+    public CryptoToken getInternalKeyStorageToken() {
+        return tokenRegistry.internalKeyStorageToken;
     }
 
     /**
@@ -179,14 +183,10 @@ public final class CryptoManager implements TokenSupplier
      * @exception org.mozilla.jss.NoSuchTokenException If no token
      *  is found with the given name.
      */
-    public synchronized CryptoToken getTokenByName(String name)
+    public CryptoToken getTokenByName(String name)
         throws NoSuchTokenException
     {
-        Enumeration<CryptoToken> tokens = getAllTokens();
-        CryptoToken token;
-
-        while(tokens.hasMoreElements()) {
-            token = tokens.nextElement();
+        for (CryptoToken token : tokenRegistry.allTokens) {
             try {
                 if( name.equals(token.getName()) ) {
                     return token;
@@ -204,14 +204,11 @@ public final class CryptoManager implements TokenSupplier
      * @param alg Algorithm.
      * @return Enumeration of tokens.
      */
-    public synchronized Enumeration<CryptoToken> getTokensSupportingAlgorithm(Algorithm alg)
+    public Enumeration<CryptoToken> getTokensSupportingAlgorithm(Algorithm alg)
     {
-        Enumeration<CryptoToken> tokens = getAllTokens();
         Vector<CryptoToken> goodTokens = new Vector<>();
-        CryptoToken tok;
 
-        while(tokens.hasMoreElements()) {
-            tok = tokens.nextElement();
+        for (CryptoToken tok : tokenRegistry.allTokens) {
             if( tok.doesAlgorithm(alg) ) {
                 goodTokens.addElement(tok);
             }
@@ -227,18 +224,8 @@ public final class CryptoManager implements TokenSupplier
      *      is a <code>CryptoToken</code>
      * @see org.mozilla.jss.crypto.CryptoToken
      */
-    public synchronized Enumeration<CryptoToken> getAllTokens() {
-        Enumeration<PK11Module> modules = getModules();
-        Enumeration<CryptoToken> tokens;
-        Vector<CryptoToken> allTokens = new Vector<>();
-
-        while(modules.hasMoreElements()) {
-            tokens = modules.nextElement().getTokens();
-            while(tokens.hasMoreElements()) {
-                allTokens.addElement( tokens.nextElement() );
-            }
-        }
-        return allTokens.elements();
+    public Enumeration<CryptoToken> getAllTokens() {
+        return Collections.enumeration(tokenRegistry.allTokens);
     }
 
     /**
@@ -249,24 +236,8 @@ public final class CryptoManager implements TokenSupplier
      * @return All tokens accessible from JSS, except for the built-in
      *      internal tokens.
      */
-    public synchronized Enumeration<CryptoToken> getExternalTokens() {
-        Enumeration<PK11Module> modules = getModules();
-        Enumeration<CryptoToken> tokens;
-        PK11Token token;
-        Vector<CryptoToken> allTokens = new Vector<>();
-
-        while(modules.hasMoreElements()) {
-            tokens = modules.nextElement().getTokens();
-            while(tokens.hasMoreElements()) {
-                token = (PK11Token) tokens.nextElement();
-                if( ! token.isInternalCryptoToken() &&
-                    ! token.isInternalKeyStorageToken() )
-                {
-                    allTokens.addElement( token );
-                }
-            }
-        }
-        return allTokens.elements();
+    public Enumeration<CryptoToken> getExternalTokens() {
+        return Collections.enumeration(tokenRegistry.externalTokens);
     }
 
     /**
@@ -276,58 +247,108 @@ public final class CryptoManager implements TokenSupplier
      *      item in the enumeration is a <code>PK11Module</code>.
      * @see org.mozilla.jss.pkcs11.PK11Module
      */
-    public synchronized Enumeration<PK11Module> getModules() {
-        return moduleVector.elements();
+    public Enumeration<PK11Module> getModules() {
+        return Collections.enumeration(tokenRegistry.modules);
     }
 
     // Need to reload modules after adding new one
     //public native addModule(String name, String libraryName);
 
     /**
-     * The list of modules. This should be initialized by the constructor
-     * and updated whenever 1) a new module is added, 2) a module is deleted,
-     * or 3) FIPS mode is switched.
+     * Immutable snapshot of the loaded modules and their tokens.
+     *
+     * Lookups read the current snapshot without locking; reloadModules()
+     * builds a new one and publishes it in a single write.
      */
-    private Vector<PK11Module> moduleVector;
+    private static final class TokenRegistry {
+        final List<PK11Module> modules;
+        final List<CryptoToken> allTokens;
+        final List<CryptoToken> externalTokens;
+        final CryptoToken internalCryptoToken;
+        final CryptoToken internalKeyStorageToken;
+
+        TokenRegistry(List<PK11Module> modules) {
+            List<CryptoToken> all = new ArrayList<>();
+            List<CryptoToken> external = new ArrayList<>();
+            CryptoToken cryptoToken = null;
+            CryptoToken keyStorageToken = null;
+
+            for (PK11Module module : modules) {
+                Enumeration<CryptoToken> tokens = module.getTokens();
+                while (tokens.hasMoreElements()) {
+                    PK11Token token = (PK11Token) tokens.nextElement();
+                    all.add(token);
+
+                    if( token.isInternalCryptoToken() ) {
+                        assert(cryptoToken == null);
+                        cryptoToken = token;
+                    }
+                    if( token.isInternalKeyStorageToken() ) {
+                        assert(keyStorageToken == null);
+                        keyStorageToken = token;
+                    }
+                    if( ! token.isInternalCryptoToken() &&
+                        ! token.isInternalKeyStorageToken() )
+                    {
+                        external.add(token);
+                    }
+                }
+            }
+
+            this.modules = Collections.unmodifiableList(new ArrayList<>(modules));
+            this.allTokens = Collections.unmodifiableList(all);
+            this.externalTokens = Collections.unmodifiableList(external);
+            this.internalCryptoToken = cryptoToken;
+            this.internalKeyStorageToken = keyStorageToken;
+        }
+    }
+
+    /**
+     * The current modules and tokens. This is initialized by the
+     * constructor and replaced whenever 1) a new module is added, 2) a
+     * module is deleted, 3) FIPS mode is switched, or 4) a module reloads
+     * its tokens.
+     */
+    private volatile TokenRegistry tokenRegistry;
 
     /**
-     * Re-creates the Vector of modules that is stored by CryptoManager.
+     * Re-creates the snapshot of modules and tokens stored by CryptoManager.
      * This entails going into native code to enumerate all modules,
-     * wrap each one in a PK11Module, and storing the PK11Module in the vector.
+     * wrap each one in a PK11Module, and storing the PK11Module in a vector.
      */
     private synchronized void reloadModules() {
-        moduleVector = new Vector<>();
-        putModulesInVector(moduleVector);
-
-        // Get the internal tokens
-        Enumeration<CryptoToken> tokens = getAllTokens();
-
-        internalCryptoToken = null;
-        internalKeyStorageToken = null;
-        while(tokens.hasMoreElements()) {
-            PK11Token token = (PK11Token) tokens.nextElement();
-            if( token.isInternalCryptoToken() ) {
-                assert(internalCryptoToken == null);
-                internalCryptoToken = token;
-            }
-            if( token.isInternalKeyStorageToken() ) {
-                assert(internalKeyStorageToken == null);
-                internalKeyStorageToken = token;
-            }
-        }
-        assert(internalKeyStorageToken != null);
-        assert(internalCryptoToken != null);
+        Vector<PK11Module> modules = new Vector<>();
+        putModulesInVector(modules);
+
+        TokenRegistry registry = new TokenRegistry(modules);
+        assert(registry.internalKeyStorageToken != null);
+        assert(registry.internalCryptoToken != null);
+
+        tokenRegistry = registry;
     }
 
     /**
-     * The internal cryptographic services token.
+     * Refreshes the tokens returned by getAllTokens(), getExternalTokens(),
+     * getTokenByName(...) and the internal token accessors from the tokens
+     * currently held by each loaded module.
+     *
+     * PK11Module.reloadTokens() calls this after re-reading a module's
+     * tokens, so applications only need to call it when they change a
+     * module's tokens some other way. The set of modules itself is not
+     * re-read.
+     *
+     * @see PK11Module#reloadTokens()
      */
-    private CryptoToken internalCryptoToken;
+    public synchronized void reloadTokenRegistry() {
+        TokenRegistry registry = tokenRegistry;
+        if (registry == null) {
+            // Still being constructed; reloadModules() will pick up the
+            // current tokens.
+            return;
+        }
 
-    /**
-     * The internal key storage token.
-     */
-    private CryptoToken internalKeyStorageToken;
+        tokenRegistry = new TokenRegistry(registry.modules);
+    }
 
     /**
      * Native code to traverse all PKCS #11 modules, wrap each one in
@@ -344,14 +365,14 @@ public final class CryptoManager implements TokenSupplier
      * Constructor, for internal use only.
      */
     protected CryptoManager()  {
-        TokenSupplierManager.setTokenSupplier(this);
+        // Build the token registry before anything else can reach this
+        // instance; the token accessors don't check for it.
         reloadModules();
+        TokenSupplierManager.setTokenSupplier(this);
     }
 
     public static boolean isInitialized() {
-        synchronized (CryptoManager.class) {
-            return instance != null;
-        }
+        return instance != null;
     }
 
     /**
@@ -367,10 +388,10 @@ public final class CryptoManager implements TokenSupplier
     public static CryptoManager getInstance()
         throws NotInitializedException
     {
-        synchronized (CryptoManager.class) {
-            if (instance != null) {
-                return instance;
-            }
+        // Fast path: once initialized, instance is read without locking.
+        CryptoManager cm = instance;
+        if (cm != null) {
+            return cm;
         }
 
         /* Java has lazy-loading Security providers; until a provider
@@ -422,7 +443,7 @@ public final class CryptoManager implements TokenSupplier
     /**
      * The singleton instance, and a static initializer to create it.
      */
-    private static CryptoManager instance=null;
+    private static volatile CryptoManager instance=null;
 
 
     ///////////////////////////////////////////////////////////////////////
@@ -623,13 +644,15 @@ public final class CryptoManager implements TokenSupplier
                             );
         }
 
-        instance = new CryptoManager();
-        instance.setPasswordCallback(values.passwordCallback);
+        // Only publish the CryptoManager once it is fully set up:
+        // getInstance() and isInitialized() read instance without locking.
+        CryptoManager manager = new CryptoManager();
+        manager.setPasswordCallback(values.passwordCallback);
         if( values.fipsMode != InitializationValues.FIPSMode.UNCHANGED) {
             if( enableFIPS(values.fipsMode ==
                     InitializationValues.FIPSMode.ENABLED) )
             {
-                instance.reloadModules();
+                manager.reloadModules();
             }
         }
 
@@ -668,6 +691,8 @@ public final class CryptoManager implements TokenSupplier
         }
 
         logger.info("JSS CryptoManager: successfully initialized from NSS database at " + values.configDir);
+
+        instance = manager;
     }
 
     private static native void
@@ -737,6 +762,35 @@ public final class CryptoManager implements TokenSupplier
     /////////////////////////////////////////////////////////////
     // Cert Lookup
     /////////////////////////////////////////////////////////////
+
+    /**
+     * Incremented whenever a certificate is imported, deleted or has its
+     * trust changed through JSS.
+     */
+    private static final AtomicLong trustGeneration = new AtomicLong();
+
+    /**
+     * Returns a counter which changes whenever a certificate is imported,
+     * deleted or has its trust flags changed through JSS. Anything caching
+     * the results of certificate validation should discard them when this
+     * value changes.
+     *
+     * Changes made to the NSS database outside of this process (for
+     * instance, with certutil) are not reflected, so such caches should
+     * also expire after some time.
+     */
+    public static long getTrustGeneration() {
+        return trustGeneration.get();
+    }
+
+    /**
+     * Signal that the certificates or trust in the NSS database have
+     * changed, invalidating cached certificate validation results.
+     */
+    public static void notifyTrustChanged() {
+        trustGeneration.incrementAndGet();
+    }
+
     /**
      * Retrieves all CA certificates in the trust database.  This
      * is a fairly expensive operation in that it involves traversing
@@ -796,7 +850,11 @@ public final class CryptoManager implements TokenSupplier
             NoSuchItemOnTokenException,
             TokenException
     {
-        return importCertPackageNative(certPackage, nickname, false, false);
+        try {
+            return importCertPackageNative(certPackage, nickname, false, false);
+        } finally {
+            notifyTrustChanged();
+        }
     }
 
     /**
@@ -833,7 +891,11 @@ public final class CryptoManager implements TokenSupplier
             NoSuchItemOnTokenException,
             TokenException
     {
-        return importCertPackageNative(certPackage, nickname, false, true);
+        try {
+            return importCertPackageNative(certPackage, nickname, false, true);
+        } finally {
+            notifyTrustChanged();
+        }
     }
 
 
@@ -871,6 +933,8 @@ public final class CryptoManager implements TokenSupplier
             logger.error("importing CA certs caused NoSuchItemOnTokenException", e);
             throw new RuntimeException("Importing CA certs caused NoSuchItemOnToken"+
                 "Exception: " + e.getMessage(), e);
+        } finally {
+            notifyTrustChanged();
         }
     }
 
@@ -893,7 +957,11 @@ public final class CryptoManager implements TokenSupplier
         if (nickname == null) {
             throw new InvalidNicknameException("Nickname must be non-null");
         }
-        return importCertToPermNative(cert,nickname);
+        try {
+            return importCertToPermNative(cert,nickname);
+        } finally {
+            notifyTrustChanged();
+        }
     }
 
     /**
@@ -902,7 +970,11 @@ public final class CryptoManager implements TokenSupplier
      */
     public X509Certificate importDERCert(byte[] cert, CertificateUsage usage,
                                          boolean permanent, String nickname) {
-        return importDERCertNative(cert, usage.getEnumValue(), permanent, nickname);
+        try {
+            return importDERCertNative(cert, usage.getEnumValue(), permanent, nickname);
+        } finally {
+            notifyTrustChanged();
+        }
     }
 
     private native X509Certificate importDERCertNative(byte[] cert, int usage, boolean permanent, String nickname);
@@ -1519,12 +1591,38 @@ public final class CryptoManager implements TokenSupplier
         int ocsp_timeout )
                     throws GeneralSecurityException;
 
+    private static final List<Runnable> shutdownHooks = new CopyOnWriteArrayList<>();
+
+    /**
+     * Register a hook to run when shutdown() is called, before NSS is shut
+     * down. This lets caches holding NSS objects drop them before they'd
+     * outlive NSS.
+     */
+    public static void addShutdownHook(Runnable hook) {
+        shutdownHooks.add(hook);
+    }
+
+    /**
+     * Remove a hook previously registered with addShutdownHook(...).
+     */
+    public static void removeShutdownHook(Runnable hook) {
+        shutdownHooks.remove(hook);
+    }
+
     /**
      * Shutdowns this CryptoManager instance and the associated NSS
      * initialization.
      */
     public synchronized void shutdown() throws Exception {
         try {
+            for (Runnable hook : shutdownHooks) {
+                try {
+                    hook.run();
+                } catch (RuntimeException e) {
+                    logger.warn("CryptoManager: shutdown hook failed: " + e.getMessage(), e);
+                }
+            }
+
             NativeProxy.purgeAllInRegistry();
         } finally {
             shutdownNative();
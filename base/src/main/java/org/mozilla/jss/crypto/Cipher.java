@@ -4,11 +4,13 @@
 
 package org.mozilla.jss.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.spec.AlgorithmParameterSpec;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.ShortBufferException;
 
 /**
  * A context for performing symmetric encryption and decryption.
@@ -26,6 +28,11 @@ public abstract class Cipher {
     // class instead of be directly created like things which override our
     // Cipher class expect (e.g., PK11Cipher). This is why JSSCipherSpi exists.
 
+    /**
+     * Largest block size, in bytes, of any EncryptionAlgorithm (AES).
+     */
+    private static final int MAX_BLOCK_SIZE = 16;
+
     /**
      * Initializes a encryption context with a symmetric key.
      */
@@ -110,6 +117,148 @@ public abstract class Cipher {
         throws IllegalStateException, IllegalBlockSizeException,
         BadPaddingException, TokenException;
 
+    /**
+     * Returns the maximum number of output bytes the next
+     * <code>update</code> or <code>doFinal</code> could produce for the
+     * given amount of input, including any input buffered by earlier calls.
+     *
+     * The default implementation doesn't know the algorithm, nor how much
+     * input is buffered; it assumes up to a block of buffered input and a
+     * block of padding, for the largest block size of any
+     * EncryptionAlgorithm. Implementations should return a tighter bound.
+     * @param inputLen Number of bytes of input.
+     * @return Maximum number of bytes of output.
+     */
+    public int getOutputSize(int inputLen) {
+        return inputLen + 2 * MAX_BLOCK_SIZE;
+    }
+
+    /**
+     * Updates the encryption context with additional input, writing the
+     * output to the given array.
+     * @param input Bytes of plaintext (if encrypting) or ciphertext (if
+     *      decrypting).
+     * @param inputOffset The index in <code>input</code> at which to begin
+     *      reading.
+     * @param inputLen The number of bytes from <code>input</code> to read.
+     * @param output The buffer to hold the output.
+     * @param outputOffset The index in <code>output</code> at which to
+     *      begin writing.
+     * @return The number of bytes written to <code>output</code>.
+     */
+    public int update(byte[] input, int inputOffset, int inputLen,
+            byte[] output, int outputOffset)
+        throws IllegalStateException, ShortBufferException, TokenException
+    {
+        checkOutputSize(inputLen, output.length - outputOffset);
+        byte[] bytes = update(input, inputOffset, inputLen);
+        return copyOutput(bytes, output, outputOffset);
+    }
+
+    /**
+     * Updates the encryption context with the remaining bytes of
+     * <code>input</code>, writing the output to <code>output</code>. The
+     * positions of both buffers are advanced.
+     * @return The number of bytes written to <code>output</code>.
+     */
+    public int update(ByteBuffer input, ByteBuffer output)
+        throws IllegalStateException, ShortBufferException, TokenException
+    {
+        checkOutputSize(input.remaining(), output.remaining());
+        byte[] bytes = update(remaining(input));
+        return copyOutput(bytes, input, output);
+    }
+
+    /**
+     * Completes a cipher operation, writing the output to the given array.
+     * @param input Bytes of plaintext (if encrypting) or ciphertext (if
+     *      decrypting); may be null when there is no more input.
+     * @param inputOffset The index in <code>input</code> at which to begin
+     *      reading.
+     * @param inputLen The number of bytes from <code>input</code> to read.
+     * @param output The buffer to hold the output.
+     * @param outputOffset The index in <code>output</code> at which to
+     *      begin writing.
+     * @return The number of bytes written to <code>output</code>.
+     */
+    public int doFinal(byte[] input, int inputOffset, int inputLen,
+            byte[] output, int outputOffset)
+        throws IllegalStateException, IllegalBlockSizeException,
+        BadPaddingException, ShortBufferException, TokenException
+    {
+        checkOutputSize(input == null ? 0 : inputLen,
+                output.length - outputOffset);
+
+        byte[] bytes;
+        if (input == null || inputLen == 0) {
+            bytes = doFinal();
+        } else {
+            bytes = doFinal(input, inputOffset, inputLen);
+        }
+        return copyOutput(bytes, output, outputOffset);
+    }
+
+    /**
+     * Completes a cipher operation with the remaining bytes of
+     * <code>input</code>, writing the output to <code>output</code>. The
+     * positions of both buffers are advanced.
+     * @return The number of bytes written to <code>output</code>.
+     */
+    public int doFinal(ByteBuffer input, ByteBuffer output)
+        throws IllegalStateException, IllegalBlockSizeException,
+        BadPaddingException, ShortBufferException, TokenException
+    {
+        checkOutputSize(input.remaining(), output.remaining());
+        byte[] bytes = doFinal(remaining(input));
+        return copyOutput(bytes, input, output);
+    }
+
+    private static byte[] remaining(ByteBuffer input) {
+        byte[] bytes = new byte[input.remaining()];
+        input.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Throws ShortBufferException if the output of inputLen more bytes
+     * might not fit in available bytes. This is checked before any input
+     * is consumed, so the operation can be retried with a larger buffer.
+     */
+    private void checkOutputSize(int inputLen, int available)
+        throws ShortBufferException
+    {
+        int needed = getOutputSize(inputLen);
+        if (needed > available) {
+            throw new ShortBufferException(needed + " needed, " + available +
+                " supplied");
+        }
+    }
+
+    // The size checks below only fail if getOutputSize() underestimated.
+
+    private static int copyOutput(byte[] bytes, byte[] output,
+            int outputOffset) throws ShortBufferException
+    {
+        if (bytes.length > output.length - outputOffset) {
+            throw new ShortBufferException(bytes.length + " needed, " +
+                (output.length - outputOffset) + " supplied");
+        }
+        System.arraycopy(bytes, 0, output, outputOffset, bytes.length);
+        return bytes.length;
+    }
+
+    private static int copyOutput(byte[] bytes, ByteBuffer input,
+            ByteBuffer output) throws ShortBufferException
+    {
+        if (bytes.length > output.remaining()) {
+            throw new ShortBufferException(bytes.length + " needed, " +
+                output.remaining() + " supplied");
+        }
+        input.position(input.limit());
+        output.put(bytes);
+        return bytes.length;
+    }
+
     /**
      * Pads a byte array so that its length is a multiple of the given
      *  blocksize.  The method of padding is the one defined in the RSA
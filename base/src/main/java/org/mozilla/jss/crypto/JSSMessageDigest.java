@@ -106,6 +106,20 @@ public abstract class JSSMessageDigest {
      */
     public abstract DigestAlgorithm getAlgorithm();
 
+    /**
+     * Creates an independent copy of this digest, including any data
+     * already passed to <code>update()</code>. The copy may be updated
+     * and finalized without affecting this digest.
+     *
+     * @return A copy of this digest.
+     * @throws CloneNotSupportedException If this digest or its token
+     *      doesn't support duplicating the digest state.
+     */
+    @Override
+    public JSSMessageDigest clone() throws CloneNotSupportedException {
+        throw new CloneNotSupportedException(getClass().getName() + " cannot be cloned");
+    }
+
     /**
      * Returns the length of the digest created by this digest's
      * digest algorithm.
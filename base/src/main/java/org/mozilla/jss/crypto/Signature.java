@@ -5,10 +5,17 @@ package org.mozilla.jss.crypto;
 
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.PublicKey;
 import java.security.SignatureException;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * A class for producing and verifying digital signatures.
@@ -126,6 +133,177 @@ public class Signature {
         return engine.engineVerify(signature);
     }
 
+    /**
+     * Signs each message in a batch. The signature context must have been
+     * initialized with <code>initSign</code>; it remains initialized
+     * afterwards, and data passed to <code>update</code> is unaffected.
+     *
+     * @param data The messages to sign.
+     * @return The signature of each message, in the same order.
+     * @exception SignatureException If an error occurs while signing.
+     * @exception TokenException If an error occurs on the token.
+     * @exception UnsupportedOperationException If this signature context
+     *                doesn't support batches.
+     */
+    public byte[][] sign(byte[][] data)
+            throws SignatureException, TokenException {
+        return engine.engineSignBatch(data);
+    }
+
+    /**
+     * Verifies each signature in a batch against the corresponding message.
+     * The signature context must have been initialized with
+     * <code>initVerify</code>; it remains initialized afterwards, and data
+     * passed to <code>update</code> is unaffected.
+     *
+     * @param data The signed messages.
+     * @param signatures The signature of each message.
+     * @return Whether each signature is valid, in the same order.
+     * @exception SignatureException If an error occurs while verifying.
+     * @exception TokenException If an error occurs on the token.
+     * @exception UnsupportedOperationException If this signature context
+     *                doesn't support batches.
+     */
+    public boolean[] verify(byte[][] data, byte[][] signatures)
+            throws SignatureException, TokenException {
+        return engine.engineVerifyBatch(data, signatures);
+    }
+
+    /**
+     * Signs each message in a batch, splitting the batch into chunks of at
+     * most <code>chunkSize</code> messages which are signed concurrently on
+     * the given executor, each with its own signature context.
+     *
+     * @param token The token on which to sign.
+     * @param algorithm The signature algorithm.
+     * @param privateKey The key with which to sign.
+     * @param data The messages to sign.
+     * @param executor The executor on which to run each chunk.
+     * @param chunkSize The maximum number of messages per chunk.
+     * @return The signature of each message, in the same order.
+     */
+    public static byte[][] sign(CryptoToken token,
+            SignatureAlgorithm algorithm, PrivateKey privateKey,
+            byte[][] data, Executor executor, int chunkSize)
+            throws NoSuchAlgorithmException, InvalidKeyException,
+            SignatureException, TokenException {
+        checkChunkSize(chunkSize);
+
+        List<CompletableFuture<byte[][]>> futures = new ArrayList<>();
+
+        for (int start = 0; start < data.length; start += chunkSize) {
+            byte[][] chunk = Arrays.copyOfRange(data, start,
+                    Math.min(start + chunkSize, data.length));
+
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    Signature sig = token.getSignatureContext(algorithm);
+                    sig.initSign(privateKey);
+                    return sig.sign(chunk);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+
+        byte[][] result = new byte[data.length][];
+        int offset = 0;
+        for (CompletableFuture<byte[][]> future : futures) {
+            byte[][] chunk = join(future);
+            System.arraycopy(chunk, 0, result, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return result;
+    }
+
+    /**
+     * Verifies each signature in a batch, splitting the batch into chunks
+     * of at most <code>chunkSize</code> messages which are verified
+     * concurrently on the given executor, each with its own signature
+     * context.
+     *
+     * @param token The token on which to verify.
+     * @param algorithm The signature algorithm.
+     * @param publicKey The key with which to verify.
+     * @param data The signed messages.
+     * @param signatures The signature of each message.
+     * @param executor The executor on which to run each chunk.
+     * @param chunkSize The maximum number of messages per chunk.
+     * @return Whether each signature is valid, in the same order.
+     */
+    public static boolean[] verify(CryptoToken token,
+            SignatureAlgorithm algorithm, PublicKey publicKey,
+            byte[][] data, byte[][] signatures, Executor executor,
+            int chunkSize)
+            throws NoSuchAlgorithmException, InvalidKeyException,
+            SignatureException, TokenException {
+        checkChunkSize(chunkSize);
+        if (data.length != signatures.length) {
+            throw new SignatureException("Got " + data.length +
+                    " messages but " + signatures.length + " signatures");
+        }
+
+        List<CompletableFuture<boolean[]>> futures = new ArrayList<>();
+
+        for (int start = 0; start < data.length; start += chunkSize) {
+            int end = Math.min(start + chunkSize, data.length);
+            byte[][] chunk = Arrays.copyOfRange(data, start, end);
+            byte[][] sigs = Arrays.copyOfRange(signatures, start, end);
+
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    Signature sig = token.getSignatureContext(algorithm);
+                    sig.initVerify(publicKey);
+                    return sig.verify(chunk, sigs);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+
+        boolean[] result = new boolean[data.length];
+        int offset = 0;
+        for (CompletableFuture<boolean[]> future : futures) {
+            boolean[] chunk = join(future);
+            System.arraycopy(chunk, 0, result, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return result;
+    }
+
+    private static void checkChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Expected positive chunk size; got " + chunkSize);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future)
+            throws NoSuchAlgorithmException, InvalidKeyException,
+            SignatureException, TokenException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof InvalidKeyException) {
+                throw (InvalidKeyException) cause;
+            }
+            if (cause instanceof SignatureException) {
+                throw (SignatureException) cause;
+            }
+            if (cause instanceof TokenException) {
+                throw (TokenException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SignatureException(cause.getMessage(), cause);
+        }
+    }
+
     /**
      * Provide more data for a signature or verification operation.
      *
@@ -39,4 +39,25 @@ public abstract class SignatureSpi {
 
 	public abstract void engineSetParameter(AlgorithmParameterSpec params)
 		throws InvalidAlgorithmParameterException, TokenException;
+
+	/**
+	 * Signs each message with the key passed to engineInitSign().
+	 */
+	public byte[][] engineSignBatch(byte[][] data)
+		throws SignatureException, TokenException
+	{
+		throw new UnsupportedOperationException(
+			getClass().getName() + " doesn't support batch signing");
+	}
+
+	/**
+	 * Verifies each signature over the corresponding message with the key
+	 * passed to engineInitVerify().
+	 */
+	public boolean[] engineVerifyBatch(byte[][] data, byte[][] signatures)
+		throws SignatureException, TokenException
+	{
+		throw new UnsupportedOperationException(
+			getClass().getName() + " doesn't support batch verification");
+	}
 }
@@ -12,7 +12,7 @@ package org.mozilla.jss.crypto;
  * CryptoManager.  CryptoManager implements the TokenSupplier interface.
  */
 public class TokenSupplierManager {
-    static private TokenSupplier supplier;
+    static private volatile TokenSupplier supplier;
     static public void setTokenSupplier(TokenSupplier ts) {
         supplier = ts;
     }
@@ -1,5 +1,8 @@
 package org.mozilla.jss.nss;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
 public class Buffer {
     /**
      * Create a new j_buffer object with the specified number of bytes.
@@ -15,6 +18,17 @@ public class Buffer {
      */
     public static native long Capacity(BufferProxy buf);
 
+    /**
+     * Change the total capacity of a buffer object, preserving any unread
+     * contents. Returns false (leaving the buffer unchanged) when the new
+     * capacity can't hold the unread contents.
+     *
+     * Any PRFileDesc created on top of this buffer remains valid.
+     *
+     * See also: jb_resize in org/mozilla/jss/ssl/javax/j_buffer.h
+     */
+    public static native boolean Resize(BufferProxy buf, long capacity);
+
     /**
      * Check whether or not the buffer can be read from (i.e., is non-empty).
      *
@@ -59,6 +73,57 @@ public class Buffer {
      */
     public static native long Write(BufferProxy buf, byte[] input);
 
+    /**
+     * Read up to length bytes from the buffer directly into the specified
+     * direct ByteBuffer, starting at the absolute index offset. Returns the
+     * number of bytes read; the position of output is not modified.
+     *
+     * This avoids allocating an intermediate byte array on both sides of the
+     * JNI boundary.
+     *
+     * See also: jb_read in org/mozilla/jss/ssl/javax/j_buffer.h
+     */
+    public static long Read(BufferProxy buf, ByteBuffer output, int offset, int length) {
+        checkDirect(output, offset, length);
+        if (output.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        return ReadDirect(buf, output, offset, length);
+    }
+    private static native long ReadDirect(BufferProxy buf, ByteBuffer output, int offset, int length);
+
+    /**
+     * Read up to length bytes from the buffer into the region of output
+     * starting at offset. Returns the number of bytes read.
+     *
+     * Unlike Read(buf, length), this doesn't allocate a new array per call,
+     * allowing callers to read into the backing array of a heap ByteBuffer.
+     *
+     * See also: jb_read in org/mozilla/jss/ssl/javax/j_buffer.h
+     */
+    public static long Read(BufferProxy buf, byte[] output, int offset, int length) {
+        checkRegion(output, offset, length);
+        return ReadRegion(buf, output, offset, length);
+    }
+    private static native long ReadRegion(BufferProxy buf, byte[] output, int offset, int length);
+
+    /**
+     * Write up to length bytes into the buffer directly from the specified
+     * direct ByteBuffer, starting at the absolute index offset. Returns the
+     * number of bytes written; the position of input is not modified.
+     *
+     * This avoids allocating an intermediate byte array on both sides of the
+     * JNI boundary.
+     *
+     * See also: jb_write in org/mozilla/jss/ssl/javax/j_buffer.h
+     */
+    public static long Write(BufferProxy buf, ByteBuffer input, int offset, int length) {
+        checkDirect(input, offset, length);
+        return WriteDirect(buf, input, offset, length);
+    }
+    private static native long WriteDirect(BufferProxy buf, ByteBuffer input, int offset, int length);
+
     /**
      * Get a single character from the buffer.
      *
@@ -73,10 +138,50 @@ public class Buffer {
      */
     public static native int Put(BufferProxy buf, byte input);
 
+    /**
+     * Discard the contents of the buffer (zeroing them), leaving it empty
+     * as if freshly created.
+     *
+     * See also: jb_clear in org/mozilla/jss/ssl/javax/j_buffer.h
+     */
+    public static native void Clear(BufferProxy buf);
+
     /**
      * Destroy a buffer object, freeing its resources.
      *
      * See also: jb_free in org/mozilla/jss/ssl/javax/j_buffer.h
      */
     public static native void Free(BufferProxy buf);
+
+    /**
+     * Validate that the region [offset, offset+length) lies within data.
+     */
+    static void checkRegion(byte[] data, int offset, int length) {
+        if (data == null) {
+            throw new IllegalArgumentException("Expected a non-null array");
+        }
+
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            String msg = "Invalid region (" + offset + ", " + length + ") ";
+            msg += "for array of length " + data.length;
+            throw new IndexOutOfBoundsException(msg);
+        }
+    }
+
+    /**
+     * Validate that data is a direct ByteBuffer and that the region
+     * [offset, offset+length) lies within its limit.
+     */
+    static void checkDirect(ByteBuffer data, int offset, int length) {
+        if (data == null || !data.isDirect()) {
+            String msg = "Expected a non-null, direct ByteBuffer";
+            throw new IllegalArgumentException(msg);
+        }
+
+        if (offset < 0 || length < 0 || offset > data.limit() - length) {
+            String msg = "Invalid region (" + offset + ", " + length + ") ";
+            msg += "for ByteBuffer with limit " + data.limit();
+            throw new IndexOutOfBoundsException(msg);
+        }
+    }
 }
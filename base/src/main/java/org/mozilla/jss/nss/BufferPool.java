@@ -0,0 +1,214 @@
+package org.mozilla.jss.nss;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe pool of j_buffer objects (via BufferProxy).
+ *
+ * Buffers are grouped by capacity; each capacity class keeps at most
+ * maxIdle unused buffers, and any buffer released beyond that is freed.
+ * Buffers whose capacity changed while borrowed (see Buffer.Resize) are
+ * freed on release rather than starting a new capacity class.
+ * Buffers are cleared (and their contents zeroed) when released, so a
+ * borrowed buffer is always empty.
+ *
+ * This lets short-lived users, such as a JSSEngine per TLS connection,
+ * skip allocating and freeing native memory (and the corresponding
+ * BufferProxy) for each use.
+ */
+public class BufferPool {
+    /**
+     * Default number of idle buffers kept per capacity class in the shared
+     * pool; set with the jss.bufferPool.maxIdle system property. A value of
+     * zero disables pooling.
+     */
+    public static final int DEFAULT_MAX_IDLE = Integer.getInteger("jss.bufferPool.maxIdle", 64);
+
+    private static final BufferPool defaultPool = new BufferPool(DEFAULT_MAX_IDLE);
+
+    private static class SizeClass {
+        final ConcurrentLinkedDeque<BufferProxy> idle = new ConcurrentLinkedDeque<>();
+        final AtomicInteger count = new AtomicInteger();
+    }
+
+    private final ConcurrentHashMap<Long, SizeClass> classes = new ConcurrentHashMap<>();
+    private final int maxIdle;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Create a new pool keeping at most maxIdle unused buffers per capacity
+     * class.
+     */
+    public BufferPool(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Expected non-negative maxIdle; got " + maxIdle);
+        }
+
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Get the pool shared by all JSSEngine instances.
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Get an empty buffer with the specified capacity, reusing an idle one
+     * when available and creating one otherwise.
+     *
+     * See also: Buffer.Create
+     */
+    public BufferProxy borrow(long capacity) {
+        SizeClass sc = classes.get(capacity);
+        if (sc != null) {
+            BufferProxy buf;
+            while ((buf = sc.idle.pollFirst()) != null) {
+                sc.count.decrementAndGet();
+
+                // A pooled proxy could've been freed out from under us (for
+                // instance, by NativeProxy.purgeAllInRegistry()); skip it.
+                if (!buf.isNull()) {
+                    hits.incrementAndGet();
+                    return lend(buf, capacity);
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        return lend(Buffer.Create(capacity), capacity);
+    }
+
+    private BufferProxy lend(BufferProxy buf, long capacity) {
+        buf.pool = this;
+        buf.borrowedCapacity = capacity;
+        outstanding.incrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Take back a buffer handed out by borrow(...); returns false when buf
+     * didn't come from this pool or was already returned.
+     */
+    private boolean reclaim(BufferProxy buf) {
+        if (buf.pool != this) {
+            return false;
+        }
+
+        buf.pool = null;
+        outstanding.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Return a buffer obtained from borrow(...) to the pool. Its contents
+     * are discarded; when its capacity class is already full, when it was
+     * resized since being borrowed, or when it didn't come from this pool,
+     * it is freed instead.
+     *
+     * The caller must not use buf afterwards, nor may anything else (such
+     * as a PRFileDesc) still reference it.
+     */
+    public void release(BufferProxy buf) {
+        if (buf == null) {
+            return;
+        }
+
+        if (buf.isNull()) {
+            reclaim(buf);
+            return;
+        }
+
+        long capacity = Buffer.Capacity(buf);
+        if (!reclaim(buf) || capacity != buf.borrowedCapacity) {
+            Buffer.Free(buf);
+            return;
+        }
+
+        SizeClass sc = classes.computeIfAbsent(capacity, k -> new SizeClass());
+
+        if (sc.count.incrementAndGet() > maxIdle) {
+            sc.count.decrementAndGet();
+            Buffer.Free(buf);
+            return;
+        }
+
+        Buffer.Clear(buf);
+        sc.idle.offerFirst(buf);
+    }
+
+    /**
+     * Free a buffer obtained from borrow(...) without returning it to the
+     * pool; for instance, when it might still be referenced elsewhere.
+     */
+    public void discard(BufferProxy buf) {
+        if (buf == null) {
+            return;
+        }
+
+        reclaim(buf);
+        Buffer.Free(buf);
+    }
+
+    /**
+     * Free all idle buffers held by this pool.
+     */
+    public void clear() {
+        for (SizeClass sc : classes.values()) {
+            BufferProxy buf;
+            while ((buf = sc.idle.pollFirst()) != null) {
+                sc.count.decrementAndGet();
+                if (!buf.isNull()) {
+                    Buffer.Free(buf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of calls to borrow(...) satisfied by an idle buffer.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of calls to borrow(...) which had to create a new buffer.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of borrowed buffers which haven't yet been released.
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Number of idle buffers currently held by this pool, across all
+     * capacity classes.
+     */
+    public int getIdle() {
+        int result = 0;
+        for (SizeClass sc : classes.values()) {
+            result += sc.count.get();
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses() +
+            ", outstanding=" + getOutstanding() + ", idle=" + getIdle() + "]";
+    }
+}
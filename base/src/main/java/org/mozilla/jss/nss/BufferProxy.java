@@ -5,6 +5,16 @@ public class BufferProxy extends org.mozilla.jss.util.NativeProxy {
         super(pointer);
     }
 
+    /**
+     * BufferPool which handed out this buffer, while it is borrowed.
+     */
+    BufferPool pool;
+
+    /**
+     * Capacity this buffer was borrowed with; see BufferPool.release(...).
+     */
+    long borrowedCapacity;
+
     /**
      * It is usually better to call org.mozilla.jss.nss.Buffer.Free(...)
      * instead.
@@ -15,9 +25,4 @@ public class BufferProxy extends org.mozilla.jss.util.NativeProxy {
     protected void releaseNativeResources() {
         Buffer.Free(this);
     }
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-    }
 }
@@ -1,5 +1,8 @@
 package org.mozilla.jss.nss;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
 /**
  * This class provides static access to raw NSPS calls with the PR prefix,
  * and handles the usage of NativeProxy objects.
@@ -117,6 +120,26 @@ public class PR {
      */
     public static native byte[] Read(PRFDProxy fd, int amount);
 
+    /**
+     * Read up to length bytes from a PRFDProxy directly into the specified
+     * direct ByteBuffer, starting at the absolute index offset. The position
+     * of buf is not modified.
+     *
+     * Returns the number of bytes read (zero at the end of data), or -1 on
+     * error; check GetError() for the cause.
+     *
+     * See also: PR_Read in /usr/include/nspr4/prio.h
+     */
+    public static int Read(PRFDProxy fd, ByteBuffer buf, int offset, int length) {
+        Buffer.checkDirect(buf, offset, length);
+        if (buf.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        return ReadDirect(fd, buf, offset, length);
+    }
+    private static native int ReadDirect(PRFDProxy fd, ByteBuffer buf, int offset, int length);
+
     /**
      * Recv up to amount bytes from a PRFDProxy, given the specified receive
      * flags and timeout value.
@@ -136,6 +159,42 @@ public class PR {
      */
     public static native int Write(PRFDProxy fd, byte[] buf);
 
+    /**
+     * Write up to length bytes to the PRFDProxy from the region of buf
+     * starting at offset.
+     *
+     * Returns the number of bytes written, or -1 on error. Unlike
+     * Write(fd, byte[]), this lets callers write from the backing array of
+     * a heap ByteBuffer without first copying it into a new array.
+     *
+     * See also: PR_Write in /usr/include/nspr4/prio.h
+     */
+    public static int Write(PRFDProxy fd, byte[] buf, int offset, int length) {
+        Buffer.checkRegion(buf, offset, length);
+        return WriteRegion(fd, buf, offset, length);
+    }
+    private static native int WriteRegion(PRFDProxy fd, byte[] buf, int offset, int length);
+
+    /**
+     * Write up to length bytes to the PRFDProxy directly from the specified
+     * direct ByteBuffer, starting at the absolute index offset. The position
+     * of buf is not modified. When buf is null, a zero-length write is made,
+     * like Write(fd, null).
+     *
+     * Returns the number of bytes written, or -1 on error; the caller
+     * should advance the position of buf by the returned amount.
+     *
+     * See also: PR_Write in /usr/include/nspr4/prio.h
+     */
+    public static int Write(PRFDProxy fd, ByteBuffer buf, int offset, int length) {
+        if (buf != null) {
+            Buffer.checkDirect(buf, offset, length);
+        }
+
+        return WriteDirect(fd, buf, offset, length);
+    }
+    private static native int WriteDirect(PRFDProxy fd, ByteBuffer buf, int offset, int length);
+
     /**
      * Send the specified bytes via the PRFDProxy, given the specified
      * send flags and timeout value.
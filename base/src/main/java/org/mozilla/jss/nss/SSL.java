@@ -153,6 +153,14 @@ public class SSL {
      */
     public static final int REQUIRE_NO_ERROR = getSSLRequireNoError();
 
+    /**
+     * Option for enabling session tickets (stateless session resumption).
+     * Value for use with OptionGet and OptionSet.
+     *
+     * See also: SSL_ENABLE_SESSION_TICKETS in /usr/include/nss3/ssl.h
+     */
+    public static final int ENABLE_SESSION_TICKETS = getSSLEnableSessionTickets();
+
     /**
      * Import a file descriptor to create a new SSL file descriptor out of it.
      *
@@ -284,6 +292,29 @@ public class SSL {
      */
     private static native int VersionRangeSetDefaultNative(int variant_ssl, int min_ssl, int max_ssl);
 
+    /**
+     * Apply a complete TLS configuration to the socket in a single call:
+     *
+     *  - when ciphers is non-null, exactly those cipher suites are enabled
+     *    and all other implemented cipher suites are disabled,
+     *  - when min_ssl and max_ssl are non-negative, the version range is
+     *    set; they are values of the SSLVersion enum,
+     *  - options holds (option, value) pairs for SSL_OptionSet,
+     *  - when groups is non-null, the named groups are configured (values
+     *    of the SSLNamedGroup enum, in order of preference), and
+     *  - when schemes is non-null, the signature schemes are configured
+     *    (values of the SSLSignatureScheme enum, in order of preference).
+     *
+     * Returns SECFailure on failure; otherwise, the number of requested
+     * cipher suites which couldn't be enabled (usually due to policy).
+     *
+     * See also: SSL_CipherPrefSet, SSL_VersionRangeSet, SSL_OptionSet,
+     * SSL_NamedGroupConfig and SSL_SignatureSchemePrefSet in
+     * /usr/include/nss3/ssl.h
+     */
+    public static native int ApplyPolicy(SSLFDProxy fd, int[] ciphers,
+        int min_ssl, int max_ssl, int[] options, int[] groups, int[] schemes);
+
     /**
      * Get the range of TLS versions enabled in all future PRFileDesc's of the
      * default STREAM protocol variant..
@@ -375,6 +406,48 @@ public class SSL {
     public synchronized static native int ConfigServerSessionIDCache(int maxCacheEntries,
         long timeout, long ssl3_timeout, String directory);
 
+    /**
+     * Configure the server's session cache in shared memory, for use by
+     * multiple server processes.
+     *
+     * See also: SSL_ConfigMPServerSIDCache in /usr/include/nss3/ssl.h
+     */
+    public synchronized static native int ConfigMPServerSIDCache(int maxCacheEntries,
+        long timeout, long ssl3_timeout, String directory);
+
+    /**
+     * Attach to the shared server session cache created by a parent
+     * process; when envString is null, the value of the SSL_INHERITANCE
+     * environment variable is used.
+     *
+     * See also: SSL_InheritMPServerSIDCache in /usr/include/nss3/ssl.h
+     */
+    public synchronized static native int InheritMPServerSIDCache(String envString);
+
+    /**
+     * Get the session cache statistics of all SSL sockets in this process.
+     *
+     * See also: SSL_GetStatistics in /usr/include/nss3/ssl.h
+     */
+    public static SSLStatistics GetStatistics() {
+        long[] values = GetStatisticsNative();
+        if (values == null) {
+            return null;
+        }
+
+        return new SSLStatistics(values);
+    }
+
+    private static native long[] GetStatisticsNative();
+
+    /**
+     * Set the peer ID used to find sessions to resume in the client session
+     * cache.
+     *
+     * See also: SSL_SetSockPeerID in /usr/include/nss3/ssl.h
+     */
+    public static native int SetSockPeerID(SSLFDProxy fd, String peerID);
+
     /**
      * Invalidate the SSL session associated with this socket.
      *
@@ -537,4 +610,5 @@ public class SSL {
     private static native int getSSLRequireAlways();
     private static native int getSSLRequireFirstHandshake();
     private static native int getSSLRequireNoError();
+    private static native int getSSLEnableSessionTickets();
 }
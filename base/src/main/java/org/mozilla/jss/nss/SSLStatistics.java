@@ -0,0 +1,202 @@
+package org.mozilla.jss.nss;
+
+import java.lang.StringBuilder;
+
+/**
+ * Session cache statistics of all SSL sockets in this process, as kept by
+ * NSS. The values are a snapshot; query SSL.GetStatistics() again for
+ * updated values.
+ *
+ * See also: SSL3Statistics in /usr/include/nss3/ssl.h
+ */
+public class SSLStatistics {
+    /**
+     * Number of values returned by SSL.GetStatisticsNative(), in the order
+     * of the fields of SSL3Statistics.
+     */
+    static final int FIELDS = 13;
+
+    /**
+     * Client hellos offering a session from the client session cache.
+     *
+     * NSS: sch_sid_cache_hits
+     */
+    private long clientCacheHits;
+
+    /**
+     * Client hellos without a cached session to offer.
+     *
+     * NSS: sch_sid_cache_misses
+     */
+    private long clientCacheMisses;
+
+    /**
+     * Client hellos where the cached session couldn't be used.
+     *
+     * NSS: sch_sid_cache_not_ok
+     */
+    private long clientCacheNotOk;
+
+    /**
+     * Server hellos accepting the session offered by the client.
+     *
+     * NSS: hsh_sid_cache_hits
+     */
+    private long clientResumptionsAccepted;
+
+    /**
+     * Server hellos declining the session offered by the client.
+     *
+     * NSS: hsh_sid_cache_misses
+     */
+    private long clientResumptionsDeclined;
+
+    /**
+     * Server hellos resuming a session the client couldn't use.
+     *
+     * NSS: hsh_sid_cache_not_ok
+     */
+    private long clientResumptionsNotOk;
+
+    /**
+     * Client hellos resumed from the server session cache.
+     *
+     * NSS: hch_sid_cache_hits
+     */
+    private long serverCacheHits;
+
+    /**
+     * Client hellos whose session wasn't found in the server session cache.
+     *
+     * NSS: hch_sid_cache_misses
+     */
+    private long serverCacheMisses;
+
+    /**
+     * Client hellos whose cached session couldn't be used.
+     *
+     * NSS: hch_sid_cache_not_ok
+     */
+    private long serverCacheNotOk;
+
+    /**
+     * Client hellos offering a session ticket.
+     *
+     * NSS: sch_sid_stateless_resumes
+     */
+    private long clientTicketsOffered;
+
+    /**
+     * Server hellos accepting the session ticket offered by the client.
+     *
+     * NSS: hsh_sid_stateless_resumes
+     */
+    private long clientTicketResumptions;
+
+    /**
+     * Client hellos resumed with a session ticket.
+     *
+     * NSS: hch_sid_stateless_resumes
+     */
+    private long serverTicketResumptions;
+
+    /**
+     * Session tickets received by the server which couldn't be parsed.
+     *
+     * NSS: hch_sid_ticket_parse_failures
+     */
+    private long serverTicketParseFailures;
+
+    SSLStatistics(long[] values) {
+        if (values.length != FIELDS) {
+            String msg = "Expected " + FIELDS + " statistics from NSS; got ";
+            msg += values.length;
+            throw new IllegalArgumentException(msg);
+        }
+
+        clientCacheHits = values[0];
+        clientCacheMisses = values[1];
+        clientCacheNotOk = values[2];
+        clientResumptionsAccepted = values[3];
+        clientResumptionsDeclined = values[4];
+        clientResumptionsNotOk = values[5];
+        serverCacheHits = values[6];
+        serverCacheMisses = values[7];
+        serverCacheNotOk = values[8];
+        clientTicketsOffered = values[9];
+        clientTicketResumptions = values[10];
+        serverTicketResumptions = values[11];
+        serverTicketParseFailures = values[12];
+    }
+
+    public long getClientCacheHits() {
+        return clientCacheHits;
+    }
+
+    public long getClientCacheMisses() {
+        return clientCacheMisses;
+    }
+
+    public long getClientCacheNotOk() {
+        return clientCacheNotOk;
+    }
+
+    public long getClientResumptionsAccepted() {
+        return clientResumptionsAccepted;
+    }
+
+    public long getClientResumptionsDeclined() {
+        return clientResumptionsDeclined;
+    }
+
+    public long getClientResumptionsNotOk() {
+        return clientResumptionsNotOk;
+    }
+
+    public long getServerCacheHits() {
+        return serverCacheHits;
+    }
+
+    public long getServerCacheMisses() {
+        return serverCacheMisses;
+    }
+
+    public long getServerCacheNotOk() {
+        return serverCacheNotOk;
+    }
+
+    public long getClientTicketsOffered() {
+        return clientTicketsOffered;
+    }
+
+    public long getClientTicketResumptions() {
+        return clientTicketResumptions;
+    }
+
+    public long getServerTicketResumptions() {
+        return serverTicketResumptions;
+    }
+
+    public long getServerTicketParseFailures() {
+        return serverTicketParseFailures;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("SSLStatistics:");
+        result.append("\n- clientCacheHits: " + clientCacheHits);
+        result.append("\n- clientCacheMisses: " + clientCacheMisses);
+        result.append("\n- clientCacheNotOk: " + clientCacheNotOk);
+        result.append("\n- clientResumptionsAccepted: " + clientResumptionsAccepted);
+        result.append("\n- clientResumptionsDeclined: " + clientResumptionsDeclined);
+        result.append("\n- clientResumptionsNotOk: " + clientResumptionsNotOk);
+        result.append("\n- serverCacheHits: " + serverCacheHits);
+        result.append("\n- serverCacheMisses: " + serverCacheMisses);
+        result.append("\n- serverCacheNotOk: " + serverCacheNotOk);
+        result.append("\n- clientTicketsOffered: " + clientTicketsOffered);
+        result.append("\n- clientTicketResumptions: " + clientTicketResumptions);
+        result.append("\n- serverTicketResumptions: " + serverTicketResumptions);
+        result.append("\n- serverTicketParseFailures: " + serverTicketParseFailures);
+        return result.toString();
+    }
+}
@@ -13,9 +13,4 @@ final class CipherContextProxy extends NativeProxy {
 
     @Override
     protected native void releaseNativeResources();
-
-    @Override
-    protected void finalize() throws Throwable {
-      super.finalize();
-    }
 }
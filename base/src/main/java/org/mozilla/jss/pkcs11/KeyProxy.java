@@ -8,9 +8,4 @@ abstract class KeyProxy extends org.mozilla.jss.util.NativeProxy {
     protected KeyProxy(byte[] pointer) {
         super(pointer);
     }
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-    }
 }
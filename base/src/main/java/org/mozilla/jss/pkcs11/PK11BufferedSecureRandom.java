@@ -0,0 +1,99 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.jss.pkcs11;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A random number generator for PKCS #11 which serves small requests (such
+ * as nonces and IVs) from a per-thread buffer, refilled with a single call
+ * to the NSS RNG. Threads never contend with each other, and most requests
+ * don't need a native call at all.
+ *
+ * Requests larger than a quarter of the buffer bypass it. Reseeding
+ * discards the contents of all buffers, so no bytes generated before a call
+ * to setSeed() are returned after it. Bytes are erased from the buffer as
+ * soon as they are handed out.
+ *
+ * @see PK11SecureRandom
+ */
+public final
+class PK11BufferedSecureRandom implements org.mozilla.jss.crypto.JSSSecureRandom
+{
+    /**
+     * Size in bytes of each thread's buffer; set with the
+     * jss.secureRandom.bufferSize system property. Zero disables
+     * buffering.
+     */
+    public static final int BUFFER_SIZE =
+        Math.max(Integer.getInteger("jss.secureRandom.bufferSize", 1024), 0);
+
+    private static final PK11SecureRandom source = new PK11SecureRandom();
+
+    /**
+     * Incremented on every reseed; buffers filled before the latest reseed
+     * are discarded.
+     */
+    private static final AtomicLong seedGeneration = new AtomicLong();
+
+    private static final ThreadLocal<RandomBuffer> buffers =
+        ThreadLocal.withInitial(RandomBuffer::new);
+
+    private static final class RandomBuffer {
+        private final byte[] data = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+        private long generation;
+    }
+
+    public
+    PK11BufferedSecureRandom() {}
+
+    @Override
+    public void
+    setSeed( byte[] seed )
+    {
+        source.setSeed( seed );
+        seedGeneration.incrementAndGet();
+    }
+
+    @Override
+    public void
+    setSeed( long seed )
+    {
+        source.setSeed( seed );
+        seedGeneration.incrementAndGet();
+    }
+
+    @Override
+    public void
+    nextBytes( byte bytes[] )
+    {
+        if( bytes.length == 0 ) {
+            return;
+        }
+        if( bytes.length > BUFFER_SIZE / 4 ) {
+            source.nextBytes( bytes );
+            return;
+        }
+
+        RandomBuffer buffer = buffers.get();
+        long generation = seedGeneration.get();
+
+        if( buffer.generation != generation ||
+                buffer.data.length - buffer.position < bytes.length ) {
+            // Discard whatever is left rather than stitching it together
+            // with fresh output; at most a quarter of the buffer is lost.
+            source.nextBytes( buffer.data );
+            buffer.position = 0;
+            buffer.generation = generation;
+        }
+
+        int end = buffer.position + bytes.length;
+        System.arraycopy( buffer.data, buffer.position, bytes, 0, bytes.length );
+        Arrays.fill( buffer.data, buffer.position, end, (byte) 0 );
+        buffer.position = end;
+    }
+}
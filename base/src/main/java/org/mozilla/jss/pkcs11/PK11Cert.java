@@ -19,6 +19,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
 
+import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.crypto.CryptoToken;
 import org.mozilla.jss.crypto.InternalCertificate;
 import org.mozilla.jss.crypto.TokenCertificate;
@@ -562,11 +563,6 @@ public class PK11Cert
         }
     }
 
-    @Override
-    public void finalize() throws Throwable {
-        close();
-    }
-
     @Override
     public void close() throws Exception {
         if (certProxy != null) {
@@ -629,6 +625,7 @@ public class PK11Cert
     @Override
     public void setSSLTrust(int trust) {
         setTrust(SSL, trust);
+        CryptoManager.notifyTrustChanged();
     }
 
     /**
@@ -640,6 +637,7 @@ public class PK11Cert
     @Override
     public void setEmailTrust(int trust) {
         setTrust(EMAIL, trust);
+        CryptoManager.notifyTrustChanged();
     }
 
     /**
@@ -651,6 +649,7 @@ public class PK11Cert
     @Override
     public void setObjectSigningTrust(int trust) {
         setTrust(OBJECT_SIGNING, trust);
+        CryptoManager.notifyTrustChanged();
     }
 
     /**
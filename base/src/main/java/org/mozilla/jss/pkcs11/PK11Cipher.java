@@ -4,12 +4,14 @@
 
 package org.mozilla.jss.pkcs11;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.AlgorithmParameterSpec;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.RC2ParameterSpec;
 
@@ -18,6 +20,7 @@ import org.mozilla.jss.crypto.IVParameterSpec;
 import org.mozilla.jss.crypto.IllegalBlockSizeException;
 import org.mozilla.jss.crypto.SymmetricKey;
 import org.mozilla.jss.crypto.TokenException;
+import org.mozilla.jss.crypto.TokenRuntimeException;
 
 public final class PK11Cipher
     extends org.mozilla.jss.crypto.Cipher
@@ -45,6 +48,9 @@ public final class PK11Cipher
     // modified by various operations
     private int state=UNINITIALIZED;
 
+    // input consumed by the context but not yet returned as output
+    private int buffered=0;
+
     // States
     private static final int UNINITIALIZED=0;
     private static final int ENCRYPT=1;
@@ -154,7 +160,9 @@ public final class PK11Cipher
             throw new IllegalStateException();
         }
 
-        return updateContext( contextProxy, bytes, algorithm.getBlockSize());
+        byte[] output = updateContext( contextProxy, bytes, algorithm.getBlockSize());
+        buffered += bytes.length - output.length;
+        return output;
     }
 
     @Override
@@ -185,6 +193,7 @@ public final class PK11Cipher
 
         byte[] last = finalizeContext(contextProxy, algorithm.getBlockSize(),
                     algorithm.isPadded() );
+        buffered = 0;
 
         byte[] combined = new byte[ first.length+last.length ];
         System.arraycopy(first, 0, combined, 0, first.length);
@@ -216,8 +225,188 @@ public final class PK11Cipher
         if( state == UNINITIALIZED ) {
             throw new IllegalStateException();
         }
-        return finalizeContext(contextProxy, algorithm.getBlockSize(),
+        byte[] last = finalizeContext(contextProxy, algorithm.getBlockSize(),
                     algorithm.isPadded() );
+        buffered = 0;
+        return last;
+    }
+
+    /**
+     * Returns the maximum output of doFinal() for inputLen more bytes: a
+     * padded encryption adds up to a full block; otherwise the output is
+     * at most the input.
+     */
+    @Override
+    public int getOutputSize(int inputLen) {
+        int total = buffered + inputLen;
+        int blockSize = algorithm.getBlockSize();
+
+        if( state == ENCRYPT && algorithm.isPadded() ) {
+            return ((total / blockSize) + 1) * blockSize;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the maximum output of update() for inputLen more bytes; block
+     * ciphers only produce whole blocks.
+     */
+    private int getUpdateOutputSize(int inputLen) {
+        int total = buffered + inputLen;
+        int blockSize = algorithm.getBlockSize();
+
+        return (total / blockSize) * blockSize;
+    }
+
+    @Override
+    public int update(byte[] input, int inputOffset, int inputLen,
+            byte[] output, int outputOffset)
+        throws IllegalStateException, ShortBufferException, TokenException
+    {
+        if( state == UNINITIALIZED ) {
+            throw new IllegalStateException();
+        }
+        checkBounds(input, inputOffset, inputLen);
+        checkBounds(output, outputOffset, 0);
+
+        int available = output.length - outputOffset;
+        checkOutputSize(getUpdateOutputSize(inputLen), available);
+        if( inputLen == 0 ) {
+            return 0;
+        }
+
+        if( input == output && inputOffset != outputOffset &&
+                inputOffset < outputOffset + available &&
+                outputOffset < inputOffset + inputLen ) {
+            // Overlapping, but not in place; don't overwrite input we
+            // haven't read yet.
+            input = java.util.Arrays.copyOfRange(input, inputOffset,
+                    inputOffset + inputLen);
+            inputOffset = 0;
+        }
+
+        int written = updateContextInto(contextProxy, input, inputOffset,
+                inputLen, output, outputOffset, available);
+        buffered += inputLen - written;
+        return written;
+    }
+
+    @Override
+    public int update(ByteBuffer input, ByteBuffer output)
+        throws IllegalStateException, ShortBufferException, TokenException
+    {
+        if( state == UNINITIALIZED ) {
+            throw new IllegalStateException();
+        }
+
+        int inputLen = input.remaining();
+        checkOutputSize(getUpdateOutputSize(inputLen), output.remaining());
+
+        int written;
+        if( input.isDirect() && output.isDirect() && !output.isReadOnly() ) {
+            written = inputLen == 0 ? 0 :
+                updateContextDirect(contextProxy, input, input.position(),
+                        inputLen, output, output.position(),
+                        output.remaining());
+            buffered += inputLen - written;
+        } else if( input.hasArray() && output.hasArray() &&
+                !output.isReadOnly() ) {
+            written = update(input.array(),
+                    input.arrayOffset() + input.position(), inputLen,
+                    output.array(), output.arrayOffset() + output.position());
+        } else {
+            return super.update(input, output);
+        }
+
+        input.position(input.limit());
+        output.position(output.position() + written);
+        return written;
+    }
+
+    @Override
+    public int doFinal(byte[] input, int inputOffset, int inputLen,
+            byte[] output, int outputOffset)
+        throws IllegalStateException, IllegalBlockSizeException,
+        BadPaddingException, ShortBufferException, TokenException
+    {
+        if( state == UNINITIALIZED ) {
+            throw new IllegalStateException();
+        }
+        if( input == null ) {
+            inputLen = 0;
+        }
+        checkBounds(output, outputOffset, 0);
+        checkOutputSize(getOutputSize(inputLen), output.length - outputOffset);
+
+        int written = 0;
+        if( inputLen > 0 ) {
+            written = update(input, inputOffset, inputLen, output,
+                    outputOffset);
+        }
+
+        written += finalizeInto(output, outputOffset + written);
+        return written;
+    }
+
+    @Override
+    public int doFinal(ByteBuffer input, ByteBuffer output)
+        throws IllegalStateException, IllegalBlockSizeException,
+        BadPaddingException, ShortBufferException, TokenException
+    {
+        if( state == UNINITIALIZED ) {
+            throw new IllegalStateException();
+        }
+
+        boolean direct = input.isDirect() && output.isDirect() &&
+                !output.isReadOnly();
+        boolean heap = input.hasArray() && output.hasArray() &&
+                !output.isReadOnly();
+        if( !direct && !heap ) {
+            return super.doFinal(input, output);
+        }
+
+        checkOutputSize(getOutputSize(input.remaining()), output.remaining());
+
+        int start = output.position();
+        update(input, output);
+
+        int written;
+        if( direct ) {
+            written = finalizeContextDirect(contextProxy, output,
+                    output.position(), output.remaining());
+            buffered = 0;
+        } else {
+            written = finalizeInto(output.array(),
+                    output.arrayOffset() + output.position());
+        }
+
+        output.position(output.position() + written);
+        return output.position() - start;
+    }
+
+    private int finalizeInto(byte[] output, int outputOffset)
+        throws TokenException
+    {
+        int written = finalizeContextInto(contextProxy, output, outputOffset,
+                output.length - outputOffset);
+        buffered = 0;
+        return written;
+    }
+
+    private static void checkBounds(byte[] bytes, int offset, int length) {
+        if( offset < 0 || length < 0 || offset > bytes.length - length ) {
+            throw new IllegalArgumentException(
+                "Buffer is not large enough for offset and length");
+        }
+    }
+
+    private static void checkOutputSize(int needed, int available)
+        throws ShortBufferException
+    {
+        if( needed > available ) {
+            throw new ShortBufferException(needed + " needed, " +
+                available + " supplied");
+        }
     }
 
     private static native CipherContextProxy
@@ -239,12 +428,44 @@ public final class PK11Cipher
     finalizeContext( CipherContextProxy context, int blocksize, boolean padded)
         throws TokenException, IllegalBlockSizeException, BadPaddingException;
 
+    // The *Into and *Direct variants write straight into the caller's
+    // array or direct ByteBuffer and return the number of bytes written.
+    private static native int
+    updateContextInto(CipherContextProxy context, byte[] input,
+            int inputOffset, int inputLen, byte[] output, int outputOffset,
+            int outputLen)
+        throws TokenException;
+
+    private static native int
+    updateContextDirect(CipherContextProxy context, ByteBuffer input,
+            int inputOffset, int inputLen, ByteBuffer output,
+            int outputOffset, int outputLen)
+        throws TokenException;
+
+    private static native int
+    finalizeContextInto(CipherContextProxy context, byte[] output,
+            int outputOffset, int outputLen)
+        throws TokenException;
+
+    private static native int
+    finalizeContextDirect(CipherContextProxy context, ByteBuffer output,
+            int outputOffset, int outputLen)
+        throws TokenException;
+
     private void reset() {
         parameters = null;
         key = null;
         IV = null;
         state = UNINITIALIZED;
-        contextProxy = null;
+        buffered = 0;
+
+        // Free the context of the previous operation now rather than
+        // leaving it to be garbage collected.
+        try {
+            close();
+        } catch (Exception e) {
+            throw new TokenRuntimeException("Unable to free cipher context: " + e.getMessage());
+        }
     }
 
     /**
@@ -292,11 +513,6 @@ public final class PK11Cipher
         }
     }
 
-    @Override
-    public void finalize() throws Throwable {
-        close();
-    }
-
     @Override
     public void close() throws Exception {
         if (contextProxy != null) {
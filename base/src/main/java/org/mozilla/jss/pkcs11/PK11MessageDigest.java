@@ -8,20 +8,36 @@ import org.mozilla.jss.crypto.*;
 import java.security.DigestException;
 import java.security.NoSuchAlgorithmException;
 import java.security.InvalidKeyException;
+import java.util.Arrays;
 
 /**
  * Message Digesting with PKCS #11.
+ *
+ * Small inputs are buffered rather than passed to a PKCS #11 context: if
+ * at most ONE_SHOT_LIMIT bytes are digested, the digest (or HMAC) is
+ * computed with a single native call and no context is ever created.
  */
 public final class PK11MessageDigest
     extends JSSMessageDigest
     implements java.lang.AutoCloseable
 {
 
+    /**
+     * Largest input, in bytes, which is buffered for a one-shot digest
+     * instead of being passed to a digest context.
+     */
+    public static final int ONE_SHOT_LIMIT = 512;
+
     private PK11Token token;
     private CipherContextProxy digestProxy;
     private PK11SymKey hmacKey;
     private DigestAlgorithm alg;
 
+    // input not yet passed to digestProxy; only used until a context
+    // is created
+    private byte[] pending;
+    private int pendingLen;
+
     PK11MessageDigest(PK11Token token, DigestAlgorithm alg)
         throws NoSuchAlgorithmException, DigestException
     {
@@ -35,12 +51,24 @@ public final class PK11MessageDigest
         reset();
     }
 
+    private PK11MessageDigest(PK11MessageDigest other, CipherContextProxy proxy) {
+        this.token = other.token;
+        this.alg = other.alg;
+        this.hmacKey = other.hmacKey;
+        this.digestProxy = proxy;
+
+        if( other.pending != null ) {
+            this.pending = other.pending.clone();
+            this.pendingLen = other.pendingLen;
+        }
+    }
+
     @Override
     public void initHMAC(SymmetricKey key)
         throws DigestException, InvalidKeyException
     {
 
-        if( ! (alg instanceof HMACAlgorithm || alg instanceof CMACAlgorithm) ) {
+        if( ! isHMAC() ) {
             throw new DigestException("Digest is not an HMAC or CMAC digest");
         }
 
@@ -48,15 +76,28 @@ public final class PK11MessageDigest
             throw new InvalidKeyException("HMAC key is not a PKCS #11 key");
         }
 
+        // Contexts are otherwise only created for large inputs; create one
+        // now so an unusable key is reported here rather than on the first
+        // digest.
+        try {
+            initHMAC(token, alg, (PK11SymKey) key).close();
+        } catch( DigestException de ) {
+            throw new InvalidKeyException("Unable to use key for " + alg +
+                ": " + de.getMessage(), de);
+        } catch( Exception e ) {
+            throw new DigestException("Unable to release digest context: " +
+                e.getMessage());
+        }
+
         hmacKey = (PK11SymKey) key;
-        this.digestProxy = initHMAC(token, alg, hmacKey);
+        reset();
     }
 
     @Override
     public void update(byte[] input, int offset, int len)
         throws DigestException
     {
-        if( digestProxy == null ) {
+        if( isHMAC() && hmacKey == null ) {
             throw new DigestException("Digest not correctly initialized");
         }
         if( input.length < offset+len ) {
@@ -64,14 +105,23 @@ public final class PK11MessageDigest
                 "Input buffer is not large enough for offset and length");
         }
 
-        update(digestProxy, input, offset, len);
+        if( digestProxy == null && pendingLen + len <= ONE_SHOT_LIMIT ) {
+            if( pending == null ) {
+                pending = new byte[ONE_SHOT_LIMIT];
+            }
+            System.arraycopy(input, offset, pending, pendingLen, len);
+            pendingLen += len;
+            return;
+        }
+
+        update(getContext(), input, offset, len);
     }
 
     @Override
     public int digest(byte[] outbuf, int offset, int len)
         throws DigestException
     {
-        if( digestProxy == null ) {
+        if( isHMAC() && hmacKey == null ) {
             throw new DigestException("Digest not correctly initialized");
         }
         if( outbuf.length < offset+len ) {
@@ -79,7 +129,20 @@ public final class PK11MessageDigest
                 "Output buffer is not large enough for offset and length");
         }
 
-        int retval = digest(digestProxy, outbuf, offset, len);
+        int retval;
+        if( digestProxy == null ) {
+            byte[] input = pending == null ? new byte[0] : pending;
+            checkOneShot(alg, input, 0, pendingLen, outbuf, offset, len);
+            if( isHMAC() ) {
+                retval = signBuf(alg, hmacKey, input, 0, pendingLen, outbuf,
+                        offset, alg.getOutputSize());
+            } else {
+                hashBuf(alg, input, 0, pendingLen, outbuf, offset);
+                retval = alg.getOutputSize();
+            }
+        } else {
+            retval = digest(digestProxy, outbuf, offset, len);
+        }
 
         reset();
 
@@ -88,18 +151,15 @@ public final class PK11MessageDigest
 
     @Override
     public void reset() throws DigestException {
-        if( ! (alg instanceof HMACAlgorithm || alg instanceof CMACAlgorithm) ) {
-            // This is a regular digest, so we have enough information
-            // to initialize the context
-            this.digestProxy = initDigest(alg);
-        } else if( hmacKey != null ) {
-            // This is an HMAC digest, and we have a key
-            this.digestProxy = initHMAC(token, alg, hmacKey);
-        } else {
-            // this is an HMAC digest for which we don't have the key yet,
-            // we have to wait to construct the context
-            this.digestProxy = null;
+        // A context is only created once more than ONE_SHOT_LIMIT bytes
+        // are digested; see getContext().
+        try {
+            close();
+        } catch( Exception e ) {
+            throw new DigestException("Unable to release digest context: " +
+                e.getMessage());
         }
+        clearPending();
     }
 
     @Override
@@ -107,6 +167,141 @@ public final class PK11MessageDigest
         return alg;
     }
 
+    /**
+     * Duplicates the underlying PKCS #11 context, so data hashed so far
+     * doesn't have to be hashed again by the copy.
+     */
+    @Override
+    public PK11MessageDigest clone() throws CloneNotSupportedException {
+        CipherContextProxy copy = null;
+
+        if( digestProxy != null ) {
+            try {
+                copy = cloneContext(digestProxy);
+            } catch( DigestException de ) {
+                CloneNotSupportedException cnse =
+                    new CloneNotSupportedException(de.getMessage());
+                cnse.initCause(de);
+                throw cnse;
+            }
+        }
+
+        return new PK11MessageDigest(this, copy);
+    }
+
+    /**
+     * Computes the digest of the given input with a single native call,
+     * without creating a digest context.
+     *
+     * @param alg The digest algorithm; must not be an HMAC or CMAC.
+     * @param input The input to digest.
+     * @param offset The index in input at which to begin reading.
+     * @param len The number of bytes of input to digest.
+     * @param outbuf The buffer to hold the digest.
+     * @param outOffset The index in outbuf at which to write the digest.
+     * @param outLen The number of bytes available in outbuf.
+     * @return The length of the digest.
+     */
+    public static int digest(DigestAlgorithm alg, byte[] input, int offset,
+            int len, byte[] outbuf, int outOffset, int outLen)
+        throws DigestException
+    {
+        if( alg instanceof HMACAlgorithm || alg instanceof CMACAlgorithm ) {
+            throw new DigestException(alg + " requires a key");
+        }
+        checkOneShot(alg, input, offset, len, outbuf, outOffset, outLen);
+
+        hashBuf(alg, input, offset, len, outbuf, outOffset);
+        return alg.getOutputSize();
+    }
+
+    /**
+     * Computes the HMAC (or CMAC) of the given input with a single native
+     * call, without creating a digest context.
+     *
+     * @param key The HMAC or CMAC key.
+     * @param alg The HMAC or CMAC algorithm.
+     * @param input The input to authenticate.
+     * @param offset The index in input at which to begin reading.
+     * @param len The number of bytes of input to authenticate.
+     * @param outbuf The buffer to hold the result.
+     * @param outOffset The index in outbuf at which to write the result.
+     * @param outLen The number of bytes available in outbuf.
+     * @return The length of the result.
+     */
+    public static int hmac(SymmetricKey key, DigestAlgorithm alg,
+            byte[] input, int offset, int len, byte[] outbuf, int outOffset,
+            int outLen)
+        throws DigestException, InvalidKeyException
+    {
+        if( ! (alg instanceof HMACAlgorithm || alg instanceof CMACAlgorithm) ) {
+            throw new DigestException("Digest is not an HMAC or CMAC digest");
+        }
+        if( ! (key instanceof PK11SymKey) ) {
+            throw new InvalidKeyException("HMAC key is not a PKCS #11 key");
+        }
+        checkOneShot(alg, input, offset, len, outbuf, outOffset, outLen);
+
+        return signBuf(alg, (PK11SymKey) key, input, offset, len, outbuf,
+                outOffset, alg.getOutputSize());
+    }
+
+    private static void checkOneShot(DigestAlgorithm alg, byte[] input,
+            int offset, int len, byte[] outbuf, int outOffset, int outLen)
+        throws DigestException
+    {
+        if( offset < 0 || len < 0 || input.length - len < offset ) {
+            throw new IllegalArgumentException(
+                "Input buffer is not large enough for offset and length");
+        }
+        if( outOffset < 0 || outLen < 0 || outbuf.length - outLen < outOffset ) {
+            throw new IllegalArgumentException(
+                "Output buffer is not large enough for offset and length");
+        }
+        if( outLen < alg.getOutputSize() ) {
+            throw new DigestException("Output buffer holds " + outLen +
+                " bytes; " + alg.getOutputSize() + " needed");
+        }
+    }
+
+    private boolean isHMAC() {
+        return alg instanceof HMACAlgorithm || alg instanceof CMACAlgorithm;
+    }
+
+    /**
+     * Creates the digest context if necessary, passing it any buffered
+     * input.
+     */
+    private CipherContextProxy getContext() throws DigestException {
+        if( digestProxy != null ) {
+            return digestProxy;
+        }
+
+        if( isHMAC() ) {
+            digestProxy = initHMAC(token, alg, hmacKey);
+        } else {
+            digestProxy = initDigest(alg);
+        }
+
+        if( pendingLen > 0 ) {
+            update(digestProxy, pending, 0, pendingLen);
+            clearPending();
+        }
+
+        return digestProxy;
+    }
+
+    /**
+     * Discards buffered input. It may be secret (e.g., HMAC input), so
+     * it is zeroed rather than left in the heap.
+     */
+    private void clearPending() {
+        if( pending != null ) {
+            Arrays.fill(pending, 0, pendingLen, (byte) 0);
+        }
+        pendingLen = 0;
+    }
+
     private static native CipherContextProxy
     initDigest(DigestAlgorithm alg)
         throws DigestException;
@@ -121,10 +316,19 @@ public final class PK11MessageDigest
     private static native int
     digest(CipherContextProxy proxy, byte[] outbuf, int offset, int len);
 
-    @Override
-    public void finalize() throws Throwable {
-        close();
-    }
+    private static native CipherContextProxy
+    cloneContext(CipherContextProxy proxy)
+        throws DigestException;
+
+    private static native void
+    hashBuf(DigestAlgorithm alg, byte[] inbuf, int offset, int len,
+            byte[] outbuf, int outOffset)
+        throws DigestException;
+
+    private static native int
+    signBuf(DigestAlgorithm alg, PK11SymKey key, byte[] inbuf, int offset,
+            int len, byte[] outbuf, int outOffset, int outLen)
+        throws DigestException;
 
     @Override
     public void close() throws Exception {
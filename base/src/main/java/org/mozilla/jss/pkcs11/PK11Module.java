@@ -6,6 +6,8 @@ package org.mozilla.jss.pkcs11;
 import java.util.Enumeration;
 import java.util.Vector;
 
+import org.mozilla.jss.CryptoManager;
+import org.mozilla.jss.NotInitializedException;
 import org.mozilla.jss.crypto.CryptoToken;
 
 public final class PK11Module {
@@ -20,7 +22,7 @@ public final class PK11Module {
     private PK11Module(byte[] pointer) {
         assert(pointer!=null);
         moduleProxy = new ModuleProxy(pointer);
-        reloadTokens();
+        loadTokens();
     }
 
     /**
@@ -38,21 +40,36 @@ public final class PK11Module {
      *
      * @return An enumeration of CryptoTokens that come from this module.
      */
-    public synchronized Enumeration<CryptoToken> getTokens() {
+    public Enumeration<CryptoToken> getTokens() {
         return tokenVector.elements();
     }
 
     /**
-     * Re-load the list of this module's tokens. This function is private
-     * to JSS.
+     * Re-load the list of this module's tokens, updating the tokens
+     * CryptoManager looks up. This function is private to JSS.
      */
-    public synchronized void reloadTokens() {
-        tokenVector = new Vector<>();
-        putTokensInVector(tokenVector);
+    public void reloadTokens() {
+        loadTokens();
+
+        if (CryptoManager.isInitialized()) {
+            try {
+                CryptoManager.getInstance().reloadTokenRegistry();
+            } catch (NotInitializedException e) {
+                // Can't happen once initialized.
+            }
+        }
+    }
+
+    private synchronized void loadTokens() {
+        // Fill the new Vector before publishing it, so getTokens() never
+        // needs to lock.
+        Vector<CryptoToken> tokens = new Vector<>();
+        putTokensInVector(tokens);
+        tokenVector = tokens;
     }
 
     private native void putTokensInVector(Vector<CryptoToken> tokens);
 
-    private Vector<CryptoToken> tokenVector;
+    private volatile Vector<CryptoToken> tokenVector;
     private ModuleProxy moduleProxy;
 }
@@ -29,6 +29,8 @@ public final class PK11Signature
     implements java.lang.AutoCloseable
 {
 
+    public static Logger logger = LoggerFactory.getLogger(PK11Signature.class);
+
     public static final String NO_TOKEN = "No token provided";
     public static final String NO_TOKEN_PROXY = "No tokenProxy provided";
     public static final String NO_ALGORTIHM = "No algorithm provided";
@@ -129,7 +131,7 @@ public final class PK11Signature
 
         // Now initialize the signature context
         if( ! raw ) {
-            sigContext = null;
+            releaseSigContext();
             initSigContext();
         }
 
@@ -191,7 +193,7 @@ public final class PK11Signature
 		key = pubKey;
 
         if( ! raw ) {
-            sigContext = null;
+            releaseSigContext();
             initVfyContext();
         }
 
@@ -267,9 +269,8 @@ public final class PK11Signature
             rawInput.reset();
         } else {
             result = engineSignNative();
+            reset();
         }
-		state = UNINITIALIZED;
-		sigContext = null;
 
 		return result;
     }
@@ -333,13 +334,44 @@ public final class PK11Signature
             rawInput.reset();
         } else {
             result = engineVerifyNative(sigBytes);
+            reset();
         }
-		state = UNINITIALIZED;
-		sigContext = null;
 
 		return result;
     }
 
+    /**
+     * Readies the signature for another operation with the same key, as
+     * after initSign()/initVerify(). The native context is restarted
+     * rather than recreated, so signing repeatedly with one key doesn't
+     * look up the key or set up algorithm parameters again. If the context
+     * can't be restarted, the signature has to be initialized again.
+     */
+    private void reset() {
+        try {
+            resetSigContext();
+        } catch (TokenException | SignatureException e) {
+            logger.debug("PK11Signature: unable to reset context: " + e.getMessage(), e);
+            state = UNINITIALIZED;
+            releaseSigContext();
+        }
+    }
+
+    /**
+     * Frees the current context, if any, now rather than leaving it to be
+     * garbage collected.
+     */
+    private void releaseSigContext() {
+        try {
+            close();
+        } catch (Exception e) {
+            logger.warn("PK11Signature: unable to free context: " + e.getMessage(), e);
+        }
+    }
+
+    private native void resetSigContext()
+        throws TokenException, SignatureException;
+
     /**
      * Performs raw verification of the signature of a hash using the
      * given public key, on the given token.
@@ -351,6 +383,91 @@ public final class PK11Signature
 	protected native boolean engineVerifyNative(byte[] sigBytes)
 		throws SignatureException, TokenException;
 
+    /**
+     * Signs each message with the key passed to engineInitSign(), creating
+     * a single signing context for the whole batch. Any data already passed
+     * to engineUpdate() is left alone, and the signature stays initialized
+     * for further batches.
+     */
+    @Override
+    public byte[][] engineSignBatch(byte[][] data)
+        throws SignatureException, TokenException
+    {
+        if (state != SIGN) {
+            throw new SignatureException(SIG_NOT_INITIALIZED);
+        }
+        if (key == null) {
+            throw new SignatureException(NO_KEY);
+        }
+        validateBatch(data);
+
+        if (raw) {
+            byte[][] result = new byte[data.length][];
+            for (int i = 0; i < data.length; i++) {
+                result[i] = engineRawSignNative(token, (PK11PrivKey) key,
+                    data[i]);
+            }
+            return result;
+        }
+
+        return engineSignBatchNative(data);
+    }
+
+    private native byte[][] engineSignBatchNative(byte[][] data)
+        throws SignatureException, TokenException;
+
+    /**
+     * Verifies each signature over the corresponding message with the key
+     * passed to engineInitVerify(), creating a single verification context
+     * for the whole batch. Any data already passed to engineUpdate() is
+     * left alone, and the signature stays initialized for further batches.
+     */
+    @Override
+    public boolean[] engineVerifyBatch(byte[][] data, byte[][] signatures)
+        throws SignatureException, TokenException
+    {
+        if (state != VERIFY) {
+            throw new SignatureException("Signature is not initialized properly");
+        }
+        if (key == null) {
+            throw new SignatureException(NO_KEY);
+        }
+        validateBatch(data);
+        validateBatch(signatures);
+        if (data.length != signatures.length) {
+            throw new SignatureException("Got " + data.length +
+                " messages but " + signatures.length + " signatures");
+        }
+
+        if (raw) {
+            boolean[] result = new boolean[data.length];
+            for (int i = 0; i < data.length; i++) {
+                result[i] = engineRawVerifyNative(token, (PK11PubKey) key,
+                    data[i], signatures[i]);
+            }
+            return result;
+        }
+
+        return engineVerifyBatchNative(data, signatures);
+    }
+
+    protected native boolean[] engineVerifyBatchNative(byte[][] data,
+        byte[][] signatures)
+        throws SignatureException, TokenException;
+
+    private static void validateBatch(byte[][] batch)
+        throws SignatureException
+    {
+        if (batch == null) {
+            throw new SignatureException("No batch provided");
+        }
+        for (int i = 0; i < batch.length; i++) {
+            if (batch[i] == null) {
+                throw new SignatureException("Batch entry " + i + " is null");
+            }
+        }
+    }
+
     @Override
     public void engineSetParameter(AlgorithmParameterSpec params)
         throws InvalidAlgorithmParameterException, TokenException
@@ -405,11 +522,6 @@ public final class PK11Signature
             || algorithm == SignatureAlgorithm.RSAPSSSignature;
     }
 
-    @Override
-    public void finalize() throws Throwable {
-        close();
-    }
-
     @Override
     public void close() throws Exception {
         if (sigContext != null) {
@@ -205,7 +205,19 @@ public final class PK11Store implements CryptoStore {
 	// Currently have to use PK11_DeleteTokenObject + PK11_FindObjectForCert
 	// or maybe SEC_DeletePermCertificate.
     @Override
-    public native void deleteCert(X509Certificate cert)
+    public void deleteCert(X509Certificate cert)
+        throws NoSuchItemOnTokenException, TokenException
+    {
+        try {
+            deleteCert((Object) cert);
+        } finally {
+            CryptoManager.notifyTrustChanged();
+        }
+    }
+
+    // Bound to Java_org_mozilla_jss_pkcs11_PK11Store_deleteCert; the
+    // parameter type only differs so the public method can wrap it.
+    private native void deleteCert(Object cert)
         throws NoSuchItemOnTokenException, TokenException;
 
     /**
@@ -216,7 +228,19 @@ public final class PK11Store implements CryptoStore {
      * @exception TokenException General token error
      */
     @Override
-    public native void deleteCertOnly(X509Certificate cert)
+    public void deleteCertOnly(X509Certificate cert)
+        throws NoSuchItemOnTokenException, TokenException
+    {
+        try {
+            deleteCertOnly((Object) cert);
+        } finally {
+            CryptoManager.notifyTrustChanged();
+        }
+    }
+
+    // Bound to Java_org_mozilla_jss_pkcs11_PK11Store_deleteCertOnly; see
+    // deleteCert(Object).
+    private native void deleteCertOnly(Object cert)
         throws NoSuchItemOnTokenException, TokenException;
 
 	////////////////////////////////////////////////////////////
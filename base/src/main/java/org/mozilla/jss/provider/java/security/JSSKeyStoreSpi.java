@@ -21,8 +21,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.mozilla.jss.CryptoManager;
@@ -80,12 +83,170 @@ import org.slf4j.LoggerFactory;
  *
  * <li>setKeyEntry not supported yet. Need to convert a temporary key
  * into a permanent key.
+ *
+ * <li>The aliases of each token are indexed, so that aliases(), size() and
+ * containsAlias() don't enumerate every certificate and key on the token.
+ * The index also holds the keys, so getKey() and isKeyEntry() don't scan
+ * the token's keys either. The index is rebuilt after entries are set or
+ * deleted through any JSS KeyStore, and otherwise after at most
+ * DEFAULT_ALIAS_CACHE_LIFETIME seconds, so that changes made to the NSS
+ * database outside of the KeyStore API are eventually noticed.
+ * Certificates added outside of the KeyStore API are found by
+ * containsAlias() right away. When getKey() or isKeyEntry() is asked for a
+ * key the index doesn't know, the token's keys (but not its certificates)
+ * are indexed again, at most once per KEY_REINDEX_INTERVAL, so keys added
+ * outside of the KeyStore API are found by them right away too, unless
+ * the keys were indexed less than that interval before.
  * </ol>
  */
 public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
 
     public static Logger logger = LoggerFactory.getLogger(JSSKeyStoreSpi.class);
 
+    /**
+     * Maximum time, in seconds, the alias index of a token is used before
+     * being rebuilt; set with the jss.keyStore.aliasCacheLifetime system
+     * property. Zero disables the index.
+     */
+    public static final long DEFAULT_ALIAS_CACHE_LIFETIME = Long.getLong("jss.keyStore.aliasCacheLifetime", 60);
+
+    /**
+     * Minimum time, in milliseconds, between two scans of a token's keys
+     * caused by getKey() or isKeyEntry() being asked for a key its alias
+     * index doesn't know.
+     */
+    public static final long KEY_REINDEX_INTERVAL = 1000;
+
+    /**
+     * Snapshot of the aliases and keys of a single token.
+     */
+    static class AliasIndex {
+
+        // certificate nicknames, in token order
+        final List<String> certificates;
+
+        // certificate nicknames and private key aliases, in token order
+        final Set<String> aliases = new LinkedHashSet<>();
+
+        // private keys by ID and symmetric keys by nickname; not prefixed
+        // with the token name
+        final Map<String, PrivateKey> privateKeys = new HashMap<>();
+        final Map<String, SymmetricKey> symmetricKeys = new HashMap<>();
+
+        final long expiration;
+        final long keysIndexed;
+
+        AliasIndex(CryptoToken token, String tokenName) throws TokenException {
+
+            CryptoStore store = token.getCryptoStore();
+            certificates = new ArrayList<>();
+
+            logger.debug("JSSKeyStoreSpi: - certificates:");
+            for (X509Certificate cert : store.getCertificates()) {
+                String nickname = cert.getNickname();
+                logger.debug("JSSKeyStoreSpi:   - " + nickname);
+                certificates.add(nickname);
+            }
+
+            keysIndexed = System.currentTimeMillis();
+            expiration = keysIndexed + DEFAULT_ALIAS_CACHE_LIFETIME * 1000;
+
+            indexKeys(store, tokenName);
+        }
+
+        /**
+         * Copy of previous (if any) with the keys of the token indexed
+         * again; certificates aren't enumerated again.
+         */
+        AliasIndex(AliasIndex previous, CryptoToken token, String tokenName) throws TokenException {
+
+            keysIndexed = System.currentTimeMillis();
+
+            if (previous == null) {
+                certificates = Collections.emptyList();
+                expiration = keysIndexed;
+            } else {
+                certificates = previous.certificates;
+                expiration = previous.expiration;
+            }
+
+            indexKeys(token.getCryptoStore(), tokenName);
+        }
+
+        private void indexKeys(CryptoStore store, String tokenName) throws TokenException {
+
+            aliases.addAll(certificates);
+
+            logger.debug("JSSKeyStoreSpi: - private keys:");
+            for (PrivateKey privateKey : store.getPrivateKeys()) {
+                // convert key ID into hexadecimal
+                String keyID = Utils.HexEncode(privateKey.getUniqueID());
+                String nickname;
+                if (tokenName == null) {
+                    nickname = keyID;
+                } else {
+                    nickname = tokenName + ":" + keyID;
+                }
+                logger.debug("JSSKeyStoreSpi:   - " + nickname);
+                aliases.add(nickname);
+                privateKeys.putIfAbsent(keyID, privateKey);
+            }
+
+            for (SymmetricKey symmetricKey : store.getSymmetricKeys()) {
+                String nickname = symmetricKey.getNickName();
+                if (nickname != null) {
+                    symmetricKeys.putIfAbsent(nickname, symmetricKey);
+                }
+            }
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiration;
+        }
+
+        /**
+         * Returns true if the keys were indexed long enough ago that a
+         * miss may scan them again.
+         */
+        boolean mayReindexKeys() {
+            return System.currentTimeMillis() - keysIndexed >= KEY_REINDEX_INTERVAL;
+        }
+
+        /**
+         * Returns the private key with the given (hexadecimal) ID, or the
+         * symmetric key with the given nickname, or null.
+         */
+        Key getKey(String nickname) {
+
+            PrivateKey privateKey = privateKeys.get(nickname);
+            if (privateKey != null) {
+                logger.debug("JSSKeyStoreSpi: found private key: " + nickname);
+                return privateKey;
+            }
+
+            SymmetricKey symmetricKey = symmetricKeys.get(nickname);
+            if (symmetricKey != null) {
+                logger.debug("JSSKeyStoreSpi: found symmetric key: " + nickname);
+                return new SecretKeyFacade(symmetricKey);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Alias indexes of all tokens, shared by all JSS KeyStores.
+     */
+    static final ConcurrentHashMap<CryptoToken, AliasIndex> aliasIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Discard the alias indexes of all tokens, for instance after modifying
+     * a token outside of the KeyStore API. They're rebuilt on next use.
+     */
+    public static void invalidateAliasIndexes() {
+        aliasIndexes.clear();
+    }
+
     CryptoToken token;
     protected TokenProxy proxy;
 
@@ -160,39 +321,7 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
             }
 
             for (CryptoToken token : tokens) {
-
-                String tokenName;
-                if (token == cm.getInternalKeyStorageToken()) {
-                    tokenName = null;
-                    logger.debug("JSSKeyStoreSpi: token: internal");
-
-                } else {
-                    tokenName = token.getName();
-                    logger.debug("JSSKeyStoreSpi: token: " + tokenName);
-                }
-
-                CryptoStore store = token.getCryptoStore();
-
-                logger.debug("JSSKeyStoreSpi: - certificates:");
-                for (X509Certificate cert : store.getCertificates()) {
-                    String nickname = cert.getNickname();
-                    logger.debug("JSSKeyStoreSpi:   - " + nickname);
-                    aliases.add(nickname);
-                }
-
-                logger.debug("JSSKeyStoreSpi: - private keys:");
-                for (PrivateKey privateKey : store.getPrivateKeys()) {
-                    // convert key ID into hexadecimal
-                    String keyID = Utils.HexEncode(privateKey.getUniqueID());
-                    String nickname;
-                    if (tokenName == null) {
-                        nickname = keyID;
-                    } else {
-                        nickname = tokenName + ":" + keyID;
-                    }
-                    logger.debug("JSSKeyStoreSpi:   - " + nickname);
-                    aliases.add(nickname);
-                }
+                aliases.addAll(getAliasIndex(cm, token).aliases);
             }
 
             return aliases;
@@ -205,12 +334,86 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
         }
     }
 
+    /**
+     * Returns the alias index of the token, building it if it is missing
+     * or expired.
+     */
+    AliasIndex getAliasIndex(CryptoManager cm, CryptoToken token) throws TokenException {
+
+        AliasIndex index = aliasIndexes.get(token);
+        if (index != null && !index.isExpired()) {
+            return index;
+        }
+
+        return buildAliasIndex(cm, token);
+    }
+
+    /**
+     * Indexes the aliases of the token, replacing its current index.
+     */
+    AliasIndex buildAliasIndex(CryptoManager cm, CryptoToken token) throws TokenException {
+
+        String tokenName;
+        if (token == cm.getInternalKeyStorageToken()) {
+            tokenName = null;
+            logger.debug("JSSKeyStoreSpi: indexing token: internal");
+
+        } else {
+            tokenName = token.getName();
+            logger.debug("JSSKeyStoreSpi: indexing token: " + tokenName);
+        }
+
+        AliasIndex index = new AliasIndex(token, tokenName);
+        if (DEFAULT_ALIAS_CACHE_LIFETIME > 0) {
+            aliasIndexes.put(token, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Indexes the keys of the token again, keeping the certificates of
+     * previous, its current index, if any.
+     */
+    AliasIndex reindexKeys(CryptoManager cm, CryptoToken token, AliasIndex previous) throws TokenException {
+
+        String tokenName = token == cm.getInternalKeyStorageToken() ? null : token.getName();
+        logger.debug("JSSKeyStoreSpi: indexing keys of token: " + token.getName());
+
+        AliasIndex index = new AliasIndex(previous, token, tokenName);
+        if (previous != null) {
+            // unless the index was invalidated or replaced meanwhile
+            aliasIndexes.replace(token, previous, index);
+        }
+
+        return index;
+    }
+
     @Override
     public boolean engineContainsAlias(String alias) {
 
         logger.debug("JSSKeyStoreSpi: engineContainsAlias(" + alias + ")");
 
-        return getAliases().contains(alias);
+        if (getAliases().contains(alias)) {
+            return true;
+        }
+
+        // Certificates may have been added outside of JSS since the index
+        // was built; looking one up by nickname is cheap.
+        try {
+            X509Certificate cert = CryptoManager.getInstance().findCertByNickname(alias);
+            return token == null || !(cert instanceof TokenCertificate) ||
+                ((TokenCertificate) cert).getOwningToken().equals(token);
+
+        } catch (ObjectNotFoundException e) {
+            return false;
+
+        } catch (NotInitializedException e) {
+            throw new RuntimeException(e);
+
+        } catch (TokenException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -236,6 +439,7 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
 
                 logger.debug("JSSKeyStoreSpi: deleting cert: " + alias);
                 store.deleteCertOnly(cert);
+                invalidateAliasIndexes();
                 return;
 
             } catch (ObjectNotFoundException e) {
@@ -280,6 +484,7 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
 
                 logger.debug("JSSKeyStoreSpi: deleting private key: " + nickname);
                 store.deletePrivateKey(privateKey);
+                invalidateAliasIndexes();
 
                 return;
             }
@@ -453,36 +658,32 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
                 token = cm.getTokenByName(tokenName);
             }
 
-            CryptoStore store = token.getCryptoStore();
-
-            logger.debug("JSSKeyStoreSpi: searching for private key");
-
-            for (PrivateKey privateKey : store.getPrivateKeys()) {
-
-                // convert key ID into hexadecimal
-                String keyID = Utils.HexEncode(privateKey.getUniqueID());
-                logger.debug("JSSKeyStoreSpi: - " + keyID);
-
-                if (nickname.equals(keyID)) {
-                    logger.debug("JSSKeyStoreSpi: found private key: " + nickname);
-                    return privateKey;
-                }
+            // With the alias index disabled, only the token's keys are
+            // scanned, as they would be for an index miss.
+            AliasIndex index;
+            if (DEFAULT_ALIAS_CACHE_LIFETIME > 0) {
+                index = getAliasIndex(cm, token);
+            } else {
+                index = reindexKeys(cm, token, null);
             }
 
-            logger.debug("JSSKeyStoreSpi: searching for symmetric key");
+            Key key = index.getKey(nickname);
 
-            for (SymmetricKey symmetricKey : store.getSymmetricKeys()) {
-
-                logger.debug("JSSKeyStoreSpi: - " + symmetricKey.getNickName());
+            // The key may have been generated or imported outside of the
+            // KeyStore API since the index was built, so a miss scans the
+            // keys again. Certificates without keys always miss; to keep
+            // them cheap, that is done at most once per
+            // KEY_REINDEX_INTERVAL.
+            if (key == null && index.mayReindexKeys()) {
+                index = reindexKeys(cm, token, index);
+                key = index.getKey(nickname);
+            }
 
-                if (nickname.equals(symmetricKey.getNickName())) {
-                    logger.debug("JSSKeyStoreSpi: found symmetric key: " + nickname);
-                    return new SecretKeyFacade(symmetricKey);
-                }
+            if (key == null) {
+                logger.debug("JSSKeyStoreSpi: key not found: " + nickname);
             }
 
-            logger.debug("JSSKeyStoreSpi: key not found: " + nickname);
-            return null;
+            return key;
 
         } catch (NoSuchTokenException e) {
             throw new RuntimeException(e);
@@ -532,7 +733,8 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
 
         logger.debug("JSSKeyStoreSpi: engineIsKeyEntry(" + alias + ")");
 
-        /* this is somewhat wasteful but we can speed it up later */
+        // Aliases which aren't indexed keys may rescan the token's keys;
+        // see engineGetKey().
         return engineGetKey(alias, null) != null;
     }
 
@@ -599,11 +801,15 @@ public class JSSKeyStoreSpi extends java.security.KeyStoreSpi {
 
         logger.debug("JSSKeyStoreSpi: engineSetKeyEntry(" + alias + ", key, password, chain)");
 
-        if( key instanceof SecretKeyFacade ) {
-            SecretKeyFacade skf = (SecretKeyFacade)key;
-            engineSetKeyEntryNative(alias, skf.key, password, chain);
-        } else {
-            engineSetKeyEntryNative(alias, key, password, chain);
+        try {
+            if( key instanceof SecretKeyFacade ) {
+                SecretKeyFacade skf = (SecretKeyFacade)key;
+                engineSetKeyEntryNative(alias, skf.key, password, chain);
+            } else {
+                engineSetKeyEntryNative(alias, key, password, chain);
+            }
+        } finally {
+            invalidateAliasIndexes();
         }
     }
 
@@ -16,7 +16,9 @@ import org.mozilla.jss.crypto.TokenException;
 import org.mozilla.jss.crypto.TokenRuntimeException;
 import org.mozilla.jss.crypto.TokenSupplierManager;
 
-public abstract class JSSMessageDigestSpi extends MessageDigestSpi {
+public abstract class JSSMessageDigestSpi extends MessageDigestSpi
+    implements Cloneable
+{
 
     private JSSMessageDigest digest;
 
@@ -49,7 +51,9 @@ public abstract class JSSMessageDigestSpi extends MessageDigestSpi {
 
     @Override
     public Object clone() throws CloneNotSupportedException {
-        throw new CloneNotSupportedException();
+        JSSMessageDigestSpi copy = (JSSMessageDigestSpi) super.clone();
+        copy.digest = digest.clone();
+        return copy;
     }
 
     @Override
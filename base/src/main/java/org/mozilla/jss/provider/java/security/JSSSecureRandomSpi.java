@@ -6,22 +6,34 @@ package org.mozilla.jss.provider.java.security;
 
 import org.mozilla.jss.crypto.TokenSupplierManager;
 import org.mozilla.jss.crypto.JSSSecureRandom;
+import org.mozilla.jss.pkcs11.PK11BufferedSecureRandom;
+import org.mozilla.jss.pkcs11.PK11SecureRandom;
 
 public class JSSSecureRandomSpi extends java.security.SecureRandomSpi {
 
     private static final long serialVersionUID = 1L;
     JSSSecureRandom engine;
 
+    // Seeds are always generated directly, never from a buffer.
+    JSSSecureRandom seedEngine;
+
     public JSSSecureRandomSpi() {
         super();
-        engine = TokenSupplierManager.getTokenSupplier().getSecureRNG();
+        seedEngine = TokenSupplierManager.getTokenSupplier().getSecureRNG();
+        engine = seedEngine;
+
+        // Serve small requests from per-thread buffers, so that threads
+        // sharing one SecureRandom don't contend on it.
+        if (engine instanceof PK11SecureRandom && PK11BufferedSecureRandom.BUFFER_SIZE > 0) {
+            engine = new PK11BufferedSecureRandom();
+        }
     }
 
     @Override
     protected byte[]
     engineGenerateSeed(int numBytes) {
         byte[] bytes = new byte[numBytes];
-        engine.nextBytes(bytes);
+        seedEngine.nextBytes(bytes);
         return bytes;
     }
 
@@ -13,7 +13,10 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.PSSParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.mozilla.jss.crypto.CryptoToken;
 import org.mozilla.jss.crypto.PrivateKey;
@@ -23,10 +26,90 @@ import org.mozilla.jss.crypto.TokenSupplierManager;
 
 public class JSSSignatureSpi extends java.security.SignatureSpi {
 
+    /**
+     * Maximum number of initialized signing contexts cached per thread; set
+     * with the jss.signature.contextCacheSize system property. Zero disables
+     * the cache.
+     */
+    public static final int CONTEXT_CACHE_SIZE =
+        Integer.getInteger("jss.signature.contextCacheSize", 4);
+
+    /**
+     * Signing contexts which have completed a signature and are ready to
+     * sign again with the same key, most recently used last. A context is
+     * removed while a JSSSignatureSpi is using it, so it is never shared.
+     */
+    private static final ThreadLocal<Map<ContextKey, org.mozilla.jss.crypto.Signature>>
+        signingContexts = ThreadLocal.withInitial(() ->
+            new LinkedHashMap<ContextKey, org.mozilla.jss.crypto.Signature>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<ContextKey, org.mozilla.jss.crypto.Signature> eldest) {
+                    return size() > CONTEXT_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Identifies an initialized signing context: the private key (by
+     * identity), the algorithm and, for RSA-PSS, the digest algorithm;
+     * the latter is the only PSS parameter PK11Signature uses.
+     */
+    static final class ContextKey {
+        private final PrivateKey key;
+        private final SignatureAlgorithm alg;
+        private final String pssDigest;
+
+        private ContextKey(PrivateKey key, SignatureAlgorithm alg,
+                String pssDigest) {
+            this.key = key;
+            this.alg = alg;
+            this.pssDigest = pssDigest;
+        }
+
+        /**
+         * Returns null if contexts for these parameters can't be cached.
+         */
+        static ContextKey of(java.security.PrivateKey key,
+                SignatureAlgorithm alg, AlgorithmParameterSpec params) {
+            if (CONTEXT_CACHE_SIZE <= 0 || !(key instanceof PrivateKey)) {
+                return null;
+            }
+
+            String pssDigest = null;
+            if (params instanceof PSSParameterSpec) {
+                pssDigest = ((PSSParameterSpec) params).getDigestAlgorithm();
+            } else if (params != null) {
+                return null;
+            }
+
+            return new ContextKey((PrivateKey) key, alg, pssDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key) * 31 + alg.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ContextKey)) {
+                return false;
+            }
+
+            ContextKey o = (ContextKey) other;
+            return key == o.key && alg == o.alg &&
+                (pssDigest == null ? o.pssDigest == null : pssDigest.equals(o.pssDigest));
+        }
+    }
+
     org.mozilla.jss.crypto.Signature sig;
     SignatureAlgorithm alg;
     AlgorithmParameterSpec paramSpec;
 
+    // Set while initialized for signing with a cacheable context; sig may
+    // be null after signing, once the context was returned to the cache.
+    ContextKey signingKey;
+
     protected JSSSignatureSpi(SignatureAlgorithm alg) {
         this.alg = alg;
     }
@@ -47,13 +130,33 @@ public class JSSSignatureSpi extends java.security.SignatureSpi {
     @Override
     public void engineInitSign(java.security.PrivateKey privateKey)
         throws InvalidKeyException
+    {
+        // A context we still hold may have unsigned data; don't cache it.
+        sig = null;
+        signingKey = null;
+
+        ContextKey id = ContextKey.of(privateKey, alg, paramSpec);
+        if (id != null) {
+            sig = signingContexts.get().remove(id);
+        }
+        if (sig == null) {
+            sig = createSigningContext(privateKey);
+        }
+
+        signingKey = id;
+    }
+
+    private org.mozilla.jss.crypto.Signature
+    createSigningContext(java.security.PrivateKey privateKey)
+        throws InvalidKeyException
     {
         try {
-            sig = getSigContext(privateKey);
+            org.mozilla.jss.crypto.Signature context = getSigContext(privateKey);
             if (paramSpec != null) {
-                sig.setParameter(paramSpec);
+                context.setParameter(paramSpec);
             }
-            sig.initSign((PrivateKey)privateKey);
+            context.initSign((PrivateKey)privateKey);
+            return context;
         } catch(java.security.NoSuchAlgorithmException e) {
             throw new InvalidKeyException("Algorithm not supported: " + e.getMessage(), e);
         } catch(TokenException e) {
@@ -84,6 +187,8 @@ public class JSSSignatureSpi extends java.security.SignatureSpi {
     public void engineInitVerify(PublicKey publicKey)
         throws InvalidKeyException
     {
+        signingKey = null;
+
         try {
             CryptoToken token =
               TokenSupplierManager.getTokenSupplier().getThreadToken();
@@ -117,12 +222,48 @@ public class JSSSignatureSpi extends java.security.SignatureSpi {
         }
     }
 
+    /**
+     * Returns the context for this signature, taking a signing context back
+     * from the cache if it was returned there by a previous sign().
+     */
+    private org.mozilla.jss.crypto.Signature getContext()
+        throws SignatureException
+    {
+        if (sig == null && signingKey != null) {
+            sig = signingContexts.get().remove(signingKey);
+            if (sig == null) {
+                try {
+                    sig = createSigningContext(signingKey.key);
+                } catch (InvalidKeyException e) {
+                    throw new SignatureException(e.getMessage(), e);
+                }
+            }
+        }
+
+        if (sig == null) {
+            throw new SignatureException("Signature is not initialized");
+        }
+        return sig;
+    }
+
+    /**
+     * Hands a signing context which has just completed a signature, and so
+     * is ready to sign again, to the cache for reuse by the next
+     * JSSSignatureSpi initialized with the same key on this thread.
+     */
+    private void releaseSigningContext() {
+        if (signingKey != null && sig != null) {
+            signingContexts.get().put(signingKey, sig);
+            sig = null;
+        }
+    }
+
     @Override
     public void engineUpdate(byte b)
         throws SignatureException
     {
         try {
-            sig.update(b);
+            getContext().update(b);
         } catch( TokenException e) {
             throw new SignatureException("TokenException: "+e.toString());
         }
@@ -133,7 +274,7 @@ public class JSSSignatureSpi extends java.security.SignatureSpi {
         throws SignatureException
     {
         try {
-            sig.update(b, off, len);
+            getContext().update(b, off, len);
         } catch( TokenException e) {
             throw new SignatureException("TokenException: "+e.toString());
         }
@@ -142,9 +283,15 @@ public class JSSSignatureSpi extends java.security.SignatureSpi {
     @Override
     public byte[] engineSign() throws SignatureException {
         try {
-            return sig.sign();
+            byte[] result = getContext().sign();
+            releaseSigningContext();
+            return result;
         } catch(TokenException e) {
+            sig = null;
             throw new SignatureException("TokenException: "+e.toString());
+        } catch(SignatureException e) {
+            sig = null;
+            throw e;
         }
     }
 
@@ -153,16 +300,22 @@ public class JSSSignatureSpi extends java.security.SignatureSpi {
         throws SignatureException
     {
         try {
-            return sig.sign(outbuf, offset, len);
+            int result = getContext().sign(outbuf, offset, len);
+            releaseSigningContext();
+            return result;
         } catch(TokenException e) {
+            sig = null;
             throw new SignatureException("TokenException: "+e.toString());
+        } catch(SignatureException e) {
+            sig = null;
+            throw e;
         }
     }
 
     @Override
     public boolean engineVerify(byte[] sigBytes) throws SignatureException {
         try {
-            return sig.verify(sigBytes);
+            return getContext().verify(sigBytes);
         } catch( TokenException  e) {
             throw new SignatureException("TokenException: "+e.toString());
         }
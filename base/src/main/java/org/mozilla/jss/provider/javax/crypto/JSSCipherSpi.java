@@ -4,6 +4,7 @@
 
 package org.mozilla.jss.provider.javax.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -36,6 +37,7 @@ import org.mozilla.jss.crypto.SymmetricKey;
 import org.mozilla.jss.crypto.TokenException;
 import org.mozilla.jss.crypto.TokenRuntimeException;
 import org.mozilla.jss.crypto.TokenSupplierManager;
+import org.mozilla.jss.pkcs11.PK11BufferedSecureRandom;
 import org.mozilla.jss.pkcs11.PK11PrivKey;
 import org.mozilla.jss.pkcs11.PK11PubKey;
 import org.mozilla.jss.pkix.primitive.SubjectPublicKeyInfo;
@@ -95,14 +97,26 @@ public class JSSCipherSpi extends javax.crypto.CipherSpi {
         }
     }
 
+    private void releaseCipher() {
+        if( cipher instanceof AutoCloseable ) {
+            try {
+                ((AutoCloseable) cipher).close();
+            } catch(Exception e) {
+                throw new TokenRuntimeException(e.getMessage());
+            }
+        }
+        cipher = null;
+    }
+
     @Override
     public void engineInit(int opmode, Key key,
         AlgorithmParameterSpec givenParams, SecureRandom random)
         throws InvalidKeyException, InvalidAlgorithmParameterException
     {
       try {
-        // throw away any previous state
-        cipher = null;
+        // throw away any previous state, freeing the native context of the
+        // previous cipher now rather than when it is garbage collected
+        releaseCipher();
         wrapper = null;
 
         params = givenParams;
@@ -256,13 +270,7 @@ public class JSSCipherSpi extends javax.crypto.CipherSpi {
         }
         // generate an IV
         byte[] iv = new byte[blockSize];
-        try {
-            SecureRandom random = SecureRandom.getInstance("pkcs11prng",
-                                                       "Mozilla-JSS");
-            random.nextBytes(iv);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        ivSource.nextBytes(iv);
 
         for (int i = 0; i < paramClasses.length; i ++) {
             if( paramClasses[i].equals( javax.crypto.spec.IvParameterSpec.class ) ) {
@@ -277,6 +285,11 @@ public class JSSCipherSpi extends javax.crypto.CipherSpi {
         return algParSpec;
     }
 
+    // IVs are small, so serve them from per-thread buffers rather than
+    // looking up a SecureRandom and calling into NSS for each one.
+    private static final PK11BufferedSecureRandom ivSource =
+        new PK11BufferedSecureRandom();
+
     private static class NoAlgParams implements AlgorithmParameterSpec { }
     private static final NoAlgParams noAlgParams = new NoAlgParams();
 
@@ -318,6 +331,10 @@ public class JSSCipherSpi extends javax.crypto.CipherSpi {
 
     @Override
     public int engineGetOutputSize(int inputLen) {
+        if( cipher != null ) {
+            return cipher.getOutputSize(inputLen);
+        }
+
         int total = (blockSize-1) + inputLen;
         return ((total / blockSize) + 1) * blockSize;
     }
@@ -340,13 +357,29 @@ public class JSSCipherSpi extends javax.crypto.CipherSpi {
     public int engineUpdate(byte[] input, int inputOffset, int inputLen,
         byte[] output, int outputOffset) throws ShortBufferException
     {
-        byte[] bytes = engineUpdate(input, inputOffset, inputLen);
-        if( bytes.length > output.length-outputOffset ) {
-            throw new ShortBufferException(bytes.length +  " needed, " +
-                (output.length-outputOffset) + " supplied");
+        if(cipher == null) {
+            throw new IllegalStateException();
+        }
+        try {
+            return cipher.update(input, inputOffset, inputLen, output,
+                outputOffset);
+        } catch(TokenException te) {
+            throw new TokenRuntimeException(te.getMessage());
+        }
+    }
+
+    @Override
+    public int engineUpdate(ByteBuffer input, ByteBuffer output)
+        throws ShortBufferException
+    {
+        if(cipher == null) {
+            throw new IllegalStateException();
+        }
+        try {
+            return cipher.update(input, output);
+        } catch(TokenException te) {
+            throw new TokenRuntimeException(te.getMessage());
         }
-        System.arraycopy(bytes, 0, output, outputOffset, bytes.length);
-        return bytes.length;
     }
 
     @Override
@@ -379,13 +412,34 @@ public class JSSCipherSpi extends javax.crypto.CipherSpi {
             throws ShortBufferException, IllegalBlockSizeException,
             BadPaddingException
     {
-        byte[] bytes = engineDoFinal(input, inputOffset, inputLen);
-        if( bytes.length > output.length-outputOffset ) {
-            throw new ShortBufferException(bytes.length +  " needed, " +
-                (output.length-outputOffset) + " supplied");
+        if( cipher == null ) {
+            throw new IllegalStateException();
+        }
+        try {
+            return cipher.doFinal(input, inputOffset, inputLen, output,
+                outputOffset);
+        } catch(org.mozilla.jss.crypto.IllegalBlockSizeException ibse) {
+            throw new IllegalBlockSizeException(ibse.getMessage());
+        } catch(TokenException te) {
+            throw new TokenRuntimeException(te.getMessage());
+        }
+    }
+
+    @Override
+    public int engineDoFinal(ByteBuffer input, ByteBuffer output)
+            throws ShortBufferException, IllegalBlockSizeException,
+            BadPaddingException
+    {
+        if( cipher == null ) {
+            throw new IllegalStateException();
+        }
+        try {
+            return cipher.doFinal(input, output);
+        } catch(org.mozilla.jss.crypto.IllegalBlockSizeException ibse) {
+            throw new IllegalBlockSizeException(ibse.getMessage());
+        } catch(TokenException te) {
+            throw new TokenRuntimeException(te.getMessage());
         }
-        System.arraycopy(bytes, 0, output, outputOffset, bytes.length);
-        return bytes.length;
     }
 
     @Override
@@ -26,7 +26,7 @@ import org.mozilla.jss.crypto.SymmetricKey;
 import org.mozilla.jss.crypto.TokenRuntimeException;
 import org.mozilla.jss.crypto.TokenSupplierManager;
 
-public class JSSMacSpi extends javax.crypto.MacSpi {
+public class JSSMacSpi extends javax.crypto.MacSpi implements Cloneable {
 
     private JSSMessageDigest digest=null;
     private DigestAlgorithm alg;
@@ -136,7 +136,9 @@ public class JSSMacSpi extends javax.crypto.MacSpi {
 
     @Override
     public Object clone() throws CloneNotSupportedException {
-        throw new CloneNotSupportedException();
+        JSSMacSpi copy = (JSSMacSpi) super.clone();
+        copy.digest = digest.clone();
+        return copy;
     }
 
     @Deprecated(since="5.0.1", forRemoval=true)
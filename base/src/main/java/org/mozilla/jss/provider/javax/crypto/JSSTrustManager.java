@@ -19,18 +19,33 @@
 
 package org.mozilla.jss.provider.javax.crypto;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.PublicKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
 
 import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.NotInitializedException;
 import org.mozilla.jss.netscape.security.util.Cert;
+import org.mozilla.jss.netscape.security.util.DerValue;
+import org.mozilla.jss.netscape.security.x509.AuthorityKeyIdentifierExtension;
+import org.mozilla.jss.netscape.security.x509.KeyIdentifier;
+import org.mozilla.jss.netscape.security.x509.SubjectKeyIdentifierExtension;
 import org.mozilla.jss.pkcs11.PK11Cert;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,16 +57,128 @@ public class JSSTrustManager implements X509TrustManager {
     final static String SERVER_AUTH_OID = "1.3.6.1.5.5.7.3.1";
     final static String CLIENT_AUTH_OID = "1.3.6.1.5.5.7.3.2";
 
+    /**
+     * Default number of successfully validated certificate chains each
+     * JSSTrustManager remembers; set with the jss.trustManager.cacheSize
+     * system property. Zero disables the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = Integer.getInteger("jss.trustManager.cacheSize", 1024);
+
+    /**
+     * Default maximum time, in seconds, a validated chain or the index of
+     * accepted issuers is kept; set with the jss.trustManager.cacheLifetime
+     * system property. This bounds how long changes made to the NSS
+     * database outside of JSS take to be noticed.
+     */
+    public static final long DEFAULT_CACHE_LIFETIME = Long.getLong("jss.trustManager.cacheLifetime", 300);
+
     public boolean allowMissingExtendedKeyUsage = false;
 
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private long cacheLifetime = DEFAULT_CACHE_LIFETIME * 1000;
+
+    /**
+     * Chains which validated successfully, keyed by a digest of the chain,
+     * key usage and configuration, mapped to the time (in milliseconds)
+     * after which they must be validated again. Kept in access order so
+     * the least recently used chain is dropped first.
+     */
+    private final LinkedHashMap<ByteBuffer, Long> validatedChains = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * Value of CryptoManager.getTrustGeneration() when validatedChains
+     * was last known to be current.
+     */
+    private long cacheGeneration = CryptoManager.getTrustGeneration();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Maximum time, in milliseconds, the index of accepted issuers is
+     * kept; like DEFAULT_CACHE_LIFETIME, this bounds how long changes
+     * made to the NSS database outside of JSS take to be noticed. Unlike
+     * the chain cache, it isn't changed by configureCache().
+     */
+    public static final long ISSUER_INDEX_LIFETIME = DEFAULT_CACHE_LIFETIME * 1000;
+
+    /**
+     * Accepted issuers indexed by subject; rebuilt by getIssuerIndex()
+     * when trust changes or after ISSUER_INDEX_LIFETIME.
+     */
+    private volatile IssuerIndex issuerIndex;
+
     public void configureAllowMissingExtendedKeyUsage(boolean allow) {
         allowMissingExtendedKeyUsage = allow;
     }
 
+    /**
+     * Configure the cache of validated certificate chains.
+     *
+     * @param size Maximum number of chains to remember; 0 disables the
+     *      cache.
+     * @param lifetime Maximum time in seconds to remember a chain; chains
+     *      are never remembered past the expiration of any certificate
+     *      involved.
+     */
+    public void configureCache(int size, long lifetime) {
+        if (size < 0 || lifetime < 0) {
+            throw new IllegalArgumentException("Expected non-negative cache size and lifetime");
+        }
+
+        synchronized (validatedChains) {
+            cacheSize = size;
+            cacheLifetime = lifetime * 1000;
+            validatedChains.clear();
+        }
+    }
+
+    /**
+     * Forget all previously validated certificate chains.
+     */
+    public void clearCache() {
+        synchronized (validatedChains) {
+            validatedChains.clear();
+        }
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public int getCacheSize() {
+        synchronized (validatedChains) {
+            return validatedChains.size();
+        }
+    }
+
     public void checkCertChain(X509Certificate[] certChain, String keyUsage) throws Exception {
 
         logger.debug("JSSTrustManager: checkCertChain(" + keyUsage + ")");
 
+        // Only remember the result if trust didn't change while validating.
+        long generation = CryptoManager.getTrustGeneration();
+
+        ByteBuffer cacheKey = null;
+        if (cacheSize > 0 && certChain != null && certChain.length > 0) {
+            cacheKey = getCacheKey(certChain, keyUsage);
+            if (isCached(cacheKey, generation)) {
+                logger.debug("JSSTrustManager: cert chain previously validated");
+                cacheHits.incrementAndGet();
+                return;
+            }
+            cacheMisses.incrementAndGet();
+        }
+
         // sort cert chain from root to leaf
         certChain = Cert.sortCertificateChain(certChain);
 
@@ -59,8 +186,11 @@ public class JSSTrustManager implements X509TrustManager {
             logger.debug("JSSTrustManager:  - " + cert.getSubjectX500Principal());
         }
 
-        // get CA certs
-        X509Certificate[] caCerts = getAcceptedIssuers();
+        // get the CA certs which could have issued the root of the chain
+        X509Certificate[] caCerts = getIssuerIndex().findIssuers(certChain[0]);
+
+        // the chain can't be trusted past the expiration of any cert in it
+        long expiration = Long.MAX_VALUE;
 
         // validating cert chain from root to leaf
         for (int i = 0; i < certChain.length; i++) {
@@ -75,28 +205,42 @@ public class JSSTrustManager implements X509TrustManager {
                 usage = null;
             }
 
-            checkCert(cert, caCerts, usage);
+            X509Certificate issuer = verifyCert(cert, caCerts, usage);
+
+            expiration = Math.min(expiration, issuer.getNotAfter().getTime());
+            expiration = Math.min(expiration, cert.getNotAfter().getTime());
 
             // use the current cert as the CA cert for the next cert in the chain
             caCerts = new X509Certificate[] { cert };
         }
+
+        if (cacheKey != null) {
+            cache(cacheKey, expiration, generation);
+        }
     }
 
     public void checkCert(X509Certificate cert, X509Certificate[] caCerts, String keyUsage) throws Exception {
+        verifyCert(cert, caCerts, keyUsage);
+    }
+
+    /**
+     * Validates cert as checkCert() does, returning the CA cert which
+     * signed it.
+     */
+    X509Certificate verifyCert(X509Certificate cert, X509Certificate[] caCerts, String keyUsage) throws Exception {
 
         logger.debug("JSSTrustManager: checkCert(" + cert.getSubjectX500Principal() + "):");
 
-        boolean[] aki = cert.getIssuerUniqueID();
+        byte[] aki = getAuthorityKeyId(cert);
         logger.debug("JSSTrustManager: cert AKI: " + Arrays.toString(aki));
 
         X509Certificate issuer = null;
         for (X509Certificate caCert : caCerts) {
 
-            boolean[] ski = caCert.getSubjectUniqueID();
-            logger.debug("JSSTrustManager: SKI of " + caCert.getSubjectX500Principal() + ": " + Arrays.toString(ski));
+            logger.debug("JSSTrustManager: trying " + caCert.getSubjectX500Principal());
 
             try {
-                cert.verify(caCert.getPublicKey(), "Mozilla-JSS");
+                cert.verify(getPublicKey(caCert), "Mozilla-JSS");
                 issuer = caCert;
                 break;
             } catch (Exception e) {
@@ -151,6 +295,208 @@ public class JSSTrustManager implements X509TrustManager {
                 throw new CertificateException(msg);
             }
         }
+
+        return issuer;
+    }
+
+    /**
+     * Returns the index of accepted issuers, rebuilding it from
+     * getAcceptedIssuers() when certificate trust has changed or it is
+     * older than ISSUER_INDEX_LIFETIME. CA certs which stop being valid
+     * in the meantime are filtered out by findIssuers().
+     */
+    IssuerIndex getIssuerIndex() {
+        long now = System.currentTimeMillis();
+        long generation = CryptoManager.getTrustGeneration();
+
+        IssuerIndex index = issuerIndex;
+        if (index != null && index.isCurrent(generation, now)) {
+            return index;
+        }
+
+        index = new IssuerIndex(getAcceptedIssuers(), generation, now);
+        issuerIndex = index;
+        return index;
+    }
+
+    private PublicKey getPublicKey(X509Certificate cert) {
+        IssuerIndex index = issuerIndex;
+        if (index != null) {
+            PublicKey key = index.getPublicKey(cert);
+            if (key != null) {
+                return key;
+            }
+        }
+
+        return cert.getPublicKey();
+    }
+
+    static byte[] getAuthorityKeyId(X509Certificate cert) {
+        try {
+            byte[] ext = cert.getExtensionValue("2.5.29.35");
+            if (ext == null) {
+                return null;
+            }
+
+            byte[] value = new DerValue(ext).getOctetString();
+            AuthorityKeyIdentifierExtension aki = new AuthorityKeyIdentifierExtension(Boolean.FALSE, value);
+            KeyIdentifier id = (KeyIdentifier) aki.get(AuthorityKeyIdentifierExtension.KEY_ID);
+            return id == null ? null : id.getIdentifier();
+
+        } catch (Exception e) {
+            logger.debug("JSSTrustManager: unable to parse AKI: " + e);
+            return null;
+        }
+    }
+
+    static byte[] getSubjectKeyId(X509Certificate cert) {
+        try {
+            byte[] ext = cert.getExtensionValue("2.5.29.14");
+            if (ext == null) {
+                return null;
+            }
+
+            byte[] value = new DerValue(ext).getOctetString();
+            SubjectKeyIdentifierExtension ski = new SubjectKeyIdentifierExtension(Boolean.FALSE, value);
+            KeyIdentifier id = (KeyIdentifier) ski.get(SubjectKeyIdentifierExtension.KEY_ID);
+            return id == null ? null : id.getIdentifier();
+
+        } catch (Exception e) {
+            logger.debug("JSSTrustManager: unable to parse SKI: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Accepted CA certificates indexed by subject DN and subject key
+     * identifier, with their public keys extracted up front. Each
+     * JSSTrustManager keeps one, built from getAcceptedIssuers().
+     */
+    public static class IssuerIndex {
+
+        private final long generation;
+        private final long creationTime;
+
+        private final Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<>();
+        private final Map<ByteBuffer, List<X509Certificate>> byKeyId = new HashMap<>();
+        private final Map<X509Certificate, PublicKey> keys = new IdentityHashMap<>();
+
+        public IssuerIndex(X509Certificate[] caCerts, long generation, long creationTime) {
+            this.generation = generation;
+            this.creationTime = creationTime;
+
+            for (X509Certificate caCert : caCerts) {
+                keys.put(caCert, caCert.getPublicKey());
+
+                bySubject.computeIfAbsent(caCert.getSubjectX500Principal(), k -> new ArrayList<>()).add(caCert);
+
+                byte[] ski = getSubjectKeyId(caCert);
+                if (ski != null) {
+                    byKeyId.computeIfAbsent(ByteBuffer.wrap(ski), k -> new ArrayList<>()).add(caCert);
+                }
+            }
+        }
+
+        /**
+         * Returns true if the index was built at the given trust
+         * generation, no longer than ISSUER_INDEX_LIFETIME before now.
+         */
+        public boolean isCurrent(long generation, long now) {
+            return this.generation == generation && now - creationTime <= ISSUER_INDEX_LIFETIME;
+        }
+
+        /**
+         * Returns the public key of an indexed CA cert, or null if cert
+         * isn't in the index.
+         */
+        public PublicKey getPublicKey(X509Certificate cert) {
+            return keys.get(cert);
+        }
+
+        public X509Certificate[] findIssuers(X509Certificate cert) {
+            return findIssuers(cert, System.currentTimeMillis());
+        }
+
+        /**
+         * Returns the CA certs which could have issued cert: those whose
+         * SKI matches its AKI first, then those whose subject matches its
+         * issuer, minus those not valid at now. Only these are tried for
+         * signature verification.
+         */
+        public X509Certificate[] findIssuers(X509Certificate cert, long now) {
+            List<X509Certificate> candidates = new ArrayList<>();
+
+            byte[] aki = getAuthorityKeyId(cert);
+            if (aki != null) {
+                candidates.addAll(byKeyId.getOrDefault(ByteBuffer.wrap(aki), List.of()));
+            }
+
+            for (X509Certificate caCert : bySubject.getOrDefault(cert.getIssuerX500Principal(), List.of())) {
+                if (!candidates.contains(caCert)) {
+                    candidates.add(caCert);
+                }
+            }
+
+            // CA certs may have expired since the index was built
+            Date date = new Date(now);
+            candidates.removeIf(caCert -> !isValid(caCert, date));
+
+            return candidates.toArray(new X509Certificate[candidates.size()]);
+        }
+    }
+
+    private ByteBuffer getCacheKey(X509Certificate[] certChain, String keyUsage) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        digest.update(String.valueOf(keyUsage).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) (allowMissingExtendedKeyUsage ? 1 : 0));
+
+        for (X509Certificate cert : certChain) {
+            digest.update(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()));
+        }
+
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    private boolean isCached(ByteBuffer key, long generation) {
+        long now = System.currentTimeMillis();
+
+        synchronized (validatedChains) {
+            if (generation > cacheGeneration) {
+                // certificates were removed or their trust changed
+                validatedChains.clear();
+                cacheGeneration = generation;
+                return false;
+            }
+
+            if (generation < cacheGeneration) {
+                return false;
+            }
+
+            Long expiration = validatedChains.get(key);
+            if (expiration == null) {
+                return false;
+            }
+
+            if (expiration < now) {
+                validatedChains.remove(key);
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    private void cache(ByteBuffer key, long expiration, long generation) {
+        long now = System.currentTimeMillis();
+
+        synchronized (validatedChains) {
+            if (generation != cacheGeneration || generation != CryptoManager.getTrustGeneration()) {
+                return;
+            }
+
+            validatedChains.put(key, Math.min(expiration, now + cacheLifetime));
+        }
     }
 
     @Override
@@ -191,25 +537,36 @@ public class JSSTrustManager implements X509TrustManager {
         }
     }
 
+    /**
+     * Returns true if cert is valid at date; the same check is used for
+     * the accepted issuers and the issuer index.
+     */
+    static boolean isValid(X509Certificate cert, Date date) {
+        try {
+            cert.checkValidity(date);
+            return true;
+
+        } catch (Exception e) {
+            logger.debug("JSSTrustManager: invalid CA certificate: " + e);
+            return false;
+        }
+    }
+
     @Override
     public X509Certificate[] getAcceptedIssuers() {
 
         logger.debug("JSSTrustManager: getAcceptedIssuers():");
 
         Collection<X509Certificate> caCerts = new ArrayList<>();
+        Date now = new Date();
 
         try {
             CryptoManager manager = CryptoManager.getInstance();
             for (org.mozilla.jss.crypto.X509Certificate cert : manager.getCACerts()) {
                 logger.debug("JSSTrustManager:  - " + cert.getSubjectDN());
 
-                try {
-                    PK11Cert caCert = (PK11Cert) cert;
-                    caCert.checkValidity();
-                    caCerts.add(caCert);
-
-                } catch (Exception e) {
-                    logger.debug("JSSTrustManager: invalid CA certificate: " + e);
+                if (cert instanceof PK11Cert && isValid((PK11Cert) cert, now)) {
+                    caCerts.add((PK11Cert) cert);
                 }
             }
 
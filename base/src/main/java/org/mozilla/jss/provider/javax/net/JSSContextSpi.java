@@ -13,17 +13,29 @@ import org.mozilla.jss.ssl.javax.JSSEngine;
 import org.mozilla.jss.ssl.javax.JSSEngineReferenceImpl;
 import org.mozilla.jss.ssl.javax.JSSParameters;
 import org.mozilla.jss.ssl.javax.JSSServerSocketFactory;
+import org.mozilla.jss.ssl.javax.JSSSessionContext;
 import org.mozilla.jss.ssl.javax.JSSSocketFactory;
 import org.mozilla.jss.ssl.SSLVersion;
 
 public class JSSContextSpi extends SSLContextSpi {
     public static Logger logger = LoggerFactory.getLogger(JSSContextSpi.class);
 
+    /**
+     * JSSEngine implementation to create: either "reference" (the default)
+     * for JSSEngineReferenceImpl or "optimized" for a JSSEngineReferenceImpl
+     * without data path logging.
+     * Set with the jss.engine.implementation system property.
+     */
+    public static final String ENGINE_IMPLEMENTATION = System.getProperty("jss.engine.implementation", "reference");
+
     JSSKeyManager key_manager;
     X509TrustManager[] trust_managers;
 
     SSLVersion protocol_version;
 
+    JSSSessionContext client_session_context = new JSSSessionContext(false);
+    JSSSessionContext server_session_context = new JSSSessionContext(true);
+
     @Override
     public void engineInit(KeyManager[] kms, TrustManager[] tms, SecureRandom sr) throws KeyManagementException {
         logger.debug("JSSContextSpi.engineInit(" + kms + ", " + tms + ", " + sr + ")");
@@ -53,7 +65,7 @@ public class JSSContextSpi extends SSLContextSpi {
     public SSLEngine engineCreateSSLEngine() {
         logger.debug("JSSContextSpi.engineCreateSSLEngine()");
 
-        JSSEngine ret = new JSSEngineReferenceImpl();
+        JSSEngine ret = createEngine(null, 0);
         initializeEngine(ret);
 
         return ret;
@@ -63,12 +75,26 @@ public class JSSContextSpi extends SSLContextSpi {
     public SSLEngine engineCreateSSLEngine(String host, int port) {
         logger.debug("JSSContextSpi.engineCreateSSLEngine(" + host + ", " + port + ")");
 
-        JSSEngine ret = new JSSEngineReferenceImpl(host, port);
+        JSSEngine ret = createEngine(host, port);
         initializeEngine(ret);
 
         return ret;
     }
 
+    private JSSEngine createEngine(String host, int port) {
+        if ("optimized".equalsIgnoreCase(ENGINE_IMPLEMENTATION)) {
+            JSSEngineReferenceImpl ret = host == null ? new JSSEngineReferenceImpl() : new JSSEngineReferenceImpl(host, port);
+            ret.setVerbose(false);
+            return ret;
+        }
+
+        if (!"reference".equalsIgnoreCase(ENGINE_IMPLEMENTATION)) {
+            logger.warn("JSSContextSpi: unknown jss.engine.implementation " + ENGINE_IMPLEMENTATION + "; using reference");
+        }
+
+        return host == null ? new JSSEngineReferenceImpl() : new JSSEngineReferenceImpl(host, port);
+    }
+
     private void initializeEngine(JSSEngine eng) {
         eng.setKeyManager(key_manager);
         eng.setTrustManagers(trust_managers);
@@ -76,18 +102,22 @@ public class JSSContextSpi extends SSLContextSpi {
         if (protocol_version != null) {
             eng.setEnabledProtocols(protocol_version, protocol_version);
         }
+
+        // The NSS server session cache is sized from the server session
+        // context when the first server engine creates it.
+        eng.setSessionContexts(client_session_context, server_session_context);
+        eng.setSessionCacheSize(server_session_context.getSessionCacheSize());
+        eng.setSessionCacheTimeout(server_session_context.getSessionTimeout());
     }
 
     @Override
     public SSLSessionContext engineGetClientSessionContext() {
-        logger.debug("JSSContextSpi.engineGetClientSessionContext() - not implemented");
-        return null;
+        return client_session_context;
     }
 
     @Override
     public SSLSessionContext engineGetServerSessionContext() {
-        logger.debug("JSSContextSpi.engineGetServerSessionContext() - not implemented");
-        return null;
+        return server_session_context;
     }
 
     @Override
@@ -12,9 +12,4 @@ class SocketProxy extends org.mozilla.jss.util.NativeProxy {
 
     @Override
     protected native void releaseNativeResources();
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-    }
 }
@@ -1,10 +1,14 @@
 package org.mozilla.jss.ssl.javax;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EventListener;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
@@ -12,11 +16,13 @@ import javax.net.ssl.SSLParameters;
 import javax.net.ssl.X509KeyManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.crypto.Policy;
 import org.mozilla.jss.nss.PR;
 import org.mozilla.jss.nss.PRFDProxy;
 import org.mozilla.jss.nss.SSL;
 import org.mozilla.jss.nss.SSLFDProxy;
+import org.mozilla.jss.nss.SSLStatistics;
 import org.mozilla.jss.nss.SecurityStatusResult;
 import org.mozilla.jss.pkcs11.PK11Cert;
 import org.mozilla.jss.pkcs11.PK11PrivKey;
@@ -26,6 +32,8 @@ import org.mozilla.jss.ssl.SSLAlertEvent;
 import org.mozilla.jss.ssl.SSLCipher;
 import org.mozilla.jss.ssl.SSLHandshakeCompletedEvent;
 import org.mozilla.jss.ssl.SSLHandshakeCompletedListener;
+import org.mozilla.jss.ssl.SSLNamedGroup;
+import org.mozilla.jss.ssl.SSLSignatureScheme;
 import org.mozilla.jss.ssl.SSLSocketListener;
 import org.mozilla.jss.ssl.SSLVersion;
 import org.mozilla.jss.ssl.SSLVersionRange;
@@ -42,7 +50,8 @@ import org.slf4j.LoggerFactory;
  *
  * There are the following implementations:
  *  - JSSEngineReferenceImpl - A reference implementation with extensive
- *                             logging and debugging.
+ *                             logging and debugging. Data path logging can
+ *                             be turned off with setVerbose(false).
  *
  * Usually a JSSEngine isn't constructed directly, but instead accessed via
  * the Provider mechanism, SSLContext. See JSSContextSpi for more information.
@@ -51,12 +60,130 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
     public static Logger logger = LoggerFactory.getLogger(JSSEngine.class);
 
     /**
-     * Size of the underlying BUFFERs.
+     * Largest TLS record which can be sent or received: a 5 byte header,
+     * 2^14 bytes of plaintext and up to 2048 bytes of expansion.
+     */
+    public static final int MAX_BUFFER_SIZE = 5 + (1 << 14) + 2048;
+
+    /**
+     * Default size of the underlying BUFFERs.
      *
      * Helps to be large enough to fit most common SSL packets during the
-     * initial handshake.
+     * initial handshake. Can be overridden with the jss.engine.bufferSize
+     * system property, or per-engine with setBufferSize(...).
+     */
+    protected static int BUFFER_SIZE = Integer.getInteger("jss.engine.bufferSize", 1 << 12);
+
+    /**
+     * Whether or not engines adapt their buffer size to traffic by default.
+     *
+     * Can be enabled with the jss.engine.adaptiveBufferSize system property,
+     * or per-engine with setAdaptiveBufferSize(...).
+     */
+    protected static boolean ADAPTIVE_BUFFER_SIZE = Boolean.getBoolean("jss.engine.adaptiveBufferSize");
+
+    /**
+     * Size of the underlying buffers of this engine, when they are created.
+     *
+     * When adaptive sizing is enabled, this is also the smallest size the
+     * buffers shrink back to.
+     */
+    protected int buffer_size = BUFFER_SIZE;
+
+    /**
+     * Whether or not to grow the underlying buffers (up to MAX_BUFFER_SIZE)
+     * under bulk traffic, and shrink them back to buffer_size when traffic
+     * is light.
+     */
+    protected boolean adaptive_buffer_size = ADAPTIVE_BUFFER_SIZE;
+
+    /**
+     * Default maximum number of entries in the server session cache; zero
+     * selects the NSS default of 10,000.
+     *
+     * Can be overridden with the jss.engine.sessionCacheSize system
+     * property, or with setSessionCacheSize(...) on the first server engine.
+     */
+    protected static int SESSION_CACHE_SIZE = Integer.getInteger("jss.engine.sessionCacheSize", 0);
+
+    /**
+     * Default lifetime, in seconds, of server session cache entries; zero
+     * selects the NSS default. NSS only accepts values between 5 seconds
+     * and 24 hours.
+     *
+     * Can be overridden with the jss.engine.sessionCacheTimeout system
+     * property, or with setSessionCacheTimeout(...) on the first server
+     * engine.
+     */
+    protected static long SESSION_CACHE_TIMEOUT = Long.getLong("jss.engine.sessionCacheTimeout", 0);
+
+    /**
+     * Default directory holding the server session cache; null selects the
+     * NSS default.
+     *
+     * Can be overridden with the jss.engine.sessionCacheDirectory system
+     * property, or with setSessionCacheDirectory(...) on the first server
+     * engine.
+     */
+    protected static String SESSION_CACHE_DIRECTORY = System.getProperty("jss.engine.sessionCacheDirectory");
+
+    /**
+     * Whether or not the server session cache lives in shared memory, so
+     * that it can be used by several server processes.
+     *
+     * Enabled with the jss.engine.sharedSessionCache system property. When
+     * the SSL_INHERITANCE environment variable is set, the shared cache of
+     * the parent process is attached to instead of creating a new one.
+     */
+    protected static boolean SHARED_SESSION_CACHE = Boolean.getBoolean("jss.engine.sharedSessionCache");
+
+    /**
+     * Whether or not engines enable session tickets (stateless session
+     * resumption) by default. Disable with the jss.engine.sessionTickets
+     * system property, or per-engine with setSessionTickets(...).
      */
-    protected static int BUFFER_SIZE = 1 << 12;
+    protected static boolean SESSION_TICKETS = Boolean.parseBoolean(System.getProperty("jss.engine.sessionTickets", "true"));
+
+    /**
+     * Maximum number of entries in the server session cache.
+     *
+     * The session cache is shared by all server engines; only the values
+     * of the first engine to start a server handshake are used.
+     */
+    protected int session_cache_size = SESSION_CACHE_SIZE;
+
+    /**
+     * Lifetime, in seconds, of server session cache entries.
+     */
+    protected long session_cache_timeout = SESSION_CACHE_TIMEOUT;
+
+    /**
+     * Directory holding the server session cache.
+     */
+    protected String session_cache_directory = SESSION_CACHE_DIRECTORY;
+
+    /**
+     * Context tracking the sessions of this engine when in client mode;
+     * also provides the NSS peer ID used to find sessions to resume.
+     */
+    protected JSSSessionContext client_session_context;
+
+    /**
+     * Context tracking the sessions of this engine when in server mode.
+     */
+    protected JSSSessionContext server_session_context;
+
+    /**
+     * Number of completed handshakes which resumed a previous session,
+     * across all engines.
+     */
+    private static final LongAdder resumedHandshakes = new LongAdder();
+
+    /**
+     * Number of completed handshakes which created a new session, across
+     * all engines.
+     */
+    private static final LongAdder fullHandshakes = new LongAdder();
 
     /**
      * Whether or not this SSLEngine is acting as the client end of the
@@ -106,6 +233,16 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
      */
     protected X509TrustManager[] trust_managers;
 
+    /**
+     * Executor to run certificate validation on, when validating with the
+     * TrustManagers above.
+     *
+     * When null, validation is handed to the caller via getDelegatedTask().
+     * Otherwise, it is submitted to this executor as soon as NSS requests
+     * it and getCertValidationFuture() completes once it has finished.
+     */
+    protected Executor cert_validation_executor;
+
     /**
      * Whether or not we should fail to handshake if client authentication
      * is not passed by the peer and we are a server; if we are a client,
@@ -163,6 +300,18 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
      */
     protected SSLVersion max_protocol;
 
+    /**
+     * Named groups to enable, in order of preference; null to use the NSS
+     * defaults.
+     */
+    protected SSLNamedGroup[] named_groups;
+
+    /**
+     * Signature schemes to enable, in order of preference; null to use the
+     * NSS defaults.
+     */
+    protected SSLSignatureScheme[] signature_schemes;
+
     /**
      * A JSSSession extends the SSLSession, providing useful information not
      * otherwise contained in the SSLSession, but exposed by NSS.
@@ -192,9 +341,15 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
 
     /**
      * Set of cached server sockets based on the PK11Cert they were
-     * initialized with.
+     * initialized with. Shared across all JSSEngine instances; bounded by
+     * the jss.engine.maxServerTemplates system property.
      */
-    protected static HashMap<PK11Cert, SSLFDProxy> serverTemplates = new HashMap<>();
+    protected static ServerTemplateCache serverTemplates = new ServerTemplateCache(ServerTemplateCache.DEFAULT_MAX_SIZE);
+
+    static {
+        // Cached server models hold NSS objects; they can't outlive NSS.
+        CryptoManager.addShutdownHook(() -> serverTemplates.invalidateAll());
+    }
 
     /**
      * Whether or not the session cache has been initialized already.
@@ -220,7 +375,7 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
     public JSSEngine() {
         super();
 
-        session = new JSSSession(this, BUFFER_SIZE);
+        session = new JSSSession(this, buffer_size);
         config = getDefaultConfiguration();
     }
 
@@ -234,7 +389,7 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
     public JSSEngine(String peerHost, int peerPort) {
         super(peerHost, peerPort);
 
-        session = new JSSSession(this, BUFFER_SIZE);
+        session = new JSSSession(this, buffer_size);
         session.setPeerHost(peerHost);
         session.setPeerPort(peerPort);
         config = getDefaultConfiguration();
@@ -256,7 +411,7 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
         cert = (PK11Cert) localCert;
         key = (PK11PrivKey) localKey;
 
-        session = new JSSSession(this, BUFFER_SIZE);
+        session = new JSSSession(this, buffer_size);
         session.setPeerHost(peerHost);
         session.setPeerPort(peerPort);
         config = getDefaultConfiguration();
@@ -288,9 +443,36 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
      */
     public static void initializeSessionCache(int maxCacheEntries,
         long timeout, String directory) throws SSLException
+    {
+        initializeSessionCache(maxCacheEntries, timeout, directory, SHARED_SESSION_CACHE);
+    }
+
+    /**
+     * Safely initializes the session cache if not already initialized.
+     *
+     * When shared is true, the cache is placed in shared memory so that
+     * other server processes can use it; if this process was started with
+     * the SSL_INHERITANCE environment variable, the parent's shared cache
+     * is used instead and the other arguments are ignored.
+     */
+    public static void initializeSessionCache(int maxCacheEntries,
+        long timeout, String directory, boolean shared) throws SSLException
     {
         if (sessionCacheInitialized.compareAndSet(false, true)) {
-            if (SSL.ConfigServerSessionIDCache(maxCacheEntries, timeout, timeout, directory) == SSL.SECFailure) {
+            int ret;
+            if (shared && System.getenv("SSL_INHERITANCE") != null) {
+                ret = SSL.InheritMPServerSIDCache(null);
+            } else if (shared) {
+                ret = SSL.ConfigMPServerSIDCache(maxCacheEntries, timeout, timeout, directory);
+            } else {
+                ret = SSL.ConfigServerSessionIDCache(maxCacheEntries, timeout, timeout, directory);
+            }
+
+            if (ret == SSL.SECFailure) {
+                // Allow a later attempt (with different settings) to
+                // succeed.
+                sessionCacheInitialized.set(false);
+
                 String msg = "Unable to configure server session cache: ";
                 msg += errorText(PR.GetError());
                 throw new SSLException(msg);
@@ -298,6 +480,43 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
         }
     }
 
+    /**
+     * Query the session cache statistics kept by NSS: hits and misses of
+     * the server and client session caches, and resumptions with session
+     * tickets. These cover all SSL connections in this process, including
+     * SSLSocket and SSLServerSocket.
+     */
+    public static SSLStatistics getSessionCacheStatistics() {
+        return SSL.GetStatistics();
+    }
+
+    /**
+     * Number of handshakes completed by any JSSEngine which resumed a
+     * previous session.
+     */
+    public static long getResumedHandshakeCount() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Number of handshakes completed by any JSSEngine which negotiated a
+     * new session.
+     */
+    public static long getFullHandshakeCount() {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * Record the outcome of a completed handshake.
+     */
+    protected static void recordHandshake(boolean resumed) {
+        if (resumed) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+    }
+
     /**
      * Get the internal SSLFDProxy object; this should be preferred to
      * directly accessing ssl_fd.
@@ -338,6 +557,14 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
         ret.setAlias(certAlias);
         ret.setHostname(hostname);
         ret.setListeners(listeners);
+        ret.setBufferSize(buffer_size);
+        ret.setAdaptiveBufferSize(adaptive_buffer_size);
+        ret.setSessionCacheSize(session_cache_size);
+        ret.setSessionCacheTimeout(session_cache_timeout);
+        ret.setSessionCacheDirectory(session_cache_directory);
+        ret.setSessionTickets(getSessionTickets());
+        ret.setNamedGroups(named_groups);
+        ret.setSignatureSchemes(signature_schemes);
 
         return ret;
     }
@@ -416,6 +643,259 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
         if (parsed.getListeners() != null) {
             setListeners(parsed.getListeners());
         }
+
+        // Buffer sizing only changes when explicitly specified.
+        if (parsed.getBufferSize() > 0 && parsed.getBufferSize() != buffer_size) {
+            setBufferSize(parsed.getBufferSize());
+        }
+
+        if (parsed.getAdaptiveBufferSize() != null) {
+            setAdaptiveBufferSize(parsed.getAdaptiveBufferSize());
+        }
+
+        // As are the session cache settings.
+        if (parsed.getSessionCacheSize() > 0) {
+            setSessionCacheSize(parsed.getSessionCacheSize());
+        }
+
+        if (parsed.getSessionCacheTimeout() > 0) {
+            setSessionCacheTimeout(parsed.getSessionCacheTimeout());
+        }
+
+        if (parsed.getSessionCacheDirectory() != null) {
+            setSessionCacheDirectory(parsed.getSessionCacheDirectory());
+        }
+
+        if (parsed.getSessionTickets() != null && parsed.getSessionTickets() != getSessionTickets()) {
+            setSessionTickets(parsed.getSessionTickets());
+        }
+
+        if (parsed.getNamedGroups() != null && !Arrays.equals(parsed.getNamedGroups(), named_groups)) {
+            setNamedGroups(parsed.getNamedGroups());
+        }
+
+        if (parsed.getSignatureSchemes() != null && !Arrays.equals(parsed.getSignatureSchemes(), signature_schemes)) {
+            setSignatureSchemes(parsed.getSignatureSchemes());
+        }
+    }
+
+    /**
+     * Set the size of the native buffers used to pass data between this
+     * engine and NSS. Larger buffers (up to MAX_BUFFER_SIZE, a full TLS
+     * record) let a single wrap/unwrap iteration process more data at the
+     * cost of memory per connection.
+     *
+     * Must be called before the handshake has started.
+     */
+    public void setBufferSize(int size) throws IllegalArgumentException {
+        if (size <= 0) {
+            String msg = "Expected positive buffer size; got " + size;
+            throw new IllegalArgumentException(msg);
+        }
+
+        if (ssl_fd != null) {
+            String msg = "Unable to process setBufferSize(...) after ";
+            msg += "handshake has started!";
+            throw new IllegalArgumentException(msg);
+        }
+
+        buffer_size = size;
+        if (session != null) {
+            session.setBufferSize(size);
+        }
+    }
+
+    /**
+     * Get the initial size of the native buffers used by this engine.
+     */
+    public int getBufferSize() {
+        return buffer_size;
+    }
+
+    /**
+     * Set whether or not this engine should adapt its buffer size to the
+     * traffic it sees: growing towards MAX_BUFFER_SIZE under bulk transfers
+     * and shrinking back to getBufferSize() when traffic is light.
+     */
+    public void setAdaptiveBufferSize(boolean adaptive) {
+        adaptive_buffer_size = adaptive;
+    }
+
+    /**
+     * Query whether or not this engine adapts its buffer size to traffic.
+     */
+    public boolean getAdaptiveBufferSize() {
+        return adaptive_buffer_size;
+    }
+
+    /**
+     * Set the named groups (key exchange groups) this engine enables, in
+     * order of preference; null restores the NSS defaults.
+     *
+     * Must be called before the handshake has started.
+     */
+    public void setNamedGroups(SSLNamedGroup[] groups) {
+        if (ssl_fd != null) {
+            String msg = "Unable to process setNamedGroups(...) after ";
+            msg += "handshake has started!";
+            throw new IllegalArgumentException(msg);
+        }
+
+        named_groups = groups == null ? null : groups.clone();
+    }
+
+    /**
+     * Get the named groups this engine enables; null when using the NSS
+     * defaults.
+     */
+    public SSLNamedGroup[] getNamedGroups() {
+        return named_groups == null ? null : named_groups.clone();
+    }
+
+    /**
+     * Set the signature schemes this engine enables, in order of
+     * preference; null restores the NSS defaults.
+     *
+     * Must be called before the handshake has started.
+     */
+    public void setSignatureSchemes(SSLSignatureScheme[] schemes) {
+        if (ssl_fd != null) {
+            String msg = "Unable to process setSignatureSchemes(...) after ";
+            msg += "handshake has started!";
+            throw new IllegalArgumentException(msg);
+        }
+
+        signature_schemes = schemes == null ? null : schemes.clone();
+    }
+
+    /**
+     * Get the signature schemes this engine enables; null when using the
+     * NSS defaults.
+     */
+    public SSLSignatureScheme[] getSignatureSchemes() {
+        return signature_schemes == null ? null : signature_schemes.clone();
+    }
+
+    /**
+     * Compile the current cipher suites, protocol versions, configuration
+     * options, named groups and signature schemes of this engine into a
+     * policy, to be applied to its SSL PRFileDesc in one call.
+     */
+    public JSSPolicy getPolicy() {
+        return new JSSPolicy(enabled_ciphers, min_protocol, max_protocol,
+            config, named_groups, signature_schemes);
+    }
+
+    /**
+     * Set the session contexts tracking the sessions of this engine, in
+     * client and server mode respectively; either may be null.
+     *
+     * Must be called before the handshake has started.
+     */
+    public void setSessionContexts(JSSSessionContext client, JSSSessionContext server) {
+        if (ssl_fd != null) {
+            String msg = "Unable to process setSessionContexts(...) after ";
+            msg += "handshake has started!";
+            throw new IllegalArgumentException(msg);
+        }
+
+        client_session_context = client;
+        server_session_context = server;
+    }
+
+    /**
+     * Get the session context for the current mode of this engine, if any.
+     */
+    public JSSSessionContext getSessionContext() {
+        return as_server ? server_session_context : client_session_context;
+    }
+
+    /**
+     * Set the maximum number of entries in the server session cache; zero
+     * selects the NSS default of 10,000.
+     *
+     * The server session cache is shared by all engines in this process
+     * and is created by the first server handshake, so this only has an
+     * effect when called before then.
+     */
+    public void setSessionCacheSize(int size) throws IllegalArgumentException {
+        if (size < 0) {
+            String msg = "Expected non-negative session cache size; got " + size;
+            throw new IllegalArgumentException(msg);
+        }
+
+        session_cache_size = size;
+    }
+
+    /**
+     * Get the maximum number of entries in the server session cache.
+     */
+    public int getSessionCacheSize() {
+        return session_cache_size;
+    }
+
+    /**
+     * Set the lifetime, in seconds, of server session cache entries; zero
+     * selects the NSS default.
+     *
+     * See setSessionCacheSize(...) for when this has an effect.
+     */
+    public void setSessionCacheTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 0) {
+            String msg = "Expected non-negative session cache timeout; got " + timeout;
+            throw new IllegalArgumentException(msg);
+        }
+
+        session_cache_timeout = timeout;
+    }
+
+    /**
+     * Get the lifetime, in seconds, of server session cache entries.
+     */
+    public long getSessionCacheTimeout() {
+        return session_cache_timeout;
+    }
+
+    /**
+     * Set the directory holding the server session cache; null selects
+     * the NSS default.
+     *
+     * See setSessionCacheSize(...) for when this has an effect.
+     */
+    public void setSessionCacheDirectory(String directory) {
+        session_cache_directory = directory;
+    }
+
+    /**
+     * Get the directory holding the server session cache.
+     */
+    public String getSessionCacheDirectory() {
+        return session_cache_directory;
+    }
+
+    /**
+     * Set whether or not this engine uses session tickets (RFC 5077) for
+     * stateless session resumption. For TLS 1.3, this also controls
+     * whether the server issues NewSessionTicket messages.
+     *
+     * Must be called before the handshake has started.
+     */
+    public void setSessionTickets(boolean enabled) {
+        if (ssl_fd != null) {
+            String msg = "Unable to process setSessionTickets(...) after ";
+            msg += "handshake has started!";
+            throw new IllegalArgumentException(msg);
+        }
+
+        config.put(SSL.ENABLE_SESSION_TICKETS, enabled ? 1 : 0);
+    }
+
+    /**
+     * Query whether or not this engine uses session tickets.
+     */
+    public boolean getSessionTickets() {
+        Integer value = config.get(SSL.ENABLE_SESSION_TICKETS);
+        return value != null && value != 0;
     }
 
     /**
@@ -844,6 +1324,40 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
         trust_managers = xtms;
     }
 
+    /**
+     * Set the Executor on which certificate validation is performed.
+     *
+     * This keeps slow TrustManagers (e.g., those performing OCSP or CRL
+     * checks) from blocking the thread driving wrap() and unwrap(). While
+     * validation is in progress, the handshake status is NEED_TASK; callers
+     * may resume the handshake when getCertValidationFuture() completes, or
+     * run the delegated task, which waits for validation to finish.
+     *
+     * Pass null to use delegated tasks instead (the default).
+     */
+    public void setCertValidationExecutor(Executor executor) {
+        cert_validation_executor = executor;
+    }
+
+    /**
+     * Get the Executor on which certificate validation is performed, if
+     * any.
+     */
+    public Executor getCertValidationExecutor() {
+        return cert_validation_executor;
+    }
+
+    /**
+     * Get a future which completes when the pending asynchronous
+     * certificate validation (if any) has finished, at which point the
+     * caller should call wrap() or unwrap() to continue the handshake.
+     *
+     * When no validation is pending, returns a completed future.
+     */
+    public CompletableFuture<Void> getCertValidationFuture() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Gets the JSSSession object which reflects the status of this
      * JSS Engine's session.
@@ -1063,6 +1577,12 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
         // JCA providers and makes transitioning TLS versions difficult.
         // result.put(SSL.ENABLE_FALLBACK_SCSV, 1);
 
+        // Session tickets allow resumption without a server session cache
+        // lookup, and are required for TLS 1.3 resumption.
+        if (SESSION_TICKETS) {
+            result.put(SSL.ENABLE_SESSION_TICKETS, 1);
+        }
+
         return result;
     }
 
@@ -1089,27 +1609,46 @@ public abstract class JSSEngine extends javax.net.ssl.SSLEngine {
 
     /**
      * Returns the templated server certificate, if one exists.
+     *
+     * Note that the returned model may be closed at any time should it be
+     * evicted from the cache; prefer importServerFD(...) to derive a new
+     * SSL PRFileDesc from it.
      */
     protected static SSLFDProxy getServerTemplate(PK11Cert cert, PK11PrivKey key) {
         if (cert == null || key == null) {
             return null;
         }
 
-        SSLFDProxy fd = serverTemplates.get(cert);
-        if (fd == null) {
-            PRFDProxy base = PR.NewTCPSocket();
-            fd = SSL.ImportFD(null, base);
-            if (SSL.ConfigServerCert(fd, cert, key) != SSL.SECSuccess) {
-                String msg = "Unable to configure certificate and key on ";
-                msg += "model SSL PRFileDesc proxy: ";
-                msg += errorText(PR.GetError());
-                throw new RuntimeException(msg);
-            }
+        return serverTemplates.get(cert, key).getFD();
+    }
+
+    /**
+     * Import the given PRFileDesc as a new SSL PRFileDesc, copying the
+     * configuration from the server template for cert and key. When either
+     * is null, no model is used.
+     */
+    protected static SSLFDProxy importServerFD(PK11Cert cert, PK11PrivKey key, PRFDProxy fd) {
+        return importServerFD(cert, key, null, fd);
+    }
 
-            serverTemplates.put(cert, fd);
+    /**
+     * Import the given PRFileDesc as a new SSL PRFileDesc, copying the
+     * configuration from the server template for cert, key and policy. When
+     * cert or key is null, no model is used and the policy isn't applied.
+     */
+    protected static SSLFDProxy importServerFD(PK11Cert cert, PK11PrivKey key, JSSPolicy policy, PRFDProxy fd) {
+        if (cert == null || key == null) {
+            return SSL.ImportFD(null, fd);
         }
 
-        return fd;
+        return serverTemplates.importFD(cert, key, policy, fd);
+    }
+
+    /**
+     * Get the cache of server templates shared by all JSSEngines.
+     */
+    public static ServerTemplateCache getServerTemplateCache() {
+        return serverTemplates;
     }
 
     /**
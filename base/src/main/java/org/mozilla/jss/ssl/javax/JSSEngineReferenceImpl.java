@@ -2,12 +2,15 @@ package org.mozilla.jss.ssl.javax;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.Cleaner;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
@@ -17,12 +20,14 @@ import javax.net.ssl.X509TrustManager;
 
 import org.mozilla.jss.nss.BadCertHandler;
 import org.mozilla.jss.nss.Buffer;
+import org.mozilla.jss.nss.BufferPool;
 import org.mozilla.jss.nss.BufferProxy;
 import org.mozilla.jss.nss.Cert;
 import org.mozilla.jss.nss.CertAuthHandler;
 import org.mozilla.jss.nss.PR;
 import org.mozilla.jss.nss.PRErrors;
 import org.mozilla.jss.nss.PRFDProxy;
+import org.mozilla.jss.nss.SECErrors;
 import org.mozilla.jss.nss.SSL;
 import org.mozilla.jss.nss.SSLErrors;
 import org.mozilla.jss.nss.SSLFDProxy;
@@ -52,6 +57,11 @@ import org.mozilla.jss.ssl.SSLVersionRange;
  * occur during the test suite (where packets aren't sent over the wire by
  * default). This maintains the client/server relationship, and are logged
  * as being from the appropriate side of the TLS connection.
+ *
+ * Calls which touch the NSS state of the connection (wrap, unwrap, stepping
+ * the handshake and closing) are serialized on the engine. None of them
+ * block on the network, so one thread can wrap while another waits on the
+ * peer before unwrapping.
  */
 public class JSSEngineReferenceImpl extends JSSEngine {
     /**
@@ -64,6 +74,13 @@ public class JSSEngineReferenceImpl extends JSSEngine {
      */
     private String peer_info;
 
+    /**
+     * Policy compiled from this engine's configuration when ssl_fd is
+     * created, and whether ssl_fd inherited it from a server template.
+     */
+    private JSSPolicy policy;
+    private boolean policy_inherited;
+
     /**
      * Whether or not the underlying ssl_fd is closed or not.
      *
@@ -83,15 +100,44 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     private BufferProxy write_buf;
 
     /**
-     * Number of times heuristic has not matched the current state.
-     *
-     * Because this JSSEngine uses a heuristic for determining when the
-     * handshake is completed (or, when we need to switch from WRAP to
-     * UNWRAP), and the heuristic is sometimes wrong, we track how many
-     * times it is in an unknown state. When we hit some internal
-     * threshold, we swap states.
+     * Current capacity of read_buf and write_buf; starts at buffer_size and
+     * changes only under adaptive buffer sizing.
+     */
+    private int current_buffer_size;
+
+    /**
+     * Number of consecutive wrap/unwrap calls which moved little data
+     * relative to current_buffer_size; used to shrink adaptive buffers.
+     */
+    private int light_traffic_count;
+
+    /**
+     * Number of consecutive light-traffic calls after which adaptive buffers
+     * are halved (but never below buffer_size).
+     */
+    private static final int SHRINK_THRESHOLD = 64;
+
+    /**
+     * Scratch space used by writeData() for source buffers whose contents
+     * can't be handed to NSS in place (read-only heap buffers).
+     */
+    private byte[] wrap_scratch;
+
+    /**
+     * Cleaner freeing the native resources of engines which are garbage
+     * collected without cleanup() being called.
      */
-    private int unknown_state_count;
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /**
+     * Copy of the references to our native resources, for use by the
+     * Cleaner; kept in sync by trackNativeState().
+     */
+    private final NativeState native_state = new NativeState();
+
+    {
+        cleaner.register(this, native_state);
+    }
 
     /**
      * Whether or not to step the handshake.
@@ -148,12 +194,27 @@ public class JSSEngineReferenceImpl extends JSSEngine {
      */
     private String prefix = "";
 
+    /**
+     * Whether or not wrap, unwrap and their helpers emit debug logging.
+     * Debug packet logging is controlled by enableSafeDebugLogging() alone.
+     *
+     * When false, no debug messages are constructed on the data path, even
+     * if the logger has debug output enabled. See setVerbose().
+     */
+    private boolean verbose = true;
+
     /**
      * Runnable task; this performs certificate validation against user-provided
      * TrustManager instances, passing the result back to NSS.
      */
     private CertValidationTask task;
 
+    /**
+     * When task was submitted to cert_validation_executor, completes once
+     * it has finished running.
+     */
+    private volatile CompletableFuture<Void> task_future;
+
     public JSSEngineReferenceImpl() {
         super();
 
@@ -221,6 +282,26 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         logger.debug(prefix + msg);
     }
 
+    /**
+     * Log a data path message; msg is only evaluated when verbose logging
+     * is enabled on this engine and the logger has debug output enabled.
+     */
+    private void debug(Supplier<String> msg) {
+        if (verbose && logger.isDebugEnabled()) {
+            logger.debug(prefix + msg.get());
+        }
+    }
+
+    /**
+     * Log a data path message with SLF4J {} placeholders, for call sites
+     * whose arguments are cheap but not effectively final.
+     */
+    private void debug(String format, Object... args) {
+        if (verbose && logger.isDebugEnabled()) {
+            logger.debug(prefix + format, args);
+        }
+    }
+
     private void info(String msg) {
         logger.info(prefix + msg);
     }
@@ -240,6 +321,22 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         prefix = "[" + this.name + "] " + prefix;
     }
 
+    /**
+     * Enable or disable debug logging from wrap, unwrap and their helpers.
+     *
+     * This is enabled by default. Disabling it keeps the data path free of
+     * logging overhead, which is what the "optimized" engine implementation
+     * selected by JSSContextSpi does. Setup, teardown and error paths are
+     * logged regardless.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
     private void init() throws SSLException {
         debug("JSSEngine: init()");
 
@@ -268,10 +365,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             initClient();
         }
 
-        // Apply the requested cipher suites and protocols.
-        applyProtocols();
-        applyCiphers();
-        applyConfig();
+        // Apply the requested cipher suites, protocols and options.
+        applyPolicy();
 
         // Apply hostname information (via setURL). Note that this is an
         // extension to SSLEngine for use with NSS; we don't always get this
@@ -290,17 +385,71 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     private void createBuffers() {
         debug("JSSEngine: createBuffers()");
 
-        // If the buffers exist, destroy them and then recreate them.
+        // If the buffers exist, return them and then get new ones. Buffers
+        // come from a pool shared by all engines, to avoid allocating and
+        // freeing native memory on every connection.
+        BufferPool pool = BufferPool.getDefault();
 
         if (read_buf != null) {
-            Buffer.Free(read_buf);
+            pool.release(read_buf);
         }
-        read_buf = Buffer.Create(BUFFER_SIZE);
+        read_buf = pool.borrow(buffer_size);
 
         if (write_buf != null) {
-            Buffer.Free(write_buf);
+            pool.release(write_buf);
+        }
+        write_buf = pool.borrow(buffer_size);
+        trackNativeState();
+
+        current_buffer_size = buffer_size;
+        light_traffic_count = 0;
+        if (session != null) {
+            session.setBufferSize(current_buffer_size);
+        }
+    }
+
+    private void adaptBuffers(int wire_data) {
+        if (!adaptive_buffer_size || read_buf == null || write_buf == null) {
+            return;
+        }
+
+        // When a single call moved at least a full buffer's worth of wire
+        // data, we needed multiple passes through the native buffers; grow
+        // them (up to a full TLS record) so bulk traffic takes fewer passes.
+        // When traffic is consistently light relative to the buffer size,
+        // shrink back towards buffer_size to release memory on idle
+        // connections.
+        int max_size = Math.max(MAX_BUFFER_SIZE, buffer_size);
+        int new_size = current_buffer_size;
+
+        if (wire_data >= current_buffer_size && current_buffer_size < max_size) {
+            new_size = Math.min(current_buffer_size * 2, max_size);
+            light_traffic_count = 0;
+        } else if (wire_data < current_buffer_size / 4 && current_buffer_size > buffer_size) {
+            light_traffic_count += 1;
+            if (light_traffic_count >= SHRINK_THRESHOLD) {
+                new_size = Math.max(current_buffer_size / 2, buffer_size);
+                light_traffic_count = 0;
+            }
+        } else {
+            light_traffic_count = 0;
+        }
+
+        if (new_size == current_buffer_size) {
+            return;
+        }
+
+        // Resizing keeps any buffered data and fails (leaving the buffer
+        // as-is) when it wouldn't fit; in that case, try again later.
+        boolean resized_read = Buffer.Resize(read_buf, new_size);
+        boolean resized_write = Buffer.Resize(write_buf, new_size);
+        current_buffer_size = (int) Math.min(Buffer.Capacity(read_buf), Buffer.Capacity(write_buf));
+
+        debug(() -> "JSSEngine.adaptBuffers(): wire_data=" + wire_data + " resized read_buf=" + resized_read + " write_buf=" + resized_write + " current_buffer_size=" + current_buffer_size);
+
+        if (session != null) {
+            session.setBufferSize(current_buffer_size);
         }
-        write_buf = Buffer.Create(BUFFER_SIZE);
     }
 
     private void createBufferFD() throws SSLException {
@@ -309,6 +458,9 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         // Create the basis for the ssl_fd from the pair of buffers we created
         // above.
 
+        policy = getPolicy();
+        policy_inherited = false;
+
         PRFDProxy fd;
         if (peer_info != null && peer_info.length() != 0) {
             // When we have peer information, indicate it via BufferPRFD so
@@ -322,18 +474,21 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             throw new SSLException("Error creating buffer-backed PRFileDesc.");
         }
 
-        SSLFDProxy model = null;
         if (as_server) {
             // As a performance improvement, we can copy the server template
             // (containing the desired key and certificate) rather than
             // re-creating it from scratch. This saves a significant amount of
             // time during construction. The implementation lives in JSSEngine,
             // to be shared by all other JSSEngine implementations.
-            model = getServerTemplate(cert, key);
+            //
+            // The template also carries this engine's policy, so it doesn't
+            // need to be applied again in applyPolicy().
+            ssl_fd = importServerFD(cert, key, policy, fd);
+            policy_inherited = cert != null && key != null;
+        } else {
+            ssl_fd = SSL.ImportFD(null, fd);
         }
 
-        // Initialize ssl_fd from the model Buffer-backed PRFileDesc.
-        ssl_fd = SSL.ImportFD(model, fd);
         if (ssl_fd == null) {
             PR.Close(fd);
             throw new SSLException("Error creating SSL socket on top of buffer-backed PRFileDesc.");
@@ -341,6 +496,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
         fd = null;
         closed_fd = false;
+        trackNativeState();
 
         // Turn on SSL Alert Logging for the ssl_fd object.
         int ret = SSL.EnableAlertLogging(ssl_fd);
@@ -364,6 +520,15 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     private void initClient() throws SSLException {
         debug("JSSEngine: initClient()");
 
+        // Only offer sessions established with this same peer. NSS would
+        // otherwise match on the (truncated) peer_info and the hostname.
+        if (client_session_context != null && session.getPeerHost() != null && session.getPeerPort() > 0) {
+            String peer_id = client_session_context.getPeerID(session.getPeerHost(), session.getPeerPort());
+            if (SSL.SetSockPeerID(ssl_fd, peer_id) == SSL.SECFailure) {
+                throw new SSLException("Unable to set session cache peer ID: " + errorText(PR.GetError()));
+            }
+        }
+
         if (cert != null && key != null) {
             // NSS uses a callback to check for the client certificate; we
             // assume we have knowledge of it ahead of time and set it
@@ -407,10 +572,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
         session.setLocalCertificates(new PK11Cert[]{ cert } );
 
-        // Create a small server session cache.
-        //
-        // TODO: Make this configurable.
-        initializeSessionCache(1, 100, null);
+        // Create the server session cache, shared by all server engines.
+        initializeSessionCache(session_cache_size, session_cache_timeout, session_cache_directory);
 
         configureClientAuth();
     }
@@ -453,71 +616,27 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         }
     }
 
-    private void applyCiphers() throws SSLException {
-        debug("JSSEngine: applyCiphers()");
-        // Enabled the ciphersuites specified by setEnabledCipherSuites(...).
-        // When this isn't called, enabled_ciphers will be null, so we'll just
-        // use whatever is enabled by default.
-        if (enabled_ciphers == null) {
-            return;
-        }
-
-        // We need to disable the suite if it isn't present in the list of
-        // suites above. Be lazy about it for the time being and disable all
-        // cipher suites first.
-        for (SSLCipher suite : SSLCipher.values()) {
-            if (SSL.CipherPrefSet(ssl_fd, suite.getID(), false) == SSL.SECFailure) {
-                // warn("Unable to set cipher suite preference for " + suite.name() + ": " + errorText(PR.GetError()));
-            }
-        }
+    private void applyPolicy() throws SSLException {
+        debug("JSSEngine: applyPolicy() " + policy + " inherited=" + policy_inherited);
 
-        // Only enable these particular suites. When a cipher suite can't be
-        // enabled it is most likely due to local policy. Log it. Also log
-        // which ciphers were successfully enabled for debugging purposes.
-        for (SSLCipher suite : enabled_ciphers) {
-            if (suite == null) {
-                continue;
-            }
-
-            if (SSL.CipherPrefSet(ssl_fd, suite.getID(), true) == SSL.SECFailure) {
-                warn("Unable to enable cipher suite " + suite + ": " + errorText(PR.GetError()));
-            } else {
-                debug("Enabled cipher suite " + suite + ": " + errorText(PR.GetError()));
-            }
-        }
-    }
-
-    private void applyProtocols() throws SSLException {
-        debug("JSSEngine: applyProtocols() min_protocol=" + min_protocol + " max_protocol=" + max_protocol);
-        // Enable the protocols only when both a maximum and minimum protocol
-        // version are specified.
-        if (min_protocol == null || max_protocol == null) {
-            debug("JSSEngine: applyProtocols() - missing min_protocol or max_protocol; using defaults");
+        // Server engines import their ssl_fd from a template which already
+        // has this policy applied; see createBufferFD().
+        if (policy_inherited) {
             return;
         }
 
-        // We should bound this range by crypto-policies in the future to
-        // match the current behavior. However, Tomcat already bounds
+        // Protocols are only restricted when both a maximum and minimum
+        // version are specified, and ciphers only when
+        // setEnabledCipherSuites(...) was called; otherwise the NSS
+        // defaults are kept.
+        //
+        // We should bound the version range by crypto-policies in the future
+        // to match the current behavior. However, Tomcat already bounds
         // what we set in the server.xml config by what the JSSEngine
         // indicates it supports. Because we only indicate we support
         // what is allowed under crypto-policies, it effective does
         // this bounding for us.
-        SSLVersionRange vrange = new SSLVersionRange(min_protocol, max_protocol);
-        if (SSL.VersionRangeSet(ssl_fd, vrange) == SSL.SECFailure) {
-            throw new SSLException("Unable to set version range: " + errorText(PR.GetError()));
-        }
-    }
-
-    private void applyConfig() throws SSLException {
-        debug("JSSEngine: applyConfig()");
-        for (Integer key : config.keySet()) {
-            Integer value = config.get(key);
-
-            debug("Setting configuration option: " + key + "=" + value);
-            if (SSL.OptionSet(ssl_fd, key, value) != SSL.SECSuccess) {
-                throw new SSLException("Unable to set configuration value: " + key + "=" + value);
-            }
-        }
+        policy.apply(ssl_fd);
     }
 
     private void applyHosts() throws SSLException {
@@ -588,17 +707,17 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         try {
             ss_socket = new ServerSocket(debug_port);
             ss_socket.setReuseAddress(true);
-            ss_socket.setReceiveBufferSize(BUFFER_SIZE);
+            ss_socket.setReceiveBufferSize(buffer_size);
 
             c_socket = new Socket(ss_socket.getInetAddress(), ss_socket.getLocalPort());
             c_socket.setReuseAddress(true);
-            c_socket.setReceiveBufferSize(BUFFER_SIZE);
-            c_socket.setSendBufferSize(BUFFER_SIZE);
+            c_socket.setReceiveBufferSize(buffer_size);
+            c_socket.setSendBufferSize(buffer_size);
 
             s_socket = ss_socket.accept();
             s_socket.setReuseAddress(true);
-            s_socket.setReceiveBufferSize(BUFFER_SIZE);
-            s_socket.setSendBufferSize(BUFFER_SIZE);
+            s_socket.setReceiveBufferSize(buffer_size);
+            s_socket.setSendBufferSize(buffer_size);
 
             s_istream = s_socket.getInputStream();
             s_ostream = s_socket.getOutputStream();
@@ -625,7 +744,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public void beginHandshake() throws SSLException {
+    public synchronized void beginHandshake() throws SSLException {
         debug("JSSEngine: beginHandshake()");
 
         // We assume beginHandshake(...) is the entry point for initializing
@@ -639,6 +758,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         // needs to wrap first; hence unwrap = as_server. However, if we're
         // trying to renegotiate this changes. See when ssl_fd != null below.
         boolean unwrap = as_server;
+        boolean key_update = false;
 
         if (ssl_fd == null) {
             // Initialize and create ssl_fd. Throws various RuntimeExceptions
@@ -680,6 +800,11 @@ public class JSSEngineReferenceImpl extends JSSEngine {
                     if (SSL.KeyUpdate(ssl_fd, false) == SSL.SECFailure) {
                         throw new RuntimeException("Unable to request a new key on TLSv1.3: " + errorText(PR.GetError()));
                     }
+
+                    // NSS doesn't invoke the handshake callback for a
+                    // KeyUpdate and we don't wait on the peer's response;
+                    // we're done as soon as the message has been wrapped.
+                    key_update = true;
                 }
             } else {
                 // On older protocol versions, this is easier: just issue a
@@ -693,8 +818,10 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         }
 
         // Make sure we reset the handshake completion status in order for the
-        // callback to work correctly.
-        ssl_fd.handshakeComplete = false;
+        // callback to work correctly. A KeyUpdate completes without the
+        // callback, so mark it complete up front; updateHandshakeState() will
+        // still report NEED_WRAP until the message has been sent.
+        ssl_fd.handshakeComplete = key_update;
 
         // This leaves setting internal variables for HandshakeStatus and
         // the reporting up from SSLEngine.
@@ -704,10 +831,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             handshake_state = SSLEngineResult.HandshakeStatus.NEED_WRAP;
         }
 
-        // We've begun a new handshake; make sure we step it and reset
-        // our unknown state count to zero.
+        // We've begun a new handshake; make sure we step it.
         step_handshake = true;
-        unknown_state_count = 0;
 
         // Lastly, each handshake must return a FINISHED individually,
         // reset returned_finished to false.
@@ -715,7 +840,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public void closeInbound() {
+    public synchronized void closeInbound() {
         debug("JSSEngine: closeInbound()");
 
         if (!is_inbound_closed && ssl_fd != null && !closed_fd) {
@@ -729,7 +854,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public void closeOutbound() {
+    public synchronized void closeOutbound() {
         debug("JSSEngine: closeOutbound()");
 
         if (!is_outbound_closed && ssl_fd != null && !closed_fd) {
@@ -747,8 +872,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public Runnable getDelegatedTask() {
-        debug("JSSEngine: getDelegatedTask()");
+    public synchronized Runnable getDelegatedTask() {
+        debug(() -> "JSSEngine: getDelegatedTask()");
 
         // task can either contain a task instance or null; task gets
         // populated also during getHandshakeStatus(), wrap(), and
@@ -763,20 +888,61 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             checkNeedCertValidation();
         }
 
+        // Asynchronous validation tasks are run by cert_validation_executor,
+        // never by our caller; instead, hand out a task which waits for
+        // validation to finish, so callers which don't know about
+        // getCertValidationFuture() still make progress.
+        CompletableFuture<Void> future = task_future;
+        if (future != null) {
+            if (future.isDone()) {
+                return null;
+            }
+
+            return () -> {
+                try {
+                    future.join();
+                } catch (Exception e) {
+                    // Reported by checkNeedCertValidation() on the next
+                    // call to wrap() or unwrap().
+                }
+            };
+        }
+
         return task;
     }
 
     private boolean checkNeedCertValidation() {
-        debug("JSSEngine: checkNeedCertValidation()");
+        debug(() -> "JSSEngine: checkNeedCertValidation()");
         if (task != null) {
+            if (task_future != null && !task_future.isDone()) {
+                // Validation is running on cert_validation_executor; our
+                // caller has to wait for it, either on
+                // getCertValidationFuture() or by running the delegated
+                // task. Completion of the future also guarantees we see the
+                // task's result below.
+                debug(() -> "JSSEngine: checkNeedCertValidation() - async task not done");
+                handshake_state = SSLEngineResult.HandshakeStatus.NEED_TASK;
+                return true;
+            }
+
             if (!task.finished) {
                 // Already created runnable task; exit with true status to
                 // show it still needs to be run.
-                debug("JSSEngine: checkNeedCertValidation() - task not done");
+                debug(() -> "JSSEngine: checkNeedCertValidation() - task not done");
                 return true;
             }
 
-            debug("JSSEngine: checkNeedCertValidation() - task done with code " + task.result);
+            debug(() -> "JSSEngine: checkNeedCertValidation() - task done with code " + task.result);
+
+            if (task_future != null && task_future.isCompletedExceptionally() && task.result == 0) {
+                // check() handles Exceptions itself; anything else escaping
+                // the executor must not be mistaken for success.
+                task.result = SECErrors.UNTRUSTED_CERT;
+                if (!seen_exception) {
+                    seen_exception = true;
+                    ssl_exception = new SSLException("Asynchronous certificate validation failed");
+                }
+            }
 
             // Since the task has finished, we now need to inform NSS about
             // the results of our certificate validation step.
@@ -793,9 +959,10 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             // handshake. Worst case, we'll call updateHandshakeState() and
             // it'll correct our mistake eventually.
 
-            debug("JSSEngine: checkNeedCertValidation() - task done, removing");
+            debug(() -> "JSSEngine: checkNeedCertValidation() - task done, removing");
 
             task = null;
+            task_future = null;
             handshake_state = SSLEngineResult.HandshakeStatus.NEED_WRAP;
             ssl_fd.needCertValidation = false;
 
@@ -806,22 +973,35 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             // If we don't have a SSLFDProxy instance, nothing we can do but
             // skip checking if the task exists. Return false to show that
             // we don't yet have a runnable task.
-            debug("JSSEngine: checkNeedCertValidation() - no ssl_fd");
+            debug(() -> "JSSEngine: checkNeedCertValidation() - no ssl_fd");
             return false;
         }
 
         if (!ssl_fd.needCertValidation) {
             // We don't yet need certificate validation. Don't create a
             // runnable task for now.
-            debug("JSSEngine: checkNeedCertValidation() - no need for cert validation");
+            debug(() -> "JSSEngine: checkNeedCertValidation() - no need for cert validation");
             return false;
         }
 
-        debug("JSSEngine: checkNeedCertValidation() - creating task");
+        debug(() -> "JSSEngine: checkNeedCertValidation() - creating task");
 
         // OK, time to create our runnable task.
         task = new CertValidationTask(ssl_fd);
 
+        if (cert_validation_executor != null) {
+            // Run it ourselves, off of the caller's thread. We report
+            // NEED_TASK until it completes: event-driven callers wait on
+            // getCertValidationFuture(), while the delegated task lets
+            // other callers wait for it rather than for peer data which
+            // won't come until we've answered.
+            debug(() -> "JSSEngine: checkNeedCertValidation() - submitting task");
+
+            task_future = CompletableFuture.runAsync(task, cert_validation_executor);
+            handshake_state = SSLEngineResult.HandshakeStatus.NEED_TASK;
+            return true;
+        }
+
         // Update our handshake state so we know what to do next.
         handshake_state = SSLEngineResult.HandshakeStatus.NEED_TASK;
 
@@ -829,8 +1009,19 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
-        debug("JSSEngine: getHandshakeStatus()");
+    public CompletableFuture<Void> getCertValidationFuture() {
+        CompletableFuture<Void> future = task_future;
+        if (future == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Don't let callers complete or cancel our future.
+        return future.thenApply(v -> v);
+    }
+
+    @Override
+    public synchronized SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+        debug(() -> "JSSEngine: getHandshakeStatus()");
 
         // If task is NULL, we need to update the state to check if the
         // task has been "run". Even if it isn't, it would be good to
@@ -867,11 +1058,11 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     private int computeSize(ByteBuffer[] buffers, int offset, int length) throws IllegalArgumentException {
-        debug("JSSEngine: computeSize()");
+        debug(() -> "JSSEngine: computeSize()");
         int result = 0;
 
         if (buffers == null || buffers.length == 0) {
-            debug("JSSEngine.compueSize(): no buffers - result=" + result);
+            debug(() -> "JSSEngine.compueSize(): no buffers - result=0");
             return result;
         }
 
@@ -894,7 +1085,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
                 // everything else. This commonly happens when null is passed
                 // as the src parameter to wrap or when null is passed as the
                 // dst parameter to unwrap.
-                debug("JSSEngine.computeSize(): null first buffer - result=" + result);
+                debug(() -> "JSSEngine.computeSize(): null first buffer - result=0");
                 return result;
             }
 
@@ -905,13 +1096,13 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             result += buffers[index].remaining();
         }
 
-        debug("JSSEngine.computeSize(): result=" + result);
+        debug("JSSEngine.computeSize(): result={}", result);
 
         return result;
     }
 
     private int putData(byte[] data, ByteBuffer[] buffers, int offset, int length) {
-        debug("JSSEngine: putData()");
+        debug(() -> "JSSEngine: putData()");
         // Handle the rather unreasonable task of moving data into the buffers.
         // We assume the buffer parameters have already been checked by
         // computeSize(...); that is, offset/length contracts hold and that
@@ -954,8 +1145,53 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         return data_index;
     }
 
+    private boolean isDirect(ByteBuffer[] buffers, int offset, int length) {
+        // Assumes computeSize(...) has already validated the offset/length
+        // contract and that at least one buffer in the range has capacity.
+        for (int index = offset; index < offset + length; index++) {
+            if (buffers[index] != null && buffers[index].remaining() > 0 &&
+                    !buffers[index].isDirect()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int readDirectData(ByteBuffer[] buffers, int offset, int length) {
+        debug(() -> "JSSEngine: readDirectData()");
+        // Counterpart to PR.Read(...) + putData(...) for direct buffers: read
+        // from ssl_fd into each buffer in turn, stopping once a buffer isn't
+        // completely filled (no more data is available). Returns -1 when the
+        // first read fails, leaving the NSPR error for our caller.
+        int data_length = 0;
+
+        for (int index = offset; index < offset + length; index++) {
+            ByteBuffer buffer = buffers[index];
+            if (buffer == null || buffer.remaining() <= 0) {
+                continue;
+            }
+
+            int pos = buffer.position();
+            int remaining = buffer.remaining();
+            int this_read = PR.Read(ssl_fd, buffer, pos, remaining);
+            if (this_read < 0) {
+                return data_length > 0 ? data_length : -1;
+            }
+
+            buffer.position(pos + this_read);
+            data_length += this_read;
+
+            if (this_read < remaining) {
+                break;
+            }
+        }
+
+        return data_length;
+    }
+
     private SSLException checkSSLAlerts() {
-        debug("JSSEngine: Checking inbound and outbound SSL Alerts. Have " + ssl_fd.inboundAlerts.size() + " inbound and " + ssl_fd.outboundAlerts.size() + " outbound alerts.");
+        debug(() -> "JSSEngine: Checking inbound and outbound SSL Alerts. Have " + ssl_fd.inboundAlerts.size() + " inbound and " + ssl_fd.outboundAlerts.size() + " outbound alerts.");
 
         // Prefer inbound alerts to outbound alerts.
         while (ssl_fd.inboundOffset < ssl_fd.inboundAlerts.size()) {
@@ -963,11 +1199,11 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             ssl_fd.inboundOffset += 1;
 
             if (event.getLevelEnum() == SSLAlertLevel.WARNING && event.getDescriptionEnum() == SSLAlertDescription.CLOSE_NOTIFY) {
-                debug("Got inbound CLOSE_NOTIFY alert");
+                debug(() -> "Got inbound CLOSE_NOTIFY alert");
                 closeInbound();
             }
 
-            debug("JSSEngine: Got inbound alert: " + event);
+            debug(() -> "JSSEngine: Got inbound alert: " + event);
 
             // Fire inbound alert prior to raising any exception.
             fireAlertReceived(event);
@@ -986,11 +1222,11 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             ssl_fd.outboundOffset += 1;
 
             if (event.getLevelEnum() == SSLAlertLevel.WARNING && event.getDescriptionEnum() == SSLAlertDescription.CLOSE_NOTIFY) {
-                debug("Sent outbound CLOSE_NOTIFY alert.");
+                debug(() -> "Sent outbound CLOSE_NOTIFY alert.");
                 closeOutbound();
             }
 
-            debug("JSSEngine: Got outbound alert: " + event);
+            debug(() -> "JSSEngine: Got outbound alert: " + event);
 
             // Fire outbound alert prior to raising any exception. Note that
             // this still triggers after this alert is written to the output
@@ -1007,7 +1243,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     private void updateHandshakeState() {
-        debug("JSSEngine: updateHandshakeState()");
+        debug(() -> "JSSEngine: updateHandshakeState()");
 
         // If we've previously seen an exception, we should just return
         // here; there's already an alert on the wire, so there's no point
@@ -1019,9 +1255,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
         // If we're already done, we should check for SSL ALerts.
         if (!step_handshake && handshake_state == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-            debug("JSSEngine.updateHandshakeState() - not handshaking");
-            unknown_state_count = 0;
-
+            debug(() -> "JSSEngine.updateHandshakeState() - not handshaking");
             ssl_exception = checkSSLAlerts();
             seen_exception = (ssl_exception != null);
             return;
@@ -1031,7 +1265,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         // NOT_HANDSHAKING. Now is also a good time to check for any
         // alerts.
         if (!step_handshake && handshake_state == SSLEngineResult.HandshakeStatus.FINISHED) {
-            debug("JSSEngine.updateHandshakeState() - FINISHED to NOT_HANDSHAKING");
+            debug(() -> "JSSEngine.updateHandshakeState() - FINISHED to NOT_HANDSHAKING");
 
             // Because updateHandshakeState() gets called multiple times within
             // a single wrap/unwrap invocation, we need to wait for the FINISHED
@@ -1043,8 +1277,6 @@ public class JSSEngineReferenceImpl extends JSSEngine {
                 handshake_state = SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
             }
 
-            unknown_state_count = 0;
-
             ssl_exception = checkSSLAlerts();
             seen_exception = (ssl_exception != null);
             return;
@@ -1052,12 +1284,12 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
         // Since we're not obviously done handshaking, and the last time we
         // were called, we were still handshaking, step the handshake.
-        debug("JSSEngine.updateHandshakeState() - forcing handshake");
+        debug(() -> "JSSEngine.updateHandshakeState() - forcing handshake");
         if (SSL.ForceHandshake(ssl_fd) == SSL.SECFailure) {
             int error_value = PR.GetError();
 
             if (error_value != PRErrors.WOULD_BLOCK_ERROR) {
-                debug("JSSEngine.updateHandshakeState() - FATAL " + getStatus());
+                debug(() -> "JSSEngine.updateHandshakeState() - FATAL " + getStatus());
 
                 ssl_exception = new SSLHandshakeException("Error duing SSL.ForceHandshake() :: " + errorText(error_value));
                 seen_exception = true;
@@ -1068,30 +1300,34 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         }
 
         // Check if we've just finished handshaking.
-        debug("JSSEngine.updateHandshakeState() - read_buf.read=" + Buffer.ReadCapacity(read_buf) + " read_buf.write=" + Buffer.WriteCapacity(read_buf) + " write_buf.read=" + Buffer.ReadCapacity(write_buf) + " write_buf.write=" + Buffer.WriteCapacity(write_buf));
+        debug(() -> "JSSEngine.updateHandshakeState() - read_buf.read=" + Buffer.ReadCapacity(read_buf) + " read_buf.write=" + Buffer.WriteCapacity(read_buf) + " write_buf.read=" + Buffer.ReadCapacity(write_buf) + " write_buf.write=" + Buffer.WriteCapacity(write_buf));
 
-        // Set NEED_WRAP when we have data to send to the client.
-        if (Buffer.ReadCapacity(write_buf) > 0 && handshake_state != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
-            // Can't write; to read, we need to call wrap to provide more
-            // data to write.
-            debug("JSSEngine.updateHandshakeState() - can write " + Buffer.ReadCapacity(write_buf) + " bytes, NEED_WRAP to process");
+        // At this point, NSS has stepped the handshake as far as it can
+        // without further interaction from our caller: ForceHandshake()
+        // only stops short of completion when the BufferPRFD would block.
+        // Since writes only block when write_buf is full, exactly one of
+        // the following holds:
+        //
+        //  1. NSS produced data for our peer: NEED_WRAP,
+        //  2. the handshake callback fired and all of our data has been
+        //     handed to the caller: FINISHED,
+        //  3. otherwise, NSS is waiting on data from our peer: NEED_UNWRAP.
+        //
+        // Note that we delay FINISHED until after we've sent our last
+        // handshake message (CLIENT FINISHED as a client, SERVER FINISHED as
+        // a server): NSS already considers the handshake complete at that
+        // point, but we haven't yet gotten around to returning the data
+        // from a wrap() call.
+        if (Buffer.ReadCapacity(write_buf) > 0) {
+            debug(() -> "JSSEngine.updateHandshakeState() - can write " + Buffer.ReadCapacity(write_buf) + " bytes, NEED_WRAP to process");
             handshake_state = SSLEngineResult.HandshakeStatus.NEED_WRAP;
-            unknown_state_count = 0;
             return;
         }
 
-        // Delay the check to see if the handshake finished until after we
-        // send the CLIENT FINISHED message and recieved the SERVER FINISHED
-        // message if we're a client. Otherwise, wait to send SERVER FINISHED
-        // message. This is because NSS thinks the handshake has finished
-        // (according to SecurityStatusResult since it has sent the massage)
-        // but we haven't yet gotten around to doing so if we're in a WRAP()
-        // call.
-        if (ssl_fd.handshakeComplete && Buffer.ReadCapacity(write_buf) == 0) {
-            debug("JSSEngine.updateHandshakeState() - handshakeComplete is " + ssl_fd.handshakeComplete + ", so we've just finished handshaking");
+        if (ssl_fd.handshakeComplete) {
+            debug(() -> "JSSEngine.updateHandshakeState() - handshakeComplete is " + ssl_fd.handshakeComplete + ", so we've just finished handshaking");
             step_handshake = false;
             handshake_state = SSLEngineResult.HandshakeStatus.FINISHED;
-            unknown_state_count = 0;
 
             // Only update peer certificate chain when we've finished
             // handshaking.
@@ -1108,6 +1344,12 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
             // Also update our session information here.
             session.refreshData();
+            recordHandshake(session.isResumed());
+
+            JSSSessionContext session_context = getSessionContext();
+            if (session_context != null) {
+                session_context.sessionEstablished(session);
+            }
 
             // Finally, fire any handshake completed event listeners now.
             fireHandshakeComplete(new SSLHandshakeCompletedEvent(this));
@@ -1115,23 +1357,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             return;
         }
 
-        if (Buffer.ReadCapacity(read_buf) == 0 && handshake_state != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
-            // Set NEED_UNWRAP when we have no data to read from the client.
-            debug("JSSEngine.updateHandshakeState() - can read " + Buffer.ReadCapacity(read_buf) + " bytes, NEED_UNWRAP to give us more");
-            handshake_state = SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
-            unknown_state_count = 0;
-            return;
-        }
-
-        unknown_state_count += 1;
-        if (unknown_state_count >= 4) {
-            if (handshake_state == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
-                handshake_state = SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
-            } else {
-                handshake_state = SSLEngineResult.HandshakeStatus.NEED_WRAP;
-            }
-            unknown_state_count = 1;
-        }
+        debug(() -> "JSSEngine.updateHandshakeState() - have " + Buffer.ReadCapacity(read_buf) + " unprocessed bytes, NEED_UNWRAP to give us more");
+        handshake_state = SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
     }
 
     private void logUnwrap(ByteBuffer src) {
@@ -1153,7 +1380,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
         int pos = src.position();
         try {
-            debug("JSSEngine: logUnwrap() - writing " + src.remaining() + " bytes.");
+            debug(() -> "JSSEngine: logUnwrap() - writing " + src.remaining() + " bytes.");
             channel.write(src);
             stream.flush();
         } catch (Exception e) {
@@ -1164,8 +1391,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws IllegalArgumentException, SSLException {
-        debug("JSSEngine: unwrap(ssl_fd=" + ssl_fd + ")");
+    public synchronized SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws IllegalArgumentException, SSLException {
+        debug(() -> "JSSEngine: unwrap(ssl_fd=" + ssl_fd + ")");
 
         // In this method, we're taking the network wire contents of src and
         // passing them as the read side of our buffer. If there's any data
@@ -1226,13 +1453,21 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
                 // When we have data from src, write it to read_buf.
                 if (this_src_write > 0) {
-                    byte[] wire_buffer = new byte[this_src_write];
-                    src.get(wire_buffer);
+                    if (src.isDirect()) {
+                        // Hand the wire data straight to the native buffer
+                        // without an intermediate array.
+                        int pos = src.position();
+                        this_src_write = Math.max(0, (int) Buffer.Write(read_buf, src, pos, this_src_write));
+                        src.position(pos + this_src_write);
+                    } else {
+                        byte[] wire_buffer = new byte[this_src_write];
+                        src.get(wire_buffer);
 
-                    this_src_write = (int) Buffer.Write(read_buf, wire_buffer);
+                        this_src_write = (int) Buffer.Write(read_buf, wire_buffer);
+                    }
 
                     wire_data += this_src_write;
-                    debug("JSSEngine.unwrap(): Wrote " + this_src_write + " bytes to read_buf.");
+                    debug("JSSEngine.unwrap(): Wrote {} bytes to read_buf.", this_src_write);
                 }
             }
 
@@ -1241,13 +1476,30 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             updateHandshakeState();
 
             int max_dst_size = computeSize(dsts, offset, length);
-            byte[] app_buffer = PR.Read(ssl_fd, max_dst_size);
-            int error = PR.GetError();
-            debug("JSSEngine.unwrap() - " + app_buffer + " error=" + errorText(error));
-            if (app_buffer != null) {
-                this_dst_write = putData(app_buffer, dsts, offset, length);
-                app_data += this_dst_write;
-            } else if (max_dst_size > 0) {
+            int error;
+            if (max_dst_size > 0 && isDirect(dsts, offset, length)) {
+                // When every destination is a direct buffer, let NSS
+                // decrypt straight into them.
+                int read = readDirectData(dsts, offset, length);
+                error = PR.GetError();
+                debug(() -> "JSSEngine.unwrap() - read " + read + " bytes directly error=" + errorText(error));
+                this_dst_write = read;
+                if (this_dst_write > 0) {
+                    app_data += this_dst_write;
+                } else {
+                    this_dst_write = 0;
+                }
+            } else {
+                byte[] app_buffer = PR.Read(ssl_fd, max_dst_size);
+                error = PR.GetError();
+                debug(() -> "JSSEngine.unwrap() - " + app_buffer + " error=" + errorText(error));
+                if (app_buffer != null) {
+                    this_dst_write = putData(app_buffer, dsts, offset, length);
+                    app_data += this_dst_write;
+                }
+            }
+
+            if (this_dst_write == 0 && max_dst_size > 0) {
                 // There are two scenarios we need to ignore here:
                 //  1. WOULD_BLOCK_ERRORs are safe, because we're expecting
                 //     not to block. Usually this means we don't have space
@@ -1282,32 +1534,35 @@ public class JSSEngineReferenceImpl extends JSSEngine {
 
 
         if (is_inbound_closed) {
-            debug("Socket is currently closed.");
+            debug(() -> "Socket is currently closed.");
             handshake_status = SSLEngineResult.Status.CLOSED;
         } else if (handshake_already_complete && src_capacity > 0 && app_data == 0) {
-            debug("Underflowed: produced no application data when we expected to.");
+            debug(() -> "Underflowed: produced no application data when we expected to.");
             handshake_status = SSLEngineResult.Status.BUFFER_UNDERFLOW;
         }
 
         // Need a way to introspect the open/closed state of the TLS
         // connection.
 
-        debug("JSSEngine.unwrap() - Finished");
-        debug(" - Status: " + handshake_status);
-        debug(" - Handshake State: " + handshake_state);
-        debug(" - wire_data: " + wire_data);
-        debug(" - app_data: " + app_data);
+        debug("JSSEngine.unwrap() - Finished"
+            + "\n - Status: {}"
+            + "\n - Handshake State: {}"
+            + "\n - wire_data: {}"
+            + "\n - app_data: {}",
+            handshake_status, handshake_state, wire_data, app_data);
 
         if (handshake_state == SSLEngineResult.HandshakeStatus.FINISHED) {
             returned_finished = true;
         }
 
+        adaptBuffers(wire_data);
+
         tryCleanup();
         return new SSLEngineResult(handshake_status, handshake_state, wire_data, app_data);
     }
 
-    public int writeData(ByteBuffer[] srcs, int offset, int length) {
-        debug("JSSEngine: writeData()");
+    public synchronized int writeData(ByteBuffer[] srcs, int offset, int length) {
+        debug(() -> "JSSEngine: writeData()");
         // This is the tough end of reading/writing. There's two potential
         // places buffering could occur:
         //
@@ -1316,9 +1571,9 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         //
         // So when we call PR.Write(ssl_fd, data), it isn't guaranteed that
         // we can write all of data to ssl_fd (unlike with all our other read
-        // or write operations where we have a clear bound). In the event that
-        // our Write call is truncated, we have to put data back into the
-        // buffer from whence it was read.
+        // or write operations where we have a clear bound). Hence we hand NSS
+        // the source data in place and only advance the source buffer's
+        // position by the amount PR.Write(...) actually accepted.
         //
         // However, we do use Buffer.WriteCapacity(write_buf) as a proxy
         // metric for how much we can write without having to place data back
@@ -1339,43 +1594,48 @@ public class JSSEngineReferenceImpl extends JSSEngine {
                 index += 1;
                 continue;
             }
-            debug("JSSEngine.writeData(): index=" + index + " max_index=" + max_index);
+            debug("JSSEngine.writeData(): index={} max_index={}", index, max_index);
 
             // We expect (i.e., need to construct a buffer) to write up to
             // this much. Note that this is non-zero since we're taking the
             // max here and we guarantee with the previous statement that
             // srcs[index].remaining() > 0. There's no point in getting more
-            // than BUFFER_SIZE bytes either; so cap at the minimum of the
+            // than current_buffer_size bytes either; so cap at the minimum of the
             // two sizes.
-            int expected_write = Math.min(srcs[index].remaining(), BUFFER_SIZE);
-            debug("JSSEngine.writeData(): expected_write=" + expected_write + " write_cap=" + Buffer.WriteCapacity(write_buf) + " read_cap=" + Buffer.ReadCapacity(read_buf));
-
-            // Get data from our current srcs[index] buffer.
-            byte[] app_data = new byte[expected_write];
-            srcs[index].get(app_data);
+            int expected_write = Math.min(srcs[index].remaining(), current_buffer_size);
+            debug(() -> "JSSEngine.writeData(): expected_write=" + expected_write + " write_cap=" + Buffer.WriteCapacity(write_buf) + " read_cap=" + Buffer.ReadCapacity(read_buf));
+
+            // Hand data from our current srcs[index] buffer to NSS without
+            // copying it into a fresh array: direct buffers and heap buffers
+            // are read in place. Only read-only heap buffers (which don't
+            // expose their array) go through our reusable scratch array.
+            ByteBuffer src = srcs[index];
+            int pos = src.position();
+            int this_write;
+            if (src.isDirect()) {
+                this_write = PR.Write(ssl_fd, src, pos, expected_write);
+            } else if (src.hasArray()) {
+                this_write = PR.Write(ssl_fd, src.array(), src.arrayOffset() + pos, expected_write);
+            } else {
+                byte[] scratch = getWrapScratch();
+                src.get(pos, scratch, 0, expected_write);
+                this_write = PR.Write(ssl_fd, scratch, 0, expected_write);
+            }
 
             // Actual amount written. Since this is a PR.Write call, mark
             // attempted_write.
-            int this_write = PR.Write(ssl_fd, app_data);
             attempted_write = true;
 
-            // Reset our buffer's position in event of sub-optimal write.
-            if (this_write < expected_write) {
-                int pos = srcs[index].position();
-
-                // When this_write < 0, we want to reset to the beginning
-                // because we assume we haven't written any data due to an
-                // error before writing.
-                int delta = expected_write - Math.max(0, this_write);
-
-                srcs[index].position(pos - delta);
-            }
+            // Only consume what NSS actually accepted. When this_write < 0,
+            // we assume we haven't written any data due to an error before
+            // writing.
+            src.position(pos + Math.max(0, this_write));
 
-            debug("JSSEngine.writeData(): this_write=" + this_write);
+            debug(() -> "JSSEngine.writeData(): this_write=" + this_write);
             if (this_write < 0) {
                 int error = PR.GetError();
                 if (error == PRErrors.SOCKET_SHUTDOWN_ERROR) {
-                    debug("NSPR reports outbound socket is shutdown.");
+                    debug(() -> "NSPR reports outbound socket is shutdown.");
                     is_outbound_closed = true;
                 } else if (error != PRErrors.WOULD_BLOCK_ERROR) {
                     throw new RuntimeException("Unable to write to internal ssl_fd: " + errorText(PR.GetError()));
@@ -1402,11 +1662,21 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             PR.Write(ssl_fd, null);
         }
 
-        debug("JSSEngine.writeData(): data_length=" + data_length);
+        debug("JSSEngine.writeData(): data_length={}", data_length);
 
         return data_length;
     }
 
+    private byte[] getWrapScratch() {
+        // Lazily allocated, since only read-only heap buffers need it; reused
+        // for every subsequent wrap on this engine.
+        if (wrap_scratch == null || wrap_scratch.length < current_buffer_size) {
+            wrap_scratch = new byte[current_buffer_size];
+        }
+
+        return wrap_scratch;
+    }
+
     private void logWrap(ByteBuffer dst) {
         if (debug_port <= 0 || dst == null || dst.remaining() == 0) {
             return;
@@ -1427,7 +1697,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         int pos = dst.position();
         try {
             dst.flip();
-            debug("JSSEngine: logWrap() - writing " + dst.remaining() + " bytes.");
+            debug(() -> "JSSEngine: logWrap() - writing " + dst.remaining() + " bytes.");
             channel.write(dst);
             stream.flush();
             dst.flip();
@@ -1439,8 +1709,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     @Override
-    public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws IllegalArgumentException, SSLException {
-        debug("JSSEngine: wrap(ssl_fd=" + ssl_fd + ")");
+    public synchronized SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws IllegalArgumentException, SSLException {
+        debug(() -> "JSSEngine: wrap(ssl_fd=" + ssl_fd + ")");
         // In this method, we're taking the application data from the various
         // srcs and writing it to the remote peer (via ssl_fd). If there's any
         // data for us to send to the remote peer, we place it in dst.
@@ -1529,9 +1799,9 @@ public class JSSEngineReferenceImpl extends JSSEngine {
             this_src_write = writeData(srcs, offset, length);
             if (this_src_write > 0) {
                 app_data += this_src_write;
-                debug("JSSEngine.wrap(): wrote " + this_src_write + " from srcs to buffer.");
+                debug("JSSEngine.wrap(): wrote {} from srcs to buffer.", this_src_write);
             } else {
-                debug("JSSEngine.wrap(): not writing from srcs to buffer: this_src_write=" + this_src_write);
+                debug("JSSEngine.wrap(): not writing from srcs to buffer: this_src_write={}", this_src_write);
             }
 
             if (dst != null) {
@@ -1543,17 +1813,27 @@ public class JSSEngineReferenceImpl extends JSSEngine {
                 // Try reading data from write_buf to dst; always do this, even
                 // if we didn't write.
                 if (this_dst_write > 0) {
-                    byte[] wire_buffer = Buffer.Read(write_buf, this_dst_write);
-                    dst.put(wire_buffer);
-                    this_dst_write = wire_buffer.length;
+                    if (dst.isDirect()) {
+                        int pos = dst.position();
+                        this_dst_write = Math.max(0, (int) Buffer.Read(write_buf, dst, pos, this_dst_write));
+                        dst.position(pos + this_dst_write);
+                    } else if (dst.hasArray()) {
+                        int pos = dst.position();
+                        this_dst_write = Math.max(0, (int) Buffer.Read(write_buf, dst.array(), dst.arrayOffset() + pos, this_dst_write));
+                        dst.position(pos + this_dst_write);
+                    } else {
+                        byte[] wire_buffer = Buffer.Read(write_buf, this_dst_write);
+                        dst.put(wire_buffer);
+                        this_dst_write = wire_buffer.length;
+                    }
                     wire_data += this_dst_write;
 
-                    debug("JSSEngine.wrap() - Wrote " + wire_buffer.length + " bytes to dst.");
+                    debug("JSSEngine.wrap() - Wrote {} bytes to dst.", this_dst_write);
                 } else {
-                    debug("JSSEngine.wrap(): not writing from write_buf into dst: this_dst_write=0 write_buf.read_capacity=" + Buffer.ReadCapacity(write_buf) + " dst.remaining=" + dst.remaining());
+                    debug(() -> "JSSEngine.wrap(): not writing from write_buf into dst: this_dst_write=0 write_buf.read_capacity=" + Buffer.ReadCapacity(write_buf) + " dst.remaining=" + dst.remaining());
                 }
             } else {
-                debug("JSSEngine.wrap(): not writing from write_buf into NULL dst");
+                debug(() -> "JSSEngine.wrap(): not writing from write_buf into NULL dst");
             }
         } while (this_src_write != 0 || this_dst_write != 0);
 
@@ -1580,26 +1860,29 @@ public class JSSEngineReferenceImpl extends JSSEngine {
         SSLEngineResult.Status handshake_status = SSLEngineResult.Status.OK;
 
         if (ssl_exception == null && seen_exception) {
-            debug("Seen and processed exception; closing inbound and outbound because this was the last wrap(...)");
+            debug(() -> "Seen and processed exception; closing inbound and outbound because this was the last wrap(...)");
             closeInbound();
             closeOutbound();
         }
 
         if (is_outbound_closed) {
-            debug("Socket is currently closed.");
+            debug(() -> "Socket is currently closed.");
             handshake_status = SSLEngineResult.Status.CLOSED;
         }
 
-        debug("JSSEngine.wrap() - Finished");
-        debug(" - Status: " + handshake_status);
-        debug(" - Handshake State: " + handshake_state);
-        debug(" - wire_data: " + wire_data);
-        debug(" - app_data: " + app_data);
+        debug("JSSEngine.wrap() - Finished"
+            + "\n - Status: {}"
+            + "\n - Handshake State: {}"
+            + "\n - wire_data: {}"
+            + "\n - app_data: {}",
+            handshake_status, handshake_state, wire_data, app_data);
 
         if (handshake_state == SSLEngineResult.HandshakeStatus.FINISHED) {
             returned_finished = true;
         }
 
+        adaptBuffers(wire_data);
+
         tryCleanup();
         return new SSLEngineResult(handshake_status, handshake_state, app_data, wire_data);
     }
@@ -1612,8 +1895,8 @@ public class JSSEngineReferenceImpl extends JSSEngine {
      * connection.
      */
     @Override
-    public void tryCleanup() {
-        debug("JSSEngine: tryCleanup()");
+    public synchronized void tryCleanup() {
+        debug(() -> "JSSEngine: tryCleanup()");
         if (is_inbound_closed && is_outbound_closed) {
             // throw new RuntimeException("Probably shouldn't be here!");
             cleanup();
@@ -1625,7 +1908,7 @@ public class JSSEngineReferenceImpl extends JSSEngine {
      * data streams if still open.
      */
     @Override
-    public void cleanup() {
+    public synchronized void cleanup() {
         debug("JSSEngine: cleanup()");
 
         if (!is_inbound_closed) {
@@ -1668,6 +1951,32 @@ public class JSSEngineReferenceImpl extends JSSEngine {
     }
 
     private void cleanupSSLFD() {
+        // Only hand our buffers back to the pool once nothing references
+        // them anymore; if closing ssl_fd failed, free them instead.
+        boolean reusable = true;
+
+        CompletableFuture<Void> future = task_future;
+        if (future != null && !future.isDone()) {
+            // The validation task still reads from ssl_fd on another thread,
+            // and may take arbitrarily long (e.g., OCSP or CRL fetches).
+            // Rather than waiting for it here, with the engine locked, or
+            // freeing the PRFileDesc beneath it, hand our native state over
+            // to be freed once it finishes.
+            NativeState deferred = new NativeState();
+            deferred.ssl_fd = closed_fd ? null : ssl_fd;
+            deferred.read_buf = read_buf;
+            deferred.write_buf = write_buf;
+
+            ssl_fd = null;
+            closed_fd = true;
+            read_buf = null;
+            write_buf = null;
+            trackNativeState();
+
+            future.whenComplete((result, error) -> deferred.run());
+            return;
+        }
+
         if (!closed_fd && ssl_fd != null) {
             try {
                 SSL.RemoveCallbacks(ssl_fd);
@@ -1675,28 +1984,90 @@ public class JSSEngineReferenceImpl extends JSSEngine {
                 ssl_fd = null;
             } catch (Exception e) {
                 logger.error("Got exception trying to cleanup SSLFD", e);
+                reusable = false;
             } finally {
                 closed_fd = true;
             }
         }
 
+        BufferPool pool = BufferPool.getDefault();
+
         if (read_buf != null) {
-            Buffer.Free(read_buf);
+            if (reusable) {
+                pool.release(read_buf);
+            } else {
+                pool.discard(read_buf);
+            }
             read_buf = null;
         }
 
         if (write_buf != null) {
-            Buffer.Free(write_buf);
+            if (reusable) {
+                pool.release(write_buf);
+            } else {
+                pool.discard(write_buf);
+            }
             write_buf = null;
         }
+
+        trackNativeState();
     }
 
-    // During testing with Tomcat 8.5, most instances did not call
-    // cleanup, so all the JNI resources end up getting leaked: ssl_fd
-    // (and its global ref), read_buf, and write_buf.
-    @Override
-    protected void finalize() {
-        cleanup();
+    private void trackNativeState() {
+        native_state.ssl_fd = closed_fd ? null : ssl_fd;
+        native_state.read_buf = read_buf;
+        native_state.write_buf = write_buf;
+    }
+
+    /**
+     * Native resources of an engine, freed by the Cleaner when the engine
+     * becomes unreachable without cleanup() having been called. During
+     * testing with Tomcat 8.5, most instances did not call cleanup, so all
+     * the JNI resources ended up getting leaked: ssl_fd (and its global
+     * ref), read_buf, and write_buf.
+     *
+     * This must not reference the engine itself.
+     */
+    private static class NativeState implements Runnable {
+        private volatile SSLFDProxy ssl_fd;
+        private volatile BufferProxy read_buf;
+        private volatile BufferProxy write_buf;
+
+        @Override
+        public void run() {
+            boolean reusable = true;
+
+            if (ssl_fd != null) {
+                try {
+                    SSL.RemoveCallbacks(ssl_fd);
+                    ssl_fd.close();
+                } catch (Exception e) {
+                    logger.error("Got exception trying to cleanup SSLFD of JSSEngine", e);
+                    reusable = false;
+                }
+                ssl_fd = null;
+            }
+
+            BufferPool pool = BufferPool.getDefault();
+
+            if (read_buf != null) {
+                if (reusable) {
+                    pool.release(read_buf);
+                } else {
+                    pool.discard(read_buf);
+                }
+                read_buf = null;
+            }
+
+            if (write_buf != null) {
+                if (reusable) {
+                    pool.release(write_buf);
+                } else {
+                    pool.discard(write_buf);
+                }
+                write_buf = null;
+            }
+        }
     }
 
 
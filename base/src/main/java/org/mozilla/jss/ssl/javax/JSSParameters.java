@@ -27,6 +27,14 @@ public class JSSParameters extends SSLParameters {
     private String alias;
     private String hostname;
     private Collection<? extends EventListener> listeners;
+    private int bufferSize;
+    private Boolean adaptiveBufferSize;
+    private int sessionCacheSize;
+    private long sessionCacheTimeout;
+    private String sessionCacheDirectory;
+    private Boolean sessionTickets;
+    private SSLNamedGroup[] namedGroups;
+    private SSLSignatureScheme[] signatureSchemes;
 
     public JSSParameters() {
         // Choose our default set of SSLParameters here; default to null
@@ -203,4 +211,104 @@ public class JSSParameters extends SSLParameters {
     public void setListeners(Collection<? extends EventListener> new_listeners) {
         listeners = new_listeners;
     }
+
+    /**
+     * Size of the native buffers used by a JSSEngine; zero when unset, in
+     * which case the engine default is used.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int size) {
+        bufferSize = size;
+    }
+
+    /**
+     * Whether or not a JSSEngine should grow and shrink its native buffers
+     * with the traffic it sees; null when unset, in which case the engine
+     * default is used.
+     */
+    public Boolean getAdaptiveBufferSize() {
+        return adaptiveBufferSize;
+    }
+
+    public void setAdaptiveBufferSize(Boolean adaptive) {
+        adaptiveBufferSize = adaptive;
+    }
+
+    /**
+     * Maximum number of entries in the server session cache; zero when
+     * unset, in which case the engine default is used.
+     *
+     * The server session cache is shared by all engines, so this only has
+     * an effect on the first server engine to start a handshake.
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public void setSessionCacheSize(int size) {
+        sessionCacheSize = size;
+    }
+
+    /**
+     * Lifetime, in seconds, of server session cache entries; zero when
+     * unset, in which case the engine default is used.
+     */
+    public long getSessionCacheTimeout() {
+        return sessionCacheTimeout;
+    }
+
+    public void setSessionCacheTimeout(long timeout) {
+        sessionCacheTimeout = timeout;
+    }
+
+    /**
+     * Directory holding the server session cache; null when unset, in
+     * which case the engine default is used.
+     */
+    public String getSessionCacheDirectory() {
+        return sessionCacheDirectory;
+    }
+
+    public void setSessionCacheDirectory(String directory) {
+        sessionCacheDirectory = directory;
+    }
+
+    /**
+     * Whether or not a JSSEngine should use session tickets; null when
+     * unset, in which case the engine default is used.
+     */
+    public Boolean getSessionTickets() {
+        return sessionTickets;
+    }
+
+    public void setSessionTickets(Boolean enabled) {
+        sessionTickets = enabled;
+    }
+
+    /**
+     * Named groups a JSSEngine should enable, in order of preference; null
+     * when unset, in which case the NSS defaults are used.
+     */
+    public SSLNamedGroup[] getNamedGroups() {
+        return namedGroups;
+    }
+
+    public void setNamedGroups(SSLNamedGroup[] groups) {
+        namedGroups = groups;
+    }
+
+    /**
+     * Signature schemes a JSSEngine should enable, in order of preference;
+     * null when unset, in which case the NSS defaults are used.
+     */
+    public SSLSignatureScheme[] getSignatureSchemes() {
+        return signatureSchemes;
+    }
+
+    public void setSignatureSchemes(SSLSignatureScheme[] schemes) {
+        signatureSchemes = schemes;
+    }
 }
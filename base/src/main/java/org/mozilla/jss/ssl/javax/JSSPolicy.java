@@ -0,0 +1,277 @@
+package org.mozilla.jss.ssl.javax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLException;
+
+import org.mozilla.jss.nss.PR;
+import org.mozilla.jss.nss.SSL;
+import org.mozilla.jss.nss.SSLFDProxy;
+import org.mozilla.jss.ssl.SSLCipher;
+import org.mozilla.jss.ssl.SSLNamedGroup;
+import org.mozilla.jss.ssl.SSLSignatureScheme;
+import org.mozilla.jss.ssl.SSLVersion;
+import org.mozilla.jss.ssl.SSLVersionRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable, precompiled TLS configuration of a JSSEngine: the enabled
+ * cipher suites, protocol version range, SSL_OptionSet(...) options, named
+ * groups and signature schemes.
+ *
+ * A policy is applied to an SSL PRFileDesc with a single native call
+ * rather than one call per cipher suite and option. Policies with the same
+ * contents are equal, so server templates are cached per certificate and
+ * policy; engines importing from such a template inherit its policy and
+ * don't need to apply it at all.
+ *
+ * Any part left null keeps the NSS defaults, as do empty lists of named
+ * groups or signature schemes.
+ */
+public final class JSSPolicy {
+    public static Logger logger = LoggerFactory.getLogger(JSSPolicy.class);
+
+    private final int[] ciphers;
+    private final SSLVersion minVersion;
+    private final SSLVersion maxVersion;
+    private final int[] options;
+    private final int[] groups;
+    private final int[] schemes;
+    private final int hash;
+
+    /**
+     * Compile a policy. The version range is only applied when both
+     * minVersion and maxVersion are non-null.
+     */
+    public JSSPolicy(SSLCipher[] ciphers, SSLVersion minVersion,
+        SSLVersion maxVersion, Map<Integer, Integer> options,
+        SSLNamedGroup[] groups, SSLSignatureScheme[] schemes)
+    {
+        if (ciphers != null) {
+            int[] ids = new int[ciphers.length];
+            int count = 0;
+            for (SSLCipher suite : ciphers) {
+                if (suite != null) {
+                    ids[count++] = suite.getID();
+                }
+            }
+            // NSS doesn't honor the order of cipher suites, so sort them
+            // as well.
+            this.ciphers = Arrays.copyOf(ids, count);
+            Arrays.sort(this.ciphers);
+        } else {
+            this.ciphers = null;
+        }
+
+        if (minVersion != null && maxVersion != null) {
+            this.minVersion = minVersion;
+            this.maxVersion = maxVersion;
+        } else {
+            this.minVersion = null;
+            this.maxVersion = null;
+        }
+
+        if (options != null && !options.isEmpty()) {
+            // Sort the options so equal configurations compile to equal
+            // policies.
+            TreeMap<Integer, Integer> sorted = new TreeMap<>(options);
+            this.options = new int[2 * sorted.size()];
+            int offset = 0;
+            for (Map.Entry<Integer, Integer> option : sorted.entrySet()) {
+                this.options[offset++] = option.getKey();
+                this.options[offset++] = option.getValue();
+            }
+        } else {
+            this.options = null;
+        }
+
+        // Null elements are skipped; NSS can't be configured with no named
+        // groups or signature schemes at all, so an empty list keeps the
+        // defaults as well.
+        if (groups != null) {
+            int[] values = new int[groups.length];
+            int count = 0;
+            for (SSLNamedGroup group : groups) {
+                if (group != null) {
+                    values[count++] = group.getValue();
+                }
+            }
+            this.groups = count > 0 ? Arrays.copyOf(values, count) : null;
+        } else {
+            this.groups = null;
+        }
+
+        if (schemes != null) {
+            int[] values = new int[schemes.length];
+            int count = 0;
+            for (SSLSignatureScheme scheme : schemes) {
+                if (scheme != null) {
+                    values[count++] = scheme.getValue();
+                }
+            }
+            this.schemes = count > 0 ? Arrays.copyOf(values, count) : null;
+        } else {
+            this.schemes = null;
+        }
+
+        int result = Arrays.hashCode(this.ciphers);
+        result = 31 * result + (this.minVersion == null ? 0 : this.minVersion.hashCode());
+        result = 31 * result + (this.maxVersion == null ? 0 : this.maxVersion.hashCode());
+        result = 31 * result + Arrays.hashCode(this.options);
+        result = 31 * result + Arrays.hashCode(this.groups);
+        result = 31 * result + Arrays.hashCode(this.schemes);
+        hash = result;
+    }
+
+    /**
+     * Apply this policy to the given SSL PRFileDesc.
+     *
+     * Cipher suites which can't be enabled (usually due to local policy)
+     * are logged and skipped; any other failure is raised.
+     */
+    public void apply(SSLFDProxy fd) throws SSLException {
+        int min = minVersion == null ? -1 : minVersion.value();
+        int max = maxVersion == null ? -1 : maxVersion.value();
+
+        int ret = SSL.ApplyPolicy(fd, ciphers, min, max, options, groups, schemes);
+        if (ret == SSL.SECFailure) {
+            throw new SSLException("Unable to apply TLS policy " + this + ": " + JSSEngine.errorText(PR.GetError()));
+        }
+
+        if (ret > 0) {
+            warnDisabledCiphers(fd);
+        }
+    }
+
+    private void warnDisabledCiphers(SSLFDProxy fd) {
+        for (int id : ciphers) {
+            try {
+                if (!SSL.CipherPrefGet(fd, id)) {
+                    logger.warn("Unable to enable cipher suite " + SSLCipher.valueOf(id));
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to query cipher suite " + id + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * The enabled cipher suites, or null to keep the NSS defaults.
+     */
+    public SSLCipher[] getCipherSuites() {
+        if (ciphers == null) {
+            return null;
+        }
+
+        SSLCipher[] result = new SSLCipher[ciphers.length];
+        for (int i = 0; i < ciphers.length; i++) {
+            result[i] = SSLCipher.valueOf(ciphers[i]);
+        }
+        return result;
+    }
+
+    /**
+     * The enabled protocol version range, or null to keep the NSS defaults.
+     */
+    public SSLVersionRange getVersionRange() {
+        if (minVersion == null) {
+            return null;
+        }
+
+        return new SSLVersionRange(minVersion, maxVersion);
+    }
+
+    /**
+     * The SSL_OptionSet(...) options of this policy.
+     */
+    public Map<Integer, Integer> getOptions() {
+        TreeMap<Integer, Integer> result = new TreeMap<>();
+        if (options != null) {
+            for (int i = 0; i < options.length; i += 2) {
+                result.put(options[i], options[i + 1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The enabled named groups, or null to keep the NSS defaults.
+     */
+    public SSLNamedGroup[] getNamedGroups() {
+        if (groups == null) {
+            return null;
+        }
+
+        SSLNamedGroup[] result = new SSLNamedGroup[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            result[i] = SSLNamedGroup.valueOf(groups[i]);
+        }
+        return result;
+    }
+
+    /**
+     * The enabled signature schemes, or null to keep the NSS defaults.
+     */
+    public SSLSignatureScheme[] getSignatureSchemes() {
+        if (schemes == null) {
+            return null;
+        }
+
+        SSLSignatureScheme[] result = new SSLSignatureScheme[schemes.length];
+        for (int i = 0; i < schemes.length; i++) {
+            result[i] = SSLSignatureScheme.valueOf(schemes[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof JSSPolicy)) {
+            return false;
+        }
+
+        JSSPolicy that = (JSSPolicy) other;
+        return hash == that.hash &&
+            minVersion == that.minVersion &&
+            maxVersion == that.maxVersion &&
+            Arrays.equals(ciphers, that.ciphers) &&
+            Arrays.equals(options, that.options) &&
+            Arrays.equals(groups, that.groups) &&
+            Arrays.equals(schemes, that.schemes);
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (ciphers != null) {
+            parts.add("ciphers=" + ciphers.length);
+        }
+        if (minVersion != null) {
+            parts.add("versions=" + minVersion + "-" + maxVersion);
+        }
+        if (options != null) {
+            parts.add("options=" + getOptions());
+        }
+        if (groups != null) {
+            parts.add("groups=" + Arrays.toString(getNamedGroups()));
+        }
+        if (schemes != null) {
+            parts.add("schemes=" + Arrays.toString(getSignatureSchemes()));
+        }
+        return "JSSPolicy" + parts;
+    }
+}
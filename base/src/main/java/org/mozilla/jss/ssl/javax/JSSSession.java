@@ -1,13 +1,16 @@
 package org.mozilla.jss.ssl.javax;
 
 import java.lang.AutoCloseable;
+import java.io.ByteArrayInputStream;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
 import javax.security.cert.X509Certificate;
 import java.security.Principal;
 import java.util.HashMap;
 
 import javax.net.ssl.*;
 
+import org.mozilla.jss.crypto.ObjectNotFoundException;
 import org.mozilla.jss.nss.*;
 import org.mozilla.jss.pkcs11.*;
 import org.mozilla.jss.ssl.*;
@@ -38,8 +41,14 @@ public class JSSSession implements SSLSession, AutoCloseable {
     private X509Certificate[] peerChain;
     private Certificate[] peerCertificates;
 
+    private boolean resumed;
+
+    private boolean invalidated;
+
     private boolean closed;
 
+    private JSSSessionContext context;
+
     protected JSSSession(JSSEngine engine, int buffer_size) {
         this.parent = engine;
 
@@ -49,11 +58,71 @@ public class JSSSession implements SSLSession, AutoCloseable {
         this.appDataMap = new HashMap<>();
     }
 
+    /**
+     * Create a copy of the given session which isn't tied to its engine,
+     * for use by a JSSSessionContext after the engine is closed.
+     *
+     * The copy holds its own copies of the peer's certificates, as the
+     * engine frees them on close.
+     */
+    protected JSSSession(JSSSession other, JSSSessionContext context) {
+        this.context = context;
+
+        applicationBufferSize = other.applicationBufferSize;
+        packetBufferSize = other.packetBufferSize;
+
+        cipherSuite = other.cipherSuite;
+        protocolVersion = other.protocolVersion;
+
+        creationTime = other.creationTime;
+        lastAccessTime = other.lastAccessTime;
+        expirationTime = other.expirationTime;
+        sessionID = other.sessionID;
+
+        appDataMap = new HashMap<>(other.appDataMap);
+
+        localCertificates = other.localCertificates;
+        localPrincipal = other.localPrincipal;
+
+        peerHost = other.peerHost;
+        peerPort = other.peerPort;
+
+        peerPrincipal = other.peerPrincipal;
+        peerChain = other.peerChain;
+        peerCertificates = copyCertificates(other.peerCertificates);
+
+        resumed = other.resumed;
+    }
+
+    private static Certificate[] copyCertificates(Certificate[] certs) {
+        if (certs == null) {
+            return null;
+        }
+
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            Certificate[] result = new Certificate[certs.length];
+            for (int i = 0; i < certs.length; i++) {
+                byte[] encoded = certs[i].getEncoded();
+                result[i] = factory.generateCertificate(new ByteArrayInputStream(encoded));
+            }
+            return result;
+        } catch (Exception e) {
+            // The copy is informational only; NSS keeps its own reference
+            // to the peer's certificates for resumption.
+            return null;
+        }
+    }
+
     public JSSEngine getEngine() {
         return parent;
     }
 
     public SSLChannelInfo getChannelInfo() {
+        if (parent == null) {
+            return null;
+        }
+
         SSLFDProxy ssl_fd = parent.getSSLFDProxy();
         if (ssl_fd != null && ssl_fd.handshakeComplete) {
             return SSL.GetChannelInfo(ssl_fd);
@@ -63,7 +132,7 @@ public class JSSSession implements SSLSession, AutoCloseable {
     }
 
     public SSLPreliminaryChannelInfo getPreliminaryChannelInfo() {
-        if (parent.getSSLFDProxy() != null) {
+        if (parent != null && parent.getSSLFDProxy() != null) {
             return SSL.GetPreliminaryChannelInfo(parent.getSSLFDProxy());
         }
 
@@ -80,6 +149,15 @@ public class JSSSession implements SSLSession, AutoCloseable {
         return packetBufferSize;
     }
 
+    /**
+     * Update the reported buffer sizes when the parent JSSEngine changes
+     * the size of its buffers.
+     */
+    protected void setBufferSize(int buffer_size) {
+        applicationBufferSize = buffer_size;
+        packetBufferSize = buffer_size;
+    }
+
     @Override
     public byte[] getId() {
         return sessionID;
@@ -91,7 +169,11 @@ public class JSSSession implements SSLSession, AutoCloseable {
 
     @Override
     public SSLSessionContext getSessionContext() {
-        return null;
+        if (parent != null) {
+            return parent.getSessionContext();
+        }
+
+        return context;
     }
 
     @Override
@@ -134,23 +216,46 @@ public class JSSSession implements SSLSession, AutoCloseable {
 
             setCipherSuite(info.getCipherSuite());
             setProtocol(info.getProtocolVersion());
+
+            try {
+                resumed = info.getResumed();
+            } catch (ObjectNotFoundException onfe) {
+                resumed = false;
+            }
         }
     }
 
+    /**
+     * Whether or not the handshake resumed a previous session, either from
+     * the session cache or with a session ticket.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
     protected void setExpirationTime(long when) {
         expirationTime = when;
     }
 
     @Override
     public boolean isValid() {
-        return !closed && System.currentTimeMillis() < getExpirationTime();
+        return !closed && !invalidated && System.currentTimeMillis() < getExpirationTime();
     }
 
     @Override
     public void invalidate() {
-        if (parent.getSSLFDProxy() != null) {
+        invalidated = true;
+
+        if (parent != null && parent.getSSLFDProxy() != null) {
              SSL.InvalidateSession(parent.getSSLFDProxy());
         }
+
+        // Also forget the session in its context, so clients don't offer
+        // it again.
+        SSLSessionContext ctx = getSessionContext();
+        if (ctx instanceof JSSSessionContext) {
+            ((JSSSessionContext) ctx).remove(this);
+        }
     }
 
     @Override
@@ -0,0 +1,260 @@
+package org.mozilla.jss.ssl.javax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.mozilla.jss.netscape.security.util.Utils;
+
+/**
+ * SSLSessionContext of the sessions established by JSSEngines created from
+ * one SSLContext.
+ *
+ * NSS owns the actual session caches; this tracks copies of the sessions
+ * it established so they can be enumerated, bounded and invalidated:
+ *
+ *  - A client context keeps one session per peer (host and port, as
+ *    passed to the JSSEngine(peerHost, peerPort) constructor). Each peer is
+ *    given an NSS peer ID, so the client only offers sessions established
+ *    with that same peer. Evicting, expiring or invalidating the session of
+ *    a peer gives it a new peer ID, so NSS no longer offers the old one.
+ *
+ *  - A server context keeps one entry per session ID. The size and timeout
+ *    of the NSS server session cache are taken from it when the cache is
+ *    created by the first server handshake; afterwards, changes only apply
+ *    to the sessions tracked here. NSS can only invalidate a server session
+ *    while its engine is open; otherwise, it expires from the NSS cache.
+ */
+public class JSSSessionContext implements SSLSessionContext {
+    /**
+     * Default maximum number of sessions: the jss.engine.sessionCacheSize
+     * system property, or the NSS default of 10,000.
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE =
+        JSSEngine.SESSION_CACHE_SIZE > 0 ? JSSEngine.SESSION_CACHE_SIZE : 10000;
+
+    /**
+     * Default session lifetime in seconds: the
+     * jss.engine.sessionCacheTimeout system property, or the NSS default of
+     * 24 hours.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT =
+        JSSEngine.SESSION_CACHE_TIMEOUT > 0 ? (int) JSSEngine.SESSION_CACHE_TIMEOUT : 86400;
+
+    private static class Entry {
+        String peerID;
+        JSSSession session;
+        long created;
+
+        Entry(String peerID, long created) {
+            this.peerID = peerID;
+            this.created = created;
+        }
+    }
+
+    private final boolean server;
+
+    private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+    private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+    /**
+     * Entries keyed by peer (client) or hex-encoded session ID (server), in
+     * least-recently used order.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Counter used to create unique peer IDs.
+     */
+    private long generation;
+
+    public JSSSessionContext(boolean server) {
+        this.server = server;
+    }
+
+    /**
+     * Whether this context holds server (rather than client) sessions.
+     */
+    public boolean isServer() {
+        return server;
+    }
+
+    /**
+     * Get the NSS peer ID to use for a client connection to the given peer.
+     *
+     * The same peer ID is returned for a peer until its session is evicted,
+     * expires or is invalidated.
+     */
+    public synchronized String getPeerID(String host, int port) {
+        String key = host + ":" + port;
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(key);
+        if (entry != null && isExpired(entry, now)) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            generation += 1;
+            entry = new Entry(key + "/" + generation, now);
+            entries.put(key, entry);
+            trim();
+        }
+
+        return entry.peerID;
+    }
+
+    /**
+     * Record a session established by a JSSEngine of this context.
+     */
+    protected synchronized void sessionEstablished(JSSSession session) {
+        byte[] id = session.getId();
+
+        String key;
+        if (server) {
+            if (id == null || id.length == 0) {
+                return;
+            }
+
+            key = Utils.HexEncode(id);
+        } else {
+            if (session.getPeerHost() == null || session.getPeerPort() <= 0) {
+                return;
+            }
+
+            key = session.getPeerHost() + ":" + session.getPeerPort();
+        }
+
+        long now = System.currentTimeMillis();
+        long created = session.getCreationTime() > 0 ? session.getCreationTime() : now;
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            // Either a server session, or the peer's entry was removed
+            // during the handshake; it'll get a new peer ID next time.
+            generation += 1;
+            entry = new Entry(key + "/" + generation, created);
+            entries.put(key, entry);
+        }
+
+        entry.session = new JSSSession(session, this);
+        entry.created = created;
+
+        trim();
+    }
+
+    /**
+     * Forget the given session; called when it is invalidated.
+     */
+    protected synchronized void remove(JSSSession session) {
+        byte[] id = session.getId();
+        if (id == null) {
+            return;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.session != null && Arrays.equals(entry.session.getId(), id)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized Enumeration<byte[]> getIds() {
+        purgeExpired();
+
+        List<byte[]> result = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.session != null && entry.session.getId() != null) {
+                result.add(entry.session.getId().clone());
+            }
+        }
+
+        return Collections.enumeration(result);
+    }
+
+    @Override
+    public synchronized SSLSession getSession(byte[] id) {
+        if (id == null) {
+            throw new NullPointerException("Expected id != null");
+        }
+
+        purgeExpired();
+
+        if (server) {
+            Entry entry = entries.get(Utils.HexEncode(id));
+            return entry == null ? null : entry.session;
+        }
+
+        for (Entry entry : entries.values()) {
+            if (entry.session != null && Arrays.equals(entry.session.getId(), id)) {
+                return entry.session;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized void setSessionTimeout(int seconds) throws IllegalArgumentException {
+        if (seconds < 0) {
+            String msg = "Expected non-negative session timeout; got " + seconds;
+            throw new IllegalArgumentException(msg);
+        }
+
+        sessionTimeout = seconds;
+        purgeExpired();
+    }
+
+    @Override
+    public synchronized int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    @Override
+    public synchronized void setSessionCacheSize(int size) throws IllegalArgumentException {
+        if (size < 0) {
+            String msg = "Expected non-negative session cache size; got " + size;
+            throw new IllegalArgumentException(msg);
+        }
+
+        sessionCacheSize = size;
+        trim();
+    }
+
+    @Override
+    public synchronized int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return sessionTimeout > 0 && now - entry.created >= sessionTimeout * 1000L;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> isExpired(entry, now));
+    }
+
+    private void trim() {
+        if (sessionCacheSize <= 0) {
+            return;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > sessionCacheSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.mozilla.jss.ssl.javax;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import javax.net.ssl.*;
@@ -267,7 +268,7 @@ public class JSSSocket extends SSLSocket {
             init();
         }
 
-        return Channels.newInputStream(channel);
+        return new AppInputStream(channel);
     }
 
     /**
@@ -281,7 +282,7 @@ public class JSSSocket extends SSLSocket {
             init();
         }
 
-        return Channels.newOutputStream(channel);
+        return new AppOutputStream(channel);
     }
 
     /**
@@ -301,21 +302,16 @@ public class JSSSocket extends SSLSocket {
             //     > This method is synchronous for the initial handshake on
             //     > a connection and returns when the negotiated handshake is
             //     > complete.
-            // so we have to block until the connection is complete. But use an
-            // exponential backoff so we have a chance of catching any peer
-            // data.
-            int connectAttempts = 0;
+            // so we have to block until the connection is complete. Wait for
+            // the peer's data (bounded by SO_TIMEOUT, when set) rather than
+            // polling.
+            int timeout = getSoTimeout();
             while (!status) {
-                status = channel.finishConnect();
-
-                try {
-                    Thread.sleep(connectAttempts * 100);
-                } catch (Exception e) {}
-
-                connectAttempts += 1;
-                if (connectAttempts > 25) {
-                    break;
+                if (!channel.awaitHandshakeReady(timeout)) {
+                    throw new SocketTimeoutException("Timed out waiting for the peer to continue the handshake");
                 }
+
+                status = channel.finishConnect();
             }
         }
 
@@ -460,8 +456,10 @@ public class JSSSocket extends SSLSocket {
     public void startHandshake() throws IOException {
         engine.beginHandshake();
 
-        if (channel == null) {
-            // Only be blocking on the first handshake call.
+        if (channel == null || !channel.isHandshakeCompleted()) {
+            // Only be blocking on the first handshake call. The channel may
+            // already exist without having handshaked, e.g. when it was
+            // configured non-blocking first.
             doHandshake();
         }
     }
@@ -908,6 +906,93 @@ public class JSSSocket extends SSLSocket {
         return builder.toString();
     }
 
+    /**
+     * InputStream over a JSSSocketChannel.
+     *
+     * Unlike Channels.newInputStream(...), this doesn't hold the channel's
+     * blockingLock() while reading, so a reader blocked on the peer doesn't
+     * prevent another thread from writing on the same socket.
+     */
+    private static class AppInputStream extends InputStream {
+        private final JSSSocketChannel channel;
+        private final byte[] single = new byte[1];
+
+        AppInputStream(JSSSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int n = read(single, 0, 1);
+            if (n == 1) {
+                return single[0] & 0xff;
+            }
+            return -1;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!channel.isBlocking()) {
+                throw new IllegalBlockingModeException();
+            }
+
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * OutputStream over a JSSSocketChannel; see AppInputStream.
+     */
+    private static class AppOutputStream extends OutputStream {
+        private final JSSSocketChannel channel;
+        private final byte[] single = new byte[1];
+
+        AppOutputStream(JSSSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (!channel.isBlocking()) {
+                throw new IllegalBlockingModeException();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                int remaining = buffer.remaining();
+                long sent = channel.write(buffer);
+                if (sent < 0) {
+                    throw new SocketException("Socket output is closed");
+                }
+                if (sent == 0 && buffer.remaining() == remaining) {
+                    throw new SocketException("Unable to write to socket: connection stalled");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
     /* == stubs for Java 9 Socket == */
 
     @Override
@@ -5,6 +5,7 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.*;
 
@@ -16,6 +17,10 @@ import javax.net.ssl.*;
  *
  * This class contains all low-level interactions with the underlying
  * SSLEngine and reading/writing to/from the underlying Socket.
+ *
+ * Reads and writes are locked independently, so one thread may read while
+ * another writes on the same connection. The handshake and close take both
+ * locks, always the read lock first.
  */
 public class JSSSocketChannel extends SocketChannel {
     private JSSSocket sslSocket;
@@ -25,19 +30,47 @@ public class JSSSocketChannel extends SocketChannel {
     private WritableByteChannel writeChannel;
     private JSSEngine engine;
 
-    private InputStream consumed;
+    private volatile InputStream consumed;
     private ReadableByteChannel consumedChannel;
 
     private boolean autoClose = true;
 
-    private boolean inboundClosed = false;
-    private boolean outboundClosed = false;
+    private volatile boolean inboundClosed = false;
+    private volatile boolean outboundClosed = false;
+
+    /**
+     * Lock guarding readBuffer, the consumed data and reads from the
+     * underlying channel.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+
+    /**
+     * Lock guarding writeBuffer and writes to the underlying channel.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     private ByteBuffer empty = ByteBuffer.allocate(0);
     private ByteBuffer readBuffer;
     private ByteBuffer writeBuffer;
 
-    private boolean handshakeCompleted = false;
+    private volatile boolean handshakeCompleted = false;
+
+    /**
+     * Number of consecutive handshake passes, across calls to
+     * finishConnect(), which neither changed the handshake state nor sent,
+     * read or ran anything; bounded by MAX_HANDSHAKE_STALLS rather than
+     * spinning forever. Guarded by both locks.
+     */
+    private static final int MAX_HANDSHAKE_STALLS = 100;
+    private int handshakeStalls;
+
+    /**
+     * Selector the underlying non-blocking channel is registered with while
+     * waiting on the peer during the handshake; see awaitHandshakeReady(...).
+     */
+    private final Object selectorLock = new Object();
+    private Selector selector;
+    private SelectionKey selectorKey;
 
     public JSSSocketChannel(JSSSocket sslSocket, SocketChannel parent, Socket parentSocket, ReadableByteChannel readChannel, WritableByteChannel writeChannel, JSSEngine engine) throws IOException {
         super(null);
@@ -74,8 +107,13 @@ public class JSSSocketChannel extends SocketChannel {
      */
     public void setConsumedData(InputStream consumed) throws IOException {
         if (consumed != null && consumed.available() > 0) {
-            this.consumed = consumed;
-            consumedChannel = Channels.newChannel(consumed);
+            readLock.lock();
+            try {
+                consumedChannel = Channels.newChannel(consumed);
+                this.consumed = consumed;
+            } finally {
+                readLock.unlock();
+            }
         }
     }
 
@@ -111,6 +149,16 @@ public class JSSSocketChannel extends SocketChannel {
         }
     }
 
+    /**
+     * Drive the handshake as far as the data available from the peer
+     * allows.
+     *
+     * Each pass performs the step requested by the engine. When the engine
+     * needs more data from the peer to continue, a blocking channel blocks
+     * until the peer sends some; a non-blocking channel returns false, and
+     * the caller should retry once awaitHandshakeReady(...) indicates the
+     * underlying channel is ready.
+     */
     @Override
     public boolean finishConnect() throws IOException {
         if (parent != null) {
@@ -119,36 +167,50 @@ public class JSSSocketChannel extends SocketChannel {
             }
         }
 
+        // The handshake both reads and writes; hold both locks so it
+        // doesn't interleave with application data.
+        readLock.lock();
+        writeLock.lock();
+        try {
+            return doHandshake();
+        } finally {
+            writeLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    private boolean doHandshake() throws IOException {
         SSLEngineResult.HandshakeStatus state = engine.getHandshakeStatus();
         if (state == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            closeSelector();
             return true;
         }
 
-        int handshakeAttempts = 0;
-        int maxHandshakeAttempts = 100;
-
-        if (!isBlocking()) {
-            // When we're a non-blocking socket/channel, we'd far rather
-            // return false than take too much time in this method. Most
-            // handshakes, if all data is available, should only take
-            // a couple of passes.
-            maxHandshakeAttempts = 10;
-        }
-
         // Attempt to handshake with the remote peer.
         try {
             do {
+                // Bytes sent or read by this pass, or one for a task run.
+                long progress = 0;
+
                 if (state == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
                     // Write from an empty buffer to wrap.
-                    write(empty);
+                    progress = write(empty);
                 } else if (state == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
                     // Read into an empty buffer to unwrap.
-                    read(empty);
+                    progress = read(empty);
+                    if (progress < 0) {
+                        throw new EOFException("Remote peer closed the connection during the handshake");
+                    }
                 } else if (state == SSLEngineResult.HandshakeStatus.NEED_TASK) {
                     // Run the task, synchronously, because we're a mostly
-                    // blocking SSLSocket.
+                    // blocking SSLSocket. Asynchronous certificate
+                    // validation hands out a task which waits for it to
+                    // finish.
                     Runnable task = engine.getDelegatedTask();
-                    task.run();
+                    if (task != null) {
+                        task.run();
+                        progress = 1;
+                    }
                 } else {
                     String msg = "Error attempting to handshake: unknown ";
                     msg += "handshake status code `" + state + "`";
@@ -157,38 +219,38 @@ public class JSSSocketChannel extends SocketChannel {
 
                 SSLEngineResult.HandshakeStatus last_state = state;
                 state = engine.getHandshakeStatus();
-                handshakeAttempts += 1;
-
-                if (state == last_state) {
-                    try {
-                        // This sleep is necessary in order to wait for
-                        // incoming data. If it turns out our
-                        // NEED_UNWRAP is premature (and we're stuck in
-                        // a blocking read() call because we issued a
-                        // non-zero read!), we might cause the remote
-                        // peer to timeout and send a CLOSE_NOTIFY
-                        // alert. This wouldn't be good, so sleep
-                        // instead. Use an linear backoff in case
-                        // the remote server is really slow.
-                        Thread.sleep(handshakeAttempts * 10);
-                    } catch (Exception e) {}
-                }
 
-                if (handshakeAttempts > maxHandshakeAttempts) {
+                if (state == SSLEngineResult.HandshakeStatus.NEED_UNWRAP && state == last_state && progress == 0) {
+                    // The engine consumed everything the peer has sent so
+                    // far and still needs more. Wait for the peer rather
+                    // than polling.
                     if (!isBlocking()) {
-                        // In the event we failed to connect under a
-                        // non-blocking socket, return false rather than fail
-                        // here. It could just be that we don't have enough
-                        // data to continue. In that case, doHandshake() in
-                        // JSSSocket will re-try until the connection succeeds.
                         return false;
                     }
 
-                    String msg = "Error attempting to handshake: unable to ";
-                    msg += "complete handshake successfully in ";
-                    msg += maxHandshakeAttempts + " calls to wrap or unwrap. ";
-                    msg += "Connection stalled.";
-                    throw new IOException(msg);
+                    if (!awaitRemoteData()) {
+                        throw new EOFException("Remote peer closed the connection during the handshake");
+                    }
+                    handshakeStalls = 0;
+                } else if (state != last_state || progress > 0) {
+                    handshakeStalls = 0;
+                } else {
+                    // Neither the handshake state nor the wire moved. This
+                    // is counted across calls, as a non-blocking channel
+                    // returns here and gets called again as soon as it can
+                    // be written to.
+                    handshakeStalls += 1;
+                    if (handshakeStalls > MAX_HANDSHAKE_STALLS) {
+                        String msg = "Error attempting to handshake: unable to ";
+                        msg += "complete handshake successfully in ";
+                        msg += MAX_HANDSHAKE_STALLS + " calls to wrap or unwrap. ";
+                        msg += "Connection stalled.";
+                        throw new IOException(msg);
+                    }
+
+                    if (!isBlocking()) {
+                        return false;
+                    }
                 }
             } while (state != SSLEngineResult.HandshakeStatus.FINISHED && state != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING);
         } catch (SSLException ssle) {
@@ -197,12 +259,104 @@ public class JSSSocketChannel extends SocketChannel {
             throw new IOException(msg, ssle);
         }
 
+        closeSelector();
+
+        handshakeStalls = 0;
         handshakeCompleted = true;
         sslSocket.notifyHandshakeCompletedListeners();
 
         return true;
     }
 
+    /**
+     * Whether finishConnect() has completed the initial handshake.
+     */
+    boolean isHandshakeCompleted() {
+        return handshakeCompleted;
+    }
+
+    /**
+     * Block until the peer sends more data, reading at least one byte of it
+     * into readBuffer. Only used by blocking channels, where reads
+     * otherwise only take what is already available. Returns false when
+     * the peer closed the connection instead. The caller must hold
+     * readLock.
+     *
+     * This reads from the underlying socket's InputStream rather than
+     * readChannel: when the parent is a SocketChannel, readChannel is the
+     * channel itself, whose reads ignore SO_TIMEOUT and would wait on a
+     * silent peer forever. The socket's stream throws
+     * SocketTimeoutException once SO_TIMEOUT elapses.
+     */
+    private boolean awaitRemoteData() throws IOException {
+        if (consumed != null && remoteRead() > 0) {
+            return true;
+        }
+
+        if (!readBuffer.hasRemaining()) {
+            String msg = "Error attempting to read: read buffer is full ";
+            msg += "but the engine can't make progress. Connection ";
+            msg += "stalled.";
+            throw new IOException(msg);
+        }
+
+        int n = parentSocket.getInputStream().read(readBuffer.array(),
+            readBuffer.arrayOffset() + readBuffer.position(), readBuffer.remaining());
+        if (n > 0) {
+            readBuffer.position(readBuffer.position() + n);
+        }
+        return n >= 0;
+    }
+
+    /**
+     * Wait until the underlying channel of a non-blocking JSSSocketChannel
+     * is ready for the handshake to continue: connected, and with data from
+     * the peer to read or room for more output, depending on what the
+     * handshake needs next. Waits at most timeoutMillis, or indefinitely when zero.
+     *
+     * Returns false when the timeout elapsed first. Blocking channels are
+     * always ready, as finishConnect() blocks on the peer itself.
+     */
+    public boolean awaitHandshakeReady(long timeoutMillis) throws IOException {
+        if (consumed != null || parent == null || parent.isBlocking()) {
+            return true;
+        }
+
+        int ops = SelectionKey.OP_READ;
+        if (parent.isConnectionPending()) {
+            ops = SelectionKey.OP_CONNECT;
+        } else if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            ops = SelectionKey.OP_WRITE;
+        }
+
+        synchronized (selectorLock) {
+            if (selector == null) {
+                selector = Selector.open();
+                selectorKey = parent.register(selector, ops);
+            } else {
+                selectorKey.interestOps(ops);
+            }
+
+            int ready = selector.select(timeoutMillis);
+            selector.selectedKeys().clear();
+            return ready > 0;
+        }
+    }
+
+    /**
+     * Release the selector used by awaitHandshakeReady(...), deregistering the
+     * underlying channel from it so its blocking mode can change again.
+     */
+    private void closeSelector() throws IOException {
+        synchronized (selectorLock) {
+            if (selector != null) {
+                selector.close();
+                selector = null;
+                selectorKey = null;
+            }
+        }
+    }
+
     /**
      * Compute the total size of a list of buffers from the specified offest
      * and length.
@@ -237,7 +391,35 @@ public class JSSSocketChannel extends SocketChannel {
     }
 
     @Override
-    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        readLock.lock();
+        try {
+            return doRead(dsts, offset, length);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private long doRead(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        while (true) {
+            long read = readAvailable(dsts, offset, length);
+
+            // A blocking read only returns once it has data for the caller,
+            // as with any other blocking SocketChannel. Only readLock is held
+            // while waiting, so writes continue in the meantime.
+            if (read != 0 || !isBlocking() || !handshakeCompleted || computeSize(dsts, offset, length) == 0) {
+                return read;
+            }
+
+            if (!awaitRemoteData()) {
+                // Let unwrap() see whatever the peer sent before closing.
+                long last = readAvailable(dsts, offset, length);
+                return last > 0 ? last : -1;
+            }
+        }
+    }
+
+    private long readAvailable(ByteBuffer[] dsts, int offset, int length) throws IOException {
         if (inboundClosed) {
             return -1;
         }
@@ -307,7 +489,16 @@ public class JSSSocketChannel extends SocketChannel {
     }
 
     @Override
-    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            return doWrite(srcs, offset, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private long doWrite(ByteBuffer[] srcs, int offset, int length) throws IOException {
         if (outboundClosed) {
             return -1;
         }
@@ -364,8 +555,22 @@ public class JSSSocketChannel extends SocketChannel {
         // to confirm the peer got the message. Otherwise, only a single write
         // is necessary to send our acknowledgement of the peer's alert.
 
+        if (!readLock.tryLock()) {
+            // Another thread is blocked reading from the peer. When we own
+            // the underlying socket, shut its input down to wake that reader
+            // up; otherwise wait for it to finish.
+            if (autoClose) {
+                if (parent == null) {
+                    parentSocket.shutdownInput();
+                } else {
+                    parent.shutdownInput();
+                }
+            }
+            readLock.lock();
+        }
+        writeLock.lock();
         try {
-            synchronized (this) {
+            try {
                 // unwrap() triggers a call to PR_Read(), which in turn will
                 // execute the received alert callback. However, PR_Read is
                 // effectively a no-op with an empty buffer, resulting in the
@@ -376,9 +581,10 @@ public class JSSSocketChannel extends SocketChannel {
 
                 shutdownInput();
 
-                // Bypass read check.
+                // Bypass read check. Only take what's already available:
+                // a silent peer mustn't hold up closing.
                 inboundClosed = false;
-                read(read_one);
+                readAvailable(new ByteBuffer[] { read_one }, 0, 1);
 
                 if (!outboundClosed) {
                     shutdownOutput();
@@ -389,22 +595,29 @@ public class JSSSocketChannel extends SocketChannel {
 
                 outboundClosed = true;
                 inboundClosed = true;
-            }
-        } finally {
-            engine.cleanup();
-            engine = null;
-
-            if (autoClose) {
-                if (parent == null) {
-                    parentSocket.shutdownInput();
-                    parentSocket.shutdownOutput();
-                    parentSocket.close();
-                } else {
-                    parent.shutdownInput();
-                    parent.shutdownOutput();
-                    parent.close();
+            } finally {
+                closeSelector();
+
+                engine.cleanup();
+                engine = null;
+
+                if (autoClose) {
+                    if (parent == null) {
+                        if (!parentSocket.isInputShutdown()) {
+                            parentSocket.shutdownInput();
+                        }
+                        parentSocket.shutdownOutput();
+                        parentSocket.close();
+                    } else {
+                        parent.shutdownInput();
+                        parent.shutdownOutput();
+                        parent.close();
+                    }
                 }
             }
+        } finally {
+            writeLock.unlock();
+            readLock.unlock();
         }
     }
 
@@ -0,0 +1,426 @@
+package org.mozilla.jss.ssl.javax;
+
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
+
+import org.mozilla.jss.nss.PR;
+import org.mozilla.jss.nss.PRFDProxy;
+import org.mozilla.jss.nss.SSL;
+import org.mozilla.jss.nss.SSLFDProxy;
+import org.mozilla.jss.pkcs11.PK11Cert;
+import org.mozilla.jss.pkcs11.PK11PrivKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe, bounded cache of model server SSL PRFileDescs, keyed by the
+ * server certificate and JSSPolicy they were configured with.
+ *
+ * Server-side JSSEngines import their ssl_fd from one of these models rather
+ * than configuring the certificate, key and policy from scratch on every
+ * connection; NSS copies all of these when importing from a model.
+ *
+ * Entries are evicted when:
+ *  - their certificate has expired,
+ *  - a different certificate with the same nickname and key type is cached
+ *    (i.e., the certificate was rotated; servers commonly have an RSA and
+ *    an EC certificate under the same nickname, and both are kept),
+ *  - the cache grows beyond its maximum size (least recently used first),
+ *  - or when invalidated explicitly.
+ *
+ * An evicted model is only closed once no engine is still importing from
+ * it.
+ */
+public class ServerTemplateCache {
+    public static Logger logger = LoggerFactory.getLogger(ServerTemplateCache.class);
+
+    /**
+     * Default maximum number of cached models; set with the
+     * jss.engine.maxServerTemplates system property.
+     */
+    public static final int DEFAULT_MAX_SIZE = Integer.getInteger("jss.engine.maxServerTemplates", 256);
+
+    /**
+     * A cached model PRFileDesc, along with usage statistics.
+     */
+    public static class Entry {
+        private final PK11Cert cert;
+        private final String keyType;
+        private final JSSPolicy policy;
+        private final SSLFDProxy fd;
+        private final long notAfter;
+        private final long creationTime;
+        private final AtomicLong uses = new AtomicLong();
+        private volatile long lastUsedTime;
+
+        private int references;
+        private boolean evicted;
+
+        private Entry(PK11Cert cert, JSSPolicy policy, SSLFDProxy fd, long now) {
+            this.cert = cert;
+            this.keyType = cert.getPublicKey().getAlgorithm();
+            this.policy = policy;
+            this.fd = fd;
+
+            Date expiration = cert.getNotAfter();
+            this.notAfter = expiration == null ? Long.MAX_VALUE : expiration.getTime();
+            this.creationTime = now;
+            this.lastUsedTime = now;
+        }
+
+        public PK11Cert getCertificate() {
+            return cert;
+        }
+
+        /**
+         * The policy applied to the model; null when it has the NSS
+         * defaults.
+         */
+        public JSSPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * The model SSL PRFileDesc; only valid until this entry is evicted.
+         */
+        public SSLFDProxy getFD() {
+            return fd;
+        }
+
+        /**
+         * Number of engines which have imported from this model.
+         */
+        public long getUses() {
+            return uses.get();
+        }
+
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        public long getLastUsedTime() {
+            return lastUsedTime;
+        }
+
+        public boolean isExpired(long now) {
+            return notAfter < now;
+        }
+
+        public synchronized boolean isEvicted() {
+            return evicted;
+        }
+
+        private synchronized boolean acquire() {
+            if (evicted) {
+                return false;
+            }
+
+            references += 1;
+            return true;
+        }
+
+        private synchronized void release() {
+            references -= 1;
+            if (evicted && references == 0) {
+                closeModel();
+            }
+        }
+
+        private synchronized void evict() {
+            if (evicted) {
+                return;
+            }
+
+            evicted = true;
+            if (references == 0) {
+                closeModel();
+            }
+        }
+
+        private void closeModel() {
+            try {
+                fd.close();
+            } catch (Exception e) {
+                logger.warn("Unable to close server template for " + cert + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ServerTemplateCache.Entry[cert=" + cert.getNickname() +
+                ", policy=" + policy + ", uses=" + getUses() + ", created=" + creationTime +
+                ", lastUsed=" + lastUsedTime + ", evicted=" + isEvicted() + "]";
+        }
+    }
+
+    /**
+     * Map key based on the certificate's encoding and the policy; computed
+     * once per lookup rather than on every hashCode()/equals() call as with
+     * PK11Cert.
+     */
+    private static class CertKey {
+        private final byte[] encoded;
+        private final JSSPolicy policy;
+        private final int hash;
+
+        CertKey(PK11Cert cert, JSSPolicy policy) {
+            try {
+                encoded = cert.getEncoded();
+            } catch (CertificateEncodingException cee) {
+                throw new RuntimeException(cee.getMessage(), cee);
+            }
+
+            this.policy = policy;
+            hash = 31 * Arrays.hashCode(encoded) + (policy == null ? 0 : policy.hashCode());
+        }
+
+        boolean sameCertificate(CertKey other) {
+            return Arrays.equals(encoded, other.encoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CertKey)) {
+                return false;
+            }
+
+            CertKey that = (CertKey) other;
+            return Arrays.equals(encoded, that.encoded) &&
+                (policy == null ? that.policy == null : policy.equals(that.policy));
+        }
+    }
+
+    private final ConcurrentHashMap<CertKey, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ServerTemplateCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Expected positive maximum size; got " + maxSize);
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Import fd as a new SSL PRFileDesc, using the cached model for the
+     * given certificate and key (creating one if necessary).
+     *
+     * The model is guaranteed not to be closed while it is being imported
+     * from, even if it is concurrently evicted.
+     */
+    public SSLFDProxy importFD(PK11Cert cert, PK11PrivKey key, PRFDProxy fd) {
+        return importFD(cert, key, null, fd);
+    }
+
+    /**
+     * Import fd as a new SSL PRFileDesc, using the cached model for the
+     * given certificate, key and policy (creating one if necessary). The
+     * new PRFileDesc inherits the policy from the model.
+     */
+    public SSLFDProxy importFD(PK11Cert cert, PK11PrivKey key, JSSPolicy policy, PRFDProxy fd) {
+        while (true) {
+            Entry entry = get(cert, key, policy);
+            if (entry.acquire()) {
+                try {
+                    entry.uses.incrementAndGet();
+                    return SSL.ImportFD(entry.fd, fd);
+                } finally {
+                    entry.release();
+                }
+            }
+
+            // Evicted between lookup and use; look it up again.
+        }
+    }
+
+    /**
+     * Returns the cached model for the certificate, creating one when
+     * missing or expired.
+     */
+    public Entry get(PK11Cert cert, PK11PrivKey key) {
+        return get(cert, key, null);
+    }
+
+    /**
+     * Returns the cached model for the certificate and policy, creating one
+     * when missing or expired.
+     */
+    public Entry get(PK11Cert cert, PK11PrivKey key, JSSPolicy policy) {
+        CertKey id = new CertKey(cert, policy);
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(id);
+        if (entry != null && !entry.isExpired(now)) {
+            hits.incrementAndGet();
+            entry.lastUsedTime = now;
+            return entry;
+        }
+
+        if (entry != null) {
+            remove(id, entry);
+        }
+
+        misses.incrementAndGet();
+
+        // Create the model outside of any lock; if another thread beat us to
+        // it, use theirs and discard ours.
+        Entry created = new Entry(cert, policy, createModel(cert, key, policy), now);
+        Entry existing = entries.putIfAbsent(id, created);
+        if (existing != null) {
+            created.evict();
+            existing.lastUsedTime = now;
+            return existing;
+        }
+
+        evictStale(id, created, now);
+        return created;
+    }
+
+    /**
+     * Evict the models for the specified certificate, if any. Returns true
+     * if a model was removed.
+     */
+    public boolean invalidate(PK11Cert cert) {
+        CertKey cert_id = new CertKey(cert, null);
+        boolean removed = false;
+
+        for (Map.Entry<CertKey, Entry> item : entries.entrySet()) {
+            if (item.getKey().sameCertificate(cert_id)) {
+                removed |= remove(item.getKey(), item.getValue());
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Evict all cached models.
+     */
+    public void invalidateAll() {
+        for (Map.Entry<CertKey, Entry> item : entries.entrySet()) {
+            remove(item.getKey(), item.getValue());
+        }
+    }
+
+    /**
+     * Snapshot of all currently cached models and their statistics.
+     */
+    public Collection<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private boolean remove(CertKey id, Entry entry) {
+        if (!entries.remove(id, entry)) {
+            return false;
+        }
+
+        evictions.incrementAndGet();
+        entry.evict();
+        return true;
+    }
+
+    private void evictStale(CertKey added_id, Entry added, long now) {
+        // Drop expired models and those superseded by a rotated certificate
+        // with the same nickname and key type; models of the same
+        // certificate with other policies are kept. While we're at it, find
+        // the least recently used entry in case we're over capacity.
+        String nickname = added.cert.getNickname();
+        CertKey lru_id = null;
+        Entry lru = null;
+
+        for (Map.Entry<CertKey, Entry> item : entries.entrySet()) {
+            CertKey id = item.getKey();
+            Entry entry = item.getValue();
+            if (id.equals(added_id)) {
+                continue;
+            }
+
+            if (entry.isExpired(now) || (nickname != null && nickname.equals(entry.cert.getNickname()) &&
+                    added.keyType.equals(entry.keyType) && !id.sameCertificate(added_id))) {
+                logger.debug("ServerTemplateCache: evicting stale template for " + entry.cert.getNickname());
+                remove(id, entry);
+                continue;
+            }
+
+            if (lru == null || entry.lastUsedTime < lru.lastUsedTime) {
+                lru_id = id;
+                lru = entry;
+            }
+        }
+
+        if (entries.size() > maxSize && lru != null) {
+            logger.debug("ServerTemplateCache: evicting least recently used template for " + lru.cert.getNickname());
+            remove(lru_id, lru);
+        }
+    }
+
+    private static SSLFDProxy createModel(PK11Cert cert, PK11PrivKey key, JSSPolicy policy) {
+        PRFDProxy base = PR.NewTCPSocket();
+        SSLFDProxy fd = SSL.ImportFD(null, base);
+        String msg = null;
+        Exception cause = null;
+
+        if (SSL.ConfigServerCert(fd, cert, key) != SSL.SECSuccess) {
+            msg = "Unable to configure certificate and key on ";
+            msg += "model SSL PRFileDesc proxy: ";
+            msg += JSSEngine.errorText(PR.GetError());
+        } else if (policy != null) {
+            try {
+                policy.apply(fd);
+            } catch (SSLException se) {
+                msg = "Unable to configure policy on model SSL PRFileDesc ";
+                msg += "proxy: " + se.getMessage();
+                cause = se;
+            }
+        }
+
+        if (msg != null) {
+            try {
+                fd.close();
+            } catch (Exception e) {
+                logger.warn("Unable to close model SSL PRFileDesc: " + e.getMessage(), e);
+            }
+
+            throw new RuntimeException(msg, cause);
+        }
+
+        return fd;
+    }
+}
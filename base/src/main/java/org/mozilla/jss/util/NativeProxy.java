@@ -4,12 +4,18 @@
 
 package org.mozilla.jss.util;
 
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.netscape.security.util.Utils;
@@ -22,13 +28,54 @@ import org.slf4j.LoggerFactory;
  * It contains some code to help make sure that native memory is getting
  * freed properly.
  *
+ * Native resources should be freed deterministically with close(). Proxies
+ * which are never closed are freed by a shared Cleaner once they become
+ * phantom reachable. The Cleaner can't hold a reference to the proxy
+ * itself, so it frees the resources through a shallow copy of the proxy
+ * taken at construction time; releaseNativeResources() must therefore only
+ * depend on the native pointer (and on state set by the constructor of
+ * NativeProxy itself), as is the case for native implementations which
+ * read it with JSS_getPtrFromProxy.
+ *
+ * To help find native memory leaks, the allocation site (stack trace) of a
+ * sample of proxies can be recorded; see setAllocationSampleRate(...) and
+ * dumpLiveProxies(). These are also available over JMX; see
+ * NativeProxyDiagnostics.
+ *
  * @author nicolson
  * @version $Revision$ $Date$
  */
-public abstract class NativeProxy implements AutoCloseable {
+public abstract class NativeProxy implements AutoCloseable, Cloneable {
     public static Logger logger = LoggerFactory.getLogger(NativeProxy.class);
     private static final boolean saveStacktraces = assertsEnabled() && CryptoManager.JSS_DEBUG;
 
+    /**
+     * Record the allocation site of one in this many tracked proxies; zero
+     * disables sampling. Set with the jss.nativeProxy.sampleRate system
+     * property; defaults to every proxy in debug mode and none otherwise.
+     */
+    private static volatile int sampleRate = saveStacktraces ? 1 : Math.max(Integer.getInteger("jss.nativeProxy.sampleRate", 0), 0);
+
+    /**
+     * Cleaner shared by all tracked NativeProxy instances.
+     */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /**
+     * Number of live (tracked, not yet freed) proxies per subclass.
+     */
+    private static final ConcurrentHashMap<Class<?>, LongAdder> liveCounts = new ConcurrentHashMap<>();
+
+    static {
+        if (Boolean.getBoolean("jss.nativeProxy.jmx")) {
+            try {
+                NativeProxyDiagnostics.register();
+            } catch (Exception e) {
+                logger.warn("Unable to register NativeProxy diagnostics: " + e.getMessage(), e);
+            }
+        }
+    }
+
     /**
      * Create a NativeProxy from a byte array representing a C pointer.
      * This is the primary way of creating a NativeProxy; it should be called
@@ -51,16 +98,80 @@ public abstract class NativeProxy implements AutoCloseable {
      */
     protected NativeProxy(byte[] pointer, boolean track) {
         mPointer = pointer;
-        mHashCode = registryIndex.getAndIncrement();
-        if (mPointer != null) {
-            mHashCode += Arrays.hashCode(mPointer);
+        mHashCode = pointer == null ? 0 : Arrays.hashCode(pointer);
+
+        if (track && pointer != null) {
+            LongAdder live = liveCounter(getClass());
+            mReleaser = new Releaser(this, live, sampleAllocationSite());
+            mCleanable = cleaner.register(this, mReleaser);
+            mReleaser.cleanable = mCleanable;
+            registry.add(mReleaser);
+            live.increment();
+        }
+    }
+
+    private static Throwable sampleAllocationSite() {
+        int rate = sampleRate;
+        if (rate <= 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+            return null;
+        }
+
+        return new Throwable("Allocated by thread " + Thread.currentThread().getName());
+    }
+
+    private NativeProxy shallowCopy() {
+        try {
+            return (NativeProxy) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static LongAdder liveCounter(Class<?> type) {
+        LongAdder live = liveCounts.get(type);
+        if (live == null) {
+            live = liveCounts.computeIfAbsent(type, k -> new LongAdder());
+        }
+        return live;
+    }
+
+    /**
+     * Cleanup action run once per tracked proxy: either when the proxy is
+     * closed or cleared, or by the Cleaner after it has become phantom
+     * reachable. Must not strongly reference the proxy itself.
+     */
+    private static final class Releaser implements Runnable {
+        private final NativeProxy copy;
+        private final WeakReference<NativeProxy> owner;
+        private final LongAdder live;
+        private final Throwable site;
+        private final long created = System.currentTimeMillis();
+        private Cleaner.Cleanable cleanable;
+
+        Releaser(NativeProxy proxy, LongAdder live, Throwable site) {
+            this.copy = proxy.shallowCopy();
+            this.owner = new WeakReference<>(proxy);
+            this.live = live;
+            this.site = site;
         }
 
-        if (track && saveStacktraces) {
-            assert (pointer != null);
-            registry.add(this);
+        @Override
+        public void run() {
+            registry.remove(this);
+            live.decrement();
+
+            // Null when the pointer was already freed through the proxy.
+            if (copy.mPointer == null) {
+                return;
+            }
 
-            mTrace = Arrays.toString(Thread.currentThread().getStackTrace());
+            try {
+                copy.releaseNativeResources();
+            } catch (Throwable t) {
+                logger.warn("Unable to release native resources of unreachable " + copy + ": " + t.getMessage(), t);
+            } finally {
+                copy.mPointer = null;
+            }
         }
     }
 
@@ -91,10 +202,10 @@ public abstract class NativeProxy implements AutoCloseable {
      * Hash code based around mPointer value.
      *
      * Note that Object.hashCode() isn't sufficient as it tries to determine
-     * the Object's value based on all internal variables. Because we want a
-     * single static hashCode that is unique to each instance of nativeProxy,
-     * we construct it up front based on an incrementing counter and cache it
-     * throughout the lifetime of this object.
+     * the Object's value based on all internal variables. The hash code is
+     * computed from the pointer up front, consistent with equals(), and
+     * cached throughout the lifetime of this object so that it doesn't
+     * change when the pointer is cleared.
      */
     @Override
     public int hashCode() {
@@ -107,43 +218,19 @@ public abstract class NativeProxy implements AutoCloseable {
      * data structures in C code that are referenced by this proxy.
      * releaseNativeResources() will usually be implemented as a native method.
      * <p>
-     * You don't call this method; NativeProxy.finalize() or close() calls
-     * it for you.
+     * You don't call this method; close() calls it for you, as does the
+     * Cleaner when a proxy is garbage collected without being closed. In
+     * the latter case, it is invoked on a shallow copy of the proxy, from
+     * the Cleaner's thread.
      * </p>
      *
      * If you free these resources explicitly, call clear(); instead.
      */
     protected abstract void releaseNativeResources() throws Exception;
 
-    /**
-     * Finalize this NativeProxy by releasing its native resources.
-     * The finalizer calls releaseNativeResources() so you don't have to.
-     * This finalizer should be called from the finalize() method of all
-     * subclasses:
-     * class MyProxy extends NativeProxy {
-     * [...]
-     * protected void finalize() throws Throwable {
-     * // do any object-specific finalization other than
-     * // releasing native resources
-     * [...]
-     * super.finalize();
-     * }
-     * }
-     *
-     * @deprecated finalize() in Object has been deprecated. Use close(...)
-     *             from the AutoCloseable interface instead.
-     */
-    @Override
-    @Deprecated
-    protected void finalize() throws Throwable {
-        close();
-    }
-
     /**
      * Close this NativeProxy by releasing its native resources if they
      * haven't otherwise been freed.
-     *
-     * See comment in finalize.
      */
     @Override
     public final void close() throws Exception {
@@ -160,14 +247,19 @@ public abstract class NativeProxy implements AutoCloseable {
      * Call clear(...) to clear the value of the pointer, setting it to null.
      *
      * This should be used when the pointer has been freed by another means.
-     * Similar to finalize(...) or close(...), except that it doesn't call
+     * Similar to close(...), except that it doesn't call
      * releaseNativeResources(...).
      *
      * See also: JSS_clearPtrFromProxy(...) in jssutil.h
      */
     public final void clear() {
         this.mPointer = null;
-        // registry.remove(this);
+
+        if (mCleanable != null) {
+            // Disarm the Cleaner; this only updates the live count.
+            mReleaser.copy.mPointer = null;
+            mCleanable.clean();
+        }
     }
 
     /**
@@ -184,27 +276,28 @@ public abstract class NativeProxy implements AutoCloseable {
     private int mHashCode;
 
     /**
-     * String containing backtrace of pointer generation.
+     * Cleanup action and its registration with the Cleaner; null for
+     * untracked proxies and those created with a null pointer.
      */
-    private String mTrace;
+    private Releaser mReleaser;
+    private Cleaner.Cleanable mCleanable;
 
     /**
      * <p>
      * <b>Native Proxy Registry</b>
      * <p>
-     * In debug mode, we keep track of all NativeProxy objects in a
-     * static registry. Whenever a NativeProxy is constructed, it
-     * registers. Whenever it finalizes, it unregisters. At the end of
-     * the game, we should be able to garbage collect and then assert that
-     * the registry is empty. This could be done, for example, in the
-     * jssjava JVM after main() completes.
+     * We keep track of the cleanup actions of all tracked NativeProxy
+     * objects in a static registry. Whenever a NativeProxy is constructed,
+     * it registers. Whenever it is closed, cleared or garbage collected, it
+     * unregisters. At the end of the game, we should be able to garbage
+     * collect and then assert that the registry is empty. This could be
+     * done, for example, in the jssjava JVM after main() completes.
      *
-     * This registration process verifies that people are calling
-     * NativeProxy.finalize() from their subclasses of NativeProxy, so that
-     * releaseNativeResources() gets called.
+     * The registry holds the cleanup actions rather than the proxies, so it
+     * doesn't need to hash or compare pointers, and registering doesn't
+     * contend on a single lock.
      */
-    static Set<NativeProxy> registry = Collections.newSetFromMap(new WeakHashMap<NativeProxy, Boolean>());
-    static AtomicInteger registryIndex = new AtomicInteger();
+    private static final Set<Releaser> registry = ConcurrentHashMap.newKeySet();
 
     @Override
     public String toString() {
@@ -228,18 +321,137 @@ public abstract class NativeProxy implements AutoCloseable {
     }
 
     /**
-     * Assert that the Registry is empty. Only works in debug mode; in
-     * ship mode, it is a no-op. If the Registry is not empty when this
-     * is called, an assertion (org.mozilla.jss.util.AssertionException)
-     * is thrown.
+     * Number of live instances of the given NativeProxy subclass (excluding
+     * its own subclasses): those created with a non-null pointer which
+     * haven't been closed, cleared or garbage collected yet. Untracked
+     * proxies aren't counted.
      */
-    public synchronized static void assertRegistryEmpty() {
+    public static long getLiveCount(Class<? extends NativeProxy> type) {
+        LongAdder live = liveCounts.get(type);
+        return live == null ? 0 : live.sum();
+    }
+
+    /**
+     * Snapshot of the number of live instances of every NativeProxy
+     * subclass instantiated so far; see getLiveCount(...).
+     */
+    public static Map<Class<? extends NativeProxy>, Long> getLiveCounts() {
+        Map<Class<? extends NativeProxy>, Long> result = new HashMap<>();
+        for (Map.Entry<Class<?>, LongAdder> entry : liveCounts.entrySet()) {
+            result.put(entry.getKey().asSubclass(NativeProxy.class), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * Total number of live tracked proxies; see getLiveCount(...).
+     */
+    public static long getLiveCount() {
+        long total = 0;
+        for (LongAdder live : liveCounts.values()) {
+            total += live.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Rate at which allocation sites are recorded: one in every rate
+     * tracked proxies, or none when zero.
+     */
+    public static int getAllocationSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Record the allocation site of one in every rate tracked proxies
+     * created from now on; zero disables sampling. Recording an allocation
+     * site costs about as much as creating an exception, so in production a
+     * rate of several hundred or more is recommended.
+     */
+    public static void setAllocationSampleRate(int rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Expected non-negative sample rate; got " + rate);
+        }
+
+        sampleRate = rate;
+    }
+
+    /**
+     * Describe the live tracked proxies: their number per subclass and,
+     * for those whose allocation site was sampled, the number per subclass
+     * and allocation site, most frequent first. Sites of long-lived proxies
+     * which keep growing in number are likely leaks.
+     *
+     * @param maxFrames Number of stack frames to print per allocation site.
+     */
+    public static String dumpLiveProxies(int maxFrames) {
+        StringBuilder sb = new StringBuilder();
+        long now = System.currentTimeMillis();
+
+        sb.append("Live NativeProxy instances:\n");
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<Class<?>, LongAdder> entry : liveCounts.entrySet()) {
+            long live = entry.getValue().sum();
+            if (live != 0) {
+                counts.put(entry.getKey().getName(), live);
+            }
+        }
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            sb.append("\t").append(entry.getValue()).append("\t").append(entry.getKey()).append("\n");
+        }
+
+        // Group sampled proxies by class and the top of their allocation
+        // stack, skipping the frames of the proxy constructors themselves.
+        Map<String, long[]> sites = new HashMap<>();
+        for (Releaser releaser : registry) {
+            if (releaser.site == null) {
+                continue;
+            }
+
+            StringBuilder key = new StringBuilder(releaser.copy.getClass().getName());
+            int frames = 0;
+            for (StackTraceElement frame : releaser.site.getStackTrace()) {
+                if (frames == 0 && (frame.getMethodName().equals("<init>") ||
+                        frame.getClassName().equals(NativeProxy.class.getName()))) {
+                    continue;
+                }
+                if (frames++ == maxFrames) {
+                    break;
+                }
+                key.append("\n\t\tat ").append(frame);
+            }
+
+            // count, oldest allocation
+            long[] stats = sites.computeIfAbsent(key.toString(), k -> new long[] { 0, now });
+            stats[0] += 1;
+            stats[1] = Math.min(stats[1], releaser.created);
+        }
+
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(sites.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        sb.append("Sampled allocation sites (sample rate 1/").append(sampleRate).append("):\n");
+        for (Map.Entry<String, long[]> entry : sorted) {
+            long[] stats = entry.getValue();
+            sb.append("\t").append(stats[0]).append(" live, oldest ");
+            sb.append((now - stats[1]) / 1000).append("s: ").append(entry.getKey()).append("\n");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Assert that the Registry is empty. If the Registry is not empty when
+     * this is called, a warning listing the remaining proxies is logged,
+     * along with their allocation sites when sampled.
+     */
+    public static void assertRegistryEmpty() {
         if (!registry.isEmpty()) {
             logger.warn(registry.size() + " NativeProxys are still registered.");
 
-            if (saveStacktraces) {
-                for (NativeProxy proxy : registry) {
-                    logger.warn("\t" + Arrays.toString(proxy.mPointer) + " ::: " + proxy.mTrace);
+            for (Releaser releaser : registry) {
+                if (releaser.site != null) {
+                    logger.warn("\t" + releaser.copy + " ::: " + Arrays.toString(releaser.site.getStackTrace()));
                 }
             }
         } else {
@@ -257,12 +469,18 @@ public abstract class NativeProxy implements AutoCloseable {
      */
     public synchronized static void purgeAllInRegistry() throws Exception {
         Exception first = null;
-        HashSet<NativeProxy> registryClone = new HashSet<>(registry.size());
-        registryClone.addAll(registry);
 
-        for (NativeProxy proxy : registryClone) {
+        for (Releaser releaser : new ArrayList<>(registry)) {
+            NativeProxy proxy = releaser.owner.get();
+
             try {
-                proxy.close();
+                if (proxy != null) {
+                    proxy.close();
+                } else {
+                    // Already unreachable; free it now rather than waiting
+                    // for the Cleaner.
+                    releaser.cleanable.clean();
+                }
             } catch (Exception e) {
                 if (first == null) {
                     first = e;
@@ -0,0 +1,80 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.jss.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes NativeProxy leak diagnostics over JMX, under the name
+ * org.mozilla.jss:type=NativeProxy.
+ *
+ * Registered with the platform MBeanServer on first use of NativeProxy when
+ * the jss.nativeProxy.jmx system property is true, or explicitly with
+ * register().
+ */
+public class NativeProxyDiagnostics implements NativeProxyMXBean {
+
+    public static final String OBJECT_NAME = "org.mozilla.jss:type=NativeProxy";
+
+    @Override
+    public long getLiveCount() {
+        return NativeProxy.getLiveCount();
+    }
+
+    @Override
+    public Map<String, Long> getLiveCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<Class<? extends NativeProxy>, Long> entry : NativeProxy.getLiveCounts().entrySet()) {
+            result.put(entry.getKey().getName(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public int getAllocationSampleRate() {
+        return NativeProxy.getAllocationSampleRate();
+    }
+
+    @Override
+    public void setAllocationSampleRate(int rate) {
+        NativeProxy.setAllocationSampleRate(rate);
+    }
+
+    @Override
+    public String dumpLiveProxies(int maxFrames) {
+        return NativeProxy.dumpLiveProxies(maxFrames);
+    }
+
+    /**
+     * Register the diagnostics with the platform MBeanServer, unless they
+     * already are.
+     */
+    public static synchronized void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new NativeProxyDiagnostics(), name);
+        }
+    }
+
+    /**
+     * Remove the diagnostics from the platform MBeanServer, if registered.
+     */
+    public static synchronized void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.jss.util;
+
+import java.util.Map;
+
+/**
+ * Management interface for NativeProxy leak diagnostics; see
+ * NativeProxyDiagnostics.
+ */
+public interface NativeProxyMXBean {
+
+    /**
+     * Total number of live tracked proxies.
+     */
+    long getLiveCount();
+
+    /**
+     * Number of live tracked proxies, keyed by class name.
+     */
+    Map<String, Long> getLiveCounts();
+
+    /**
+     * One in this many tracked proxies has its allocation site recorded;
+     * zero when disabled.
+     */
+    int getAllocationSampleRate();
+
+    void setAllocationSampleRate(int rate);
+
+    /**
+     * Live proxies per class and per sampled allocation site.
+     */
+    String dumpLiveProxies(int maxFrames);
+}
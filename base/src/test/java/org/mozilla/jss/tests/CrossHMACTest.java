@@ -115,6 +115,39 @@ public class CrossHMACTest {
         }
     }
 
+    public void cloneHMAC(String alg, SecretKeyFacade sk, String clearText)
+            throws Exception {
+        byte[] data = clearText.getBytes();
+        int half = data.length / 2;
+
+        Mac mozillaHmac = Mac.getInstance(alg, MOZ_PROVIDER_NAME);
+        mozillaHmac.init(sk);
+        byte[] expected = mozillaHmac.doFinal(data);
+
+        mozillaHmac.update(data, 0, half);
+
+        Mac copy;
+        try {
+            copy = (Mac) mozillaHmac.clone();
+        } catch (CloneNotSupportedException e) {
+            // Not every token can save the state of a keyed context.
+            System.out.println(MOZ_PROVIDER_NAME + " " + alg +
+                    " can't be cloned: " + e.getMessage());
+            return;
+        }
+
+        copy.update(data, half, data.length - half);
+        mozillaHmac.update(data, half, data.length - half);
+
+        if (!MessageDigest.isEqual(expected, copy.doFinal()) ||
+                !MessageDigest.isEqual(expected, mozillaHmac.doFinal())) {
+            throw new Exception("ERROR: cloned " + alg +
+                    " gives a different result");
+        }
+
+        System.out.println(MOZ_PROVIDER_NAME + " " + alg + " can be cloned");
+    }
+
     public boolean fipsMode() {
         return cm.FIPSEnabled();
     }
@@ -163,6 +196,7 @@ public class CrossHMACTest {
                     //https://bugzilla.mozilla.org/show_bug.cgi?id=436907
                     if (!JSS_HMAC_Algs[i].equals("HmacSHA512")) {
                         hmacTest.doHMAC(JSS_HMAC_Algs[i], sk, clearText);
+                        hmacTest.cloneHMAC(JSS_HMAC_Algs[i], sk, clearText);
                     }
                 } else {
                     // compare MOZ_PROVIDER_NAME implementation with all
@@ -172,6 +206,7 @@ public class CrossHMACTest {
                         // no provider to compare results with so just test JSS
                         hmacTest.doHMAC(JSS_HMAC_Algs[i], sk, clearText);
                     }
+                    hmacTest.cloneHMAC(JSS_HMAC_Algs[i], sk, clearText);
                 }
             }
 
@@ -4,9 +4,26 @@
 package org.mozilla.jss.tests;
 
 import java.io.FileInputStream;
+import java.lang.reflect.Proxy;
+import java.security.DigestException;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.Provider;
 import java.security.Security;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.jss.CryptoManager;
+import org.mozilla.jss.crypto.CryptoToken;
+import org.mozilla.jss.crypto.DigestAlgorithm;
+import org.mozilla.jss.crypto.HMACAlgorithm;
+import org.mozilla.jss.crypto.JSSMessageDigest;
+import org.mozilla.jss.crypto.SecretKeyFacade;
+import org.mozilla.jss.crypto.SymmetricKey;
+import org.mozilla.jss.pkcs11.PK11MessageDigest;
 
 public class DigestTest {
 
@@ -86,6 +103,165 @@ public class DigestTest {
         return true;
     }
 
+    public static void testJSSDigestClone(String alg, byte[] toBeDigested)
+    throws Exception {
+        int half = toBeDigested.length / 2;
+
+        MessageDigest mozillaDigest =
+                MessageDigest.getInstance(alg, MOZ_PROVIDER_NAME);
+        byte[] expected = mozillaDigest.digest(toBeDigested);
+
+        // Hash the first half once, then finish it from two copies.
+        mozillaDigest.update(toBeDigested, 0, half);
+        MessageDigest copy = (MessageDigest) mozillaDigest.clone();
+
+        copy.update(toBeDigested, half, toBeDigested.length - half);
+        byte[] copyOut = copy.digest();
+
+        mozillaDigest.update(toBeDigested, half, toBeDigested.length - half);
+        byte[] originalOut = mozillaDigest.digest();
+
+        if (!MessageDigest.isEqual(expected, copyOut) ||
+                !MessageDigest.isEqual(expected, originalOut)) {
+            throw new Exception("ERROR: cloned " + alg +
+                                " digest gives a different result");
+        }
+
+        System.out.println(MOZ_PROVIDER_NAME + " " + alg +
+                           " digest can be cloned");
+    }
+
+
+    /**
+     * Digests inputs around PK11MessageDigest.ONE_SHOT_LIMIT, so both the
+     * one-shot and the digest context code paths are exercised.
+     */
+    public static void testOneShotDigest() throws Exception {
+        int limit = PK11MessageDigest.ONE_SHOT_LIMIT;
+        int[] sizes = { 0, 1, limit, limit + 1, 4 * limit };
+
+        for (int size : sizes) {
+            byte[] input = new byte[size];
+            Arrays.fill(input, (byte) size);
+
+            byte[] expected = MessageDigest.getInstance("SHA-256", "SUN")
+                    .digest(input);
+
+            byte[] oneShot = new byte[expected.length];
+            PK11MessageDigest.digest(DigestAlgorithm.SHA256, input, 0, size,
+                    oneShot, 0, oneShot.length);
+
+            MessageDigest mozillaDigest =
+                    MessageDigest.getInstance("SHA-256", MOZ_PROVIDER_NAME);
+            byte[] first = mozillaDigest.digest(input);
+            byte[] second = mozillaDigest.digest(input);
+
+            if (!MessageDigest.isEqual(expected, oneShot) ||
+                    !MessageDigest.isEqual(expected, first) ||
+                    !MessageDigest.isEqual(expected, second)) {
+                throw new Exception("ERROR: SHA-256 of " + size +
+                                    " bytes differs from SUN provider");
+            }
+        }
+
+        System.out.println(MOZ_PROVIDER_NAME +
+                           " one-shot SHA-256 digests match");
+    }
+
+    /**
+     * Computes HMACs around PK11MessageDigest.ONE_SHOT_LIMIT, through both
+     * PK11MessageDigest.hmac() and a digest context, and compares them
+     * with the SunJCE provider.
+     */
+    public static void testOneShotHMAC() throws Exception {
+        byte[] keyData = new byte[32];
+        Arrays.fill(keyData, (byte) 0x0b);
+
+        SecretKeyFactory factory =
+                SecretKeyFactory.getInstance("HmacSHA256", MOZ_PROVIDER_NAME);
+        SymmetricKey key = ((SecretKeyFacade) factory.generateSecret(
+                new SecretKeySpec(keyData, "HmacSHA256"))).key;
+
+        Mac sunHmac = Mac.getInstance("HmacSHA256", "SunJCE");
+        sunHmac.init(new SecretKeySpec(keyData, "HmacSHA256"));
+
+        CryptoToken token =
+                CryptoManager.getInstance().getInternalCryptoToken();
+        JSSMessageDigest context =
+                token.getDigestContext(HMACAlgorithm.SHA256);
+        context.initHMAC(key);
+
+        int limit = PK11MessageDigest.ONE_SHOT_LIMIT;
+        int[] sizes = { 0, 1, limit, limit + 1, 4 * limit };
+
+        for (int size : sizes) {
+            byte[] input = new byte[size];
+            Arrays.fill(input, (byte) size);
+
+            byte[] expected = sunHmac.doFinal(input);
+
+            byte[] oneShot = new byte[expected.length];
+            PK11MessageDigest.hmac(key, HMACAlgorithm.SHA256, input, 0, size,
+                    oneShot, 0, oneShot.length);
+
+            // The key stays set across digests.
+            byte[] first = context.digest(input);
+            byte[] second = context.digest(input);
+
+            if (!MessageDigest.isEqual(expected, oneShot) ||
+                    !MessageDigest.isEqual(expected, first) ||
+                    !MessageDigest.isEqual(expected, second)) {
+                throw new Exception("ERROR: HMAC-SHA256 of " + size +
+                                    " bytes differs from SunJCE provider");
+            }
+        }
+
+        System.out.println(MOZ_PROVIDER_NAME +
+                           " one-shot HMAC-SHA256 matches");
+    }
+
+    /**
+     * Keys which can't be used for an HMAC are rejected by initHMAC(),
+     * not by the first digest.
+     */
+    public static void testBadHMACKey() throws Exception {
+        CryptoToken token =
+                CryptoManager.getInstance().getInternalCryptoToken();
+        JSSMessageDigest context =
+                token.getDigestContext(HMACAlgorithm.SHA256);
+
+        SymmetricKey foreign = (SymmetricKey) Proxy.newProxyInstance(
+                SymmetricKey.class.getClassLoader(),
+                new Class<?>[] { SymmetricKey.class },
+                (proxy, method, args) -> {
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        try {
+            context.initHMAC(foreign);
+            throw new Exception("ERROR: initHMAC accepted a non-PKCS #11 key");
+        } catch (InvalidKeyException expected) {
+            // expected
+        }
+
+        // The rejected key mustn't have been kept.
+        try {
+            context.update(new byte[16]);
+            throw new Exception("ERROR: HMAC usable without a valid key");
+        } catch (DigestException expected) {
+            // expected
+        }
+
+        try {
+            PK11MessageDigest.hmac(foreign, HMACAlgorithm.SHA256,
+                    new byte[16], 0, 16, new byte[32], 0, 32);
+            throw new Exception("ERROR: hmac accepted a non-PKCS #11 key");
+        } catch (InvalidKeyException expected) {
+            // expected
+        }
+
+        System.out.println(MOZ_PROVIDER_NAME + " rejects unusable HMAC keys");
+    }
 
     public static void main(String []argv) {
 
@@ -121,8 +297,14 @@ public class DigestTest {
                     // no provider to compare results with
                     testJSSDigest(JSS_Digest_Algs[i], toBeDigested);
                 }
+
+                testJSSDigestClone(JSS_Digest_Algs[i], toBeDigested);
             }
 
+            testOneShotDigest();
+            testOneShotHMAC();
+            testBadHMACKey();
+
             //HMAC examples in org.mozilla.jss.tests.HMACTest
 
         } catch( Exception e ) {
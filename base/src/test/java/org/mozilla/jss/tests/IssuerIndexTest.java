@@ -0,0 +1,122 @@
+package org.mozilla.jss.tests;
+
+import java.security.cert.X509Certificate;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mozilla.jss.provider.javax.crypto.JSSTrustManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class IssuerIndexTest {
+
+    public static Logger logger = LoggerFactory.getLogger(IssuerIndexTest.class);
+
+    public ChainSortingTest certs;
+
+    // a time at which all of the test certs are valid
+    public long now;
+
+    public IssuerIndexTest() throws Exception {
+        certs = new ChainSortingTest();
+        now = certs.agent.getNotBefore().getTime();
+    }
+
+    public JSSTrustManager.IssuerIndex createIndex(long generation) {
+        X509Certificate[] caCerts = { certs.rootCA, certs.subCA };
+        return new JSSTrustManager.IssuerIndex(caCerts, generation, now);
+    }
+
+    @Test
+    public void testGeneration() throws Exception {
+
+        logger.info("Testing index invalidation by trust generation");
+
+        JSSTrustManager.IssuerIndex index = createIndex(7);
+
+        Assert.assertTrue(index.isCurrent(7, now));
+        Assert.assertFalse(index.isCurrent(8, now));
+    }
+
+    @Test
+    public void testLifetime() throws Exception {
+
+        logger.info("Testing index invalidation by age");
+
+        JSSTrustManager.IssuerIndex index = createIndex(7);
+
+        Assert.assertTrue(index.isCurrent(7, now + JSSTrustManager.ISSUER_INDEX_LIFETIME));
+        Assert.assertFalse(index.isCurrent(7, now + JSSTrustManager.ISSUER_INDEX_LIFETIME + 1));
+    }
+
+    @Test
+    public void testPublicKeys() throws Exception {
+
+        logger.info("Testing public keys of indexed CA certs");
+
+        JSSTrustManager.IssuerIndex index = createIndex(0);
+
+        Assert.assertEquals(certs.rootCA.getPublicKey(), index.getPublicKey(certs.rootCA));
+        Assert.assertEquals(certs.subCA.getPublicKey(), index.getPublicKey(certs.subCA));
+        Assert.assertNull(index.getPublicKey(certs.admin));
+    }
+
+    @Test
+    public void testSelfSignedIssuer() throws Exception {
+
+        logger.info("Testing issuer of self-signed cert");
+
+        JSSTrustManager.IssuerIndex index = createIndex(0);
+
+        X509Certificate[] expected = { certs.rootCA };
+        Assert.assertArrayEquals(expected, index.findIssuers(certs.rootCA, now));
+    }
+
+    @Test
+    public void testSubordinateIssuer() throws Exception {
+
+        logger.info("Testing issuers of subordinate CA and end-entity certs");
+
+        JSSTrustManager.IssuerIndex index = createIndex(0);
+
+        X509Certificate[] root = { certs.rootCA };
+        Assert.assertArrayEquals(root, index.findIssuers(certs.subCA, now));
+
+        X509Certificate[] sub = { certs.subCA };
+        Assert.assertArrayEquals(sub, index.findIssuers(certs.admin, now));
+        Assert.assertArrayEquals(sub, index.findIssuers(certs.agent, now));
+    }
+
+    @Test
+    public void testUnknownIssuer() throws Exception {
+
+        logger.info("Testing cert issued by a CA missing from the index");
+
+        X509Certificate[] caCerts = { certs.rootCA };
+        JSSTrustManager.IssuerIndex index = new JSSTrustManager.IssuerIndex(caCerts, 0, now);
+
+        Assert.assertEquals(0, index.findIssuers(certs.admin, now).length);
+    }
+
+    @Test
+    public void testExpiredIssuer() throws Exception {
+
+        logger.info("Testing CA cert which expired after the index was built");
+
+        JSSTrustManager.IssuerIndex index = createIndex(0);
+        long expired = certs.subCA.getNotAfter().getTime() + 1;
+
+        Assert.assertEquals(0, index.findIssuers(certs.admin, expired).length);
+    }
+
+    @Test
+    public void testNotYetValidIssuer() throws Exception {
+
+        logger.info("Testing CA cert which isn't valid yet");
+
+        JSSTrustManager.IssuerIndex index = createIndex(0);
+        long early = certs.subCA.getNotBefore().getTime() - 1;
+
+        Assert.assertEquals(0, index.findIssuers(certs.admin, early).length);
+    }
+}
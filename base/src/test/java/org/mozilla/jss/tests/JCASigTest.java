@@ -61,6 +61,35 @@ public class JCASigTest {
         } else {
             System.out.println("ERROR: Signature failed to verify.");
         }
+
+        // Sign again without re-initializing, then with a new instance
+        // which should pick up the cached context for this key.
+        signer.initSign(keyPair.getPrivate());
+        signer.update(data);
+        signer.sign();
+        signer.update(data);
+        byte[] again = signer.sign();
+
+        Signature other = Signature.getInstance(alg);
+        if (alg.equals("RSASSA-PSS")) {
+            other.setParameter(new PSSParameterSpec("SHA-256", "MGF1",
+                new MGF1ParameterSpec("SHA-256"), 32, 1));
+        }
+        other.initSign(keyPair.getPrivate());
+        other.update(data);
+        byte[] reused = other.sign();
+
+        other.initVerify(keyPair.getPublic());
+        other.update(data);
+        boolean verified = other.verify(again);
+        other.update(data);
+        verified &= other.verify(reused);
+        if (verified) {
+            System.out.println("Reused signing contexts Verified Successfully!");
+        } else {
+            throw new Exception("ERROR: reused signing context produced " +
+                "a bad signature for " + alg);
+        }
     }
 
     public static void main(String args[]) throws Exception {
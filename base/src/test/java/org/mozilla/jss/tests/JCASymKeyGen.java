@@ -5,11 +5,13 @@
 package org.mozilla.jss.tests;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Provider;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.spec.AlgorithmParameterSpec;
@@ -375,6 +377,96 @@ public class JCASymKeyGen {
         }
     }
 
+    /**
+     * Encrypts into direct ByteBuffers and decrypts in place, so the
+     * output is written directly into the caller's buffers.
+     */
+    public void testByteBufferCipher(javax.crypto.SecretKey sKey,
+            String algType) throws Exception {
+        byte[] plaintext = plainText;
+        if (algType.endsWith("PKCS5Padding")) {
+            plaintext = plainTextPad;
+        }
+
+        Cipher cipher = Cipher.getInstance(algType, MOZ_PROVIDER_NAME);
+        cipher.init(Cipher.ENCRYPT_MODE, sKey);
+        AlgorithmParameters ap = cipher.getParameters();
+
+        ByteBuffer input = ByteBuffer.allocateDirect(plaintext.length);
+        input.put(plaintext);
+        input.flip();
+
+        ByteBuffer output = ByteBuffer.allocateDirect(
+                cipher.getOutputSize(plaintext.length));
+        cipher.update(input.limit(plaintext.length / 2), output);
+        input.limit(plaintext.length);
+        cipher.doFinal(input, output);
+        output.flip();
+
+        byte[] buffer = new byte[output.remaining()];
+        output.get(buffer);
+
+        cipher = Cipher.getInstance(algType, MOZ_PROVIDER_NAME);
+        if (ap == null) {
+            cipher.init(Cipher.DECRYPT_MODE, sKey);
+        } else {
+            cipher.init(Cipher.DECRYPT_MODE, sKey, ap);
+        }
+
+        int rLen = cipher.update(buffer, 0, buffer.length, buffer, 0);
+        rLen += cipher.doFinal(buffer, rLen);
+
+        byte[] recovered = new byte[rLen];
+        System.arraycopy(buffer, 0, recovered, 0, rLen);
+        if (!MessageDigest.isEqual(plaintext, recovered)) {
+            throw new Exception("ERROR: " + MOZ_PROVIDER_NAME +
+                    " ByteBuffer and in-place operations failed for " +
+                    algType);
+        }
+    }
+
+    /**
+     * Draws nonces of various sizes from several threads sharing one
+     * pkcs11prng instance, which serves small requests from per-thread
+     * buffers, and checks that none of them repeat, including across a
+     * reseed.
+     */
+    public void testBufferedSecureRandom() throws Exception {
+        SecureRandom random = SecureRandom.getInstance("pkcs11prng",
+                MOZ_PROVIDER_NAME);
+        java.util.Set<String> seen = java.util.Collections.synchronizedSet(
+                new java.util.HashSet<>());
+        int[] sizes = { 12, 16, 32, 100, 1000, 4096 };
+
+        Thread[] threads = new Thread[4];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    byte[] nonce = new byte[sizes[i % sizes.length]];
+                    random.nextBytes(nonce);
+                    if (i == 250) {
+                        random.setSeed(nonce);
+                    }
+                    if (!seen.add(java.util.Base64.getEncoder().encodeToString(nonce))) {
+                        failure[0] = new Exception("ERROR: pkcs11prng " +
+                            "returned the same " + nonce.length +
+                            " bytes twice");
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        System.out.println(MOZ_PROVIDER_NAME + " tested buffered pkcs11prng");
+    }
+
     public static void main(String args[]) {
 
         String certDbLoc             = ".";
@@ -438,6 +530,7 @@ public class JCASymKeyGen {
         javax.crypto.SecretKey mozKey = null;
 
         try {
+            skg.testBufferedSecureRandom();
 
             for (int i = 0 ; i < symKeyTable.length; i++) {
                 try {
@@ -462,6 +555,9 @@ public class JCASymKeyGen {
                     skg.testMultiPartCipher(mozKey, symKeyTable[i][0],
                         symKeyTable[i][a],
                         MOZ_PROVIDER_NAME, MOZ_PROVIDER_NAME);
+                    if (!symKeyTable[i][0].equals("RC2")) {
+                        skg.testByteBufferCipher(mozKey, symKeyTable[i][a]);
+                    }
 
                     try {
                         //check to see if the otherProvider we are testing
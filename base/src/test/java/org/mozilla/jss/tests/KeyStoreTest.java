@@ -21,7 +21,11 @@ import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.crypto.CryptoToken;
 import org.mozilla.jss.crypto.KeyGenAlgorithm;
 import org.mozilla.jss.crypto.KeyGenerator;
+import org.mozilla.jss.crypto.KeyPairAlgorithm;
+import org.mozilla.jss.crypto.PrivateKey;
 import org.mozilla.jss.crypto.SecretKeyFacade;
+import org.mozilla.jss.netscape.security.util.Utils;
+import org.mozilla.jss.provider.java.security.JSSKeyStoreSpi;
 
 public class KeyStoreTest {
 
@@ -124,8 +128,49 @@ public class KeyStoreTest {
         while( aliases.hasMoreElements() ) {
             String alias = aliases.nextElement();
             System.out.println( "\"" + alias + "\"");
+
+            // Lookups are answered from the alias index; they should agree
+            // with the enumeration.
+            if( !ks.containsAlias(alias) ) {
+                throw new Exception("containsAlias() doesn't find \"" +
+                    alias + "\"");
+            }
         }
         System.out.println();
+
+        String missing = "no such alias " + System.nanoTime();
+        if( ks.containsAlias(missing) || ks.isKeyEntry(missing) ||
+                ks.getKey(missing, null) != null ) {
+            throw new Exception("Found nonexistent alias \"" + missing + "\"");
+        }
+
+        // A key generated outside of the KeyStore API after the aliases
+        // were indexed has to be found by getKey() and isKeyEntry() too,
+        // once the keys may be indexed again after the miss above.
+        Thread.sleep(JSSKeyStoreSpi.KEY_REINDEX_INTERVAL);
+
+        CryptoToken token = CryptoManager.getInstance().getInternalKeyStorageToken();
+        org.mozilla.jss.crypto.KeyPairGenerator kpg =
+            token.getKeyPairGenerator(KeyPairAlgorithm.RSA);
+        kpg.temporaryPairs(false);
+        kpg.initialize(2048);
+        KeyPair pair = kpg.genKeyPair();
+
+        String alias = Utils.HexEncode(((PrivateKey) pair.getPrivate()).getUniqueID());
+        try {
+            if( !ks.isKeyEntry(alias) || ks.getKey(alias, null) == null ) {
+                throw new Exception("Key generated after indexing not found: \"" +
+                    alias + "\"");
+            }
+
+            // Once indexed, the key is returned without scanning the token.
+            if( ks.getKey(alias, null) != ks.getKey(alias, null) ) {
+                throw new Exception("Key not returned from the alias index: \"" +
+                    alias + "\"");
+            }
+        } finally {
+            ks.deleteEntry(alias);
+        }
     }
 
     public static void getCertByDER(KeyStore ks, String derCertFilename)
@@ -13,6 +13,8 @@ package org.mozilla.jss.tests;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.crypto.CryptoToken;
@@ -121,6 +123,48 @@ public class SigTest {
             throw new Exception("ERROR: PSS Signature failed to verify.");
         }
 
+        // Batches, both on one context and split across a thread pool
+        byte[][] batch = new byte[][]{data, new byte[0], signature};
+        signer.initSign(
+                (org.mozilla.jss.crypto.PrivateKey) keyPair.getPrivate());
+        byte[][] signatures = signer.sign(batch);
+
+        signer.initVerify(keyPair.getPublic());
+        boolean[] verified = signer.verify(batch, signatures);
+        for (int i = 0; i < verified.length; i++) {
+            if (!verified[i]) {
+                throw new Exception("ERROR: batch signature " + i +
+                        " failed to verify.");
+            }
+        }
+
+        signatures[0] = signatures[1];
+        verified = signer.verify(batch, signatures);
+        if (verified[0] || !verified[1]) {
+            throw new Exception("ERROR: batch verification accepted a bad " +
+                    "signature.");
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            signatures = Signature.sign(token,
+                    SignatureAlgorithm.RSAPSSSignatureWithSHA256Digest,
+                    (org.mozilla.jss.crypto.PrivateKey) keyPair.getPrivate(),
+                    batch, pool, 2);
+            verified = Signature.verify(token,
+                    SignatureAlgorithm.RSAPSSSignatureWithSHA256Digest,
+                    keyPair.getPublic(), batch, signatures, pool, 2);
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < verified.length; i++) {
+            if (!verified[i]) {
+                throw new Exception("ERROR: parallel PSS batch signature " +
+                        i + " failed to verify.");
+            }
+        }
+        System.out.println("Batch signatures Verified Successfully!");
+
         System.out.println("SigTest passed.");
     }
 }
@@ -1,6 +1,9 @@
 package org.mozilla.jss.tests;
 
+import java.nio.ByteBuffer;
+
 import org.mozilla.jss.nss.Buffer;
+import org.mozilla.jss.nss.BufferPool;
 import org.mozilla.jss.nss.BufferProxy;
 
 public class TestBuffer {
@@ -71,6 +74,120 @@ public class TestBuffer {
         Buffer.Free(buf);
     }
 
+    public static void TestDirectReadWrite() {
+        BufferProxy buf = Buffer.Create(4);
+        ByteBuffer input = ByteBuffer.allocateDirect(6);
+        ByteBuffer output = ByteBuffer.allocateDirect(6);
+        assert(buf != null);
+
+        input.put(new byte[] { 0x00, 0x01, 0x02, 0x03, 0x04, 0x05 });
+
+        // Only the region [1, 6) is written and the buffer holds 4 bytes.
+        assert(Buffer.Write(buf, input, 1, 5) == 4);
+        assert(Buffer.ReadCapacity(buf) == 4);
+        assert(input.position() == 6);
+
+        assert(Buffer.Read(buf, output, 2, 3) == 3);
+        assert(output.get(2) == 0x01);
+        assert(output.get(3) == 0x02);
+        assert(output.get(4) == 0x03);
+        assert(output.position() == 0);
+        assert(Buffer.ReadCapacity(buf) == 1);
+
+        try {
+            Buffer.Write(buf, ByteBuffer.allocate(1), 0, 1);
+            assert(false);
+        } catch (IllegalArgumentException iae) {
+            // Heap buffers aren't accepted by the direct variant.
+        }
+
+        Buffer.Free(buf);
+    }
+
+    public static void TestRegionRead() {
+        BufferProxy buf = Buffer.Create(4);
+        byte[] data = { 0x01, 0x02, 0x03 };
+        byte[] out_data = new byte[5];
+        assert(buf != null);
+
+        assert(Buffer.Write(buf, data) == 3);
+        assert(Buffer.Read(buf, out_data, 1, 4) == 3);
+        assert(out_data[0] == 0x00);
+        assert(out_data[1] == data[0]);
+        assert(out_data[2] == data[1]);
+        assert(out_data[3] == data[2]);
+        assert(Buffer.ReadCapacity(buf) == 0);
+
+        Buffer.Free(buf);
+    }
+
+    public static void TestResize() {
+        BufferProxy buf = Buffer.Create(4);
+        byte[] data = { 0x01, 0x02, 0x03 };
+        assert(buf != null);
+
+        assert(Buffer.Write(buf, data) == 3);
+        assert(!Buffer.Resize(buf, 2));
+        assert(Buffer.Resize(buf, 8));
+        assert(Buffer.Capacity(buf) == 8);
+        assert(Buffer.ReadCapacity(buf) == 3);
+        assert(Buffer.WriteCapacity(buf) == 5);
+
+        byte[] out_data = Buffer.Read(buf, 3);
+        assert(out_data.length == 3);
+        assert(out_data[0] == data[0]);
+        assert(out_data[2] == data[2]);
+
+        assert(Buffer.Resize(buf, 2));
+        assert(Buffer.WriteCapacity(buf) == 2);
+
+        Buffer.Free(buf);
+    }
+
+    public static void TestPool() {
+        BufferPool pool = new BufferPool(1);
+        byte[] data = { 0x01, 0x02 };
+
+        BufferProxy first = pool.borrow(8);
+        BufferProxy second = pool.borrow(8);
+        assert(pool.getMisses() == 2);
+        assert(pool.getOutstanding() == 2);
+
+        assert(Buffer.Write(first, data) == 2);
+        pool.release(first);
+        pool.release(second);
+        assert(pool.getOutstanding() == 0);
+        assert(pool.getIdle() == 1);
+
+        // Reused buffers come back empty.
+        BufferProxy reused = pool.borrow(8);
+        assert(pool.getHits() == 1);
+        assert(Buffer.ReadCapacity(reused) == 0);
+        assert(Buffer.WriteCapacity(reused) == 8);
+
+        // Different capacities don't share buffers.
+        BufferProxy other = pool.borrow(4);
+        assert(pool.getMisses() == 3);
+        assert(Buffer.Capacity(other) == 4);
+
+        pool.release(reused);
+        pool.release(other);
+        pool.clear();
+        assert(pool.getIdle() == 0);
+
+        // Resized buffers are freed rather than pooled.
+        BufferProxy grown = pool.borrow(8);
+        assert(Buffer.Resize(grown, 16));
+        pool.release(grown);
+        assert(pool.getOutstanding() == 0);
+        assert(pool.getIdle() == 0);
+
+        // Buffers the pool didn't hand out don't count as outstanding.
+        pool.release(Buffer.Create(8));
+        assert(pool.getOutstanding() == 0);
+        assert(pool.getIdle() == 0);
+    }
+
     public static void main(String[] args) {
         System.loadLibrary("jss");
 
@@ -85,5 +202,17 @@ public class TestBuffer {
 
         System.out.println("Calling TestPutGet()...");
         TestPutGet();
+
+        System.out.println("Calling TestDirectReadWrite()...");
+        TestDirectReadWrite();
+
+        System.out.println("Calling TestRegionRead()...");
+        TestRegionRead();
+
+        System.out.println("Calling TestResize()...");
+        TestResize();
+
+        System.out.println("Calling TestPool()...");
+        TestPool();
     }
 }
@@ -0,0 +1,94 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.jss.tests;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mozilla.jss.CryptoManager;
+import org.mozilla.jss.InitializationValues;
+import org.mozilla.jss.crypto.CryptoToken;
+import org.mozilla.jss.pkcs11.PK11Module;
+
+/**
+ * Checks that CryptoManager is only published once fully initialized, and
+ * that reloading a module's tokens updates CryptoManager's token lookups.
+ */
+public class TestCryptoManager {
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: TestCryptoManager <dbdir> <passwords>");
+            System.exit(1);
+        }
+
+        testInitializePublication(args[0], args[1]);
+
+        CryptoManager cm = CryptoManager.getInstance();
+        try {
+            testReloadTokens(cm);
+        } finally {
+            cm.shutdown();
+        }
+    }
+
+    public static void testInitializePublication(String dbdir, String passwords) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Watch for the CryptoManager to appear, from another thread, and
+        // check that everything initialize() sets up is visible by then.
+        Thread watcher = new Thread(() -> {
+            try {
+                while (!CryptoManager.isInitialized()) {
+                    Thread.onSpinWait();
+                }
+
+                CryptoManager cm = CryptoManager.getInstance();
+                assert cm.getPasswordCallback() instanceof FilePasswordCallback;
+                assert Security.getProvider("Mozilla-JSS") != null;
+                assert cm.getInternalKeyStorageToken() != null;
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        watcher.start();
+
+        InitializationValues ivs = new InitializationValues(dbdir);
+        ivs.passwordCallback = new FilePasswordCallback(passwords);
+        CryptoManager.initialize(ivs);
+
+        watcher.join(60000);
+        assert !watcher.isAlive();
+
+        if (failure.get() != null) {
+            throw new Exception("CryptoManager published before it was initialized: " + failure.get(), failure.get());
+        }
+    }
+
+    public static void testReloadTokens(CryptoManager cm) throws Exception {
+        for (PK11Module module : Collections.list(cm.getModules())) {
+            module.reloadTokens();
+
+            // CryptoManager has to hand out the reloaded tokens, not the
+            // ones it saw at initialization.
+            List<CryptoToken> all = new ArrayList<>();
+            for (Enumeration<CryptoToken> e = cm.getAllTokens(); e.hasMoreElements();) {
+                all.add(e.nextElement());
+            }
+
+            for (CryptoToken token : Collections.list(module.getTokens())) {
+                boolean found = false;
+                for (CryptoToken candidate : all) {
+                    found |= candidate == token;
+                }
+                assert found : "Reloaded token " + token.getName() + " missing from getAllTokens()";
+                assert cm.getTokenByName(token.getName()) == token;
+            }
+        }
+    }
+}
@@ -19,15 +19,43 @@ public class TestGlobalReference {
             proxy.clear();
         }
 
+        // Closed and cleared proxies are no longer counted as live.
+        long live = NativeProxy.getLiveCount(GlobalRefProxy.class);
+        if (live != 0) {
+            throw new RuntimeException("Expected no live GlobalRefProxy instances; got " + live);
+        }
+
+        // Record where each of the following proxies is allocated.
+        NativeProxy.setAllocationSampleRate(1);
+
+        for (int i = 0; i < 100; i++) {
+            // These are never closed: the Cleaner should free them once
+            // they're garbage collected.
+            new GlobalRefProxy(arg);
+        }
+
+        String dump = NativeProxy.dumpLiveProxies(4);
+        System.out.println(dump);
+        if (!dump.contains(TestGlobalReference.class.getName() + ".main")) {
+            throw new RuntimeException("Expected allocation site in dump:\n" + dump);
+        }
+        NativeProxy.setAllocationSampleRate(0);
+
         for (int i = 1; i <= 4; i++) {
             // This attempts to provoke the GC into running, hopefully
-            // executing GlobalRefProxy.finalize(...) on the above objects.
-            // This will be another attempt to trigger a double free, but
-            // we shouldn't crash.
+            // executing the Cleaner on the above objects. This will be
+            // another attempt to trigger a double free, but we shouldn't
+            // crash.
             System.gc();
             Thread.sleep(i * 500);
         }
 
+        live = NativeProxy.getLiveCount(GlobalRefProxy.class);
+        System.out.println("Live GlobalRefProxy instances after GC: " + live);
+        if (live >= 100) {
+            throw new RuntimeException("Cleaner didn't free any unreachable GlobalRefProxy instances");
+        }
+
         // Since we didn't initialize JSS and we freed all our GlobalRefProxy
         // instances we created, we expect the registry to be empty.
         NativeProxy.assertRegistryEmpty();
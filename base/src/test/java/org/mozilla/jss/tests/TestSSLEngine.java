@@ -1,9 +1,17 @@
 package org.mozilla.jss.tests;
 
+import java.net.ServerSocket;
 import java.nio.ByteBuffer;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -12,17 +20,24 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509KeyManager;
+import javax.net.ssl.X509TrustManager;
 
 import org.mozilla.jss.CryptoManager;
 import org.mozilla.jss.provider.javax.crypto.JSSNativeTrustManager;
 import org.mozilla.jss.provider.javax.crypto.JSSTrustManager;
 import org.mozilla.jss.ssl.SSLCipher;
+import org.mozilla.jss.ssl.SSLNamedGroup;
+import org.mozilla.jss.ssl.SSLSignatureScheme;
 import org.mozilla.jss.ssl.SSLVersion;
 import org.mozilla.jss.ssl.javax.JSSEngine;
 import org.mozilla.jss.ssl.javax.JSSEngineReferenceImpl;
 import org.mozilla.jss.ssl.javax.JSSParameters;
+import org.mozilla.jss.ssl.javax.JSSPolicy;
+import org.mozilla.jss.ssl.javax.ServerTemplateCache;
 
 public class TestSSLEngine {
     public static boolean debug = false;
@@ -978,6 +993,471 @@ public class TestSSLEngine {
         }
     }
 
+    public static void testSessionResumption(SSLContext ctx, String client_alias, String server_alias) throws Exception {
+        long before = JSSEngine.getFullHandshakeCount() + JSSEngine.getResumedHandshakeCount();
+        long resumed_before = JSSEngine.getResumedHandshakeCount();
+
+        for (int i = 0; i < 2; i++) {
+            JSSEngine client_eng = (JSSEngine) ctx.createSSLEngine("localhost", 443);
+            client_eng.setSSLParameters(createParameters(client_alias));
+            client_eng.setUseClientMode(true);
+
+            JSSParameters server_params = createParameters(server_alias);
+            server_params.setSessionTickets(true);
+
+            JSSEngine server_eng = (JSSEngine) ctx.createSSLEngine();
+            server_eng.setSSLParameters(server_params);
+            server_eng.setUseClientMode(false);
+            assert(server_eng.getSessionTickets());
+
+            try {
+                testBasicHandshake(client_eng, server_eng, false);
+            } catch (Exception e) {
+                client_eng.cleanup();
+                server_eng.cleanup();
+                throw e;
+            }
+        }
+
+        // Both ends of both handshakes are counted, whether or not NSS
+        // decided to resume the session.
+        long after = JSSEngine.getFullHandshakeCount() + JSSEngine.getResumedHandshakeCount();
+        assert(after - before == 4);
+
+        // The second connection to localhost:443 resumes the first's
+        // session.
+        assert(JSSEngine.getResumedHandshakeCount() > resumed_before);
+        System.out.println(JSSEngine.getSessionCacheStatistics());
+
+        // The client context holds a single session for localhost:443.
+        SSLSessionContext client_ctx = ctx.getClientSessionContext();
+        assert(client_ctx != null);
+        assert(ctx.getServerSessionContext() != null);
+
+        int ids = 0;
+        for (byte[] id : Collections.list(client_ctx.getIds())) {
+            SSLSession cached = client_ctx.getSession(id);
+            assert(cached != null);
+            assert("localhost".equals(cached.getPeerHost()));
+            assert(cached.getSessionContext() == client_ctx);
+            ids++;
+        }
+        assert(ids == 1);
+
+        // Invalidating the session forgets it, so the next connection to
+        // localhost:443 uses a new peer ID.
+        for (byte[] id : Collections.list(client_ctx.getIds())) {
+            SSLSession cached = client_ctx.getSession(id);
+            cached.invalidate();
+            assert(!cached.isValid());
+            assert(client_ctx.getSession(id) == null);
+        }
+    }
+
+    public static void testPolicy(SSLContext ctx, String client_alias, String server_alias) throws Exception {
+        // Engines with the same configuration compile to equal policies,
+        // and thus share a server template.
+        JSSEngine first = (JSSEngine) ctx.createSSLEngine();
+        first.setSSLParameters(createParameters(server_alias));
+        JSSEngine second = (JSSEngine) ctx.createSSLEngine();
+        second.setSSLParameters(createParameters(server_alias));
+
+        JSSPolicy policy = first.getPolicy();
+        assert(policy.equals(second.getPolicy()));
+        assert(policy.hashCode() == second.getPolicy().hashCode());
+
+        second.setEnabledProtocols(new String[] { "TLSv1.2" });
+        assert(!policy.equals(second.getPolicy()));
+        assert(second.getPolicy().getVersionRange().getMaxVersion() == SSLVersion.TLS_1_2);
+
+        // The compiled policy is applied by a handshake: restrict both ends
+        // to a single suite and check it's the one negotiated.
+        JSSEngine client_eng = (JSSEngine) ctx.createSSLEngine();
+        client_eng.setSSLParameters(createParameters(client_alias));
+        client_eng.setUseClientMode(true);
+
+        JSSEngine server_eng = (JSSEngine) ctx.createSSLEngine();
+        server_eng.setSSLParameters(createParameters(server_alias));
+        server_eng.setUseClientMode(false);
+
+        String suite = null;
+        for (String cipher_suite : server_eng.getSupportedCipherSuites()) {
+            if (!skipProtocolCipherSuite("TLSv1.2", cipher_suite, client_alias, server_alias)) {
+                suite = cipher_suite;
+                break;
+            }
+        }
+        assert(suite != null);
+
+        configureSSLEngine(client_eng, "TLSv1.2", suite);
+        configureSSLEngine(server_eng, "TLSv1.2", suite);
+
+        try {
+            testInitialHandshake(client_eng, server_eng);
+            assert(suite.equals(client_eng.getSession().getCipherSuite()));
+
+            boolean found = false;
+            for (ServerTemplateCache.Entry entry : JSSEngine.getServerTemplateCache().getEntries()) {
+                found |= server_eng.getPolicy().equals(entry.getPolicy());
+            }
+            assert(found);
+        } finally {
+            client_eng.cleanup();
+            server_eng.cleanup();
+        }
+    }
+
+    public static JSSEngine createRestrictedEngine(SSLContext ctx, String alias, boolean client, SSLNamedGroup[] groups, SSLSignatureScheme[] schemes) throws Exception {
+        JSSEngine eng = (JSSEngine) ctx.createSSLEngine();
+        eng.setSSLParameters(createParameters(alias));
+        eng.setUseClientMode(client);
+        eng.setEnabledProtocols(new String[] { "TLSv1.3" });
+        eng.setNamedGroups(groups);
+        eng.setSignatureSchemes(schemes);
+        return eng;
+    }
+
+    public static boolean restrictedHandshake(SSLContext ctx, String client_alias, String server_alias,
+        SSLNamedGroup[] client_groups, SSLSignatureScheme[] client_schemes,
+        SSLNamedGroup[] server_groups, SSLSignatureScheme[] server_schemes) throws Exception
+    {
+        JSSEngine client_eng = createRestrictedEngine(ctx, client_alias, true, client_groups, client_schemes);
+        JSSEngine server_eng = createRestrictedEngine(ctx, server_alias, false, server_groups, server_schemes);
+
+        try {
+            testHandshake(client_eng, server_eng, false);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Restricted handshake failed: " + e.getMessage());
+            return false;
+        } finally {
+            client_eng.cleanup();
+            server_eng.cleanup();
+        }
+    }
+
+    public static void testGroupsAndSchemes(SSLContext ctx, String client_alias, String server_alias) throws Exception {
+        SSLNamedGroup p256 = SSLNamedGroup.ssl_grp_ec_secp256r1;
+        SSLNamedGroup p384 = SSLNamedGroup.ssl_grp_ec_secp384r1;
+
+        // Null elements are skipped and empty lists keep the NSS defaults,
+        // rather than configuring NSS with no groups or schemes at all.
+        JSSPolicy policy = new JSSPolicy(null, null, null, null,
+            new SSLNamedGroup[] { null, p256 }, new SSLSignatureScheme[0]);
+        assert(Arrays.equals(policy.getNamedGroups(), new SSLNamedGroup[] { p256 }));
+        assert(policy.getSignatureSchemes() == null);
+        assert(policy.equals(new JSSPolicy(null, null, null, null, new SSLNamedGroup[] { p256 }, null)));
+        assert(new JSSPolicy(null, null, null, null, new SSLNamedGroup[] { null }, null).getNamedGroups() == null);
+
+        SSLSignatureScheme[] rsa = new SSLSignatureScheme[] {
+            SSLSignatureScheme.ssl_sig_rsa_pss_rsae_sha256,
+        };
+        SSLSignatureScheme[] ecdsa = new SSLSignatureScheme[] {
+            SSLSignatureScheme.ssl_sig_ecdsa_secp256r1_sha256,
+            SSLSignatureScheme.ssl_sig_ecdsa_secp384r1_sha384,
+            SSLSignatureScheme.ssl_sig_ecdsa_secp521r1_sha512,
+        };
+        boolean ec_server = server_alias.contains("ECDSA");
+        SSLSignatureScheme[] usable = ec_server ? ecdsa : rsa;
+        SSLSignatureScheme[] unusable = ec_server ? rsa : ecdsa;
+
+        // Both ends restricted to a single group and schemes the server's
+        // key can sign with.
+        SSLNamedGroup[] groups = new SSLNamedGroup[] { p256 };
+        assert(restrictedHandshake(ctx, client_alias, server_alias, groups, usable, groups, usable));
+
+        // The restrictions are really applied: no group in common...
+        assert(!restrictedHandshake(ctx, client_alias, server_alias,
+            groups, usable, new SSLNamedGroup[] { p384 }, usable));
+
+        // ...or no signature scheme the server's key can produce.
+        assert(!restrictedHandshake(ctx, client_alias, server_alias,
+            groups, unusable, groups, usable));
+    }
+
+    public static void runDelegatedTasks(SSLEngine eng) {
+        Runnable runnable;
+        while ((runnable = eng.getDelegatedTask()) != null) {
+            runnable.run();
+        }
+    }
+
+    public static boolean doneHandshaking(SSLEngine eng) {
+        SSLEngineResult.HandshakeStatus state = eng.getHandshakeStatus();
+        return state == SSLEngineResult.HandshakeStatus.FINISHED || state == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * Wrap everything send has for its peer and unwrap all of it on recv.
+     */
+    public static void flushHandshake(SSLEngine send, SSLEngine recv, ByteBuffer net, ByteBuffer app) throws Exception {
+        runDelegatedTasks(send);
+
+        net.clear();
+        while (send.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            if (send.wrap(empty, net).bytesProduced() == 0) {
+                break;
+            }
+        }
+        net.flip();
+
+        while (net.hasRemaining()) {
+            runDelegatedTasks(recv);
+
+            SSLEngineResult r = recv.unwrap(net, app);
+            app.clear();
+            assert(r.bytesConsumed() > 0 || r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK);
+        }
+    }
+
+    public static void testHandshakeStates(SSLContext ctx, String client_alias, String server_alias) throws Exception {
+        JSSEngine client_eng = (JSSEngine) ctx.createSSLEngine();
+        client_eng.setSSLParameters(createParameters(client_alias));
+        client_eng.setUseClientMode(true);
+
+        JSSEngine server_eng = (JSSEngine) ctx.createSSLEngine();
+        server_eng.setSSLParameters(createParameters(server_alias));
+        server_eng.setUseClientMode(false);
+
+        ByteBuffer c2s = ByteBuffer.allocate(1 << 16);
+        ByteBuffer s2c = ByteBuffer.allocate(1 << 16);
+        ByteBuffer app = ByteBuffer.allocate(1 << 16);
+
+        try {
+            client_eng.beginHandshake();
+            server_eng.beginHandshake();
+
+            // Stalled: the server is waiting on the ClientHello. However
+            // often it is stepped, it must keep asking for peer data rather
+            // than alternating between wrap and unwrap.
+            for (int i = 0; i < 8; i++) {
+                SSLEngineResult r = server_eng.wrap(empty, s2c);
+                assert(r.bytesProduced() == 0);
+                assert(r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP);
+
+                r = server_eng.unwrap(empty, app);
+                assert(r.bytesConsumed() == 0 && r.bytesProduced() == 0);
+                assert(r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP);
+            }
+
+            // The client has the ClientHello to send, then stalls on the
+            // server in the same way.
+            assert(client_eng.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            flushHandshake(client_eng, server_eng, c2s, app);
+            for (int i = 0; i < 8; i++) {
+                SSLEngineResult r = client_eng.unwrap(empty, app);
+                assert(r.bytesConsumed() == 0 && r.bytesProduced() == 0);
+                assert(r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP);
+            }
+
+            // Formerly the unknown state: the client holds an incomplete
+            // flight from the server and has nothing to send. Delivered a
+            // byte at a time, every byte must be asked for with NEED_UNWRAP.
+            assert(server_eng.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            s2c.clear();
+            while (server_eng.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (server_eng.wrap(empty, s2c).bytesProduced() == 0) {
+                    break;
+                }
+            }
+            s2c.flip();
+            assert(s2c.remaining() > 1);
+
+            int delivered = 0;
+            while (s2c.hasRemaining()) {
+                SSLEngineResult.HandshakeStatus state = client_eng.getHandshakeStatus();
+                if (state == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks(client_eng);
+                    continue;
+                }
+                assert state == SSLEngineResult.HandshakeStatus.NEED_UNWRAP : "Client asked for " + state + " with " + s2c.remaining() + " bytes of the server's flight left";
+
+                ByteBuffer fragment = s2c.slice();
+                fragment.limit(1);
+
+                SSLEngineResult r = client_eng.unwrap(fragment, app);
+                app.clear();
+                s2c.position(s2c.position() + r.bytesConsumed());
+                delivered += r.bytesConsumed();
+            }
+            assert(delivered > 1);
+
+            // Having the whole flight, the client can make progress and the
+            // handshake completes as usual.
+            for (int step = 0; step < 10 && !(doneHandshaking(client_eng) && doneHandshaking(server_eng)); step++) {
+                flushHandshake(client_eng, server_eng, c2s, app);
+                flushHandshake(server_eng, client_eng, s2c, app);
+            }
+            assert(doneHandshaking(client_eng) && doneHandshaking(server_eng));
+            assert(client_eng.getSession().getCipherSuite().equals(server_eng.getSession().getCipherSuite()));
+        } finally {
+            client_eng.cleanup();
+            server_eng.cleanup();
+        }
+    }
+
+    public static void testCertValidationExecutor(SSLContext ctx, String client_alias, String server_alias) throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        AtomicInteger validations = new AtomicInteger();
+
+        try {
+            // Slow validations down a bit, so the engines are observed with
+            // validation still pending; callers which only know about
+            // delegated tasks must still complete the handshake.
+            Executor slow = task -> pool.execute(() -> {
+                validations.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {}
+                task.run();
+            });
+
+            JSSEngine client_eng = (JSSEngine) ctx.createSSLEngine();
+            client_eng.setSSLParameters(createParameters(client_alias));
+            client_eng.setUseClientMode(true);
+            client_eng.setCertValidationExecutor(slow);
+
+            JSSEngine server_eng = (JSSEngine) ctx.createSSLEngine();
+            server_eng.setSSLParameters(createParameters(server_alias));
+            server_eng.setUseClientMode(false);
+            server_eng.setNeedClientAuth(true);
+            server_eng.setCertValidationExecutor(slow);
+
+            try {
+                testBasicHandshake(client_eng, server_eng, false);
+            } catch (Exception e) {
+                client_eng.cleanup();
+                server_eng.cleanup();
+                throw e;
+            }
+
+            // Both peers validated on the executor.
+            assert(validations.get() >= 2);
+
+            testCleanupDuringValidation(ctx, client_alias, server_alias, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static void testCleanupDuringValidation(SSLContext ctx, String client_alias, String server_alias, ExecutorService pool) throws Exception {
+        // Hold validation until after the client has been cleaned up:
+        // cleanup() must neither wait for it nor free the PRFileDesc it
+        // reads from.
+        CountDownLatch release = new CountDownLatch(1);
+        Executor held = task -> pool.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {}
+            task.run();
+        });
+
+        JSSEngine client_eng = (JSSEngine) ctx.createSSLEngine();
+        client_eng.setSSLParameters(createParameters(client_alias));
+        client_eng.setUseClientMode(true);
+        client_eng.setCertValidationExecutor(held);
+
+        JSSEngine server_eng = (JSSEngine) ctx.createSSLEngine();
+        server_eng.setSSLParameters(createParameters(server_alias));
+        server_eng.setUseClientMode(false);
+
+        ByteBuffer c2s = ByteBuffer.allocate(1 << 17);
+        ByteBuffer s2c = ByteBuffer.allocate(1 << 17);
+
+        try {
+            for (int i = 0; i < 20 && client_eng.getCertValidationFuture().isDone(); i++) {
+                client_eng.wrap(empty, c2s);
+                c2s.flip();
+                server_eng.unwrap(c2s, empty);
+                c2s.compact();
+
+                Runnable runnable;
+                while ((runnable = server_eng.getDelegatedTask()) != null) {
+                    runnable.run();
+                }
+
+                server_eng.wrap(empty, s2c);
+                s2c.flip();
+                client_eng.unwrap(s2c, empty);
+                s2c.compact();
+            }
+
+            // Validation is pending: consumers which only know delegated
+            // tasks are told to run one rather than to wait on the peer.
+            assert(!client_eng.getCertValidationFuture().isDone());
+            assert(client_eng.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK);
+            assert(client_eng.getDelegatedTask() != null);
+
+            long start = System.nanoTime();
+            client_eng.cleanup();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assert(elapsed < 5000) : "cleanup() waited " + elapsed + "ms on validation";
+        } finally {
+            release.countDown();
+            server_eng.cleanup();
+        }
+
+        // The deferred native cleanup runs once validation finishes.
+        client_eng.getCertValidationFuture().get(60, TimeUnit.SECONDS);
+    }
+
+    public static JSSEngine createOptimizedEngine(String alias, boolean client) throws Exception {
+        JSSEngineReferenceImpl eng = client ? new JSSEngineReferenceImpl("localhost", 443) : new JSSEngineReferenceImpl();
+        eng.setVerbose(false);
+
+        // Configure the engine as JSSContextSpi would.
+        for (KeyManager km : getKMs()) {
+            if (km instanceof X509KeyManager) {
+                eng.setKeyManager((X509KeyManager) km);
+            }
+        }
+
+        ArrayList<X509TrustManager> xtms = new ArrayList<>();
+        for (TrustManager tm : getTMs()) {
+            if (tm instanceof X509TrustManager) {
+                xtms.add((X509TrustManager) tm);
+            }
+        }
+        eng.setTrustManagers(xtms.toArray(new X509TrustManager[xtms.size()]));
+
+        eng.setSSLParameters(createParameters(alias));
+        eng.setUseClientMode(client);
+        return eng;
+    }
+
+    public static void testOptimizedEngine(String client_alias, String server_alias) throws Exception {
+        // Without data path logging, the optimized engine behaves exactly
+        // like the reference engine.
+        JSSEngine client_eng = createOptimizedEngine(client_alias, true);
+        JSSEngine server_eng = createOptimizedEngine(server_alias, false);
+
+        try {
+            testBasicHandshake(client_eng, server_eng, false);
+        } catch (Exception e) {
+            client_eng.cleanup();
+            server_eng.cleanup();
+            throw e;
+        }
+
+        // Debug packet logging is still available when asked for.
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        client_eng = createOptimizedEngine(client_alias, true);
+        server_eng = createOptimizedEngine(server_alias, false);
+        ((JSSEngineReferenceImpl) server_eng).enableSafeDebugLogging(port);
+
+        try {
+            testBasicHandshake(client_eng, server_eng, false);
+        } catch (Exception e) {
+            client_eng.cleanup();
+            server_eng.cleanup();
+            throw e;
+        }
+    }
+
     public static void testBasicClientServer(String[] args) throws Exception {
         SSLContext ctx = SSLContext.getInstance("TLS", "Mozilla-JSS");
         ctx.init(getKMs(), getTMs(), null);
@@ -988,6 +1468,11 @@ public class TestSSLEngine {
         testAllHandshakes(ctx, client_alias, server_alias, false);
         testAllHandshakes(ctx, client_alias, server_alias, true);
         testJSSEToJSSHandshakes(ctx, server_alias);
+        testSessionResumption(ctx, client_alias, server_alias);
+        testPolicy(ctx, client_alias, server_alias);
+        testGroupsAndSchemes(ctx, client_alias, server_alias);
+        testHandshakeStates(ctx, client_alias, server_alias);
+        testCertValidationExecutor(ctx, client_alias, server_alias);
     }
 
     public static void testNativeClientServer(String[] args) throws Exception {
@@ -1027,5 +1512,8 @@ public class TestSSLEngine {
 
         System.out.println("Testing basic handshake with native TM...");
         testNativeClientServer(args);
+
+        System.out.println("Testing optimized engine...");
+        testOptimizedEngine(args[2], args[3]);
     }
 }
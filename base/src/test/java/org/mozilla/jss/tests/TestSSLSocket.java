@@ -0,0 +1,253 @@
+package org.mozilla.jss.tests;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.mozilla.jss.ssl.javax.JSSSocket;
+import org.mozilla.jss.ssl.javax.JSSSocketFactory;
+
+/**
+ * Tests of JSSSocket over real sockets, against a JSSSocket peer which
+ * only starts its side of the handshake after a delay.
+ */
+public class TestSSLSocket {
+    public static final int PEER_DELAY_MS = 500;
+
+    public static SSLContext ctx;
+    public static String server_alias;
+    public static ExecutorService pool = Executors.newCachedThreadPool();
+
+    /**
+     * Accept a single connection on server and, after delayMillis, perform
+     * the server side of the handshake. The returned future yields the
+     * handshaked server socket; closing it is up to the caller.
+     */
+    public static Future<JSSSocket> startPeer(ServerSocket server, long delayMillis) {
+        return pool.submit(() -> {
+            Socket raw = server.accept();
+            Thread.sleep(delayMillis);
+
+            JSSSocketFactory factory = (JSSSocketFactory) ctx.getSocketFactory();
+            JSSSocket peer = factory.createSocket(raw, (InputStream) null, true);
+            peer.setCertFromAlias(server_alias);
+            peer.startHandshake();
+            return peer;
+        });
+    }
+
+    public static JSSSocket createClient(Socket raw, int port) throws Exception {
+        JSSSocketFactory factory = (JSSSocketFactory) ctx.getSocketFactory();
+        JSSSocket client = factory.createSocket(raw, "localhost", port, true);
+        client.setUseClientMode(true);
+        client.setHostname("localhost");
+        return client;
+    }
+
+    public static void testBlockingHandshake() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            int port = server.getLocalPort();
+            Future<JSSSocket> peer = startPeer(server, PEER_DELAY_MS);
+
+            Socket raw = new Socket("localhost", port);
+            raw.setSoTimeout(30000);
+
+            JSSSocket client = createClient(raw, port);
+            try {
+                // Blocks on the peer rather than polling; the handshake
+                // can't complete before the peer starts.
+                long start = System.nanoTime();
+                client.startHandshake();
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                assert client.getSession().isValid();
+                assert elapsed >= PEER_DELAY_MS / 2 : "Handshake completed before the peer started: " + elapsed + "ms";
+
+                peer.get(30, TimeUnit.SECONDS).close();
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    public static void testNonBlockingHandshake() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            int port = server.getLocalPort();
+            Future<JSSSocket> peer = startPeer(server, PEER_DELAY_MS);
+
+            SocketChannel raw = SocketChannel.open(new InetSocketAddress("localhost", port));
+            raw.socket().setSoTimeout(30000);
+
+            JSSSocket client = createClient(raw.socket(), port);
+            try {
+                client.getChannel().configureBlocking(false);
+
+                // JSSSocket waits on the channel's readiness between calls
+                // to finishConnect().
+                client.startHandshake();
+                assert client.getSession().isValid();
+
+                peer.get(30, TimeUnit.SECONDS).close();
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    public static void testNonBlockingHandshakeTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            int port = server.getLocalPort();
+
+            // The peer accepts the connection but never handshakes.
+            Future<Socket> peer = pool.submit((Callable<Socket>) server::accept);
+
+            SocketChannel raw = SocketChannel.open(new InetSocketAddress("localhost", port));
+            raw.socket().setSoTimeout(PEER_DELAY_MS);
+
+            JSSSocket client = createClient(raw.socket(), port);
+            try {
+                client.getChannel().configureBlocking(false);
+
+                try {
+                    client.startHandshake();
+                    assert false : "Handshake with a silent peer completed";
+                } catch (SocketTimeoutException expected) {
+                    // SO_TIMEOUT bounds the wait on the peer.
+                }
+            } finally {
+                raw.close();
+                peer.get(30, TimeUnit.SECONDS).close();
+            }
+        }
+    }
+
+    public static void testBlockingChannelHandshakeTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            int port = server.getLocalPort();
+
+            // The peer accepts the connection but never handshakes.
+            Future<Socket> peer = pool.submit((Callable<Socket>) server::accept);
+
+            // Reads on a blocking SocketChannel ignore SO_TIMEOUT; the
+            // handshake must honor it anyway.
+            SocketChannel raw = SocketChannel.open(new InetSocketAddress("localhost", port));
+            raw.socket().setSoTimeout(PEER_DELAY_MS);
+
+            JSSSocket client = createClient(raw.socket(), port);
+            try {
+                assert client.getChannel().isBlocking();
+
+                try {
+                    client.startHandshake();
+                    assert false : "Handshake with a silent peer completed";
+                } catch (SocketTimeoutException expected) {
+                    // SO_TIMEOUT bounds the wait on the peer.
+                }
+            } finally {
+                raw.close();
+                peer.get(30, TimeUnit.SECONDS).close();
+            }
+        }
+    }
+
+    public static void testConcurrentReadWrite() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            int port = server.getLocalPort();
+            Future<JSSSocket> peer = startPeer(server, 0);
+
+            Socket raw = new Socket("localhost", port);
+            raw.setSoTimeout(30000);
+
+            JSSSocket client = createClient(raw, port);
+            try {
+                client.startHandshake();
+                JSSSocket server_side = peer.get(30, TimeUnit.SECONDS);
+
+                // The peer stays silent until it has seen our request, so
+                // the reader blocks in read() the whole time we write.
+                Future<Integer> reader = pool.submit(() -> client.getInputStream().read());
+
+                byte[] request = new byte[32 * 1024];
+                Arrays.fill(request, (byte) 'q');
+
+                Future<?> writer = pool.submit(() -> {
+                    OutputStream out = client.getOutputStream();
+                    out.write(request);
+                    out.flush();
+                    return null;
+                });
+
+                InputStream peer_in = server_side.getInputStream();
+                byte[] received = new byte[request.length];
+                int total = 0;
+                while (total < received.length) {
+                    int n = peer_in.read(received, total, received.length - total);
+                    assert n > 0 : "Peer closed before receiving the full request";
+                    total += n;
+                }
+                assert Arrays.equals(request, received);
+
+                // The write has to complete while the read is still pending.
+                writer.get(30, TimeUnit.SECONDS);
+                assert !reader.isDone() : "Read returned before the peer sent anything";
+
+                server_side.getOutputStream().write('r');
+                server_side.getOutputStream().flush();
+                assert reader.get(30, TimeUnit.SECONDS) == 'r';
+
+                server_side.close();
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Args:
+        //  - nssdb
+        //  - nssdb password
+        //  - client cert
+        //  - server cert
+
+        TestSSLEngine.initialize(args);
+
+        if (org.mozilla.jss.JSSProvider.ENABLE_JSSENGINE == false) {
+            return;
+        }
+
+        ctx = SSLContext.getInstance("TLS", "Mozilla-JSS");
+        ctx.init(TestSSLEngine.getKMs(), TestSSLEngine.getTMs(), null);
+        server_alias = args[3];
+
+        try {
+            System.out.println("Testing blocking handshake with a delayed peer...");
+            testBlockingHandshake();
+
+            System.out.println("Testing non-blocking handshake with a delayed peer...");
+            testNonBlockingHandshake();
+
+            System.out.println("Testing non-blocking handshake with a silent peer...");
+            testNonBlockingHandshakeTimeout();
+
+            System.out.println("Testing blocking channel handshake with a silent peer...");
+            testBlockingChannelHandshakeTimeout();
+
+            System.out.println("Testing concurrent reads and writes...");
+            testConcurrentReadWrite();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
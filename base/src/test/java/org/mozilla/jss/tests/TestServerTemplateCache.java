@@ -0,0 +1,152 @@
+package org.mozilla.jss.tests;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.mozilla.jss.CryptoManager;
+import org.mozilla.jss.asn1.ASN1Util;
+import org.mozilla.jss.asn1.INTEGER;
+import org.mozilla.jss.crypto.CryptoStore;
+import org.mozilla.jss.crypto.SignatureAlgorithm;
+import org.mozilla.jss.pkcs11.PK11Cert;
+import org.mozilla.jss.pkcs11.PK11PrivKey;
+import org.mozilla.jss.pkix.cert.Certificate;
+import org.mozilla.jss.pkix.cert.CertificateInfo;
+import org.mozilla.jss.pkix.primitive.AlgorithmIdentifier;
+import org.mozilla.jss.pkix.primitive.Name;
+import org.mozilla.jss.pkix.primitive.SubjectPublicKeyInfo;
+import org.mozilla.jss.ssl.javax.JSSEngine;
+import org.mozilla.jss.ssl.javax.ServerTemplateCache;
+
+/**
+ * Tests of ServerTemplateCache's eviction of rotated certificates, with an
+ * RSA and an EC certificate sharing a nickname as is common on servers.
+ */
+public class TestServerTemplateCache {
+    public static final String NICKNAME = "ServerTemplateCache";
+
+    public static CryptoManager cm;
+    public static int serial = (int) (System.currentTimeMillis() / 1000);
+
+    /**
+     * Generate a self-signed certificate with a fresh key of the given type
+     * and import it under NICKNAME; all certificates share a subject, so
+     * NSS keeps them under the same nickname.
+     */
+    public static PK11Cert createCert(String keyType, int keySize, SignatureAlgorithm sigAlg) throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(keyType, "Mozilla-JSS");
+        kpg.initialize(keySize);
+        KeyPair pair = kpg.genKeyPair();
+
+        Name name = new Name();
+        name.addCountryName("US");
+        name.addOrganizationName("Mozilla");
+        name.addOrganizationalUnitName("JSS Testing");
+        name.addCommonName(NICKNAME);
+
+        Calendar cal = Calendar.getInstance();
+        Date notBefore = cal.getTime();
+        cal.add(Calendar.YEAR, 1);
+        Date notAfter = cal.getTime();
+
+        SubjectPublicKeyInfo spki = (SubjectPublicKeyInfo) ASN1Util.decode(
+            new SubjectPublicKeyInfo.Template(), pair.getPublic().getEncoded());
+
+        CertificateInfo info = new CertificateInfo(
+            CertificateInfo.v3, new INTEGER(serial++),
+            new AlgorithmIdentifier(sigAlg.toOID()), name, notBefore,
+            notAfter, name, spki);
+        Certificate cert = new Certificate(info, pair.getPrivate(), sigAlg);
+
+        return (PK11Cert) cm.importCertPackage(ASN1Util.encode(cert), NICKNAME);
+    }
+
+    public static PK11PrivKey getKey(PK11Cert cert) throws Exception {
+        return (PK11PrivKey) cm.findPrivKeyByCert(cert);
+    }
+
+    public static void testKeyTypes(PK11Cert rsa, PK11Cert ec) throws Exception {
+        ServerTemplateCache cache = new ServerTemplateCache(16);
+
+        ServerTemplateCache.Entry rsa_entry = cache.get(rsa, getKey(rsa));
+        ServerTemplateCache.Entry ec_entry = cache.get(ec, getKey(ec));
+
+        // Certificates of different key types under one nickname are served
+        // side by side; neither replaces the other.
+        assert cache.size() == 2;
+        assert cache.getEvictions() == 0;
+
+        assert cache.get(rsa, getKey(rsa)) == rsa_entry;
+        assert cache.get(ec, getKey(ec)) == ec_entry;
+        assert cache.getMisses() == 2;
+        assert cache.getHits() == 2;
+
+        cache.invalidateAll();
+        assert cache.size() == 0;
+        assert rsa_entry.isEvicted() && ec_entry.isEvicted();
+    }
+
+    public static void testRotation(PK11Cert rsa, PK11Cert ec, PK11Cert rotated) throws Exception {
+        ServerTemplateCache cache = new ServerTemplateCache(16);
+
+        ServerTemplateCache.Entry rsa_entry = cache.get(rsa, getKey(rsa));
+        ServerTemplateCache.Entry ec_entry = cache.get(ec, getKey(ec));
+
+        // A new RSA certificate under the nickname replaces the old RSA
+        // one only.
+        cache.get(rotated, getKey(rotated));
+        assert cache.size() == 2;
+        assert cache.getEvictions() == 1;
+        assert rsa_entry.isEvicted();
+        assert !ec_entry.isEvicted();
+
+        cache.invalidateAll();
+    }
+
+    public static void testShutdown(PK11Cert rsa) throws Exception {
+        ServerTemplateCache cache = JSSEngine.getServerTemplateCache();
+        ServerTemplateCache.Entry entry = cache.get(rsa, getKey(rsa));
+        assert cache.size() > 0;
+
+        // Cached models are NSS objects and mustn't outlive it.
+        cm.shutdown();
+        assert cache.size() == 0;
+        assert entry.isEvicted();
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Args:
+        //  - nssdb
+        //  - nssdb password
+        //  - server cert
+
+        TestSSLEngine.initialize(args);
+        cm = CryptoManager.getInstance();
+
+        PK11Cert rsa = createCert("RSA", 2048, SignatureAlgorithm.RSASignatureWithSHA256Digest);
+        PK11Cert ec = createCert("EC", 256, SignatureAlgorithm.ECSignatureWithSHA256Digest);
+        PK11Cert rotated = createCert("RSA", 2048, SignatureAlgorithm.RSASignatureWithSHA256Digest);
+
+        CryptoStore store = cm.getInternalKeyStorageToken().getCryptoStore();
+        try {
+            assert NICKNAME.equals(rsa.getNickname());
+            assert NICKNAME.equals(ec.getNickname());
+            assert NICKNAME.equals(rotated.getNickname());
+
+            System.out.println("Testing RSA and EC certificates sharing a nickname...");
+            testKeyTypes(rsa, ec);
+
+            System.out.println("Testing rotation of one of them...");
+            testRotation(rsa, ec, rotated);
+        } finally {
+            store.deleteCert(rsa);
+            store.deleteCert(ec);
+            store.deleteCert(rotated);
+        }
+
+        System.out.println("Testing CryptoManager shutdown...");
+        testShutdown((PK11Cert) cm.findCertByNickname(args[2]));
+    }
+}
@@ -0,0 +1,108 @@
+package org.mozilla.jss.tests;
+
+import java.security.cert.X509Certificate;
+
+import org.mozilla.jss.CryptoManager;
+import org.mozilla.jss.crypto.CryptoStore;
+import org.mozilla.jss.provider.javax.crypto.JSSTrustManager;
+
+/**
+ * Tests of JSSTrustManager's cache of validated certificate chains.
+ */
+public class TestTrustManagerCache {
+    public static JSSTrustManager createTrustManager() {
+        JSSTrustManager tm = new JSSTrustManager();
+
+        // JSS test suite doesn't enable extended key usages.
+        tm.configureAllowMissingExtendedKeyUsage(true);
+        return tm;
+    }
+
+    public static void testCacheHits(X509Certificate[] chain) throws Exception {
+        JSSTrustManager tm = createTrustManager();
+
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheMisses() == 1;
+        assert tm.getCacheHits() == 0;
+        assert tm.getCacheSize() == 1;
+
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheMisses() == 1;
+        assert tm.getCacheHits() == 1;
+
+        // Validated for a different key usage, the chain isn't a hit.
+        try {
+            tm.checkClientTrusted(chain, "RSA");
+        } catch (Exception e) {
+            // The server cert may not be acceptable for client auth.
+        }
+        assert tm.getCacheMisses() == 2;
+        assert tm.getCacheHits() == 1;
+
+        tm.clearCache();
+        assert tm.getCacheSize() == 0;
+
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheMisses() == 3;
+    }
+
+    public static void testCacheDisabled(X509Certificate[] chain) throws Exception {
+        JSSTrustManager tm = createTrustManager();
+        tm.configureCache(0, JSSTrustManager.DEFAULT_CACHE_LIFETIME);
+
+        tm.checkServerTrusted(chain, "RSA");
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheHits() == 0;
+        assert tm.getCacheSize() == 0;
+    }
+
+    public static void testInvalidateOnDelete(CryptoManager cm, X509Certificate[] chain) throws Exception {
+        JSSTrustManager tm = createTrustManager();
+
+        tm.checkServerTrusted(chain, "RSA");
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheHits() == 1;
+
+        // Any certificate deleted through JSS may have been one the chain
+        // relied on, so it invalidates every validated chain.
+        ChainSortingTest certs = new ChainSortingTest();
+        org.mozilla.jss.crypto.X509Certificate imported =
+            cm.importCACertPackage(certs.rootCA.getEncoded());
+
+        long generation = CryptoManager.getTrustGeneration();
+        CryptoStore store = cm.getInternalKeyStorageToken().getCryptoStore();
+        store.deleteCertOnly(imported);
+        assert CryptoManager.getTrustGeneration() > generation;
+
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheHits() == 1;
+        assert tm.getCacheMisses() == 2;
+
+        // Validated again after the delete, it is cached again.
+        tm.checkServerTrusted(chain, "RSA");
+        assert tm.getCacheHits() == 2;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Args:
+        //  - nssdb
+        //  - nssdb password
+        //  - server cert
+
+        TestSSLEngine.initialize(args);
+
+        CryptoManager cm = CryptoManager.getInstance();
+        X509Certificate[] chain = new X509Certificate[] {
+            (X509Certificate) cm.findCertByNickname(args[2])
+        };
+
+        System.out.println("Testing validated chain cache hits...");
+        testCacheHits(chain);
+
+        System.out.println("Testing disabled chain cache...");
+        testCacheDisabled(chain);
+
+        System.out.println("Testing chain cache invalidation on delete...");
+        testInvalidateOnDelete(cm, chain);
+    }
+}
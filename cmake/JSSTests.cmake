@@ -160,6 +160,10 @@ macro(jss_tests)
         NAME "JUnit_ChainSortingTest"
         COMMAND "org.junit.runner.JUnitCore" "org.mozilla.jss.tests.ChainSortingTest"
     )
+    jss_test_java(
+        NAME "JUnit_IssuerIndexTest"
+        COMMAND "org.junit.runner.JUnitCore" "org.mozilla.jss.tests.IssuerIndexTest"
+    )
     jss_test_java(
         NAME "Generate_known_RSA_cert_pair"
         COMMAND "org.mozilla.jss.tests.GenerateTestCert" "${RESULTS_NSSDB_OUTPUT_DIR}" "${PASSWORD_FILE}" "20" "localhost" "SHA-256/RSA" "CA_RSA" "Server_RSA" "Client_RSA"
@@ -232,6 +236,12 @@ macro(jss_tests)
         COMMAND "org.mozilla.jss.tests.JSSContextInitTest" "${RESULTS_NSSDB_OUTPUT_DIR}" "${DB_PWD}" 
         DEPENDS "Setup_DBs"
     )
+    jss_test_java(
+        NAME "CryptoManager"
+        COMMAND "org.mozilla.jss.tests.TestCryptoManager" "${RESULTS_NSSDB_OUTPUT_DIR}" "${PASSWORD_FILE}"
+        DEPENDS "Setup_DBs"
+        MODE "NONE"
+    )
 
     jss_test_java(
         NAME "JSS_Signature_test"
@@ -288,6 +298,21 @@ macro(jss_tests)
         COMMAND "org.mozilla.jss.tests.TestSSLEngine" "${RESULTS_NSSDB_OUTPUT_DIR}" "${PASSWORD_FILE}" "Client_ECDSA" "Server_ECDSA"
         DEPENDS "SSLEngine_RSA"
     )
+    jss_test_java(
+        NAME "SSLSocket_RSA"
+        COMMAND "org.mozilla.jss.tests.TestSSLSocket" "${RESULTS_NSSDB_OUTPUT_DIR}" "${PASSWORD_FILE}" "Client_RSA" "Server_RSA"
+        DEPENDS "SSLEngine_ECDSA"
+    )
+    jss_test_java(
+        NAME "TrustManagerCache"
+        COMMAND "org.mozilla.jss.tests.TestTrustManagerCache" "${RESULTS_NSSDB_OUTPUT_DIR}" "${PASSWORD_FILE}" "Server_RSA"
+        DEPENDS "SSLSocket_RSA"
+    )
+    jss_test_java(
+        NAME "ServerTemplateCache"
+        COMMAND "org.mozilla.jss.tests.TestServerTemplateCache" "${RESULTS_NSSDB_OUTPUT_DIR}" "${PASSWORD_FILE}" "Server_RSA"
+        DEPENDS "TrustManagerCache"
+    )
 
     if(NOT FIPS_ENABLED)
         jss_test_java(
@@ -36,6 +36,25 @@ Java_org_mozilla_jss_nss_Buffer_Capacity(JNIEnv *env, jclass clazz, jobject buf)
     return jb_capacity(real_buf);
 }
 
+JNIEXPORT jboolean JNICALL
+Java_org_mozilla_jss_nss_Buffer_Resize(JNIEnv *env, jclass clazz, jobject buf,
+    jlong capacity)
+{
+    j_buffer *real_buf = NULL;
+
+    PR_ASSERT(env != NULL && buf != NULL);
+
+    if (capacity <= 0) {
+        return false;
+    }
+
+    if (JSS_PR_unwrapJBuffer(env, buf, &real_buf) != PR_SUCCESS) {
+        return false;
+    }
+
+    return jb_resize(real_buf, (size_t) capacity);
+}
+
 JNIEXPORT jboolean JNICALL
 Java_org_mozilla_jss_nss_Buffer_CanRead(JNIEnv *env, jclass clazz, jobject buf)
 {
@@ -139,6 +158,87 @@ Java_org_mozilla_jss_nss_Buffer_Write(JNIEnv *env, jclass clazz, jobject buf, jb
     return write_amount;
 }
 
+JNIEXPORT jlong JNICALL
+Java_org_mozilla_jss_nss_Buffer_ReadRegion(JNIEnv *env, jclass clazz,
+    jobject buf, jbyteArray output, jint offset, jint length)
+{
+    j_buffer *real_buf = NULL;
+    uint8_t *contents = NULL;
+    size_t read_amount = 0;
+
+    PR_ASSERT(env != NULL && buf != NULL && output != NULL);
+    PR_ASSERT(offset >= 0 && length >= 0);
+
+    if (JSS_PR_unwrapJBuffer(env, buf, &real_buf) != PR_SUCCESS) {
+        return 0;
+    }
+
+    if (length == 0) {
+        return 0;
+    }
+
+    /* jb_read is a bounded memcpy and makes no JNI calls, so it is safe to
+     * run while holding the critical section; this avoids copying the whole
+     * array in and out as GetByteArrayElements would. */
+    contents = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+    if (contents == NULL) {
+        ASSERT_OUTOFMEM(env);
+        return 0;
+    }
+
+    /* Bounds were validated by Buffer.checkRegion(...) on the Java side. */
+    read_amount = jb_read(real_buf, contents + offset, (size_t) length);
+    (*env)->ReleasePrimitiveArrayCritical(env, output, contents, 0);
+
+    return read_amount;
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_mozilla_jss_nss_Buffer_ReadDirect(JNIEnv *env, jclass clazz,
+    jobject buf, jobject output, jint offset, jint length)
+{
+    j_buffer *real_buf = NULL;
+    uint8_t *address = NULL;
+
+    PR_ASSERT(env != NULL && buf != NULL && output != NULL);
+    PR_ASSERT(offset >= 0 && length >= 0);
+
+    if (JSS_PR_unwrapJBuffer(env, buf, &real_buf) != PR_SUCCESS) {
+        return 0;
+    }
+
+    address = (uint8_t *)(*env)->GetDirectBufferAddress(env, output);
+    if (address == NULL) {
+        return 0;
+    }
+
+    /* Bounds were validated by Buffer.checkDirect(...) on the Java side. */
+    return jb_read(real_buf, address + offset, (size_t) length);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_mozilla_jss_nss_Buffer_WriteDirect(JNIEnv *env, jclass clazz,
+    jobject buf, jobject input, jint offset, jint length)
+{
+    j_buffer *real_buf = NULL;
+    uint8_t *address = NULL;
+
+    PR_ASSERT(env != NULL && buf != NULL && input != NULL);
+    PR_ASSERT(offset >= 0 && length >= 0);
+
+    if (JSS_PR_unwrapJBuffer(env, buf, &real_buf) != PR_SUCCESS) {
+        return -1;
+    }
+
+    address = (uint8_t *)(*env)->GetDirectBufferAddress(env, input);
+    if (address == NULL) {
+        return -1;
+    }
+
+    /* Bounds were validated by Buffer.checkDirect(...) on the Java side. */
+    return jb_write(real_buf, address + offset, (size_t) length);
+}
+
 JNIEXPORT jint JNICALL
 Java_org_mozilla_jss_nss_Buffer_Get(JNIEnv *env, jclass clazz, jobject buf)
 {
@@ -167,6 +267,21 @@ Java_org_mozilla_jss_nss_Buffer_Put(JNIEnv *env, jclass clazz, jobject buf, jbyt
     return jb_put(real_buf, (uint8_t) input);
 }
 
+JNIEXPORT void JNICALL
+Java_org_mozilla_jss_nss_Buffer_Clear(JNIEnv *env, jclass clazz, jobject buf)
+{
+    j_buffer *real_buf = NULL;
+
+    PR_ASSERT(env != NULL && buf != NULL);
+
+    if (JSS_PR_unwrapJBuffer(env, buf, &real_buf) != PR_SUCCESS ||
+            real_buf == NULL) {
+        return;
+    }
+
+    jb_clear(real_buf);
+}
+
 JNIEXPORT void JNICALL
 Java_org_mozilla_jss_nss_Buffer_Free(JNIEnv *env, jclass clazz, jobject buf)
 {
@@ -134,24 +134,20 @@ Java_org_mozilla_jss_nss_PR_Shutdown(JNIEnv *env, jclass clazz, jobject fd,
     return PR_Shutdown(real_fd, how);
 }
 
-JNIEXPORT jobject JNICALL
-Java_org_mozilla_jss_nss_PR_Read(JNIEnv *env, jclass clazz, jobject fd,
-    jint amount)
+/*
+ * Read up to amount bytes from real_fd into buffer. Returns the number of
+ * bytes read (possibly zero at the end of data), or -1 on error, in which
+ * case the NSPR error is left set for the caller.
+ */
+static int
+JSS_PR_ReadInto(PRFileDesc *real_fd, uint8_t *buffer, int amount)
 {
-    PRFileDesc *real_fd = NULL;
-    jobject result = NULL;
     int read_amount = 0;
     int this_read = 0;
-    uint8_t *buffer = NULL;
     PRSocketOptionData opt = { 0 };
     PRDescType fd_type;
 
-    PR_ASSERT(env != NULL && fd != NULL && amount >= 0);
-    PR_SetError(0, 0);
-
-    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
-        return NULL;
-    }
+    PR_ASSERT(real_fd != NULL && buffer != NULL && amount >= 0);
 
     fd_type = PR_GetDescType(real_fd);
     opt.value.non_blocking = PR_FALSE;
@@ -167,10 +163,6 @@ Java_org_mozilla_jss_nss_PR_Read(JNIEnv *env, jclass clazz, jobject fd,
         }
     }
 
-    PR_ASSERT(real_fd != NULL);
-
-    buffer = calloc(amount, sizeof(uint8_t));
-
     /* Work around a bug in NSS/NSPR: sometimes PR_Read returns a much smaller
      * read than expected, when it could read much more. */
     while (read_amount < amount) {
@@ -188,7 +180,7 @@ Java_org_mozilla_jss_nss_PR_Read(JNIEnv *env, jclass clazz, jobject fd,
                 break;
             }
 
-            goto done;
+            return -1;
         } else {
             read_amount += this_read;
 
@@ -201,6 +193,34 @@ Java_org_mozilla_jss_nss_PR_Read(JNIEnv *env, jclass clazz, jobject fd,
         }
     }
 
+    return read_amount;
+}
+
+JNIEXPORT jobject JNICALL
+Java_org_mozilla_jss_nss_PR_Read(JNIEnv *env, jclass clazz, jobject fd,
+    jint amount)
+{
+    PRFileDesc *real_fd = NULL;
+    jobject result = NULL;
+    int read_amount = 0;
+    uint8_t *buffer = NULL;
+
+    PR_ASSERT(env != NULL && fd != NULL && amount >= 0);
+    PR_SetError(0, 0);
+
+    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
+        return NULL;
+    }
+
+    PR_ASSERT(real_fd != NULL);
+
+    buffer = calloc(amount, sizeof(uint8_t));
+
+    read_amount = JSS_PR_ReadInto(real_fd, buffer, amount);
+    if (read_amount < 0) {
+        goto done;
+    }
+
     result = JSS_ToByteArray(env, buffer, read_amount);
 
 done:
@@ -208,6 +228,32 @@ done:
     return result;
 }
 
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_PR_ReadDirect(JNIEnv *env, jclass clazz, jobject fd,
+    jobject buf, jint offset, jint length)
+{
+    PRFileDesc *real_fd = NULL;
+    uint8_t *address = NULL;
+
+    PR_ASSERT(env != NULL && fd != NULL && buf != NULL);
+    PR_ASSERT(offset >= 0 && length >= 0);
+    PR_SetError(0, 0);
+
+    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
+        return -1;
+    }
+
+    PR_ASSERT(real_fd != NULL);
+
+    address = (uint8_t *)(*env)->GetDirectBufferAddress(env, buf);
+    if (address == NULL) {
+        return -1;
+    }
+
+    /* Bounds were validated by Buffer.checkDirect(...) on the Java side. */
+    return JSS_PR_ReadInto(real_fd, address + offset, length);
+}
+
 JNIEXPORT int JNICALL
 Java_org_mozilla_jss_nss_PR_Write(JNIEnv *env, jclass clazz, jobject fd,
     jbyteArray buf)
@@ -249,6 +295,79 @@ Java_org_mozilla_jss_nss_PR_Write(JNIEnv *env, jclass clazz, jobject fd,
     return result;
 }
 
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_PR_WriteRegion(JNIEnv *env, jclass clazz, jobject fd,
+    jbyteArray buf, jint offset, jint length)
+{
+    PRFileDesc *real_fd = NULL;
+    uint8_t dummy_buffer = 0;
+    uint8_t *buffer = NULL;
+    int result = 0;
+
+    PR_ASSERT(env != NULL && fd != NULL && buf != NULL);
+    PR_ASSERT(offset >= 0 && length >= 0);
+    PR_SetError(0, 0);
+
+    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
+        return 0;
+    }
+
+    PR_ASSERT(real_fd != NULL);
+
+    if (length == 0) {
+        return PR_Write(real_fd, &dummy_buffer, 0);
+    }
+
+    /* PR_Write could block on a real socket, so we can't hold the array
+     * critically; copy just the requested region instead of the entire
+     * array (as GetByteArrayElements would). */
+    buffer = malloc(length);
+    if (buffer == NULL) {
+        JSS_throw(env, OUT_OF_MEMORY_ERROR);
+        return 0;
+    }
+
+    /* Bounds were validated by Buffer.checkRegion(...) on the Java side. */
+    (*env)->GetByteArrayRegion(env, buf, offset, length, (jbyte *)buffer);
+    result = PR_Write(real_fd, buffer, length);
+    free(buffer);
+
+    return result;
+}
+
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_PR_WriteDirect(JNIEnv *env, jclass clazz, jobject fd,
+    jobject buf, jint offset, jint length)
+{
+    PRFileDesc *real_fd = NULL;
+    uint8_t dummy_buffer = 0;
+    uint8_t *address = NULL;
+
+    PR_ASSERT(env != NULL && fd != NULL);
+    PR_ASSERT(offset >= 0 && length >= 0);
+    PR_SetError(0, 0);
+
+    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
+        return 0;
+    }
+
+    PR_ASSERT(real_fd != NULL);
+
+    if (buf == NULL || length == 0) {
+        /* Mirror PR.Write(fd, null): a zero-length write flushes any data
+         * NSS has buffered internally. */
+        return PR_Write(real_fd, &dummy_buffer, 0);
+    }
+
+    address = (uint8_t *)(*env)->GetDirectBufferAddress(env, buf);
+    if (address == NULL) {
+        return 0;
+    }
+
+    /* Bounds were validated by Buffer.checkDirect(...) on the Java side. */
+    return PR_Write(real_fd, address + offset, length);
+}
+
 JNIEXPORT jobject JNICALL
 Java_org_mozilla_jss_nss_PR_Recv(JNIEnv *env, jclass clazz, jobject fd,
     jint amount, jint flags, jlong timeout)
@@ -5,6 +5,7 @@
 #include <sslexp.h>
 #include <limits.h>
 #include <stdint.h>
+#include <stdlib.h>
 #include <jni.h>
 
 #include "jssconfig.h"
@@ -346,6 +347,171 @@ Java_org_mozilla_jss_nss_SSL_VersionRangeSetNative(JNIEnv *env, jclass clazz,
     return SSL_VersionRangeSet(real_fd, &vrange);
 }
 
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_SSL_ApplyPolicy(JNIEnv *env, jclass clazz,
+    jobject fd, jintArray ciphers, jint min_ssl, jint max_ssl,
+    jintArray options, jintArray groups, jintArray schemes)
+{
+    PRFileDesc *real_fd = NULL;
+    jintArray current = NULL;
+    jint *values = NULL;
+    jsize length = 0;
+    jsize i = 0;
+    int disabled = 0;
+    SECStatus ret = SECFailure;
+
+    PR_ASSERT(env != NULL && fd != NULL);
+    PR_SetError(0, 0);
+
+    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
+        JSS_throwMsg(env, INVALID_PARAMETER_EXCEPTION,
+            "Unable to dereference fd object");
+        return SECFailure;
+    }
+
+    if (min_ssl >= 0 && max_ssl >= 0) {
+        SSLVersionRange vrange;
+
+        if (min_ssl >= JSSL_enums_size || max_ssl >= JSSL_enums_size) {
+            char buf[128];
+            snprintf(buf, 128,
+                     "SSL.ApplyPolicy(): for min=%d max=%d failed - out of range for array JSSL_enums size: %d",
+                     min_ssl, max_ssl, JSSL_enums_size);
+            JSSL_throwSSLSocketException(env, buf);
+            return SECFailure;
+        }
+
+        vrange.min = JSSL_enums[min_ssl];
+        vrange.max = JSSL_enums[max_ssl];
+
+        if (SSL_VersionRangeSet(real_fd, &vrange) != SECSuccess) {
+            return SECFailure;
+        }
+    }
+
+    if (ciphers != NULL) {
+        PRUint16 suite = 0;
+
+        length = (*env)->GetArrayLength(env, ciphers);
+        values = (*env)->GetIntArrayElements(env, ciphers, NULL);
+        if (values == NULL) {
+            return SECFailure;
+        }
+        current = ciphers;
+
+        /* Disable every implemented suite which wasn't requested. */
+        for (suite = 0; suite < SSL_NumImplementedCiphers; suite++) {
+            PRBool requested = PR_FALSE;
+            for (i = 0; i < length; i++) {
+                if (values[i] == SSL_ImplementedCiphers[suite]) {
+                    requested = PR_TRUE;
+                    break;
+                }
+            }
+
+            if (!requested) {
+                SSL_CipherPrefSet(real_fd, SSL_ImplementedCiphers[suite], PR_FALSE);
+            }
+        }
+
+        /* Failing to enable a suite is usually due to local policy; count
+         * these rather than failing. */
+        for (i = 0; i < length; i++) {
+            if (SSL_CipherPrefSet(real_fd, values[i], PR_TRUE) != SECSuccess) {
+                disabled++;
+            }
+        }
+
+        (*env)->ReleaseIntArrayElements(env, ciphers, values, JNI_ABORT);
+        values = NULL;
+    }
+
+    if (options != NULL) {
+        length = (*env)->GetArrayLength(env, options);
+        values = (*env)->GetIntArrayElements(env, options, NULL);
+        if (values == NULL) {
+            return SECFailure;
+        }
+        current = options;
+
+        for (i = 0; i + 1 < length; i += 2) {
+            if (SSL_OptionSet(real_fd, values[i], values[i + 1]) != SECSuccess) {
+                goto done;
+            }
+        }
+
+        (*env)->ReleaseIntArrayElements(env, options, values, JNI_ABORT);
+        values = NULL;
+    }
+
+    if (groups != NULL) {
+        SSLNamedGroup *real_groups = NULL;
+
+        length = (*env)->GetArrayLength(env, groups);
+        values = (*env)->GetIntArrayElements(env, groups, NULL);
+        if (values == NULL) {
+            return SECFailure;
+        }
+        current = groups;
+
+        real_groups = calloc(length > 0 ? length : 1, sizeof(SSLNamedGroup));
+        if (real_groups == NULL) {
+            goto done;
+        }
+
+        for (i = 0; i < length; i++) {
+            real_groups[i] = (SSLNamedGroup)values[i];
+        }
+
+        ret = SSL_NamedGroupConfig(real_fd, real_groups, length);
+        free(real_groups);
+        if (ret != SECSuccess) {
+            goto done;
+        }
+
+        (*env)->ReleaseIntArrayElements(env, groups, values, JNI_ABORT);
+        values = NULL;
+    }
+
+    if (schemes != NULL) {
+        SSLSignatureScheme *real_schemes = NULL;
+
+        length = (*env)->GetArrayLength(env, schemes);
+        values = (*env)->GetIntArrayElements(env, schemes, NULL);
+        if (values == NULL) {
+            return SECFailure;
+        }
+        current = schemes;
+
+        real_schemes = calloc(length > 0 ? length : 1, sizeof(SSLSignatureScheme));
+        if (real_schemes == NULL) {
+            goto done;
+        }
+
+        for (i = 0; i < length; i++) {
+            real_schemes[i] = (SSLSignatureScheme)values[i];
+        }
+
+        ret = SSL_SignatureSchemePrefSet(real_fd, real_schemes, length);
+        free(real_schemes);
+        if (ret != SECSuccess) {
+            goto done;
+        }
+
+        (*env)->ReleaseIntArrayElements(env, schemes, values, JNI_ABORT);
+        values = NULL;
+    }
+
+    return disabled;
+
+done:
+    /* Release the elements of the array being processed on failure. */
+    if (values != NULL) {
+        (*env)->ReleaseIntArrayElements(env, current, values, JNI_ABORT);
+    }
+    return SECFailure;
+}
+
 JNIEXPORT jobject JNICALL
 Java_org_mozilla_jss_nss_SSL_VersionRangeGet(JNIEnv *env, jclass clazz,
     jobject fd)
@@ -720,6 +886,106 @@ Java_org_mozilla_jss_nss_SSL_ConfigServerSessionIDCache(JNIEnv *env, jclass claz
     return ret;
 }
 
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_SSL_ConfigMPServerSIDCache(JNIEnv *env, jclass clazz,
+    jint maxCacheEntries, jlong timeout, jlong ssl3_timeout, jstring directory)
+{
+    const char *dir_path;
+    SECStatus ret = SECFailure;
+
+    PR_ASSERT(env != NULL);
+    PR_SetError(0, 0);
+
+    dir_path = JSS_RefJString(env, directory);
+
+    ret = SSL_ConfigMPServerSIDCache(maxCacheEntries, timeout,
+        ssl3_timeout, dir_path);
+
+    JSS_DerefJString(env, directory, dir_path);
+    return ret;
+}
+
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_SSL_InheritMPServerSIDCache(JNIEnv *env, jclass clazz,
+    jstring envString)
+{
+    const char *env_value;
+    SECStatus ret = SECFailure;
+
+    PR_ASSERT(env != NULL);
+    PR_SetError(0, 0);
+
+    env_value = JSS_RefJString(env, envString);
+
+    ret = SSL_InheritMPServerSIDCache(env_value);
+
+    JSS_DerefJString(env, envString, env_value);
+    return ret;
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_org_mozilla_jss_nss_SSL_GetStatisticsNative(JNIEnv *env, jclass clazz)
+{
+    SSL3Statistics *stats;
+    jlongArray result;
+    jlong values[13];
+
+    PR_ASSERT(env != NULL);
+
+    stats = SSL_GetStatistics();
+    if (stats == NULL) {
+        return NULL;
+    }
+
+    /* Keep in sync with the field order in SSLStatistics.java. */
+    values[0] = stats->sch_sid_cache_hits;
+    values[1] = stats->sch_sid_cache_misses;
+    values[2] = stats->sch_sid_cache_not_ok;
+    values[3] = stats->hsh_sid_cache_hits;
+    values[4] = stats->hsh_sid_cache_misses;
+    values[5] = stats->hsh_sid_cache_not_ok;
+    values[6] = stats->hch_sid_cache_hits;
+    values[7] = stats->hch_sid_cache_misses;
+    values[8] = stats->hch_sid_cache_not_ok;
+    values[9] = stats->sch_sid_stateless_resumes;
+    values[10] = stats->hsh_sid_stateless_resumes;
+    values[11] = stats->hch_sid_stateless_resumes;
+    values[12] = stats->hch_sid_ticket_parse_failures;
+
+    result = (*env)->NewLongArray(env, 13);
+    if (result == NULL) {
+        return NULL;
+    }
+
+    (*env)->SetLongArrayRegion(env, result, 0, 13, values);
+    return result;
+}
+
+JNIEXPORT int JNICALL
+Java_org_mozilla_jss_nss_SSL_SetSockPeerID(JNIEnv *env, jclass clazz,
+    jobject fd, jstring peerID)
+{
+    PRFileDesc *real_fd = NULL;
+    SECStatus ret = SECFailure;
+    const char *real_peer_id = NULL;
+
+    PR_ASSERT(env != NULL && fd != NULL);
+    PR_SetError(0, 0);
+
+    if (JSS_PR_getPRFileDesc(env, fd, &real_fd) != PR_SUCCESS) {
+        return ret;
+    }
+
+    real_peer_id = JSS_RefJString(env, peerID);
+    if (real_peer_id == NULL) {
+        return ret;
+    }
+
+    ret = SSL_SetSockPeerID(real_fd, real_peer_id);
+    JSS_DerefJString(env, peerID, real_peer_id);
+    return ret;
+}
+
 JNIEXPORT int JNICALL
 Java_org_mozilla_jss_nss_SSL_InvalidateSession(JNIEnv *env, jclass clazz,
     jobject fd)
@@ -1131,3 +1397,9 @@ Java_org_mozilla_jss_nss_SSL_getSSLRequireNoError(JNIEnv *env, jclass clazz)
 {
     return SSL_REQUIRE_NO_ERROR;
 }
+
+JNIEXPORT jint JNICALL
+Java_org_mozilla_jss_nss_SSL_getSSLEnableSessionTickets(JNIEnv *env, jclass clazz)
+{
+    return SSL_ENABLE_SESSION_TICKETS;
+}
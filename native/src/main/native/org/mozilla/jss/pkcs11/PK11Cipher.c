@@ -330,3 +330,194 @@ Java_org_mozilla_jss_pkcs11_CipherContextProxy_releaseNativeResources
         PK11_DestroyContext(context, PR_TRUE /*freeit*/);
     }
 }
+
+/*
+ * Runs input through the context, writing at most maxOut bytes to output.
+ * Returns the number of bytes written, or -1 when an exception was thrown.
+ */
+static jint
+cipherOpInto(JNIEnv *env, PK11Context *context, unsigned char *output,
+    jint maxOut, unsigned char *input, jint inLen)
+{
+    int outLen = 0;
+
+    if( PK11_CipherOp(context, output, &outLen, maxOut, input, inLen)
+            != SECSuccess ) {
+        JSS_throwMsgPrErrArg(
+            env, TOKEN_EXCEPTION, "Cipher context update failed",
+            PR_GetError());
+        return -1;
+    }
+
+    return outLen;
+}
+
+/*
+ * Finalizes the context, writing at most maxOut bytes to output. Returns
+ * the number of bytes written, or -1 when an exception was thrown.
+ */
+static jint
+cipherFinalInto(JNIEnv *env, PK11Context *context, unsigned char *output,
+    jint maxOut)
+{
+    unsigned int outLen = 0;
+
+    if( PK11_DigestFinal(context, output, &outLen, maxOut) != SECSuccess ) {
+        JSS_throwMsgPrErrArg(
+            env, TOKEN_EXCEPTION, "Cipher context finalization failed",
+            PR_GetError());
+        return -1;
+    }
+
+    return outLen;
+}
+
+/***********************************************************************
+ *
+ * PK11Cipher.updateContextInto
+ *
+ * Bounds were validated on the Java side. The arrays are pinned rather
+ * than copied, so input and output may be the same array.
+ */
+JNIEXPORT jint JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Cipher_updateContextInto
+    (JNIEnv *env, jclass clazz, jobject contextObj, jbyteArray inputBA,
+    jint inOffset, jint inLen, jbyteArray outputBA, jint outOffset,
+    jint outLen)
+{
+    PK11Context *context = NULL;
+    jbyte *inbuf = NULL;
+    jbyte *outbuf = NULL;
+    jint written = -1;
+
+    PR_ASSERT(env != NULL && contextObj != NULL);
+    PR_ASSERT(inputBA != NULL && outputBA != NULL);
+
+    if( JSS_PK11_getCipherContext(env, contextObj, &context) != PR_SUCCESS) {
+        return -1;
+    }
+
+    inbuf = (*env)->GetPrimitiveArrayCritical(env, inputBA, NULL);
+    if( inbuf == NULL ) {
+        ASSERT_OUTOFMEM(env);
+        goto finish;
+    }
+
+    outbuf = (*env)->GetPrimitiveArrayCritical(env, outputBA, NULL);
+    if( outbuf == NULL ) {
+        ASSERT_OUTOFMEM(env);
+        goto finish;
+    }
+
+    written = cipherOpInto(env, context, (unsigned char *)(outbuf + outOffset),
+        outLen, (unsigned char *)(inbuf + inOffset), inLen);
+
+finish:
+    if( outbuf != NULL ) {
+        (*env)->ReleasePrimitiveArrayCritical(env, outputBA, outbuf,
+            written < 0 ? JNI_ABORT : 0);
+    }
+    if( inbuf != NULL ) {
+        (*env)->ReleasePrimitiveArrayCritical(env, inputBA, inbuf, JNI_ABORT);
+    }
+    return written;
+}
+
+/***********************************************************************
+ *
+ * PK11Cipher.updateContextDirect
+ *
+ * Bounds were validated on the Java side.
+ */
+JNIEXPORT jint JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Cipher_updateContextDirect
+    (JNIEnv *env, jclass clazz, jobject contextObj, jobject input,
+    jint inOffset, jint inLen, jobject output, jint outOffset, jint outLen)
+{
+    PK11Context *context = NULL;
+    unsigned char *inbuf = NULL;
+    unsigned char *outbuf = NULL;
+
+    PR_ASSERT(env != NULL && contextObj != NULL);
+    PR_ASSERT(input != NULL && output != NULL);
+
+    if( JSS_PK11_getCipherContext(env, contextObj, &context) != PR_SUCCESS) {
+        return -1;
+    }
+
+    inbuf = (unsigned char *)(*env)->GetDirectBufferAddress(env, input);
+    outbuf = (unsigned char *)(*env)->GetDirectBufferAddress(env, output);
+    if( inbuf == NULL || outbuf == NULL ) {
+        JSS_throwMsg(env, TOKEN_EXCEPTION,
+            "Unable to access direct ByteBuffer contents");
+        return -1;
+    }
+
+    return cipherOpInto(env, context, outbuf + outOffset, outLen,
+        inbuf + inOffset, inLen);
+}
+
+/***********************************************************************
+ *
+ * PK11Cipher.finalizeContextInto
+ *
+ * Bounds were validated on the Java side.
+ */
+JNIEXPORT jint JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Cipher_finalizeContextInto
+    (JNIEnv *env, jclass clazz, jobject contextObj, jbyteArray outputBA,
+    jint outOffset, jint outLen)
+{
+    PK11Context *context = NULL;
+    jbyte *outbuf = NULL;
+    jint written = -1;
+
+    PR_ASSERT(env != NULL && contextObj != NULL && outputBA != NULL);
+
+    if( JSS_PK11_getCipherContext(env, contextObj, &context) != PR_SUCCESS) {
+        return -1;
+    }
+
+    outbuf = (*env)->GetPrimitiveArrayCritical(env, outputBA, NULL);
+    if( outbuf == NULL ) {
+        ASSERT_OUTOFMEM(env);
+        return -1;
+    }
+
+    written = cipherFinalInto(env, context,
+        (unsigned char *)(outbuf + outOffset), outLen);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, outputBA, outbuf,
+        written < 0 ? JNI_ABORT : 0);
+    return written;
+}
+
+/***********************************************************************
+ *
+ * PK11Cipher.finalizeContextDirect
+ *
+ * Bounds were validated on the Java side.
+ */
+JNIEXPORT jint JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Cipher_finalizeContextDirect
+    (JNIEnv *env, jclass clazz, jobject contextObj, jobject output,
+    jint outOffset, jint outLen)
+{
+    PK11Context *context = NULL;
+    unsigned char *outbuf = NULL;
+
+    PR_ASSERT(env != NULL && contextObj != NULL && output != NULL);
+
+    if( JSS_PK11_getCipherContext(env, contextObj, &context) != PR_SUCCESS) {
+        return -1;
+    }
+
+    outbuf = (unsigned char *)(*env)->GetDirectBufferAddress(env, output);
+    if( outbuf == NULL ) {
+        JSS_throwMsg(env, TOKEN_EXCEPTION,
+            "Unable to access direct ByteBuffer contents");
+        return -1;
+    }
+
+    return cipherFinalInto(env, context, outbuf + outOffset, outLen);
+}
@@ -17,6 +17,9 @@
 #include <pk11util.h>
 #include <Algorithm.h>
 
+/* Input for one-shot operations over zero bytes */
+static unsigned char empty[1];
+
 
 /***********************************************************************
  *
@@ -176,3 +179,154 @@ finish:
     JSS_DerefByteArray(env, outbuf, bytes, 0);
     return outLen;
 }
+
+
+/***********************************************************************
+ *
+ * PK11MessageDigest.cloneContext
+ *
+ */
+JNIEXPORT jobject JNICALL
+Java_org_mozilla_jss_pkcs11_PK11MessageDigest_cloneContext
+    (JNIEnv *env, jclass clazz, jobject proxyObj)
+{
+    PK11Context *context = NULL;
+    PK11Context *copy = NULL;
+
+    if( JSS_PK11_getCipherContext(env, proxyObj, &context) != PR_SUCCESS ) {
+        /* exception was thrown */
+        return NULL;
+    }
+
+    /* Saves the operation state of the original context and restores it
+     * into a new session; fails if the token can't save the state. */
+    copy = PK11_CloneContext(context);
+    if( copy == NULL ) {
+        JSS_throwMsgPrErr(env, DIGEST_EXCEPTION,
+            "Unable to clone digest context");
+        return NULL;
+    }
+
+    return JSS_PK11_wrapCipherContextProxy(env, &copy);
+}
+
+/***********************************************************************
+ *
+ * PK11MessageDigest.hashBuf
+ *
+ * One-shot digest without a digest context. Bounds and the size of the
+ * output buffer were validated on the Java side.
+ */
+JNIEXPORT void JNICALL
+Java_org_mozilla_jss_pkcs11_PK11MessageDigest_hashBuf
+    (JNIEnv *env, jclass clazz, jobject algObj, jbyteArray inbufBA,
+        jint offset, jint len, jbyteArray outbufBA, jint outOffset)
+{
+    SECOidTag alg;
+    jbyte *inbuf = NULL;
+    jbyte *outbuf = NULL;
+    jsize inLength = 0;
+    jsize outLength = 0;
+    SECStatus status = SECFailure;
+
+    alg = JSS_getOidTagFromAlg(env, algObj);
+    PR_ASSERT( alg != SEC_OID_UNKNOWN ); /* we checked already in Java */
+
+    /* JSS_RefByteArray rejects empty arrays; empty input needs none. */
+    if( len > 0 && (!JSS_RefByteArray(env, inbufBA, &inbuf, &inLength) ||
+            inLength < offset+len) ) {
+        goto finish;
+    }
+
+    if( !JSS_RefByteArray(env, outbufBA, &outbuf, &outLength) ) {
+        goto finish;
+    }
+
+    status = PK11_HashBuf(alg, (unsigned char*)(outbuf + outOffset),
+                inbuf == NULL ? empty : (unsigned char*)(inbuf + offset), len);
+
+finish:
+    JSS_DerefByteArray(env, outbufBA, outbuf,
+        status == SECSuccess ? 0 : JNI_ABORT);
+    JSS_DerefByteArray(env, inbufBA, inbuf, JNI_ABORT);
+
+    if( status != SECSuccess && !(*env)->ExceptionOccurred(env) ) {
+        JSS_throwMsgPrErr(env, DIGEST_EXCEPTION, "Digest operation failed");
+    }
+}
+
+/***********************************************************************
+ *
+ * PK11MessageDigest.signBuf
+ *
+ * One-shot HMAC or CMAC without a digest context. Bounds and the size of
+ * the output buffer were validated on the Java side.
+ */
+JNIEXPORT jint JNICALL
+Java_org_mozilla_jss_pkcs11_PK11MessageDigest_signBuf
+    (JNIEnv *env, jclass clazz, jobject algObj, jobject keyObj,
+        jbyteArray inbufBA, jint offset, jint len, jbyteArray outbufBA,
+        jint outOffset, jint outLen)
+{
+    PK11SymKey *origKey = NULL, *newKey = NULL;
+    CK_MECHANISM_TYPE mech;
+    SECItem param = { siBuffer, NULL, 0 };
+    SECItem data = { siBuffer, NULL, 0 };
+    SECItem mac = { siBuffer, NULL, 0 };
+    jbyte *inbuf = NULL;
+    jbyte *outbuf = NULL;
+    jsize inLength = 0;
+    jsize outLength = 0;
+    SECStatus status = SECFailure;
+    bool freeNewKey = true;
+
+    mech = JSS_getPK11MechFromAlg(env, algObj);
+    PR_ASSERT( mech != CKM_INVALID_MECHANISM ); /* we checked already in Java */
+
+    if( JSS_PK11_getSymKeyPtr(env, keyObj, &origKey) != PR_SUCCESS ) {
+        /* exception was thrown */
+        return 0;
+    }
+
+    /* copy the key, setting the CKA_SIGN attribute, as in initHMAC */
+    newKey = PK11_CopySymKeyForSigning(origKey, mech);
+    if( newKey == NULL ) {
+        newKey = origKey;
+        freeNewKey = false;
+    }
+
+    /* JSS_RefByteArray rejects empty arrays; empty input needs none. */
+    if( len > 0 && (!JSS_RefByteArray(env, inbufBA, &inbuf, &inLength) ||
+            inLength < offset+len) ) {
+        goto finish;
+    }
+
+    if( !JSS_RefByteArray(env, outbufBA, &outbuf, &outLength) ) {
+        goto finish;
+    }
+
+    data.data = inbuf == NULL ? empty : (unsigned char*)(inbuf + offset);
+    data.len = len;
+    mac.data = (unsigned char*)(outbuf + outOffset);
+    mac.len = outLen;
+
+    status = PK11_SignWithSymKey(newKey, mech, &param, &mac, &data);
+
+finish:
+    JSS_DerefByteArray(env, outbufBA, outbuf,
+        status == SECSuccess ? 0 : JNI_ABORT);
+    JSS_DerefByteArray(env, inbufBA, inbuf, JNI_ABORT);
+    if( freeNewKey ) {
+        PK11_FreeSymKey(newKey);
+    }
+
+    if( status != SECSuccess ) {
+        if( !(*env)->ExceptionOccurred(env) ) {
+            JSS_throwMsgPrErr(env, DIGEST_EXCEPTION,
+                "Unable to compute HMAC");
+        }
+        return 0;
+    }
+
+    return mac.len;
+}
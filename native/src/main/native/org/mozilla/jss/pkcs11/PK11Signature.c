@@ -45,39 +45,37 @@ static SECStatus
 getRSAPSSParamsAndSigningAlg(JNIEnv *env, jobject this, PRArenaPool *arena,
     SECAlgorithmID **alg, SECKEYPrivateKey *privk);
 
-/***********************************************************************
- *
- * PK11Signature.initSigContext
+/*
+ * Creates a signing context for the key and algorithm of a PK11Signature.
+ * RSA-PSS parameters are allocated in *arena, which must outlive the
+ * context. Returns NULL when an exception was thrown.
  */
-JNIEXPORT void JNICALL
-Java_org_mozilla_jss_pkcs11_PK11Signature_initSigContext
-  (JNIEnv *env, jobject this)
+static SGNContext *
+createSigContext(JNIEnv *env, jobject this, PRArenaPool **arena)
 {
     SGNContext *ctxt = NULL;
-    jobject contextProxy = NULL;
     SECKEYPrivateKey *privk = NULL;
     SECAlgorithmID *signAlg = NULL;
     SECStatus rv = SECFailure;
-    PRArenaPool *arena = NULL;
     SECOidTag signingAlg = SEC_OID_UNKNOWN;
 
     /* Extract the private key from the PK11Signature */
     if (getPrivateKey(env, this, &privk) != PR_SUCCESS) {
         PR_ASSERT((*env)->ExceptionOccurred(env) != NULL);
-        goto finish;
+        return NULL;
     }
 
     signingAlg = getAlgorithm(env,this);
     if (signingAlg == SEC_OID_PKCS1_RSA_PSS_SIGNATURE) {
-        arena = PORT_NewArena(DER_DEFAULT_CHUNKSIZE);
-        if (!arena) {
+        *arena = PORT_NewArena(DER_DEFAULT_CHUNKSIZE);
+        if (!*arena) {
            JSS_throw(env, OUT_OF_MEMORY_ERROR);
-           goto finish;
+           return NULL;
         }
 
-        rv = getRSAPSSParamsAndSigningAlg(env, this, arena, &signAlg, privk);
+        rv = getRSAPSSParamsAndSigningAlg(env, this, *arena, &signAlg, privk);
         if (rv == SECFailure) {
-            goto finish;
+            return NULL;
         }
 
         /* Start the signing operation */
@@ -88,51 +86,24 @@ Java_org_mozilla_jss_pkcs11_PK11Signature_initSigContext
 
     if (ctxt == NULL) {
         JSS_throwMsgPrErr(env, TOKEN_EXCEPTION, "Unable to create signing context");
-        goto finish;
     }
 
-    if (SGN_Begin(ctxt) != SECSuccess) {
-        JSS_throwMsgPrErr(env, TOKEN_EXCEPTION, "Unable to begin signing context");
-        goto finish;
-    }
-
-    /* Create a contextProxy and stick it in the PK11Signature object */
-    contextProxy = JSS_PK11_wrapSigContextProxy(env, (void**)&ctxt,
-                                                SGN_CONTEXT, &arena);
-
-    if (contextProxy == NULL) {
-        PR_ASSERT((*env)->ExceptionOccurred(env) != NULL);
-        goto finish;
-    }
-
-    // Signature algorithm for RSA PSS allocated in the arena,
-    // which is destroyed on exit.
-    setSigContext(env, this, contextProxy);
-
-finish:
-    if (contextProxy == NULL && ctxt != NULL) {
-        /* we created a context but not the Java wrapper, so we need to
-         * delete the context here. */
-        SGN_DestroyContext(ctxt, PR_TRUE /*freeit*/);
-    }
-
-    /* When contentProxy is created, arena will be NULLed and contentProxy
-     * takes ownership of it. Otherwise, when arena still exists, we must
-     * free it now. */
-    PORT_FreeArena(arena, PR_TRUE /* zero */);
+    return ctxt;
 }
 
-JNIEXPORT void JNICALL
-Java_org_mozilla_jss_pkcs11_PK11Signature_initVfyContext
-    (JNIEnv *env, jobject this)
+/*
+ * Creates a verification context for the key and algorithm of a
+ * PK11Signature. RSA-PSS parameters are allocated in *arena, which must
+ * outlive the context. Returns NULL when an exception was thrown.
+ */
+static VFYContext *
+createVfyContext(JNIEnv *env, jobject this, PRArenaPool **arena)
 {
     VFYContext *ctxt = NULL;
-    jobject contextProxy = NULL;
     SECKEYPublicKey *pubk = NULL;
     SECKEYPrivateKey *privk = NULL;
     SECKEYPublicKey *tempPubKey = NULL;
 
-    PRArenaPool *arena = NULL;
     SECAlgorithmID *signAlg = NULL;
     SECStatus rv = SECFailure;
     SECOidTag signingAlg = SEC_OID_UNKNOWN;
@@ -153,13 +124,13 @@ Java_org_mozilla_jss_pkcs11_PK11Signature_initVfyContext
             goto finish;
         }
 
-        arena = PORT_NewArena(DER_DEFAULT_CHUNKSIZE);
-        if (arena == NULL) {
+        *arena = PORT_NewArena(DER_DEFAULT_CHUNKSIZE);
+        if (*arena == NULL) {
             JSS_throw(env, OUT_OF_MEMORY_ERROR);
             goto finish;
         }
 
-        rv = getRSAPSSParamsAndSigningAlg(env, this, arena, &signAlg, privk);
+        rv = getRSAPSSParamsAndSigningAlg(env, this, *arena, &signAlg, privk);
         if (rv == SECFailure) {
             PR_ASSERT((*env)->ExceptionOccurred(env) != NULL);
             goto finish;
@@ -179,6 +150,73 @@ Java_org_mozilla_jss_pkcs11_PK11Signature_initVfyContext
         goto finish;
     }
 
+finish:
+    SECKEY_DestroyPublicKey(tempPubKey);
+    SECKEY_DestroyPrivateKey(privk);
+    return ctxt;
+}
+
+/***********************************************************************
+ *
+ * PK11Signature.initSigContext
+ */
+JNIEXPORT void JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Signature_initSigContext
+  (JNIEnv *env, jobject this)
+{
+    SGNContext *ctxt = NULL;
+    jobject contextProxy = NULL;
+    PRArenaPool *arena = NULL;
+
+    ctxt = createSigContext(env, this, &arena);
+    if (ctxt == NULL) {
+        goto finish;
+    }
+
+    if (SGN_Begin(ctxt) != SECSuccess) {
+        JSS_throwMsgPrErr(env, TOKEN_EXCEPTION, "Unable to begin signing context");
+        goto finish;
+    }
+
+    /* Create a contextProxy and stick it in the PK11Signature object */
+    contextProxy = JSS_PK11_wrapSigContextProxy(env, (void**)&ctxt,
+                                                SGN_CONTEXT, &arena);
+
+    if (contextProxy == NULL) {
+        PR_ASSERT((*env)->ExceptionOccurred(env) != NULL);
+        goto finish;
+    }
+
+    // Signature algorithm for RSA PSS allocated in the arena,
+    // which is destroyed on exit.
+    setSigContext(env, this, contextProxy);
+
+finish:
+    if (contextProxy == NULL && ctxt != NULL) {
+        /* we created a context but not the Java wrapper, so we need to
+         * delete the context here. */
+        SGN_DestroyContext(ctxt, PR_TRUE /*freeit*/);
+    }
+
+    /* When contentProxy is created, arena will be NULLed and contentProxy
+     * takes ownership of it. Otherwise, when arena still exists, we must
+     * free it now. */
+    PORT_FreeArena(arena, PR_TRUE /* zero */);
+}
+
+JNIEXPORT void JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Signature_initVfyContext
+    (JNIEnv *env, jobject this)
+{
+    VFYContext *ctxt = NULL;
+    jobject contextProxy = NULL;
+    PRArenaPool *arena = NULL;
+
+    ctxt = createVfyContext(env, this, &arena);
+    if (ctxt == NULL) {
+        goto finish;
+    }
+
     if (VFY_Begin(ctxt) != SECSuccess) {
         JSS_throwMsgPrErr(env, TOKEN_EXCEPTION,
                           "Unable to begin verification context");
@@ -202,15 +240,292 @@ finish:
         VFY_DestroyContext(ctxt, PR_TRUE /*freeit*/);
     }
 
-    SECKEY_DestroyPublicKey(tempPubKey);
-    SECKEY_DestroyPrivateKey(privk);
-
     /* When contentProxy is created, arena will be NULLed and contentProxy
      * takes ownership of it. Otherwise, when arena still exists, we must
      * free it now. */
     PORT_FreeArena(arena, PR_TRUE /* zero */);
 }
 
+/***********************************************************************
+ *
+ * PK11Signature.resetSigContext
+ *
+ * Restarts the existing context so it can be used again with the same key.
+ */
+JNIEXPORT void JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Signature_resetSigContext
+    (JNIEnv *env, jobject this)
+{
+    SigContextType type;
+    void *ctxt = NULL;
+
+    if (getSigContext(env, this, &ctxt, &type) != PR_SUCCESS) {
+        PR_ASSERT((*env)->ExceptionOccurred(env) != NULL);
+        return;
+    }
+    PR_ASSERT(ctxt != NULL);
+
+    if (type == SGN_CONTEXT) {
+        if (SGN_Begin((SGNContext*)ctxt) != SECSuccess) {
+            JSS_throwMsgPrErr(env, TOKEN_EXCEPTION,
+                "Unable to reset signing context");
+        }
+    } else {
+        PR_ASSERT(type == VFY_CONTEXT);
+        if (VFY_Begin((VFYContext*)ctxt) != SECSuccess) {
+            JSS_throwMsgPrErr(env, TOKEN_EXCEPTION,
+                "Unable to reset verification context");
+        }
+    }
+}
+
+/*
+ * Runs one message through a signing context which is reused between
+ * messages of a batch. Returns the signature as a new byte array, or NULL
+ * when an exception was thrown.
+ */
+static jbyteArray
+signOne(JNIEnv *env, SGNContext *ctxt, jbyteArray dataBA)
+{
+    jbyte *bytes = NULL;
+    jsize length = 0;
+    SECItem signature = { siBuffer, NULL, 0 };
+    jbyteArray sigBA = NULL;
+
+    if (SGN_Begin(ctxt) != SECSuccess) {
+        JSS_throwMsgPrErr(env, TOKEN_EXCEPTION, "Unable to begin signing context");
+        goto finish;
+    }
+
+    /* JSS_RefByteArray refuses empty arrays; those have nothing to add. */
+    if ((*env)->GetArrayLength(env, dataBA) > 0) {
+        if (!JSS_RefByteArray(env, dataBA, &bytes, &length)) {
+            ASSERT_OUTOFMEM(env);
+            goto finish;
+        }
+
+        if (SGN_Update(ctxt, (unsigned char *)bytes, (unsigned)length)
+                != SECSuccess) {
+            JSS_throwMsgPrErr(env, SIGNATURE_EXCEPTION, "update failed");
+            goto finish;
+        }
+    }
+
+    if (SGN_End(ctxt, &signature) != SECSuccess) {
+        JSS_throwMsgPrErr(env, SIGNATURE_EXCEPTION,
+            "Signing operation failed");
+        goto finish;
+    }
+
+    sigBA = JSS_ToByteArray(env, signature.data, signature.len);
+    if (sigBA == NULL) {
+        ASSERT_OUTOFMEM(env);
+    }
+
+finish:
+    JSS_DerefByteArray(env, dataBA, bytes, JNI_ABORT);
+    if (signature.data != NULL) {
+        PR_Free(signature.data);
+    }
+    return sigBA;
+}
+
+/***********************************************************************
+ *
+ * PK11Signature.engineSignBatchNative
+ *
+ * Signs every message with a single context. The Java side validated that
+ * none of the messages are null.
+ */
+JNIEXPORT jobjectArray JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Signature_engineSignBatchNative
+    (JNIEnv *env, jobject this, jobjectArray dataArray)
+{
+    SGNContext *ctxt = NULL;
+    PRArenaPool *arena = NULL;
+    jclass byteArrayClass = NULL;
+    jobjectArray result = NULL;
+    jsize count = 0;
+    jsize i = 0;
+
+    PR_ASSERT(env != NULL && this != NULL && dataArray != NULL);
+
+    count = (*env)->GetArrayLength(env, dataArray);
+
+    byteArrayClass = (*env)->FindClass(env, "[B");
+    if (byteArrayClass == NULL) {
+        ASSERT_OUTOFMEM(env);
+        goto finish;
+    }
+
+    result = (*env)->NewObjectArray(env, count, byteArrayClass, NULL);
+    if (result == NULL) {
+        ASSERT_OUTOFMEM(env);
+        goto finish;
+    }
+
+    ctxt = createSigContext(env, this, &arena);
+    if (ctxt == NULL) {
+        result = NULL;
+        goto finish;
+    }
+
+    for (i = 0; i < count; i++) {
+        jbyteArray dataBA = (*env)->GetObjectArrayElement(env, dataArray, i);
+        jbyteArray sigBA = signOne(env, ctxt, dataBA);
+
+        (*env)->DeleteLocalRef(env, dataBA);
+        if (sigBA == NULL) {
+            result = NULL;
+            goto finish;
+        }
+
+        (*env)->SetObjectArrayElement(env, result, i, sigBA);
+        (*env)->DeleteLocalRef(env, sigBA);
+    }
+
+finish:
+    if (ctxt != NULL) {
+        SGN_DestroyContext(ctxt, PR_TRUE /*freeit*/);
+    }
+    PORT_FreeArena(arena, PR_TRUE /* zero */);
+    return result;
+}
+
+/*
+ * Runs one message and signature through a verification context which is
+ * reused between messages of a batch. Returns PR_FAILURE when an exception
+ * was thrown.
+ */
+static PRStatus
+verifyOne(JNIEnv *env, VFYContext *ctxt, jbyteArray dataBA,
+    jbyteArray sigBA, jboolean *verified)
+{
+    PRStatus status = PR_FAILURE;
+    jbyte *bytes = NULL;
+    jsize length = 0;
+    SECItem sigItem = { siBuffer, NULL, 0 };
+
+    *verified = JNI_FALSE;
+
+    if (VFY_Begin(ctxt) != SECSuccess) {
+        JSS_throwMsgPrErr(env, TOKEN_EXCEPTION,
+                          "Unable to begin verification context");
+        goto finish;
+    }
+
+    if ((*env)->GetArrayLength(env, dataBA) > 0) {
+        if (!JSS_RefByteArray(env, dataBA, &bytes, &length)) {
+            ASSERT_OUTOFMEM(env);
+            goto finish;
+        }
+
+        if (VFY_Update(ctxt, (unsigned char *)bytes, (unsigned)length)
+                != SECSuccess) {
+            JSS_throwMsgPrErr(env, SIGNATURE_EXCEPTION, "update failed");
+            goto finish;
+        }
+    }
+
+    if ((*env)->GetArrayLength(env, sigBA) == 0) {
+        /* An empty signature is never valid. */
+        status = PR_SUCCESS;
+        goto finish;
+    }
+
+    if (!JSS_RefByteArray(env, sigBA, (jbyte **) &sigItem.data,
+            (jsize *) &sigItem.len)) {
+        ASSERT_OUTOFMEM(env);
+        goto finish;
+    }
+
+    if (VFY_EndWithSignature(ctxt, &sigItem) == SECSuccess) {
+        *verified = JNI_TRUE;
+    } else if (PR_GetError() != SEC_ERROR_BAD_SIGNATURE) {
+        JSS_throwMsgPrErr(env, SIGNATURE_EXCEPTION,
+            "Failed to complete verification operation");
+        goto finish;
+    }
+
+    status = PR_SUCCESS;
+
+finish:
+    JSS_DerefByteArray(env, sigBA, sigItem.data, JNI_ABORT);
+    JSS_DerefByteArray(env, dataBA, bytes, JNI_ABORT);
+    return status;
+}
+
+/***********************************************************************
+ *
+ * PK11Signature.engineVerifyBatchNative
+ *
+ * Verifies every (message, signature) pair with a single context. The
+ * Java side validated that the arrays are the same length and free of
+ * nulls.
+ */
+JNIEXPORT jbooleanArray JNICALL
+Java_org_mozilla_jss_pkcs11_PK11Signature_engineVerifyBatchNative
+    (JNIEnv *env, jobject this, jobjectArray dataArray, jobjectArray sigArray)
+{
+    VFYContext *ctxt = NULL;
+    PRArenaPool *arena = NULL;
+    jbooleanArray result = NULL;
+    jboolean *verified = NULL;
+    jsize count = 0;
+    jsize i = 0;
+
+    PR_ASSERT(env != NULL && this != NULL);
+    PR_ASSERT(dataArray != NULL && sigArray != NULL);
+
+    count = (*env)->GetArrayLength(env, dataArray);
+
+    result = (*env)->NewBooleanArray(env, count);
+    if (result == NULL) {
+        ASSERT_OUTOFMEM(env);
+        goto finish;
+    }
+
+    if (count == 0) {
+        goto finish;
+    }
+
+    verified = PR_Calloc(count, sizeof(jboolean));
+    if (verified == NULL) {
+        JSS_throw(env, OUT_OF_MEMORY_ERROR);
+        result = NULL;
+        goto finish;
+    }
+
+    ctxt = createVfyContext(env, this, &arena);
+    if (ctxt == NULL) {
+        result = NULL;
+        goto finish;
+    }
+
+    for (i = 0; i < count; i++) {
+        jbyteArray dataBA = (*env)->GetObjectArrayElement(env, dataArray, i);
+        jbyteArray sigBA = (*env)->GetObjectArrayElement(env, sigArray, i);
+        PRStatus status = verifyOne(env, ctxt, dataBA, sigBA, &verified[i]);
+
+        (*env)->DeleteLocalRef(env, sigBA);
+        (*env)->DeleteLocalRef(env, dataBA);
+        if (status != PR_SUCCESS) {
+            result = NULL;
+            goto finish;
+        }
+    }
+
+    (*env)->SetBooleanArrayRegion(env, result, 0, count, verified);
+
+finish:
+    if (ctxt != NULL) {
+        VFY_DestroyContext(ctxt, PR_TRUE /*freeit*/);
+    }
+    PORT_FreeArena(arena, PR_TRUE /* zero */);
+    PR_Free(verified);
+    return result;
+}
+
 /**********************************************************************
  *
  * PK11Signature.engineUpdateNative
@@ -287,6 +287,66 @@ size_t jb_read(j_buffer *buf, uint8_t *output, size_t output_size) {
     return read_size + jb_read(buf, output, output_size);
 }
 
+void jb_clear(j_buffer *buf) {
+    if (buf == NULL || buf->contents == NULL) {
+        return;
+    }
+
+    memset(buf->contents, 0, buf->capacity);
+
+    // As in jb_alloc: in the beginning, we can only write, not read.
+    buf->write_pos = 0;
+    buf->read_pos = buf->capacity;
+}
+
+bool jb_resize(j_buffer *buf, size_t new_capacity) {
+    if (buf == NULL || buf->contents == NULL || new_capacity == 0) {
+        return false;
+    }
+
+    // We refuse to drop unread data; the caller should drain the buffer
+    // before shrinking it below its current read capacity.
+    size_t used = jb_read_capacity(buf);
+    if (new_capacity < used) {
+        return false;
+    }
+
+    if (new_capacity == buf->capacity) {
+        return true;
+    }
+
+    uint8_t *contents = calloc(new_capacity, sizeof(uint8_t));
+    if (contents == NULL) {
+        return false;
+    }
+
+    // Linearize the unread data into the start of the new contents; this
+    // also handles the case where the data wraps around the end of the old
+    // ring.
+    size_t copied = jb_read(buf, contents, used);
+
+    // As in jb_free, clear the old contents in case any sensitive material
+    // was stored.
+    memset(buf->contents, 0, buf->capacity);
+    free(buf->contents);
+
+    buf->contents = contents;
+    buf->capacity = new_capacity;
+
+    if (copied == 0) {
+        // Empty: we can only write, starting from the head.
+        buf->write_pos = 0;
+        buf->read_pos = new_capacity;
+    } else {
+        // Data starts at the head; writing continues after it unless the
+        // buffer is now full, in which case write_pos is the sentinel.
+        buf->read_pos = 0;
+        buf->write_pos = copied == new_capacity ? new_capacity : copied;
+    }
+
+    return true;
+}
+
 void jb_free(j_buffer *buf) {
     // Safely handle partial or invalid structures.
     if (buf == NULL) {
@@ -72,6 +72,21 @@ int jb_get(j_buffer *buf);
  */
 size_t jb_read(j_buffer *buf, uint8_t *output, size_t output_size);
 
+/*
+ * Discard all contents of the buffer, zeroing them in case any sensitive
+ * material was stored, and reset it to the empty state it had after jb_alloc.
+ */
+void jb_clear(j_buffer *buf);
+
+/*
+ * Change the capacity of the buffer to new_capacity, preserving any unread
+ * contents (in order). The j_buffer pointer itself remains valid, so any
+ * structure referencing it (such as a BufferPRFD) can keep using it. Returns
+ * false, leaving the buffer untouched, when new_capacity is zero, is smaller
+ * than the number of unread bytes, or when allocation fails.
+ */
+bool jb_resize(j_buffer *buf, size_t new_capacity);
+
 /*
  * Free a buffer allocated with jb_alloc. This includes zeroing the contents
  * of the buffer in case any sensitive material was stored.